@@ -46,11 +46,17 @@ public class HLSPlaybackApp extends Application {
     @Override
     public void onLowMemory() {
         super.onLowMemory();
+
+        //drop our in-memory segment tier
+        ExoPlayerCacheUtil.getInstance(getApplicationContext()).onLowMemory();
     }
 
     @Override
     public void onTrimMemory(int level) {
         super.onTrimMemory(level);
+
+        //shrink or drop our in-memory segment tier
+        ExoPlayerCacheUtil.getInstance(getApplicationContext()).onTrimMemory(level);
     }
 
     /**
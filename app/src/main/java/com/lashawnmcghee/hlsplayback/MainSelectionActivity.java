@@ -13,23 +13,29 @@ import android.widget.ListView;
 import android.widget.TextView;
 
 import com.lashawnmcghee.hlsplayback.adapters.MediaListAdapter;
-import com.lashawnmcghee.hlsplayback.interfaces.IDownloadListener;
+import com.lashawnmcghee.hlsplayback.interfaces.ICacheReadyListener;
+import com.lashawnmcghee.hlsplayback.interfaces.IDownloadProgressListener;
+import com.lashawnmcghee.hlsplayback.offline.DownloadProgressEvent;
 import com.lashawnmcghee.hlsplayback.util.ExoPlayerCacheUtil;
 import com.lashawnmcghee.hlsplayback.util.LogTrace;
 import com.lashawnmcghee.hlsplayback.util.TestStreams;
 
 import java.util.Arrays;
 
-public class MainSelectionActivity extends AppCompatActivity implements IDownloadListener,
-        AdapterView.OnItemClickListener {
+public class MainSelectionActivity extends AppCompatActivity implements IDownloadProgressListener,
+        ICacheReadyListener, AdapterView.OnItemClickListener {
     private static final String TAG = MainSelectionActivity.class.getSimpleName();
 
     //adapter for rendering list choices
     MediaListAdapter mChoicesAdapter;
+    ListView mChoicesListView;
 
     //get the cache utility instance
     ExoPlayerCacheUtil mCacheUtil;
 
+    //version of the tracked downloads our rows were last drawn from, -1 if unknown
+    private long mDrawnVersion = -1;
+
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
@@ -41,15 +47,55 @@ public class MainSelectionActivity extends AppCompatActivity implements IDownloa
     protected void onStart() {
         super.onStart();
 
-        mChoicesAdapter.notifyDataSetChanged();
-        mCacheUtil.getDownloadTracker().addListener(this);
+        //rows show an unknown cache state until the tracker has been built in the background
+        refreshRows();
+        mCacheUtil.addReadyListener(this);
     }
 
     @Override
     protected void onStop() {
         super.onStop();
 
-        mCacheUtil.getDownloadTracker().removeListener(this);
+        mCacheUtil.removeReadyListener(this);
+        mCacheUtil.getCatalogPrewarmer().cancel();
+        if(mCacheUtil.isReady()) {
+            mCacheUtil.getDownloadTracker().removeProgressListener(this);
+        }
+
+        //progress stops arriving while we are stopped, rows showing it are redrawn on return
+        if(mChoicesAdapter.clearProgress()) {
+            mDrawnVersion = -1;
+        }
+    }
+
+    /**
+     * Once the tracker is ready, listen for changes and refresh our rows with their real state.
+     */
+    @Override
+    public void onCacheReady() {
+        mCacheUtil.getDownloadTracker().addProgressListener(this);
+        refreshRows();
+    }
+
+    /**
+     * Without a tracker our rows keep their provisional state and inert icons.
+     */
+    @Override
+    public void onCacheFailed() {
+        LogTrace.w(TAG, "Download cache unavailable, rows keep their provisional state");
+    }
+
+    /**
+     * Redraw our rows unless the tracked downloads are still the ones they were drawn from.
+     */
+    private void refreshRows() {
+        long lngVersion = mCacheUtil.isReady()
+                ? mCacheUtil.getDownloadTracker().getStateVersion() : -1;
+        if(lngVersion != -1 && lngVersion == mDrawnVersion) {
+            return;
+        }
+        mDrawnVersion = lngVersion;
+        mChoicesAdapter.notifyDataSetChanged();
     }
 
     /**
@@ -59,18 +105,18 @@ public class MainSelectionActivity extends AppCompatActivity implements IDownloa
         mCacheUtil = ExoPlayerCacheUtil.getInstance(this);
 
         //Lets put our array of URLs into a simple array adapter to display to the user
-        ListView choicesListView = findViewById(R.id.lv_choices);
+        mChoicesListView = findViewById(R.id.lv_choices);
         mChoicesAdapter = new MediaListAdapter(this,
                 R.layout.media_list_item, Arrays.asList(TestStreams.getHlsArray()));
-        choicesListView.setAdapter(mChoicesAdapter);
-        choicesListView.setOnItemClickListener(this);
+        mChoicesListView.setAdapter(mChoicesAdapter);
+        mChoicesListView.setOnItemClickListener(this);
 
         //The below code are just dummy fillers to provide a header and footer divider
         LayoutInflater inflater = getLayoutInflater();
         TextView tvEmptyHeader = (TextView) inflater.inflate(R.layout.choice_list_item, null);
         TextView tvEmptyFooter = (TextView) inflater.inflate(R.layout.choice_list_item, null);
-        choicesListView.addHeaderView(tvEmptyHeader);
-        choicesListView.addFooterView(tvEmptyFooter);
+        mChoicesListView.addHeaderView(tvEmptyHeader);
+        mChoicesListView.addFooterView(tvEmptyFooter);
 
         LogTrace.d(TAG, "Initialization complete.");
     }
@@ -96,10 +142,14 @@ public class MainSelectionActivity extends AppCompatActivity implements IDownloa
         }
     }
 
+    /**
+     * Update only the row of the download which progressed.
+     * @param event
+     */
     @Override
-    public void onDownloadStatusChanged() {
+    public void onDownloadProgress(DownloadProgressEvent event) {
         if(mChoicesAdapter != null) {
-            mChoicesAdapter.notifyDataSetChanged();
+            mChoicesAdapter.onDownloadProgress(mChoicesListView, event);
         }
     }
 }
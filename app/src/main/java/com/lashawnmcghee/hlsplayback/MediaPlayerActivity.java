@@ -5,31 +5,43 @@ package com.lashawnmcghee.hlsplayback;
 
 import android.net.Uri;
 import android.os.Bundle;
+import android.os.Handler;
 import android.support.v7.app.AppCompatActivity;
 import android.view.View;
 import android.widget.ImageView;
 import android.widget.TextView;
+import android.widget.Toast;
 
+import com.google.android.exoplayer2.DefaultLoadControl;
+import com.google.android.exoplayer2.DefaultRenderersFactory;
 import com.google.android.exoplayer2.ExoPlayerFactory;
 import com.google.android.exoplayer2.Player;
 import com.google.android.exoplayer2.SimpleExoPlayer;
 import com.google.android.exoplayer2.offline.StreamKey;
 import com.google.android.exoplayer2.source.MediaSource;
 import com.google.android.exoplayer2.source.hls.HlsMediaSource;
-import com.google.android.exoplayer2.source.hls.playlist.DefaultHlsPlaylistParserFactory;
+import com.google.android.exoplayer2.source.hls.playlist.HlsPlaylistParserFactory;
 import com.google.android.exoplayer2.trackselection.DefaultTrackSelector;
 import com.google.android.exoplayer2.ui.PlayerView;
 import com.google.android.exoplayer2.upstream.DataSource;
-import com.lashawnmcghee.hlsplayback.interfaces.IDownloadListener;
+import com.lashawnmcghee.hlsplayback.cache.DefaultStreamCachePolicy;
+import com.lashawnmcghee.hlsplayback.interfaces.ICacheReadyListener;
+import com.lashawnmcghee.hlsplayback.adapters.MediaListAdapter;
+import com.lashawnmcghee.hlsplayback.interfaces.IDownloadProgressListener;
 import com.lashawnmcghee.hlsplayback.listeners.MediaDownloadTracker;
 import com.lashawnmcghee.hlsplayback.listeners.PlayerEventListener;
+import com.lashawnmcghee.hlsplayback.offline.BandwidthArbiter;
+import com.lashawnmcghee.hlsplayback.offline.DownloadProgressEvent;
 import com.lashawnmcghee.hlsplayback.util.ExoPlayerCacheUtil;
 import com.lashawnmcghee.hlsplayback.util.HLSAppSharedPreferences;
+import com.lashawnmcghee.hlsplayback.util.PersistentBandwidthMeter;
 
 import java.util.List;
 
-public class MediaPlayerActivity extends AppCompatActivity implements IDownloadListener {
+public class MediaPlayerActivity extends AppCompatActivity implements IDownloadProgressListener,
+        ICacheReadyListener {
     private static final String TAG = MediaPlayerActivity.class.getSimpleName();
+    private static final long BUFFER_REPORT_INTERVAL_MS = 500;
 
     //This is our main video view
     private PlayerView mPlayerView;
@@ -40,6 +52,17 @@ public class MediaPlayerActivity extends AppCompatActivity implements IDownloadL
     //Our main player
     private SimpleExoPlayer mPlayer;
     private PlayerEventListener mEventListener;
+    private PersistentBandwidthMeter mBandwidthMeter;
+
+    //background downloads give way while our buffer is low
+    private final Handler mHandler = new Handler();
+    private final Runnable mBufferReporter = new Runnable() {
+        @Override
+        public void run() {
+            reportBufferLevel();
+            mHandler.postDelayed(this, BUFFER_REPORT_INTERVAL_MS);
+        }
+    };
 
     //the selected stream URL
     private String mStreamLink;
@@ -79,11 +102,16 @@ public class MediaPlayerActivity extends AppCompatActivity implements IDownloadL
         }
         mTitleView.setText(mStreamLink);
 
-        //add ourself to listen for cache
-        ExoPlayerCacheUtil.getInstance(this).getDownloadTracker().addListener(this);
+        //hide both buttons until we know whether the media is in cache
+        mDownloadButton.setVisibility(View.GONE);
+        mDeleteButton.setVisibility(View.GONE);
 
-        //safely start up the media
-        startPlayer(mStreamLink);
+        //open a connection to the media host while the cache is still being built
+        ExoPlayerCacheUtil cacheUtil = ExoPlayerCacheUtil.getInstance(this);
+        cacheUtil.getPooledHttpDataSourceFactory().warmUp(mStreamLink);
+
+        //the player is started once the cache has been built in the background
+        cacheUtil.addReadyListener(this);
     }
 
     @Override
@@ -91,12 +119,35 @@ public class MediaPlayerActivity extends AppCompatActivity implements IDownloadL
         super.onStop();
 
         //remove ourself as a listener for cache
-        ExoPlayerCacheUtil.getInstance(this).getDownloadTracker().removeListener(this);
+        ExoPlayerCacheUtil cacheUtil = ExoPlayerCacheUtil.getInstance(this);
+        cacheUtil.removeReadyListener(this);
+        if(cacheUtil.isReady()) {
+            cacheUtil.getDownloadTracker().removeProgressListener(this);
+        }
 
         //release player
         releasePlayer();
     }
 
+    /**
+     * Once the cache is ready, listen for cache changes and safely start up the media.
+     */
+    @Override
+    public void onCacheReady() {
+        ExoPlayerCacheUtil.getInstance(this).getDownloadTracker().addProgressListener(this);
+        startPlayer(mStreamLink);
+    }
+
+    /**
+     * Without the cache there is nothing to play through, so tell the user and leave.
+     */
+    @Override
+    public void onCacheFailed() {
+        Toast.makeText(getApplicationContext(), R.string.cache_init_error, Toast.LENGTH_LONG)
+                .show();
+        finish();
+    }
+
     /**
      * Allows quick toggle of buttons based on provided media state.
      * @param hasDownload True if the media is not in cache and can be downloaded. False if the
@@ -113,26 +164,18 @@ public class MediaPlayerActivity extends AppCompatActivity implements IDownloadL
     }
 
     /**
-     * Safely start playing media whos URL has been supplied in our intent.
-     * TODO: Move the model functionality to another class but keep the UI logic
+     * Show the download or delete button depending on whether the media is in our tracker.
+     * @param uri URI of the media being played.
      */
-    private void startPlayer(String sMediaURL) {
-        //release existing player if is was not destroyed
-        if(mPlayer != null) {
-            releasePlayer();
-        }
-
-        //convert to uri
-        Uri uriToPlay = Uri.parse(sMediaURL);
-
+    private void bindButtons(Uri uri) {
         //is this media already in cache?
         MediaDownloadTracker tracker = ExoPlayerCacheUtil.getInstance(this).getDownloadTracker();
-        if(!tracker.isDownloaded(uriToPlay)) {
+        if(!tracker.isDownloaded(uri)) {
             //give life to the download button
             mDownloadButton.setOnClickListener(new View.OnClickListener() {
                 @Override
                 public void onClick(View view) {
-                    downloadMedia(uriToPlay);
+                    downloadMedia(uri);
                     mDownloadButton.setVisibility(View.GONE);
                 }
             });
@@ -144,7 +187,7 @@ public class MediaPlayerActivity extends AppCompatActivity implements IDownloadL
             mDeleteButton.setOnClickListener(new View.OnClickListener() {
                 @Override
                 public void onClick(View view) {
-                    removeMedia(uriToPlay);
+                    removeMedia(uri);
                     mDeleteButton.setVisibility(View.GONE);
                 }
             });
@@ -152,16 +195,40 @@ public class MediaPlayerActivity extends AppCompatActivity implements IDownloadL
             //fix button visibility
             updateButtons(false);
         }
+    }
+
+    /**
+     * Safely start playing media whos URL has been supplied in our intent.
+     * TODO: Move the model functionality to another class but keep the UI logic
+     */
+    private void startPlayer(String sMediaURL) {
+        //release existing player if is was not destroyed
+        if(mPlayer != null) {
+            releasePlayer();
+        }
+
+        //convert to uri
+        Uri uriToPlay = Uri.parse(sMediaURL);
+        bindButtons(uriToPlay);
+        MediaDownloadTracker tracker = ExoPlayerCacheUtil.getInstance(this).getDownloadTracker();
 
-        //init player
-        mPlayer = ExoPlayerFactory.newSimpleInstance(this, new DefaultTrackSelector());
+        //init player starting from the bandwidth we measured last time on this network and host
+        mBandwidthMeter = new PersistentBandwidthMeter(this, HLSPlaybackApp.getPrefs(), uriToPlay);
+        mPlayer = ExoPlayerFactory.newSimpleInstance(this,
+                new DefaultRenderersFactory(this),
+                new DefaultTrackSelector(),
+                new DefaultLoadControl(),
+                null,
+                mBandwidthMeter);
         mPlayerView.setPlayer(mPlayer);
 
         //setup our media source by using the same factory setting as our cache components
-        DataSource.Factory dsf = ExoPlayerCacheUtil.getInstance(this).buildDataSourceFactory();
+        //streamed segments and VOD playlists are written through so repeat loops avoid the network
+        ExoPlayerCacheUtil cacheUtil = ExoPlayerCacheUtil.getInstance(this);
+        DataSource.Factory dsf = cacheUtil.buildDataSourceFactory(new DefaultStreamCachePolicy());
         List<StreamKey> streamKeysList = tracker.getOfflineStreamKeys(uriToPlay);
-        DefaultHlsPlaylistParserFactory hlsPlaylistParserFactory =
-                new DefaultHlsPlaylistParserFactory(streamKeysList);
+        HlsPlaylistParserFactory hlsPlaylistParserFactory =
+                cacheUtil.buildPlaylistParserFactory(streamKeysList);
         MediaSource hms = new HlsMediaSource.Factory(dsf)
                 .setPlaylistParserFactory(hlsPlaylistParserFactory)
                 .createMediaSource(uriToPlay);
@@ -171,12 +238,29 @@ public class MediaPlayerActivity extends AppCompatActivity implements IDownloadL
 
         //lets create a listener to handle positioning as well as error reporting
         mEventListener = new PlayerEventListener(getApplicationContext(), mPlayer, mLastPosition);
+        mEventListener.setSegmentPrefetcher(cacheUtil.getSegmentPrefetcher());
         mPlayer.addListener(mEventListener);
 
         //now lets prepare our player in repeat mode and allow it to play when ready
         mPlayer.setRepeatMode(Player.REPEAT_MODE_ONE);
         mPlayer.prepare(hms);
         mPlayer.setPlayWhenReady(true);
+
+        //start telling the bandwidth arbiter how healthy our buffer is
+        mHandler.post(mBufferReporter);
+    }
+
+    /**
+     * Report the buffer ahead of the playback position to the bandwidth arbiter.
+     */
+    private void reportBufferLevel() {
+        if(mPlayer == null) {
+            return;
+        }
+        long lngBufferedMs = Math.max(0,
+                mPlayer.getBufferedPosition() - mPlayer.getCurrentPosition());
+        BandwidthArbiter arbiter = ExoPlayerCacheUtil.getInstance(this).getBandwidthArbiter();
+        arbiter.onPlaybackBufferChanged(lngBufferedMs, mBandwidthMeter.getBitrateEstimate());
     }
 
     /**
@@ -190,10 +274,21 @@ public class MediaPlayerActivity extends AppCompatActivity implements IDownloadL
                 prefs.setLastViewedURL(mStreamLink);
                 prefs.setLastViewedPosition(lngPosition);
             }
+            //downloads no longer need to give way to us
+            mHandler.removeCallbacks(mBufferReporter);
+            ExoPlayerCacheUtil.getInstance(this).getBandwidthArbiter().onPlaybackStopped();
+
             mPlayerView.setPlayer(null);
             mPlayer.removeListener(mEventListener);
             mPlayer.release();
             mPlayer = null;
+
+            //keep what we learned about this network for the next session
+            mBandwidthMeter.save();
+            mBandwidthMeter = null;
+
+            //nothing is left to prefetch for
+            ExoPlayerCacheUtil.getInstance(this).getSegmentPrefetcher().cancel();
         }
     }
 
@@ -237,12 +332,21 @@ public class MediaPlayerActivity extends AppCompatActivity implements IDownloadL
     }
 
     /**
-     * Implementation of the download change listener.
-     * For now it is a nudge when there is an error or sucess.
-     * TODO: Modify the internal utility to provide true error/success values.
+     * Implementation of the download progress listener.
+     * Shows the progress of our media under its title and fixes the buttons once it is queued
+     * or has finished, without restarting playback.
+     * @param event
      */
     @Override
-    public void onDownloadStatusChanged() {
-        recreate();
+    public void onDownloadProgress(DownloadProgressEvent event) {
+        if(mStreamLink == null || !mStreamLink.equals(event.url)) {
+            return;
+        }
+        String sProgress = MediaListAdapter.describeProgress(this, event);
+        mTitleView.setText(sProgress != null ? mStreamLink + "\n" + sProgress : mStreamLink);
+        if(event.state != DownloadProgressEvent.STATE_DOWNLOADING
+                && event.state != DownloadProgressEvent.STATE_REMOVING) {
+            bindButtons(Uri.parse(mStreamLink));
+        }
     }
 }
@@ -2,21 +2,30 @@ package com.lashawnmcghee.hlsplayback.adapters;
 
 import android.content.Context;
 import android.net.Uri;
+import android.text.format.Formatter;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
 import android.widget.ArrayAdapter;
 import android.widget.ImageView;
+import android.widget.ListView;
 import android.widget.TextView;
 
 import com.lashawnmcghee.hlsplayback.R;
+import com.lashawnmcghee.hlsplayback.offline.DownloadProgressEvent;
 import com.lashawnmcghee.hlsplayback.util.ExoPlayerCacheUtil;
 
+import java.util.HashMap;
 import java.util.List;
 
 public class MediaListAdapter extends ArrayAdapter<String> {
+    private static final float DISABLED_ICON_ALPHA = 0.4f;
+
     Context mContext;
 
+    //latest progress of downloads which have not finished, by url
+    private final HashMap<String, DownloadProgressEvent> mProgress = new HashMap<>();
+
     public MediaListAdapter(Context context, int resource, List<String> objects) {
         super(context, resource, objects);
         mContext = context;
@@ -26,10 +35,7 @@ public class MediaListAdapter extends ArrayAdapter<String> {
     public View getView(int position, View convertView, ViewGroup parent) {
 
         View createdView = null;
-        ImageView ivCache;
-        TextView tvURL;
         String url = getItem(position);
-        Uri uri = Uri.parse(url);
 
         //Either recycle or create a new view for this item
         if(convertView != null) {
@@ -41,28 +47,124 @@ public class MediaListAdapter extends ArrayAdapter<String> {
 
         //set our view tag
         createdView.setTag(url);
+        bindRow(createdView, url);
+
+        return createdView;
+    }
+
+    /**
+     * Show the progress of one download by rebinding only its row, if it is on screen.
+     * @param listView List view showing this adapter.
+     * @param event Progress of the download.
+     */
+    public void onDownloadProgress(ListView listView, DownloadProgressEvent event) {
+        if(event.isFinished()) {
+            mProgress.remove(event.url);
+        } else {
+            mProgress.put(event.url, event);
+        }
+
+        //rows are tagged with their url, rows off screen are bound when they scroll in
+        View row = listView.findViewWithTag(event.url);
+        if(row != null) {
+            bindRow(row, event.url);
+        }
+    }
+
+    /**
+     * Forget the progress of every download, for when progress stops being delivered.
+     * @return Returns true if any row was showing progress.
+     */
+    public boolean clearProgress() {
+        boolean bHadProgress = !mProgress.isEmpty();
+        mProgress.clear();
+        return bHadProgress;
+    }
+
+    /**
+     * Describe the progress of a download for the end user.
+     * @param context
+     * @param event
+     * @return Returns the description, or null once the download has finished.
+     */
+    public static String describeProgress(Context context, DownloadProgressEvent event) {
+        switch (event.state) {
+            case DownloadProgressEvent.STATE_QUEUED:
+                return context.getString(R.string.download_queued);
+            case DownloadProgressEvent.STATE_REMOVING:
+                return context.getString(R.string.download_removing);
+            case DownloadProgressEvent.STATE_DOWNLOADING:
+                String sRate = Formatter.formatShortFileSize(context, event.bytesPerSecond);
+                if(event.hasPercentage()) {
+                    return context.getString(R.string.download_progress,
+                            (int) event.percentage, sRate);
+                }
+                return context.getString(R.string.download_progress_bytes,
+                        Formatter.formatShortFileSize(context, event.downloadedBytes), sRate);
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Fill in a row from the cache state and download progress of its url.
+     * @param row
+     * @param url
+     */
+    private void bindRow(View row, String url) {
+        ImageView ivCache;
+        TextView tvURL;
+        Uri uri = Uri.parse(url);
 
         //grab the cache icon element and fill it in based on item state in cache
-        ivCache = createdView.findViewById(R.id.iv_cache);
-        boolean bIsCached = ExoPlayerCacheUtil.getInstance(mContext)
-                .getDownloadTracker()
-                .isDownloaded(uri);
-        setCacheIconState(bIsCached, ivCache, uri);
+        //the state is unknown while the cache is still being built in the background
+        ivCache = row.findViewById(R.id.iv_cache);
+        ExoPlayerCacheUtil cacheUtil = ExoPlayerCacheUtil.getInstance(mContext);
+        int iCacheState = cacheUtil.getCachedState(uri);
+        setCacheIconState(iCacheState, cacheUtil.isReady(), ivCache, uri);
 
-        //set the url text
-        tvURL = createdView.findViewById(R.id.tv_url);
-        tvURL.setText(url);
+        //rows on screen are prewarmed so a tap starts playing right away
+        if(iCacheState != ExoPlayerCacheUtil.CACHE_STATE_DOWNLOADED) {
+            cacheUtil.getCatalogPrewarmer().prewarm(uri);
+        }
 
-        return createdView;
+        //set the url text, followed by the progress of a download which has not finished
+        tvURL = row.findViewById(R.id.tv_url);
+        DownloadProgressEvent event = mProgress.get(url);
+        String sProgress = event != null ? describeProgress(mContext, event) : null;
+        tvURL.setText(sProgress != null ? url + "\n" + sProgress : url);
     }
 
     /**
      * Sets the cache icon and click action for the cache icon position.
-     * @param cached
+     * @param cacheState One of the ExoPlayerCacheUtil CACHE_STATE values.
+     * @param bReady Whether the download tracker has been built. Until then the icon of a state
+     *               known from the index snapshot is shown disabled, since acting on it would
+     *               block the main thread.
      */
-    private void setCacheIconState(boolean cached, ImageView cacheView, final Uri uri) {
-        if(cached) {
-            cacheView.setBackgroundResource(R.drawable.ic_delete_sweep_white_24dp);
+    private void setCacheIconState(int cacheState,
+                                   boolean bReady,
+                                   ImageView cacheView,
+                                   final Uri uri) {
+        if(cacheState == ExoPlayerCacheUtil.CACHE_STATE_UNKNOWN) {
+            cacheView.setOnClickListener(null);
+            cacheView.setVisibility(View.INVISIBLE);
+            return;
+        }
+
+        boolean bDownloaded = cacheState == ExoPlayerCacheUtil.CACHE_STATE_DOWNLOADED;
+        cacheView.setBackgroundResource(bDownloaded
+                ? R.drawable.ic_delete_sweep_white_24dp : R.drawable.baseline_save_alt_white_24dp);
+        cacheView.setEnabled(bReady);
+        cacheView.setAlpha(bReady ? 1f : DISABLED_ICON_ALPHA);
+        cacheView.setVisibility(View.VISIBLE);
+        if(!bReady) {
+            //rows are bound again once the cache is ready
+            cacheView.setOnClickListener(null);
+            return;
+        }
+
+        if(bDownloaded) {
             cacheView.setOnClickListener(new View.OnClickListener() {
                 @Override
                 public void onClick(View view) {
@@ -71,7 +173,6 @@ public class MediaListAdapter extends ArrayAdapter<String> {
                 }
             });
         } else {
-            cacheView.setBackgroundResource(R.drawable.baseline_save_alt_white_24dp);
             cacheView.setOnClickListener(new View.OnClickListener() {
                 @Override
                 public void onClick(View view) {
@@ -80,6 +181,5 @@ public class MediaListAdapter extends ArrayAdapter<String> {
                 }
             });
         }
-        cacheView.setVisibility(View.VISIBLE);
     }
 }
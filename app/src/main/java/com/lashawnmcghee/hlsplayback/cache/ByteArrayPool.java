@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2018 LLM HLS Playback Demo
+ */
+package com.lashawnmcghee.hlsplayback.cache;
+
+import java.util.ArrayDeque;
+
+/**
+ * A simple pool of fixed size byte arrays.
+ * Chunks are handed back to the pool when they are released so the memory tier does not churn the
+ * garbage collector while segments are played, evicted and played again.
+ */
+public class ByteArrayPool {
+
+    private final int mChunkSize;
+    private final int mMaxOutstandingChunks;
+    private final ArrayDeque<byte[]> mFreeChunks;
+    private int mMaxPooledChunks;
+    private int mOutstandingChunks;
+
+    /**
+     * Constructor for this pool.
+     * @param chunkSize Size in bytes of every array handed out by this pool.
+     * @param maxPooledChunks Maximum number of free arrays kept around for reuse.
+     */
+    public ByteArrayPool(int chunkSize, int maxPooledChunks) {
+        this(chunkSize, maxPooledChunks, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Constructor for this pool.
+     * @param chunkSize Size in bytes of every array handed out by this pool.
+     * @param maxPooledChunks Maximum number of free arrays kept around for reuse.
+     * @param maxOutstandingChunks Maximum number of arrays {@link #tryAcquire()} hands out at once.
+     */
+    public ByteArrayPool(int chunkSize, int maxPooledChunks, int maxOutstandingChunks) {
+        mChunkSize = chunkSize;
+        mMaxPooledChunks = maxPooledChunks;
+        mMaxOutstandingChunks = maxOutstandingChunks;
+        mFreeChunks = new ArrayDeque<>();
+    }
+
+    /**
+     * Get the size of every array handed out by this pool.
+     * @return
+     */
+    public int getChunkSize() {
+        return mChunkSize;
+    }
+
+    /**
+     * Get an array from the pool, or a new one if the pool is empty.
+     * @return
+     */
+    public synchronized byte[] acquire() {
+        mOutstandingChunks++;
+        byte[] chunk = mFreeChunks.pollFirst();
+        return chunk != null ? chunk : new byte[mChunkSize];
+    }
+
+    /**
+     * Get an array from the pool unless the maximum number of arrays is already handed out.
+     * @return Returns the array, or null if the caller has to do without one.
+     */
+    public synchronized byte[] tryAcquire() {
+        if (mOutstandingChunks >= mMaxOutstandingChunks) {
+            return null;
+        }
+        return acquire();
+    }
+
+    /**
+     * Get the number of arrays handed out and not released yet.
+     * @return
+     */
+    public synchronized int getOutstandingChunks() {
+        return mOutstandingChunks;
+    }
+
+    /**
+     * Give an array back to the pool.
+     * @param chunk
+     */
+    public synchronized void release(byte[] chunk) {
+        if (chunk.length != mChunkSize) {
+            return;
+        }
+        mOutstandingChunks = Math.max(0, mOutstandingChunks - 1);
+        if (mFreeChunks.size() < mMaxPooledChunks) {
+            mFreeChunks.addFirst(chunk);
+        }
+    }
+
+    /**
+     * Change the number of free arrays kept around, dropping any extra arrays.
+     * @param maxPooledChunks
+     */
+    public synchronized void setMaxPooledChunks(int maxPooledChunks) {
+        mMaxPooledChunks = maxPooledChunks;
+        while (mFreeChunks.size() > mMaxPooledChunks) {
+            mFreeChunks.pollLast();
+        }
+    }
+
+    /**
+     * Drop every free array held by this pool.
+     */
+    public synchronized void clear() {
+        mFreeChunks.clear();
+    }
+}
@@ -0,0 +1,524 @@
+/*
+ * Copyright (C) 2018 LLM HLS Playback Demo
+ */
+package com.lashawnmcghee.hlsplayback.cache;
+
+import com.google.android.exoplayer2.upstream.cache.Cache;
+import com.google.android.exoplayer2.upstream.cache.CacheSpan;
+import com.lashawnmcghee.hlsplayback.util.LogTrace;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * A compact, checksummed snapshot of the download cache index.
+ *
+ * Every span added to or removed from the cache, and every key pinned or unpinned, is appended to
+ * the snapshot file as a small binary record with its own CRC32. Records are batched and flushed
+ * with a single fsync on a background thread. On start the file is memory mapped and decoded up to
+ * the first damaged record, which lets the app give provisional answers to cache questions while
+ * SimpleCache is still being built. It does not make a cold start constant time: SimpleCache still
+ * scans its whole directory before it can be used, and decoding the snapshot is linear in its
+ * records. A background verifier later reconciles the snapshot with the spans the cache actually
+ * found on disk, and the file is compacted once it holds mostly stale records.
+ */
+public class CacheIndexSnapshot {
+    private static final String TAG = CacheIndexSnapshot.class.getSimpleName();
+
+    private static final int MAGIC = 0x484C5349;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 8;
+
+    private static final byte OP_ADD_SPAN = 1;
+    private static final byte OP_REMOVE_SPAN = 2;
+    private static final byte OP_PIN = 3;
+    private static final byte OP_UNPIN = 4;
+
+    private static final long FLUSH_DELAY_MS = 500;
+    private static final int COMPACT_MIN_RECORDS = 1024;
+    private static final int COMPACT_FACTOR = 4;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final File mFile;
+    private final HashMap<String, KeyState> mKeys;
+    private final ByteArrayOutputStream mPendingRecords;
+    private final ScheduledExecutorService mWriteExecutor;
+
+    //keys recorded by callbacks while the verifier scans the cache, null when it is not scanning
+    private HashSet<String> mTouchedKeys;
+    private long mTotalBytes;
+    private int mSpanCount;
+    private int mRecordCount;
+    private long mValidLength;
+    private boolean mFlushScheduled;
+    private boolean mNeedsRewrite;
+    private volatile boolean mLoaded;
+
+    /**
+     * Constructor for this snapshot.
+     * @param file File holding the snapshot.
+     */
+    public CacheIndexSnapshot(File file) {
+        mFile = file;
+        mKeys = new HashMap<>();
+        mPendingRecords = new ByteArrayOutputStream();
+        mWriteExecutor = Executors.newSingleThreadScheduledExecutor();
+    }
+
+    /**
+     * Memory map the snapshot file and decode its records.
+     * Decoding stops at the first damaged or truncated record. Anything after it is dropped the next
+     * time the snapshot is written.
+     */
+    public synchronized void load() {
+        mKeys.clear();
+        mTotalBytes = 0;
+        mSpanCount = 0;
+        mRecordCount = 0;
+        mValidLength = 0;
+
+        if (mFile.exists()) {
+            try (RandomAccessFile raf = new RandomAccessFile(mFile, "r");
+                 FileChannel channel = raf.getChannel()) {
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                decode(buffer);
+
+                //drop a damaged tail so new records are not followed by stale bytes
+                if (mValidLength < channel.size()) {
+                    mNeedsRewrite = true;
+                    scheduleFlush();
+                }
+            } catch (IOException e) {
+                LogTrace.e(TAG, "Failed to map cache index snapshot", e);
+            }
+        }
+
+        //a missing or damaged header means the whole file is rewritten
+        if (mValidLength < HEADER_SIZE) {
+            mKeys.clear();
+            mTotalBytes = 0;
+            mSpanCount = 0;
+            mRecordCount = 0;
+            mNeedsRewrite = true;
+            scheduleFlush();
+        }
+        mLoaded = true;
+    }
+
+    /**
+     * Determines if the snapshot has been decoded.
+     * @return
+     */
+    public boolean isLoaded() {
+        return mLoaded;
+    }
+
+    /**
+     * Determines if a cache key was pinned as an explicit download when last recorded.
+     * @param key
+     * @return
+     */
+    public synchronized boolean isPinned(String key) {
+        KeyState state = mKeys.get(key);
+        return state != null && state.mPinned;
+    }
+
+    /**
+     * Get the number of bytes recorded for a cache key.
+     * @param key
+     * @return
+     */
+    public synchronized long getCachedBytes(String key) {
+        KeyState state = mKeys.get(key);
+        return state != null ? state.mBytes : 0;
+    }
+
+    /**
+     * Get the number of bytes recorded for the whole cache.
+     * @return
+     */
+    public synchronized long getTotalBytes() {
+        return mTotalBytes;
+    }
+
+    /**
+     * Get the number of spans recorded for the whole cache.
+     * @return
+     */
+    public synchronized int getSpanCount() {
+        return mSpanCount;
+    }
+
+    /**
+     * Record a span added to the cache. Spans already recorded, such as those found by the cache
+     * while it scans its directory at start up, are ignored.
+     * @param span
+     */
+    public synchronized void onSpanAdded(CacheSpan span) {
+        touchKey(span.key);
+        if (applyAddSpan(span.key, span.position, span.length)) {
+            appendRecord(OP_ADD_SPAN, span.key, span.position, span.length);
+        }
+    }
+
+    /**
+     * Record a span removed from the cache.
+     * @param span
+     */
+    public synchronized void onSpanRemoved(CacheSpan span) {
+        touchKey(span.key);
+        if (applyRemoveSpan(span.key, span.position)) {
+            appendRecord(OP_REMOVE_SPAN, span.key, span.position, 0);
+        }
+    }
+
+    /**
+     * Record the pinned state of a cache key.
+     * @param key
+     * @param pinned
+     */
+    public synchronized void onPinnedChanged(String key, boolean pinned) {
+        touchKey(key);
+        if (!pinned && !mKeys.containsKey(key)) {
+            return;
+        }
+        KeyState state = getOrAddKey(key);
+        if (state.mPinned != pinned) {
+            state.mPinned = pinned;
+            appendRecord(pinned ? OP_PIN : OP_UNPIN, key, 0, 0);
+        }
+    }
+
+    /**
+     * Reconcile the snapshot with the cache on a background thread.
+     * Spans whose files have gone missing are removed from the cache, spans the cache knows about
+     * replace whatever the snapshot recorded and the file is rewritten when they differ. Keys
+     * recorded through callbacks while the cache is scanned keep those newer records.
+     * @param cache The initialized cache.
+     * @param evictor The evictor of the cache, holding the pinned state of its keys.
+     */
+    public void verifyAsync(Cache cache, PinnedLruCacheEvictor evictor) {
+        mWriteExecutor.execute(() -> verify(cache, evictor));
+    }
+
+    /**
+     * Flush pending records and stop the background writer.
+     */
+    public void release() {
+        mWriteExecutor.execute(this::flush);
+        mWriteExecutor.shutdown();
+    }
+
+    private void verify(Cache cache, PinnedLruCacheEvictor evictor) {
+        HashMap<String, KeyState> verifiedKeys = new HashMap<>();
+        synchronized (this) {
+            mTouchedKeys = new HashSet<>();
+        }
+
+        for (String key : cache.getKeys()) {
+            NavigableSet<CacheSpan> spans = cache.getCachedSpans(key);
+            KeyState state = new KeyState();
+            for (CacheSpan span : spans) {
+                if (span.isCached && span.file != null && !span.file.exists()) {
+                    try {
+                        cache.removeSpan(span);
+                    } catch (Cache.CacheException e) {
+                        LogTrace.e(TAG, "Failed to remove missing span", e);
+                    }
+                    continue;
+                }
+                state.mSpans.put(span.position, span.length);
+                state.mBytes += span.length;
+            }
+            state.mPinned = evictor.isPinned(cache, key);
+            if (!state.mSpans.isEmpty() || state.mPinned) {
+                verifiedKeys.put(key, state);
+            }
+        }
+
+        synchronized (this) {
+            //only keys no callback recorded during the scan are taken from it
+            boolean bChanged = false;
+            Iterator<Map.Entry<String, KeyState>> iterator = mKeys.entrySet().iterator();
+            while (iterator.hasNext()) {
+                String key = iterator.next().getKey();
+                if (!mTouchedKeys.contains(key) && !verifiedKeys.containsKey(key)) {
+                    iterator.remove();
+                    bChanged = true;
+                }
+            }
+            for (Map.Entry<String, KeyState> entry : verifiedKeys.entrySet()) {
+                if (!mTouchedKeys.contains(entry.getKey())
+                        && !entry.getValue().equals(mKeys.get(entry.getKey()))) {
+                    mKeys.put(entry.getKey(), entry.getValue());
+                    bChanged = true;
+                }
+            }
+            mTouchedKeys = null;
+
+            if (bChanged) {
+                LogTrace.w(TAG, "Cache index snapshot was stale, rewriting it.");
+                mTotalBytes = 0;
+                mSpanCount = 0;
+                for (KeyState state : mKeys.values()) {
+                    mTotalBytes += state.mBytes;
+                    mSpanCount += state.mSpans.size();
+                }
+                mNeedsRewrite = true;
+                scheduleFlush();
+            }
+        }
+    }
+
+    private void touchKey(String key) {
+        if (mTouchedKeys != null) {
+            mTouchedKeys.add(key);
+        }
+    }
+
+    private void decode(MappedByteBuffer buffer) {
+        try {
+            if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+                return;
+            }
+            mValidLength = HEADER_SIZE;
+
+            CRC32 crc = new CRC32();
+            while (buffer.hasRemaining()) {
+                int start = buffer.position();
+                byte op = buffer.get();
+                int keyLength = buffer.getShort() & 0xFFFF;
+                byte[] keyBytes = new byte[keyLength];
+                buffer.get(keyBytes);
+                long position = buffer.getLong();
+                long length = buffer.getLong();
+                int end = buffer.position();
+                int checksum = buffer.getInt();
+
+                byte[] record = new byte[end - start];
+                buffer.position(start);
+                buffer.get(record);
+                buffer.position(end + 4);
+                crc.reset();
+                crc.update(record, 0, record.length);
+                if ((int) crc.getValue() != checksum) {
+                    LogTrace.w(TAG, "Damaged cache index snapshot record at %d", start);
+                    return;
+                }
+
+                String key = new String(keyBytes, UTF_8);
+                switch (op) {
+                    case OP_ADD_SPAN:
+                        applyAddSpan(key, position, length);
+                        break;
+                    case OP_REMOVE_SPAN:
+                        applyRemoveSpan(key, position);
+                        break;
+                    case OP_PIN:
+                        getOrAddKey(key).mPinned = true;
+                        break;
+                    case OP_UNPIN:
+                        getOrAddKey(key).mPinned = false;
+                        break;
+                    default:
+                        return;
+                }
+                mRecordCount++;
+                mValidLength = buffer.position();
+            }
+        } catch (BufferUnderflowException e) {
+            //a truncated tail from an interrupted write, keep everything before it
+        }
+    }
+
+    private KeyState getOrAddKey(String key) {
+        KeyState state = mKeys.get(key);
+        if (state == null) {
+            state = new KeyState();
+            mKeys.put(key, state);
+        }
+        return state;
+    }
+
+    private boolean applyAddSpan(String key, long position, long length) {
+        KeyState state = getOrAddKey(key);
+        Long oldLength = state.mSpans.put(position, length);
+        if (oldLength != null && oldLength == length) {
+            return false;
+        }
+        long delta = length - (oldLength != null ? oldLength : 0);
+        state.mBytes += delta;
+        mTotalBytes += delta;
+        if (oldLength == null) {
+            mSpanCount++;
+        }
+        return true;
+    }
+
+    private boolean applyRemoveSpan(String key, long position) {
+        KeyState state = mKeys.get(key);
+        if (state == null) {
+            return false;
+        }
+        Long oldLength = state.mSpans.remove(position);
+        if (oldLength == null) {
+            return false;
+        }
+        state.mBytes -= oldLength;
+        mTotalBytes -= oldLength;
+        mSpanCount--;
+        if (state.mSpans.isEmpty() && !state.mPinned) {
+            mKeys.remove(key);
+        }
+        return true;
+    }
+
+    private void appendRecord(byte op, String key, long position, long length) {
+        try {
+            writeRecord(new DataOutputStream(mPendingRecords), op, key, position, length);
+            mRecordCount++;
+        } catch (IOException e) {
+            //writing to memory does not fail
+        }
+        if (mRecordCount > COMPACT_MIN_RECORDS && mRecordCount > COMPACT_FACTOR * (mSpanCount + mKeys.size())) {
+            mNeedsRewrite = true;
+        }
+        scheduleFlush();
+    }
+
+    private static void writeRecord(DataOutputStream output, byte op, String key, long position, long length)
+            throws IOException {
+        byte[] keyBytes = key.getBytes(UTF_8);
+        ByteArrayOutputStream recordBytes = new ByteArrayOutputStream(keyBytes.length + 19);
+        DataOutputStream record = new DataOutputStream(recordBytes);
+        record.writeByte(op);
+        record.writeShort(keyBytes.length);
+        record.write(keyBytes);
+        record.writeLong(position);
+        record.writeLong(length);
+
+        byte[] data = recordBytes.toByteArray();
+        CRC32 crc = new CRC32();
+        crc.update(data, 0, data.length);
+        output.write(data);
+        output.writeInt((int) crc.getValue());
+    }
+
+    private void scheduleFlush() {
+        if (!mFlushScheduled && !mWriteExecutor.isShutdown()) {
+            mFlushScheduled = true;
+            mWriteExecutor.schedule(this::flush, FLUSH_DELAY_MS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Append pending records with a single fsync, or rewrite the whole file when compacting.
+     */
+    private void flush() {
+        byte[] pending;
+        boolean bRewrite;
+        List<Object[]> liveRecords = null;
+        synchronized (this) {
+            mFlushScheduled = false;
+            pending = mPendingRecords.toByteArray();
+            mPendingRecords.reset();
+            bRewrite = mNeedsRewrite;
+            mNeedsRewrite = false;
+            if (bRewrite) {
+                liveRecords = collectLiveRecords();
+                mRecordCount = liveRecords.size();
+            }
+        }
+
+        try {
+            if (bRewrite) {
+                rewrite(liveRecords);
+            } else if (pending.length > 0) {
+                try (RandomAccessFile raf = new RandomAccessFile(mFile, "rw")) {
+                    raf.seek(mValidLength);
+                    raf.write(pending);
+                    raf.getFD().sync();
+                    mValidLength += pending.length;
+                }
+            }
+        } catch (IOException e) {
+            LogTrace.e(TAG, "Failed to write cache index snapshot", e);
+        }
+    }
+
+    private List<Object[]> collectLiveRecords() {
+        List<Object[]> records = new ArrayList<>();
+        for (Map.Entry<String, KeyState> entry : mKeys.entrySet()) {
+            KeyState state = entry.getValue();
+            for (Map.Entry<Long, Long> span : state.mSpans.entrySet()) {
+                records.add(new Object[] {OP_ADD_SPAN, entry.getKey(), span.getKey(), span.getValue()});
+            }
+            if (state.mPinned) {
+                records.add(new Object[] {OP_PIN, entry.getKey(), 0L, 0L});
+            }
+        }
+        return records;
+    }
+
+    private void rewrite(List<Object[]> records) throws IOException {
+        File tempFile = new File(mFile.getPath() + ".tmp");
+        try (FileOutputStream fileOutput = new FileOutputStream(tempFile)) {
+            DataOutputStream output = new DataOutputStream(new BufferedOutputStream(fileOutput));
+            output.writeInt(MAGIC);
+            output.writeInt(VERSION);
+            for (Object[] record : records) {
+                writeRecord(output, (Byte) record[0], (String) record[1], (Long) record[2], (Long) record[3]);
+            }
+            output.flush();
+            fileOutput.getFD().sync();
+        }
+        if (!tempFile.renameTo(mFile)) {
+            throw new IOException("Failed to replace " + mFile);
+        }
+        mValidLength = mFile.length();
+    }
+
+    /**
+     * Spans and pinned state recorded for a single cache key.
+     */
+    private static final class KeyState {
+        private final HashMap<Long, Long> mSpans = new HashMap<>();
+        private long mBytes;
+        private boolean mPinned;
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof KeyState)) {
+                return false;
+            }
+            KeyState other = (KeyState) obj;
+            return mPinned == other.mPinned && mSpans.equals(other.mSpans);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * mSpans.hashCode() + (mPinned ? 1 : 0);
+        }
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2018 LLM HLS Playback Demo
+ */
+package com.lashawnmcghee.hlsplayback.cache;
+
+import android.net.Uri;
+import android.support.annotation.Nullable;
+
+import com.google.android.exoplayer2.upstream.DataSource;
+import com.google.android.exoplayer2.upstream.DataSpec;
+import com.google.android.exoplayer2.upstream.TransferListener;
+import com.google.android.exoplayer2.upstream.cache.Cache;
+import com.lashawnmcghee.hlsplayback.interfaces.ICacheKeyNormalizer;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A {@link DataSource.Factory} which gives every request without an explicit key the cache key
+ * chosen by an {@link ICacheKeyNormalizer}, so the cache data sources below it store and find
+ * duplicate content under one key.
+ */
+public class CacheKeyDataSourceFactory implements DataSource.Factory {
+
+    private final DataSource.Factory mUpstreamFactory;
+    private final Cache mCache;
+    private final ICacheKeyNormalizer mNormalizer;
+
+    /**
+     * Constructor for this factory.
+     * @param upstreamFactory Factory of the cache data sources being keyed.
+     * @param cache Cache read by the upstream data sources.
+     * @param normalizer Normalizer choosing the cache keys.
+     */
+    public CacheKeyDataSourceFactory(DataSource.Factory upstreamFactory,
+                                     Cache cache,
+                                     ICacheKeyNormalizer normalizer) {
+        mUpstreamFactory = upstreamFactory;
+        mCache = cache;
+        mNormalizer = normalizer;
+    }
+
+    @Override
+    public DataSource createDataSource() {
+        return new CacheKeyDataSource(mUpstreamFactory.createDataSource());
+    }
+
+    /**
+     * Give a data spec its normalized cache key.
+     * Content cached under its raw URI before the normalizing rules existed is still found, since
+     * the raw key is kept whenever only it holds content.
+     * @param dataSpec Data spec to key.
+     * @param cache Cache the content is read from or written to.
+     * @param normalizer Normalizer choosing the cache key.
+     * @return Returns a data spec carrying the cache key, or the given one if it already has one.
+     */
+    public static DataSpec withCacheKey(DataSpec dataSpec, Cache cache, ICacheKeyNormalizer normalizer) {
+        if (dataSpec.key != null) {
+            return dataSpec;
+        }
+        String sRawKey = dataSpec.uri.toString();
+        String sKey = normalizer.getCacheKey(dataSpec.uri);
+        if (!sKey.equals(sRawKey)
+                && cache.getCachedSpans(sKey).isEmpty()
+                && !cache.getCachedSpans(sRawKey).isEmpty()) {
+            sKey = sRawKey;
+        }
+        return new DataSpec(dataSpec.uri,
+                dataSpec.postBody,
+                dataSpec.absoluteStreamPosition,
+                dataSpec.position,
+                dataSpec.length,
+                sKey,
+                dataSpec.flags);
+    }
+
+    /**
+     * Data source which keys every request before handing it upstream.
+     */
+    private final class CacheKeyDataSource implements DataSource {
+        private final DataSource mUpstream;
+
+        public CacheKeyDataSource(DataSource upstream) {
+            mUpstream = upstream;
+        }
+
+        @Override
+        public void addTransferListener(TransferListener transferListener) {
+            mUpstream.addTransferListener(transferListener);
+        }
+
+        @Override
+        public long open(DataSpec dataSpec) throws IOException {
+            return mUpstream.open(withCacheKey(dataSpec, mCache, mNormalizer));
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int readLength) throws IOException {
+            return mUpstream.read(buffer, offset, readLength);
+        }
+
+        @Nullable
+        @Override
+        public Uri getUri() {
+            return mUpstream.getUri();
+        }
+
+        @Override
+        public Map<String, List<String>> getResponseHeaders() {
+            return mUpstream.getResponseHeaders();
+        }
+
+        @Override
+        public void close() throws IOException {
+            mUpstream.close();
+        }
+    }
+}
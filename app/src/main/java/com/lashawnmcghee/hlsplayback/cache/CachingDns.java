@@ -0,0 +1,62 @@
+/*
+ * Copyright (C) 2018 LLM HLS Playback Demo
+ */
+package com.lashawnmcghee.hlsplayback.cache;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.Dns;
+
+/**
+ * A {@link Dns} which keeps successful lookups for a while so the thousands of segment requests of a
+ * session do not each wait on the system resolver. Failed lookups are never kept.
+ */
+public class CachingDns implements Dns {
+
+    private final Dns mDelegate;
+    private final long mTtlNs;
+    private final ConcurrentHashMap<String, Entry> mEntries = new ConcurrentHashMap<>();
+
+    /**
+     * Constructor for this resolver.
+     * @param delegate Resolver doing the actual lookups, usually {@link Dns#SYSTEM}.
+     * @param ttlMs How long a lookup result is kept in milliseconds.
+     */
+    public CachingDns(Dns delegate, long ttlMs) {
+        mDelegate = delegate;
+        mTtlNs = TimeUnit.MILLISECONDS.toNanos(ttlMs);
+    }
+
+    @Override
+    public List<InetAddress> lookup(String hostname) throws UnknownHostException {
+        long lngNow = System.nanoTime();
+        Entry entry = mEntries.get(hostname);
+        if (entry != null && lngNow - entry.mResolvedAtNs < mTtlNs) {
+            return entry.mAddresses;
+        }
+        List<InetAddress> addresses = mDelegate.lookup(hostname);
+        mEntries.put(hostname, new Entry(addresses, lngNow));
+        return addresses;
+    }
+
+    /**
+     * Forget every kept lookup, for instance when the device changes network.
+     */
+    public void clear() {
+        mEntries.clear();
+    }
+
+    private static final class Entry {
+        private final List<InetAddress> mAddresses;
+        private final long mResolvedAtNs;
+
+        private Entry(List<InetAddress> addresses, long resolvedAtNs) {
+            mAddresses = addresses;
+            mResolvedAtNs = resolvedAtNs;
+        }
+    }
+}
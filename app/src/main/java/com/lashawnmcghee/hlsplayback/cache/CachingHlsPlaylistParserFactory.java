@@ -0,0 +1,81 @@
+/*
+ * Copyright (C) 2018 LLM HLS Playback Demo
+ */
+package com.lashawnmcghee.hlsplayback.cache;
+
+import android.net.Uri;
+
+import com.google.android.exoplayer2.offline.StreamKey;
+import com.google.android.exoplayer2.source.hls.playlist.HlsMasterPlaylist;
+import com.google.android.exoplayer2.source.hls.playlist.HlsPlaylist;
+import com.google.android.exoplayer2.source.hls.playlist.HlsPlaylistParser;
+import com.google.android.exoplayer2.source.hls.playlist.HlsPlaylistParserFactory;
+import com.google.android.exoplayer2.upstream.ParsingLoadable;
+import com.google.android.exoplayer2.util.Util;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A playlist parser factory which reuses parsed playlists from our shared {@link HlsPlaylistCache}.
+ * Playlists are parsed only when their bytes changed since the last time they were seen, and
+ * the optional stream keys are applied on top of the shared, unfiltered playlist.
+ */
+public class CachingHlsPlaylistParserFactory implements HlsPlaylistParserFactory {
+
+    private final HlsPlaylistCache mPlaylistCache;
+    private final List<StreamKey> mStreamKeys;
+
+    /**
+     * Constructor for this factory.
+     * @param playlistCache Shared playlist cache.
+     * @param streamKeys Stream keys used to filter master playlists, or an empty list.
+     */
+    public CachingHlsPlaylistParserFactory(HlsPlaylistCache playlistCache, List<StreamKey> streamKeys) {
+        mPlaylistCache = playlistCache;
+        mStreamKeys = streamKeys != null ? streamKeys : Collections.emptyList();
+    }
+
+    @Override
+    public ParsingLoadable.Parser<HlsPlaylist> createPlaylistParser() {
+        return new CachingPlaylistParser(null);
+    }
+
+    @Override
+    public ParsingLoadable.Parser<HlsPlaylist> createPlaylistParser(HlsMasterPlaylist masterPlaylist) {
+        return new CachingPlaylistParser(masterPlaylist);
+    }
+
+    /**
+     * Parser which looks up the playlist cache before falling back to the ExoPlayer parser.
+     */
+    private final class CachingPlaylistParser implements ParsingLoadable.Parser<HlsPlaylist> {
+        private final HlsMasterPlaylist mMasterPlaylist;
+
+        public CachingPlaylistParser(HlsMasterPlaylist masterPlaylist) {
+            mMasterPlaylist = masterPlaylist;
+        }
+
+        @Override
+        public HlsPlaylist parse(Uri uri, InputStream inputStream) throws IOException {
+            byte[] data = Util.toByteArray(inputStream);
+            byte[] digest = HlsPlaylistCache.digest(data);
+
+            HlsPlaylist playlist = mPlaylistCache.get(uri, digest);
+            if (playlist == null) {
+                HlsPlaylistParser parser = mMasterPlaylist != null
+                        ? new HlsPlaylistParser(mMasterPlaylist) : new HlsPlaylistParser();
+                playlist = parser.parse(uri, new ByteArrayInputStream(data));
+                mPlaylistCache.put(uri, digest, data, playlist);
+            }
+
+            if (!mStreamKeys.isEmpty()) {
+                playlist = playlist.copy(mStreamKeys);
+            }
+            return playlist;
+        }
+    }
+}
@@ -0,0 +1,356 @@
+/*
+ * Copyright (C) 2018 LLM HLS Playback Demo
+ */
+package com.lashawnmcghee.hlsplayback.cache;
+
+import android.net.Uri;
+
+import com.google.android.exoplayer2.C;
+import com.google.android.exoplayer2.source.hls.playlist.HlsMasterPlaylist;
+import com.google.android.exoplayer2.source.hls.playlist.HlsMediaPlaylist;
+import com.google.android.exoplayer2.source.hls.playlist.HlsPlaylist;
+import com.google.android.exoplayer2.upstream.ByteArrayDataSource;
+import com.google.android.exoplayer2.upstream.DataSource;
+import com.google.android.exoplayer2.upstream.DataSpec;
+import com.google.android.exoplayer2.upstream.ParsingLoadable;
+import com.google.android.exoplayer2.upstream.cache.Cache;
+import com.google.android.exoplayer2.upstream.cache.CacheUtil;
+import com.google.android.exoplayer2.util.UriUtil;
+import com.google.android.exoplayer2.util.Util;
+import com.lashawnmcghee.hlsplayback.interfaces.IStreamCachePolicy;
+import com.lashawnmcghee.hlsplayback.util.ExoPlayerCacheUtil;
+import com.lashawnmcghee.hlsplayback.util.LogTrace;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Prewarms catalog entries shown on screen so a tap starts playing almost as fast as a cached title.
+ *
+ * For each title the master playlist, the media playlist of its lowest bitrate variant and the
+ * start of its first segment are fetched on a background thread. Every prewarmed byte is taken
+ * from a strict byte budget shared by the whole catalog and each title may only use part of it.
+ * Bytes are reserved before they are fetched, and a playlist larger than its reservation is given
+ * up. Fetching also leaves a warm DNS entry and a kept-alive connection behind for the player.
+ * Prewarming uses connections of its own and is not counted in the player's traffic metrics.
+ * Titles are only prewarmed once the download tracker is ready and knows they are not downloaded.
+ *
+ * Playlists land in our {@link HlsPlaylistCache}. The master playlist and VOD media playlists are
+ * also written to the download cache so the player does not even revalidate them, if the stream
+ * cache policy keeps them. Live media playlists change while they play and are only written to
+ * disk if the policy keeps those too. The start of the first segment is only fetched if the policy
+ * keeps that segment.
+ */
+public class CatalogPrewarmer {
+    private static final String TAG = CatalogPrewarmer.class.getSimpleName();
+
+    private static final long MAX_PLAYLIST_BYTES = 256 * 1024;
+    private static final int READ_BUFFER_BYTES = 4096;
+
+    private final ExoPlayerCacheUtil mCacheUtil;
+    private final long mTitleBudgetBytes;
+    private final AtomicLong mRemainingBytes;
+    private final ExecutorService mExecutor;
+    private volatile IStreamCachePolicy mCachePolicy;
+
+    //titles prewarmed or queued during this session
+    private final Set<String> mPrewarmed = Collections.newSetFromMap(new ConcurrentHashMap<>());
+    private volatile AtomicBoolean mCanceled = new AtomicBoolean();
+
+    //only used on the background thread
+    private DataSource.Factory mPlaylistDataSourceFactory;
+
+    /**
+     * Constructor for this prewarmer.
+     * @param cacheUtil Cache utility providing the cache and data sources used by the player.
+     * @param budgetBytes Total number of bytes all titles may prewarm.
+     * @param titleBudgetBytes Number of bytes a single title may prewarm.
+     * @param cachePolicy Policy deciding what may be written to the download cache, the same as
+     *                    the player's write-through policy.
+     */
+    public CatalogPrewarmer(ExoPlayerCacheUtil cacheUtil,
+                            long budgetBytes,
+                            long titleBudgetBytes,
+                            IStreamCachePolicy cachePolicy) {
+        mCacheUtil = cacheUtil;
+        mCachePolicy = cachePolicy;
+        mTitleBudgetBytes = titleBudgetBytes;
+        mRemainingBytes = new AtomicLong(budgetBytes);
+        mExecutor = Executors.newSingleThreadExecutor();
+    }
+
+    /**
+     * Queue a catalog entry for prewarming.
+     * Titles already prewarmed during this session are ignored.
+     * @param uri URI of the master or media playlist of the title.
+     */
+    public void prewarm(Uri uri) {
+        if (mRemainingBytes.get() <= 0 || !mPrewarmed.add(uri.toString())) {
+            return;
+        }
+        AtomicBoolean canceled = mCanceled;
+        mExecutor.execute(() -> {
+            if (canceled.get()) {
+                //let the title be queued again when it shows up next time
+                mPrewarmed.remove(uri.toString());
+                return;
+            }
+            prewarmTitle(uri, canceled);
+        });
+    }
+
+    /**
+     * Replace the policy deciding what may be written to the download cache.
+     * @param cachePolicy
+     */
+    public void setCachePolicy(IStreamCachePolicy cachePolicy) {
+        mCachePolicy = cachePolicy;
+    }
+
+    /**
+     * Drop every queued title, for instance when the catalog goes off screen.
+     */
+    public void cancel() {
+        AtomicBoolean canceled = mCanceled;
+        mCanceled = new AtomicBoolean();
+        canceled.set(true);
+    }
+
+    /**
+     * Get the number of bytes left in the budget.
+     * @return
+     */
+    public long getRemainingBytes() {
+        return Math.max(0, mRemainingBytes.get());
+    }
+
+    /**
+     * Stop the background thread.
+     */
+    public void release() {
+        cancel();
+        mExecutor.shutdown();
+    }
+
+    private void prewarmTitle(Uri uri, AtomicBoolean canceled) {
+        //never wait for the tracker, a title skipped before it is ready is queued again next time
+        int iCachedState = mCacheUtil.getCachedState(uri);
+        if (iCachedState != ExoPlayerCacheUtil.CACHE_STATE_NOT_DOWNLOADED) {
+            if (iCachedState == ExoPlayerCacheUtil.CACHE_STATE_UNKNOWN) {
+                mPrewarmed.remove(uri.toString());
+            }
+            return;
+        }
+
+        long[] titleBytes = {mTitleBudgetBytes};
+        try {
+            HlsPlaylist playlist = loadPlaylist(uri, null, titleBytes);
+            if (playlist instanceof HlsMasterPlaylist) {
+                HlsMasterPlaylist masterPlaylist = (HlsMasterPlaylist) playlist;
+                HlsMasterPlaylist.HlsUrl lowestVariant = getLowestVariant(masterPlaylist);
+                if (lowestVariant == null || canceled.get()) {
+                    return;
+                }
+                Uri variantUri = UriUtil.resolveToUri(masterPlaylist.baseUri, lowestVariant.url);
+                playlist = loadPlaylist(variantUri, masterPlaylist, titleBytes);
+            }
+            if (playlist instanceof HlsMediaPlaylist && !canceled.get()) {
+                prewarmFirstSegment((HlsMediaPlaylist) playlist, titleBytes, canceled);
+            }
+        } catch (IOException e) {
+            LogTrace.w(TAG, "Failed to prewarm %s: %s", uri, e.getMessage());
+        } catch (InterruptedException e) {
+            //canceled while fetching
+        }
+    }
+
+    /**
+     * Load a playlist within a reservation so it lands in the playlist cache, then write stable
+     * playlists into the download cache as well.
+     * @param uri
+     * @param masterPlaylist
+     * @param titleBytes
+     * @return Returns the playlist, or null if it did not fit in the budgets.
+     */
+    private HlsPlaylist loadPlaylist(Uri uri, HlsMasterPlaylist masterPlaylist, long[] titleBytes)
+            throws IOException {
+        long lngGranted = reserve(MAX_PLAYLIST_BYTES, titleBytes);
+        if (lngGranted <= 0) {
+            return null;
+        }
+
+        byte[] data = null;
+        Uri loadedUri = uri;
+        DataSource dataSource = getPlaylistDataSourceFactory().createDataSource();
+        try {
+            //a known length lets an oversized playlist be given up before its body is read
+            long lngLength = dataSource.open(new DataSpec(uri));
+            if (lngLength == C.LENGTH_UNSET || lngLength <= lngGranted) {
+                data = readAtMost(dataSource, lngGranted);
+            }
+            if (dataSource.getUri() != null) {
+                loadedUri = dataSource.getUri();
+            }
+        } finally {
+            Util.closeQuietly(dataSource);
+            refund(lngGranted - (data != null ? data.length : 0), titleBytes);
+        }
+        if (data == null) {
+            return null;
+        }
+
+        CachingHlsPlaylistParserFactory parserFactory = mCacheUtil.buildPlaylistParserFactory(null);
+        ParsingLoadable.Parser<HlsPlaylist> parser = masterPlaylist != null
+                ? parserFactory.createPlaylistParser(masterPlaylist)
+                : parserFactory.createPlaylistParser();
+        HlsPlaylist playlist = parser.parse(loadedUri, new ByteArrayInputStream(data));
+
+        boolean bStable = !(playlist instanceof HlsMediaPlaylist)
+                || ((HlsMediaPlaylist) playlist).hasEndTag;
+        if (mCachePolicy.shouldCachePlaylist(uri, bStable)) {
+            Cache cache = mCacheUtil.getDownloadCache();
+            CacheUtil.cache(CacheKeyDataSourceFactory.withCacheKey(new DataSpec(uri),
+                            cache,
+                            mCacheUtil.getCacheKeyNormalizer()),
+                    cache,
+                    new ByteArrayDataSource(data),
+                    null,
+                    null);
+        }
+        return playlist;
+    }
+
+    /**
+     * Fetch as much of the first segment as the budgets allow.
+     * The player reads the cached start and continues from the network.
+     * @param mediaPlaylist
+     * @param titleBytes
+     * @param canceled
+     */
+    private void prewarmFirstSegment(HlsMediaPlaylist mediaPlaylist,
+                                     long[] titleBytes,
+                                     AtomicBoolean canceled)
+            throws IOException, InterruptedException {
+        //live streams start near their end and the segment would soon be stale
+        if (!mediaPlaylist.hasEndTag || mediaPlaylist.segments.isEmpty()) {
+            return;
+        }
+        HlsMediaPlaylist.Segment segment = mediaPlaylist.segments.get(0);
+        long lngWanted = segment.byterangeLength != C.LENGTH_UNSET
+                ? segment.byterangeLength : titleBytes[0];
+        long lngGranted = reserve(lngWanted, titleBytes);
+        if (lngGranted <= 0) {
+            return;
+        }
+
+        DataSpec dataSpec = new DataSpec(UriUtil.resolveToUri(mediaPlaylist.baseUri, segment.url),
+                segment.byterangeOffset,
+                lngGranted,
+                null);
+        if (!mCachePolicy.shouldCacheSegment(new DataSpec(dataSpec.uri,
+                segment.byterangeOffset,
+                segment.byterangeLength,
+                null))) {
+            refund(lngGranted, titleBytes);
+            return;
+        }
+        Cache cache = mCacheUtil.getDownloadCache();
+        CacheUtil.CachingCounters counters = new CacheUtil.CachingCounters();
+        CacheUtil.cache(CacheKeyDataSourceFactory.withCacheKey(dataSpec,
+                        cache,
+                        mCacheUtil.getCacheKeyNormalizer()),
+                cache,
+                mCacheUtil.buildHttpDataSourceFactory().createDataSource(),
+                counters,
+                canceled);
+
+        //give back whatever was not needed
+        refund(lngGranted - counters.newlyCachedBytes, titleBytes);
+    }
+
+    /**
+     * Get the factory of the playlist requests of this prewarmer.
+     * It shares the pooled connections of prefetching and downloads, not those kept for playback,
+     * and bypasses the player's metrics, throttling and write-through so prewarming never counts
+     * as playback.
+     * @return
+     */
+    private DataSource.Factory getPlaylistDataSourceFactory() {
+        if (mPlaylistDataSourceFactory == null) {
+            mPlaylistDataSourceFactory = new PlaylistRevalidatingHttpDataSourceFactory(
+                    mCacheUtil.buildHttpDataSourceFactory(),
+                    mCacheUtil.getPlaylistCache());
+        }
+        return mPlaylistDataSourceFactory;
+    }
+
+    /**
+     * Read an opened data source to its end.
+     * @param dataSource
+     * @param lngMaxBytes
+     * @return Returns the bytes read, or null if there were more than lngMaxBytes.
+     */
+    private static byte[] readAtMost(DataSource dataSource, long lngMaxBytes) throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        byte[] buffer = new byte[READ_BUFFER_BYTES];
+        int iRead;
+        while ((iRead = dataSource.read(buffer, 0, buffer.length)) != C.RESULT_END_OF_INPUT) {
+            output.write(buffer, 0, iRead);
+            if (output.size() > lngMaxBytes) {
+                return null;
+            }
+        }
+        return output.toByteArray();
+    }
+
+    /**
+     * Take bytes out of both the catalog and the title budget.
+     * @param lngWanted
+     * @param titleBytes
+     * @return Returns the number of bytes granted, which may be less than wanted.
+     */
+    private long reserve(long lngWanted, long[] titleBytes) {
+        long lngGranted = Math.min(lngWanted, titleBytes[0]);
+        while (true) {
+            long lngRemaining = mRemainingBytes.get();
+            long lngTaken = Math.min(lngGranted, lngRemaining);
+            if (lngTaken <= 0) {
+                return 0;
+            }
+            if (mRemainingBytes.compareAndSet(lngRemaining, lngRemaining - lngTaken)) {
+                titleBytes[0] -= lngTaken;
+                return lngTaken;
+            }
+        }
+    }
+
+    /**
+     * Give bytes that were reserved but not used back to both budgets.
+     * @param lngUnused
+     * @param titleBytes
+     */
+    private void refund(long lngUnused, long[] titleBytes) {
+        if (lngUnused > 0) {
+            mRemainingBytes.addAndGet(lngUnused);
+            titleBytes[0] += lngUnused;
+        }
+    }
+
+    private static HlsMasterPlaylist.HlsUrl getLowestVariant(HlsMasterPlaylist masterPlaylist) {
+        HlsMasterPlaylist.HlsUrl lowestVariant = null;
+        for (HlsMasterPlaylist.HlsUrl variant : masterPlaylist.variants) {
+            if (lowestVariant == null || variant.format.bitrate < lowestVariant.format.bitrate) {
+                lowestVariant = variant;
+            }
+        }
+        return lowestVariant;
+    }
+}
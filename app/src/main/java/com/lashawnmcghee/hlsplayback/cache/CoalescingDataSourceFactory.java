@@ -0,0 +1,251 @@
+/*
+ * Copyright (C) 2018 LLM HLS Playback Demo
+ */
+package com.lashawnmcghee.hlsplayback.cache;
+
+import android.net.Uri;
+import android.support.annotation.Nullable;
+
+import com.google.android.exoplayer2.C;
+import com.google.android.exoplayer2.upstream.DataSource;
+import com.google.android.exoplayer2.upstream.DataSpec;
+import com.google.android.exoplayer2.upstream.TransferListener;
+import com.google.android.exoplayer2.util.Util;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A {@link DataSource.Factory} which lets identical network requests share one transfer through an
+ * {@link InFlightRequestRegistry}.
+ *
+ * It sits below the cache data sources of the player, the prefetcher and the download manager.
+ * When the player and a download miss the cache on the same segment at the same time, only the
+ * first one fetches it and the other reads the same bytes as they arrive. A reader arriving after
+ * the first bytes were read fetches on its own. Downloads read along with playback, but playback
+ * never reads along with a download, whose reads the bandwidth arbiter holds back.
+ */
+public class CoalescingDataSourceFactory implements DataSource.Factory {
+
+    private final DataSource.Factory mUpstreamFactory;
+    private final InFlightRequestRegistry mRegistry;
+    private final boolean mThrottled;
+
+    /**
+     * Constructor for this factory, for chains read at full speed.
+     * @param upstreamFactory Factory of the data sources doing the actual requests.
+     * @param registry Registry shared by every chain which should coalesce its requests.
+     */
+    public CoalescingDataSourceFactory(DataSource.Factory upstreamFactory,
+                                       InFlightRequestRegistry registry) {
+        this(upstreamFactory, registry, false);
+    }
+
+    /**
+     * Constructor for this factory.
+     * @param upstreamFactory Factory of the data sources doing the actual requests.
+     * @param registry Registry shared by every chain which should coalesce its requests.
+     * @param throttled True if the bandwidth arbiter holds back the reads of this chain, its
+     *                  transfers are then never shared with unthrottled readers.
+     */
+    public CoalescingDataSourceFactory(DataSource.Factory upstreamFactory,
+                                       InFlightRequestRegistry registry,
+                                       boolean throttled) {
+        mUpstreamFactory = upstreamFactory;
+        mRegistry = registry;
+        mThrottled = throttled;
+    }
+
+    @Override
+    public DataSource createDataSource() {
+        return new CoalescingDataSource(mUpstreamFactory.createDataSource());
+    }
+
+    /**
+     * Get the key identifying identical requests.
+     * @param dataSpec
+     * @return Returns the key, or null if the request should not be shared.
+     */
+    private static String getRequestKey(DataSpec dataSpec) {
+        String sScheme = dataSpec.uri.getScheme();
+        if (!"http".equalsIgnoreCase(sScheme) && !"https".equalsIgnoreCase(sScheme)) {
+            return null;
+        }
+        //playlists are revalidated and live ones change between requests
+        if (dataSpec.postBody != null || Util.inferContentType(dataSpec.uri) == C.TYPE_HLS) {
+            return null;
+        }
+        //flags differ between the player and the download manager but not the bytes they get
+        String sKey = dataSpec.key != null ? dataSpec.key : dataSpec.uri.toString();
+        return sKey + "@" + dataSpec.position + ":" + dataSpec.length;
+    }
+
+    /**
+     * Data source either owning a shared transfer, reading from one, or reading on its own.
+     */
+    private final class CoalescingDataSource implements DataSource {
+        private final DataSource mUpstream;
+
+        private InFlightRequestRegistry.Transfer mTransfer;
+        private boolean mOwner;
+        private boolean mUpstreamOpened;
+        private DataSpec mDataSpec;
+        private Uri mUri;
+        private long mBytesToRead;
+        private long mBytesRead;
+
+        public CoalescingDataSource(DataSource upstream) {
+            mUpstream = upstream;
+        }
+
+        @Override
+        public void addTransferListener(TransferListener transferListener) {
+            //only bytes fetched by our own upstream are reported
+            mUpstream.addTransferListener(transferListener);
+        }
+
+        @Override
+        public long open(DataSpec dataSpec) throws IOException {
+            mDataSpec = dataSpec;
+            mUri = dataSpec.uri;
+            mBytesRead = 0;
+            mBytesToRead = C.LENGTH_UNSET;
+            String sKey = getRequestKey(dataSpec);
+            if (sKey == null) {
+                return openUpstream(dataSpec);
+            }
+
+            mTransfer = mRegistry.attach(sKey, mThrottled);
+            if (mTransfer.tryClaim(mThrottled)) {
+                mOwner = true;
+                try {
+                    mBytesToRead = openUpstream(dataSpec);
+                    mTransfer.onOpened(mBytesToRead);
+                    return mBytesToRead;
+                } catch (IOException e) {
+                    //readers waiting on us open their own request and get their own error
+                    mTransfer.abandon();
+                    releaseTransfer();
+                    throw e;
+                }
+            }
+
+            //a throttled reader claimed the transfer we registered, do not wait on its pace
+            if (!mThrottled && mTransfer.isThrottled()) {
+                releaseTransfer();
+                return openUpstream(dataSpec);
+            }
+
+            //someone is already fetching this request, read along with it
+            if (mTransfer.awaitOpened()) {
+                mBytesToRead = mTransfer.getOpenedLength();
+                return mBytesToRead;
+            }
+            releaseTransfer();
+            return openUpstream(dataSpec);
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int readLength) throws IOException {
+            if (readLength == 0) {
+                return 0;
+            }
+            if (mTransfer != null && !mOwner) {
+                int bytesRead = mTransfer.read(mBytesRead, buffer, offset, readLength);
+                if (bytesRead != InFlightRequestRegistry.RESULT_ABANDONED) {
+                    if (bytesRead > 0) {
+                        mBytesRead += bytesRead;
+                    }
+                    return bytesRead;
+                }
+                //the owner stopped short of our position, fetch the rest ourselves
+                releaseTransfer();
+                if (!openRemainder()) {
+                    return C.RESULT_END_OF_INPUT;
+                }
+            }
+
+            int bytesRead = mUpstream.read(buffer, offset, readLength);
+            if (bytesRead > 0) {
+                mBytesRead += bytesRead;
+            }
+            if (mOwner) {
+                if (bytesRead > 0) {
+                    mTransfer.append(buffer, offset, bytesRead);
+                }
+                //readers often stop at the known length without reading the end of input
+                if (bytesRead == C.RESULT_END_OF_INPUT || mBytesRead == mBytesToRead) {
+                    mTransfer.onComplete();
+                }
+            }
+            return bytesRead;
+        }
+
+        @Nullable
+        @Override
+        public Uri getUri() {
+            return mUri;
+        }
+
+        @Override
+        public Map<String, List<String>> getResponseHeaders() {
+            return mUpstreamOpened ? mUpstream.getResponseHeaders()
+                    : Collections.<String, List<String>>emptyMap();
+        }
+
+        @Override
+        public void close() throws IOException {
+            mUri = null;
+            mDataSpec = null;
+            try {
+                if (mUpstreamOpened) {
+                    mUpstreamOpened = false;
+                    mUpstream.close();
+                }
+            } finally {
+                if (mOwner) {
+                    //readers still attached continue on their own if we stopped early
+                    mTransfer.abandon();
+                }
+                releaseTransfer();
+            }
+        }
+
+        private long openUpstream(DataSpec dataSpec) throws IOException {
+            mUpstreamOpened = true;
+            return mUpstream.open(dataSpec);
+        }
+
+        /**
+         * Open our own request for the part of the original request not read yet.
+         * @return Returns false if nothing is left to read.
+         */
+        private boolean openRemainder() throws IOException {
+            long lngLength = C.LENGTH_UNSET;
+            if (mBytesToRead != C.LENGTH_UNSET) {
+                lngLength = mBytesToRead - mBytesRead;
+                if (lngLength <= 0) {
+                    return false;
+                }
+            }
+            openUpstream(new DataSpec(mDataSpec.uri,
+                    null,
+                    mDataSpec.absoluteStreamPosition + mBytesRead,
+                    mDataSpec.position + mBytesRead,
+                    lngLength,
+                    mDataSpec.key,
+                    mDataSpec.flags));
+            return true;
+        }
+
+        private void releaseTransfer() {
+            if (mTransfer != null) {
+                mTransfer.release();
+                mTransfer = null;
+            }
+            mOwner = false;
+        }
+    }
+}
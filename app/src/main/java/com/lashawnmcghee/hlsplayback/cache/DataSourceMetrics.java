@@ -0,0 +1,274 @@
+/*
+ * Copyright (C) 2018 LLM HLS Playback Demo
+ */
+package com.lashawnmcghee.hlsplayback.cache;
+
+import com.google.android.exoplayer2.upstream.cache.CacheDataSource;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free playback traffic metrics recorded by {@link MetricsDataSourceFactory}.
+ *
+ * Every completed request is classified by where its bytes came from: the memory tier, the
+ * download cache or the network. Latency and time to first byte are kept in power of two
+ * histograms. Loader threads only ever touch atomics, so recording never blocks playback.
+ * {@link #snapshot()} gives a consistent enough copy for a diagnostics screen or a test.
+ */
+public class DataSourceMetrics implements CacheDataSource.EventListener {
+    //bucket i holds values in [2^(i-1), 2^i) microseconds, bucket 0 holds 0
+    private static final int HISTOGRAM_BUCKETS = 32;
+
+    private final AtomicLong mRequestCount = new AtomicLong();
+    private final AtomicLong mFailedCount = new AtomicLong();
+    private final AtomicLong mMemoryHitCount = new AtomicLong();
+    private final AtomicLong mCacheHitCount = new AtomicLong();
+    private final AtomicLong mNetworkCount = new AtomicLong();
+    private final AtomicLong mMemoryBytes = new AtomicLong();
+    private final AtomicLong mCacheBytes = new AtomicLong();
+    private final AtomicLong mNetworkBytes = new AtomicLong();
+    private final AtomicLong mNetworkDurationUs = new AtomicLong();
+    private final AtomicLong mCacheIgnoredCount = new AtomicLong();
+    private final AtomicLong mCacheSizeBytes = new AtomicLong();
+    private final AtomicLongArray mLatencyHistogram = new AtomicLongArray(HISTOGRAM_BUCKETS);
+    private final AtomicLongArray mTimeToFirstByteHistogram = new AtomicLongArray(HISTOGRAM_BUCKETS);
+
+    /**
+     * Record a request which was read through to its close.
+     * @param memoryBytes Bytes served by the memory tier.
+     * @param cacheBytes Bytes read from the download cache.
+     * @param networkBytes Bytes read from the network.
+     * @param timeToFirstByteUs Time from open to the first byte, or a negative value if no byte
+     *                          was read.
+     * @param durationUs Time from open to close.
+     */
+    public void onRequestCompleted(long memoryBytes,
+                                   long cacheBytes,
+                                   long networkBytes,
+                                   long timeToFirstByteUs,
+                                   long durationUs) {
+        mRequestCount.incrementAndGet();
+        if (networkBytes > 0) {
+            mNetworkCount.incrementAndGet();
+            mNetworkDurationUs.addAndGet(durationUs);
+        } else if (cacheBytes > 0) {
+            mCacheHitCount.incrementAndGet();
+        } else if (memoryBytes > 0) {
+            mMemoryHitCount.incrementAndGet();
+        }
+        mMemoryBytes.addAndGet(memoryBytes);
+        mCacheBytes.addAndGet(cacheBytes);
+        mNetworkBytes.addAndGet(networkBytes);
+
+        mLatencyHistogram.incrementAndGet(getBucket(durationUs));
+        if (timeToFirstByteUs >= 0) {
+            mTimeToFirstByteHistogram.incrementAndGet(getBucket(timeToFirstByteUs));
+        }
+    }
+
+    /**
+     * Record a request which failed to open or read.
+     */
+    public void onRequestFailed() {
+        mRequestCount.incrementAndGet();
+        mFailedCount.incrementAndGet();
+    }
+
+    @Override
+    public void onCachedBytesRead(long cacheSizeBytes, long cachedBytesRead) {
+        mCacheSizeBytes.set(cacheSizeBytes);
+    }
+
+    @Override
+    public void onCacheIgnored(int reason) {
+        mCacheIgnoredCount.incrementAndGet();
+    }
+
+    /**
+     * Clear every counter and histogram.
+     * The cache size is kept: it is the size last reported by the cache rather than a count, and
+     * the cache does not shrink because the counters were cleared.
+     */
+    public void reset() {
+        mRequestCount.set(0);
+        mFailedCount.set(0);
+        mMemoryHitCount.set(0);
+        mCacheHitCount.set(0);
+        mNetworkCount.set(0);
+        mMemoryBytes.set(0);
+        mCacheBytes.set(0);
+        mNetworkBytes.set(0);
+        mNetworkDurationUs.set(0);
+        mCacheIgnoredCount.set(0);
+        for (int i = 0; i < HISTOGRAM_BUCKETS; i++) {
+            mLatencyHistogram.set(i, 0);
+            mTimeToFirstByteHistogram.set(i, 0);
+        }
+    }
+
+    /**
+     * Take a copy of the current metrics.
+     * Counters are read one by one while requests may still complete, so the copy is not atomic.
+     * @return
+     */
+    public Snapshot snapshot() {
+        return new Snapshot(mRequestCount.get(),
+                mFailedCount.get(),
+                mMemoryHitCount.get(),
+                mCacheHitCount.get(),
+                mNetworkCount.get(),
+                mMemoryBytes.get(),
+                mCacheBytes.get(),
+                mNetworkBytes.get(),
+                mNetworkDurationUs.get(),
+                mCacheIgnoredCount.get(),
+                mCacheSizeBytes.get(),
+                copy(mLatencyHistogram),
+                copy(mTimeToFirstByteHistogram));
+    }
+
+    private static int getBucket(long lngValueUs) {
+        if (lngValueUs <= 0) {
+            return 0;
+        }
+        return Math.min(HISTOGRAM_BUCKETS - 1, 64 - Long.numberOfLeadingZeros(lngValueUs));
+    }
+
+    private static long[] copy(AtomicLongArray histogram) {
+        long[] counts = new long[histogram.length()];
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = histogram.get(i);
+        }
+        return counts;
+    }
+
+    /**
+     * An immutable copy of the metrics.
+     */
+    public static final class Snapshot {
+        public final long requestCount;
+        public final long failedCount;
+        public final long memoryHitCount;
+        public final long cacheHitCount;
+        public final long networkCount;
+        public final long memoryBytes;
+        public final long cacheBytes;
+        public final long networkBytes;
+        public final long cacheIgnoredCount;
+        //size of the cache at its last read, not cleared by reset()
+        public final long cacheSizeBytes;
+
+        private final long mNetworkDurationUs;
+        private final long[] mLatencyHistogram;
+        private final long[] mTimeToFirstByteHistogram;
+
+        private Snapshot(long requestCount,
+                         long failedCount,
+                         long memoryHitCount,
+                         long cacheHitCount,
+                         long networkCount,
+                         long memoryBytes,
+                         long cacheBytes,
+                         long networkBytes,
+                         long networkDurationUs,
+                         long cacheIgnoredCount,
+                         long cacheSizeBytes,
+                         long[] latencyHistogram,
+                         long[] timeToFirstByteHistogram) {
+            this.requestCount = requestCount;
+            this.failedCount = failedCount;
+            this.memoryHitCount = memoryHitCount;
+            this.cacheHitCount = cacheHitCount;
+            this.networkCount = networkCount;
+            this.memoryBytes = memoryBytes;
+            this.cacheBytes = cacheBytes;
+            this.networkBytes = networkBytes;
+            this.cacheIgnoredCount = cacheIgnoredCount;
+            this.cacheSizeBytes = cacheSizeBytes;
+            mNetworkDurationUs = networkDurationUs;
+            mLatencyHistogram = latencyHistogram;
+            mTimeToFirstByteHistogram = timeToFirstByteHistogram;
+        }
+
+        /**
+         * Get the share of completed requests served without the network.
+         * @return
+         */
+        public double getHitRatio() {
+            long lngCompleted = memoryHitCount + cacheHitCount + networkCount;
+            return lngCompleted > 0 ? (double) (memoryHitCount + cacheHitCount) / lngCompleted : 0;
+        }
+
+        /**
+         * Get the share of bytes served without the network.
+         * @return
+         */
+        public double getByteHitRatio() {
+            long lngTotal = memoryBytes + cacheBytes + networkBytes;
+            return lngTotal > 0 ? (double) (memoryBytes + cacheBytes) / lngTotal : 0;
+        }
+
+        /**
+         * Get the average throughput of requests which used the network.
+         * @return Returns the throughput in bits per second, or 0 if nothing came from the network.
+         */
+        public long getNetworkBitrate() {
+            return mNetworkDurationUs > 0 ? networkBytes * 8 * 1000000 / mNetworkDurationUs : 0;
+        }
+
+        /**
+         * Estimate a request latency percentile.
+         * @param percentile Percentile between 0 and 100.
+         * @return Returns the upper bound of the histogram bucket holding it, in microseconds.
+         */
+        public long getLatencyPercentileUs(double percentile) {
+            return getPercentile(mLatencyHistogram, percentile);
+        }
+
+        /**
+         * Estimate a time to first byte percentile.
+         * @param percentile Percentile between 0 and 100.
+         * @return Returns the upper bound of the histogram bucket holding it, in microseconds.
+         */
+        public long getTimeToFirstBytePercentileUs(double percentile) {
+            return getPercentile(mTimeToFirstByteHistogram, percentile);
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US,
+                    "requests=%d failed=%d hitRatio=%.2f byteHitRatio=%.2f network=%dkbps "
+                            + "latencyP50=%dms latencyP95=%dms ttfbP50=%dms ttfbP95=%dms",
+                    requestCount,
+                    failedCount,
+                    getHitRatio(),
+                    getByteHitRatio(),
+                    getNetworkBitrate() / 1000,
+                    getLatencyPercentileUs(50) / 1000,
+                    getLatencyPercentileUs(95) / 1000,
+                    getTimeToFirstBytePercentileUs(50) / 1000,
+                    getTimeToFirstBytePercentileUs(95) / 1000);
+        }
+
+        private static long getPercentile(long[] histogram, double percentile) {
+            long lngTotal = 0;
+            for (long count : histogram) {
+                lngTotal += count;
+            }
+            if (lngTotal == 0) {
+                return 0;
+            }
+            long lngRank = (long) Math.ceil(lngTotal * percentile / 100);
+            long lngSeen = 0;
+            for (int i = 0; i < histogram.length; i++) {
+                lngSeen += histogram[i];
+                if (lngSeen >= Math.max(1, lngRank)) {
+                    return i == 0 ? 0 : 1L << i;
+                }
+            }
+            return 1L << (histogram.length - 1);
+        }
+    }
+}
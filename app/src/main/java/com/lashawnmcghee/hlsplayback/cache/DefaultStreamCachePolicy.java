@@ -0,0 +1,51 @@
+/*
+ * Copyright (C) 2018 LLM HLS Playback Demo
+ */
+package com.lashawnmcghee.hlsplayback.cache;
+
+import android.net.Uri;
+
+import com.google.android.exoplayer2.C;
+import com.google.android.exoplayer2.upstream.DataSpec;
+import com.lashawnmcghee.hlsplayback.interfaces.IStreamCachePolicy;
+
+/**
+ * Default write-through policy.
+ * Segments are always kept unless they exceed a maximum size. Master playlists and VOD media
+ * playlists are kept so a title played again does not touch the network. Live media playlists are
+ * only kept when asked for since they change while they play and must not be served stale from
+ * cache.
+ */
+public class DefaultStreamCachePolicy implements IStreamCachePolicy {
+    private static final long DEFAULT_MAX_SEGMENT_BYTES = 32L * 1024 * 1024;
+
+    private final boolean mCacheLivePlaylists;
+    private final long mMaxSegmentBytes;
+
+    /**
+     * Constructor for a policy which keeps segments and static playlists.
+     */
+    public DefaultStreamCachePolicy() {
+        this(false, DEFAULT_MAX_SEGMENT_BYTES);
+    }
+
+    /**
+     * Constructor for this policy.
+     * @param cacheLivePlaylists True if live media playlists should be kept as well.
+     * @param maxSegmentBytes Segments with a known length larger than this are not kept.
+     */
+    public DefaultStreamCachePolicy(boolean cacheLivePlaylists, long maxSegmentBytes) {
+        mCacheLivePlaylists = cacheLivePlaylists;
+        mMaxSegmentBytes = maxSegmentBytes;
+    }
+
+    @Override
+    public boolean shouldCachePlaylist(Uri uri, boolean isStatic) {
+        return isStatic || mCacheLivePlaylists;
+    }
+
+    @Override
+    public boolean shouldCacheSegment(DataSpec dataSpec) {
+        return dataSpec.length == C.LENGTH_UNSET || dataSpec.length <= mMaxSegmentBytes;
+    }
+}
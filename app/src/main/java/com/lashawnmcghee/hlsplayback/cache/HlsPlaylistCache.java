@@ -0,0 +1,286 @@
+/*
+ * Copyright (C) 2018 LLM HLS Playback Demo
+ */
+package com.lashawnmcghee.hlsplayback.cache;
+
+import android.net.Uri;
+
+import com.google.android.exoplayer2.source.hls.playlist.HlsMasterPlaylist;
+import com.google.android.exoplayer2.source.hls.playlist.HlsMediaPlaylist;
+import com.google.android.exoplayer2.source.hls.playlist.HlsPlaylist;
+import com.google.android.exoplayer2.util.UriUtil;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A shared, size bounded cache of parsed HLS playlists.
+ *
+ * Entries are keyed by playlist URI and hold the HTTP validators (ETag and Last-Modified) of the
+ * last full response together with the bytes of that response, and the raw bytes last parsed
+ * with their digest and parsed playlist. The validators let the HTTP layer revalidate a playlist
+ * with a conditional request and the digest lets the parser reuse the parsed playlist whenever
+ * the bytes did not change. Validators are only ever stored with the bytes they describe, so a
+ * 304 (Not Modified) is never answered with bytes of another response.
+ *
+ * The segments of cached media playlists are indexed by their resolved URI and byte range offset,
+ * so the media playlist listing a segment is found without walking every playlist.
+ */
+public class HlsPlaylistCache {
+    private static final String DIGEST_ALGORITHM = "MD5";
+
+    private final LinkedHashMap<String, Entry> mEntries;
+    //segment URI and byte range offset to the key of the media playlist listing it
+    private final HashMap<String, String> mSegmentIndex = new HashMap<>();
+    private final long mMaxBytes;
+    private long mCurrentBytes;
+
+    /**
+     * Constructor for this cache.
+     * @param maxBytes Maximum number of raw playlist bytes held by all entries.
+     */
+    public HlsPlaylistCache(long maxBytes) {
+        mMaxBytes = maxBytes;
+        mEntries = new LinkedHashMap<>(16, 0.75f, true);
+    }
+
+    /**
+     * Get the parsed playlist for a URI if its raw bytes are unchanged.
+     * @param uri URI of the playlist.
+     * @param digest Digest of the raw playlist bytes just loaded.
+     * @return Returns the parsed playlist or null if it has to be parsed.
+     */
+    public synchronized HlsPlaylist get(Uri uri, byte[] digest) {
+        Entry entry = mEntries.get(uri.toString());
+        if (entry == null || entry.mPlaylist == null || !Arrays.equals(entry.mDigest, digest)) {
+            return null;
+        }
+        return entry.mPlaylist;
+    }
+
+    /**
+     * Get the last parsed playlist for a URI, whatever its validators.
+     * @param uri URI of the playlist.
+     * @return Returns the parsed playlist or null if there is none.
+     */
+    public synchronized HlsPlaylist get(Uri uri) {
+        Entry entry = mEntries.get(uri.toString());
+        return entry != null ? entry.mPlaylist : null;
+    }
+
+    /**
+     * Find the cached media playlist which lists a segment.
+     * @param segmentUri Resolved URI of the segment.
+     * @param byterangeOffset Byte range offset of the segment, 0 when it has no byte range.
+     * @return Returns the URI of the media playlist or null if no cached playlist lists it.
+     */
+    public synchronized Uri findMediaPlaylist(Uri segmentUri, long byterangeOffset) {
+        String sKey = mSegmentIndex.get(getSegmentName(segmentUri.toString(), byterangeOffset));
+        return sKey != null ? Uri.parse(sKey) : null;
+    }
+
+    /**
+     * Get every variant of the cached master playlist which lists a media playlist as a variant.
+     * Only one of them is played at a time.
+     * @param mediaPlaylistUri URI of the media playlist.
+     * @return Returns the variant URIs, or an empty list if no cached master lists it as a variant.
+     */
+    public synchronized List<Uri> getVariantUris(Uri mediaPlaylistUri) {
+        String sMediaPlaylistUri = mediaPlaylistUri.toString();
+        for (Entry entry : mEntries.values()) {
+            if (!(entry.mPlaylist instanceof HlsMasterPlaylist)) {
+                continue;
+            }
+            HlsMasterPlaylist masterPlaylist = (HlsMasterPlaylist) entry.mPlaylist;
+            List<Uri> variantUris = new ArrayList<>(masterPlaylist.variants.size());
+            boolean bListed = false;
+            for (HlsMasterPlaylist.HlsUrl variant : masterPlaylist.variants) {
+                String sVariantUri = UriUtil.resolve(masterPlaylist.baseUri, variant.url);
+                bListed |= sMediaPlaylistUri.equals(sVariantUri);
+                variantUris.add(Uri.parse(sVariantUri));
+            }
+            if (bListed) {
+                return variantUris;
+            }
+        }
+        return Collections.emptyList();
+    }
+
+    /**
+     * Store a freshly parsed playlist.
+     * @param uri URI of the playlist.
+     * @param digest Digest of the raw playlist bytes.
+     * @param data Raw playlist bytes.
+     * @param playlist Parsed playlist.
+     */
+    public synchronized void put(Uri uri, byte[] digest, byte[] data, HlsPlaylist playlist) {
+        if (data.length > mMaxBytes) {
+            return;
+        }
+        Entry entry = getOrCreateEntry(uri);
+        mCurrentBytes -= entry.getBytes();
+        if (entry.mPlaylist != playlist) {
+            indexSegments(uri.toString(), entry.mPlaylist, false);
+            indexSegments(uri.toString(), playlist, true);
+        }
+        entry.mDigest = digest;
+        entry.mData = data;
+        entry.mPlaylist = playlist;
+        if (entry.mValidators != null && Arrays.equals(entry.mValidators.data, data)) {
+            //the same bytes are held once
+            entry.mData = entry.mValidators.data;
+        }
+        mCurrentBytes += entry.getBytes();
+        trimToSize();
+    }
+
+    /**
+     * Record the validators of a full response for a playlist along with the bytes of that response,
+     * replacing whatever was recorded before. Without validators nothing can be revalidated and
+     * whatever was recorded is dropped.
+     * @param uri URI of the playlist.
+     * @param etag Value of the ETag header or null.
+     * @param lastModified Value of the Last-Modified header or null.
+     * @param data Every byte of the response, or null if the response carried no validators.
+     */
+    public synchronized void putValidated(Uri uri, String etag, String lastModified, byte[] data) {
+        String key = uri.toString();
+        Entry entry = mEntries.get(key);
+        if (etag == null && lastModified == null) {
+            if (entry != null && entry.mValidators != null) {
+                mCurrentBytes -= entry.getBytes();
+                entry.mValidators = null;
+                mCurrentBytes += entry.getBytes();
+            }
+            return;
+        }
+        if (data == null || data.length > mMaxBytes) {
+            return;
+        }
+        entry = getOrCreateEntry(uri);
+        mCurrentBytes -= entry.getBytes();
+        if (entry.mData != null && Arrays.equals(entry.mData, data)) {
+            data = entry.mData;
+        }
+        entry.mValidators = new Validators(etag, lastModified, data);
+        mCurrentBytes += entry.getBytes();
+        trimToSize();
+    }
+
+    /**
+     * Get the cached state needed to revalidate a playlist.
+     * @param uri URI of the playlist.
+     * @return Returns the validators or null when the playlist cannot be revalidated.
+     */
+    public synchronized Validators getValidators(Uri uri) {
+        Entry entry = mEntries.get(uri.toString());
+        return entry != null ? entry.mValidators : null;
+    }
+
+    /**
+     * Drop every entry of this cache.
+     */
+    public synchronized void clear() {
+        mEntries.clear();
+        mSegmentIndex.clear();
+        mCurrentBytes = 0;
+    }
+
+    /**
+     * Compute the digest of raw playlist bytes.
+     * @param data
+     * @return
+     */
+    public static byte[] digest(byte[] data) {
+        try {
+            return MessageDigest.getInstance(DIGEST_ALGORITHM).digest(data);
+        } catch (NoSuchAlgorithmException e) {
+            //fall back to comparing the raw bytes
+            return data;
+        }
+    }
+
+    private Entry getOrCreateEntry(Uri uri) {
+        String key = uri.toString();
+        Entry entry = mEntries.get(key);
+        if (entry == null) {
+            entry = new Entry();
+            mEntries.put(key, entry);
+        }
+        return entry;
+    }
+
+    private void trimToSize() {
+        Iterator<Map.Entry<String, Entry>> iterator = mEntries.entrySet().iterator();
+        while (mCurrentBytes > mMaxBytes && iterator.hasNext()) {
+            Map.Entry<String, Entry> mapEntry = iterator.next();
+            iterator.remove();
+            mCurrentBytes -= mapEntry.getValue().getBytes();
+            indexSegments(mapEntry.getKey(), mapEntry.getValue().mPlaylist, false);
+        }
+    }
+
+    /**
+     * Add the segments of a media playlist to the segment index, or take them out of it.
+     * A segment listed by several playlists is found through the one stored last.
+     * @param key Key of the playlist.
+     * @param playlist Parsed playlist, anything but a media playlist is ignored.
+     * @param bAdd
+     */
+    private void indexSegments(String key, HlsPlaylist playlist, boolean bAdd) {
+        if (!(playlist instanceof HlsMediaPlaylist)) {
+            return;
+        }
+        for (HlsMediaPlaylist.Segment segment : ((HlsMediaPlaylist) playlist).segments) {
+            String sName = getSegmentName(UriUtil.resolve(playlist.baseUri, segment.url),
+                    segment.byterangeOffset);
+            if (bAdd) {
+                mSegmentIndex.put(sName, key);
+            } else if (key.equals(mSegmentIndex.get(sName))) {
+                mSegmentIndex.remove(sName);
+            }
+        }
+    }
+
+    private static String getSegmentName(String sSegmentUri, long byterangeOffset) {
+        return byterangeOffset + "@" + sSegmentUri;
+    }
+
+    /**
+     * Validators of a playlist response and the raw bytes of that response.
+     */
+    public static final class Validators {
+        public final String etag;
+        public final String lastModified;
+        public final byte[] data;
+
+        private Validators(String etag, String lastModified, byte[] data) {
+            this.etag = etag;
+            this.lastModified = lastModified;
+            this.data = data;
+        }
+    }
+
+    private static final class Entry {
+        private Validators mValidators;
+        private byte[] mDigest;
+        private byte[] mData;
+        private HlsPlaylist mPlaylist;
+
+        private long getBytes() {
+            long lngBytes = mData != null ? mData.length : 0;
+            if (mValidators != null && mValidators.data != mData) {
+                lngBytes += mValidators.data.length;
+            }
+            return lngBytes;
+        }
+    }
+}
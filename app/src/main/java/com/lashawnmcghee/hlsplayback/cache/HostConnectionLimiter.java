@@ -0,0 +1,156 @@
+/*
+ * Copyright (C) 2018 LLM HLS Playback Demo
+ */
+package com.lashawnmcghee.hlsplayback.cache;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Limits the number of connections open to a single host at any time.
+ * A permit is held from the moment a request is opened until its response body is closed.
+ *
+ * Some permits of every host may be reserved for playback, so background requests such as
+ * downloads and prefetches can never take the last connections the player needs.
+ */
+public class HostConnectionLimiter {
+
+    private final int mMaxConnectionsPerHost;
+    private final int mReservedForPlayback;
+    private final ConcurrentHashMap<String, HostPermits> mPermits = new ConcurrentHashMap<>();
+
+    /**
+     * Constructor for this limiter, without permits reserved for playback.
+     * @param maxConnectionsPerHost Maximum number of connections open to one host.
+     */
+    public HostConnectionLimiter(int maxConnectionsPerHost) {
+        this(maxConnectionsPerHost, 0);
+    }
+
+    /**
+     * Constructor for this limiter.
+     * @param maxConnectionsPerHost Maximum number of connections open to one host.
+     * @param reservedForPlayback Number of those connections only playback requests may use. At
+     *                            least one connection is always left to background requests.
+     */
+    public HostConnectionLimiter(int maxConnectionsPerHost, int reservedForPlayback) {
+        mMaxConnectionsPerHost = maxConnectionsPerHost;
+        mReservedForPlayback = Math.max(0, Math.min(reservedForPlayback, maxConnectionsPerHost - 1));
+    }
+
+    /**
+     * Wait for a connection permit of a host for a background request.
+     * @param host Host name.
+     * @throws InterruptedException If the thread was interrupted while waiting.
+     */
+    public void acquire(String host) throws InterruptedException {
+        acquire(host, false);
+    }
+
+    /**
+     * Wait for a connection permit of a host.
+     * @param host Host name.
+     * @param playback True for a playback request, which may use the reserved permits.
+     * @throws InterruptedException If the thread was interrupted while waiting.
+     */
+    public void acquire(String host, boolean playback) throws InterruptedException {
+        getPermits(host).acquire(getLimit(playback));
+    }
+
+    /**
+     * Wait a limited time for a connection permit of a host for a background request.
+     * @param host Host name.
+     * @param timeoutMs Maximum time to wait in milliseconds.
+     * @return Returns true if the permit was acquired.
+     * @throws InterruptedException If the thread was interrupted while waiting.
+     */
+    public boolean tryAcquire(String host, long timeoutMs) throws InterruptedException {
+        return tryAcquire(host, timeoutMs, false);
+    }
+
+    /**
+     * Wait a limited time for a connection permit of a host.
+     * @param host Host name.
+     * @param timeoutMs Maximum time to wait in milliseconds.
+     * @param playback True for a playback request, which may use the reserved permits.
+     * @return Returns true if the permit was acquired.
+     * @throws InterruptedException If the thread was interrupted while waiting.
+     */
+    public boolean tryAcquire(String host, long timeoutMs, boolean playback)
+            throws InterruptedException {
+        return getPermits(host).tryAcquire(getLimit(playback), timeoutMs);
+    }
+
+    /**
+     * Give back a permit acquired for a host.
+     * @param host Host name.
+     */
+    public void release(String host) {
+        getPermits(host).release();
+    }
+
+    /**
+     * Get the number of connections which may still be opened to a host right now, reserved ones
+     * included.
+     * @param host Host name.
+     * @return
+     */
+    public int getAvailableConnections(String host) {
+        return mMaxConnectionsPerHost - getPermits(host).getInUse();
+    }
+
+    private int getLimit(boolean playback) {
+        return playback ? mMaxConnectionsPerHost : mMaxConnectionsPerHost - mReservedForPlayback;
+    }
+
+    private HostPermits getPermits(String host) {
+        HostPermits permits = mPermits.get(host);
+        if (permits == null) {
+            HostPermits newPermits = new HostPermits();
+            permits = mPermits.putIfAbsent(host, newPermits);
+            if (permits == null) {
+                permits = newPermits;
+            }
+        }
+        return permits;
+    }
+
+    /**
+     * Connections in use for one host. Requests of different priorities wait for different
+     * limits, so the count is guarded by a monitor rather than a semaphore.
+     */
+    private static final class HostPermits {
+        private int mInUse;
+
+        synchronized void acquire(int iLimit) throws InterruptedException {
+            while (mInUse >= iLimit) {
+                wait();
+            }
+            mInUse++;
+        }
+
+        synchronized boolean tryAcquire(int iLimit, long lngTimeoutMs)
+                throws InterruptedException {
+            long lngDeadlineMs = System.currentTimeMillis() + lngTimeoutMs;
+            while (mInUse >= iLimit) {
+                long lngWaitMs = lngDeadlineMs - System.currentTimeMillis();
+                if (lngWaitMs <= 0) {
+                    return false;
+                }
+                wait(lngWaitMs);
+            }
+            mInUse++;
+            return true;
+        }
+
+        synchronized void release() {
+            if (mInUse > 0) {
+                mInUse--;
+                notifyAll();
+            }
+        }
+
+        synchronized int getInUse() {
+            return mInUse;
+        }
+    }
+}
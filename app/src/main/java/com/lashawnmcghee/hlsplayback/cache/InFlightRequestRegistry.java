@@ -0,0 +1,286 @@
+/*
+ * Copyright (C) 2018 LLM HLS Playback Demo
+ */
+package com.lashawnmcghee.hlsplayback.cache;
+
+import com.google.android.exoplayer2.C;
+
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Registry of network transfers in flight, shared by playback, prefetching and downloads.
+ *
+ * The first reader of a request owns its transfer. Later readers of the same request may attach
+ * to it until the owner reads its first byte, and then read the owner's bytes as they arrive
+ * instead of fetching them again. Only a transfer with attached readers copies its bytes into
+ * pooled chunks, one nobody joined in time stops being registered and costs nothing. A transfer
+ * which is abandoned by its owner, or which grows past the per transfer limit, stops being shared
+ * and attached readers continue with their own request from where they are. Unthrottled readers
+ * never attach to a transfer owned by a throttled one, since they would only get its bytes at the
+ * pace the bandwidth arbiter lets downloads read.
+ */
+public class InFlightRequestRegistry {
+    //returned by Transfer#read once the transfer will not get the requested bytes
+    public static final int RESULT_ABANDONED = -2;
+
+    private final ByteArrayPool mPool;
+    private final long mMaxTransferBytes;
+    private final HashMap<String, Transfer> mTransfers = new HashMap<>();
+
+    /**
+     * Constructor for this registry.
+     * @param chunkSize Size of the chunks transfers are buffered in.
+     * @param maxTransferBytes Maximum number of bytes buffered for a single transfer.
+     */
+    public InFlightRequestRegistry(int chunkSize, long maxTransferBytes) {
+        mPool = new ByteArrayPool(chunkSize, (int) (maxTransferBytes / chunkSize));
+        mMaxTransferBytes = maxTransferBytes;
+    }
+
+    /**
+     * Attach to the transfer of a request, registering a new one if none can be joined.
+     * Every reader calls {@link Transfer#tryClaim()} next, the single reader it succeeds for owns
+     * the transfer. Every reader must call {@link Transfer#release()} once done.
+     * @param sKey Key identifying the request.
+     * @param bThrottled True if the reader is held back by the bandwidth arbiter.
+     * @return
+     */
+    public synchronized Transfer attach(String sKey, boolean bThrottled) {
+        Transfer transfer = mTransfers.get(sKey);
+        if (transfer != null && transfer.retain(bThrottled)) {
+            return transfer;
+        }
+        //an unthrottled reader replaces a throttled transfer, whose readers keep reading it
+        transfer = new Transfer(sKey, bThrottled);
+        mTransfers.put(sKey, transfer);
+        return transfer;
+    }
+
+    /**
+     * Get the number of transfers currently registered.
+     * @return
+     */
+    public synchronized int getTransferCount() {
+        return mTransfers.size();
+    }
+
+    /**
+     * Drop the free chunks kept for reuse.
+     */
+    public void trim() {
+        mPool.clear();
+    }
+
+    private synchronized void unregister(Transfer transfer) {
+        if (mTransfers.get(transfer.mKey) == transfer) {
+            mTransfers.remove(transfer.mKey);
+        }
+    }
+
+    /**
+     * A transfer shared between its owner and the readers attached to it.
+     */
+    public final class Transfer {
+        private final String mKey;
+        private final ArrayList<byte[]> mChunks = new ArrayList<>();
+
+        private int mRefCount = 1;
+        private boolean mClaimed;
+        private boolean mShared;
+        private boolean mJoinable = true;
+        private boolean mOpened;
+        private boolean mComplete;
+        private boolean mAbandoned;
+        //whether the owner, or until claimed the reader which registered it, is throttled
+        private boolean mThrottled;
+        private long mOpenedLength;
+        private long mBufferedBytes;
+
+        private Transfer(String sKey, boolean bThrottled) {
+            mKey = sKey;
+            mThrottled = bThrottled;
+        }
+
+        /**
+         * Try to become the owner of this transfer.
+         * @param bThrottled True if the reader is held back by the bandwidth arbiter.
+         * @return Returns true for the one reader which should fetch the bytes.
+         */
+        public synchronized boolean tryClaim(boolean bThrottled) {
+            if (mClaimed) {
+                return false;
+            }
+            mClaimed = true;
+            mThrottled = bThrottled;
+            return true;
+        }
+
+        /**
+         * Determines if the bytes of this transfer arrive at the pace of a throttled reader.
+         * @return
+         */
+        public synchronized boolean isThrottled() {
+            return mThrottled;
+        }
+
+        /**
+         * Called by the owner once its request is open.
+         * @param length Length returned by the upstream open.
+         */
+        public synchronized void onOpened(long length) {
+            mOpenedLength = length;
+            mOpened = true;
+            notifyAll();
+        }
+
+        /**
+         * Called by the owner with every chunk of bytes it read.
+         * The bytes are only copied if a reader attached before the first of them.
+         */
+        public void append(byte[] buffer, int offset, int length) {
+            boolean bShared;
+            boolean bTooLarge;
+            synchronized (this) {
+                if (mAbandoned || !mJoinable) {
+                    return;
+                }
+                bShared = mShared;
+                if (!bShared) {
+                    //nobody joined in time, later readers could not get the bytes already passed
+                    mJoinable = false;
+                }
+                bTooLarge = mBufferedBytes + length > mMaxTransferBytes;
+            }
+            if (!bShared) {
+                unregister(this);
+                return;
+            }
+            if (bTooLarge) {
+                //too large to share, attached readers continue on their own
+                abandon();
+                return;
+            }
+            int chunkSize = mPool.getChunkSize();
+            while (length > 0) {
+                synchronized (this) {
+                    int iChunkOffset = (int) (mBufferedBytes % chunkSize);
+                    if (iChunkOffset == 0) {
+                        mChunks.add(mPool.acquire());
+                    }
+                    byte[] chunk = mChunks.get(mChunks.size() - 1);
+                    int iCopy = Math.min(length, chunkSize - iChunkOffset);
+                    System.arraycopy(buffer, offset, chunk, iChunkOffset, iCopy);
+                    mBufferedBytes += iCopy;
+                    offset += iCopy;
+                    length -= iCopy;
+                    notifyAll();
+                }
+            }
+        }
+
+        /**
+         * Called by the owner once it read the whole response.
+         */
+        public synchronized void onComplete() {
+            mComplete = true;
+            notifyAll();
+        }
+
+        /**
+         * Stop sharing this transfer, attached readers continue on their own.
+         */
+        public void abandon() {
+            synchronized (this) {
+                if (!mComplete) {
+                    mAbandoned = true;
+                }
+                notifyAll();
+            }
+            //the registry lock is never taken while holding a transfer lock
+            unregister(this);
+        }
+
+        /**
+         * Wait for the owner to open its request.
+         * @return Returns true if it did, or false if the transfer was abandoned first.
+         * @throws InterruptedIOException If the thread was interrupted while waiting.
+         */
+        public synchronized boolean awaitOpened() throws InterruptedIOException {
+            while (!mOpened && !mAbandoned) {
+                waitForChange();
+            }
+            return mOpened;
+        }
+
+        /**
+         * Get the length the owner's request returned on open.
+         * @return
+         */
+        public synchronized long getOpenedLength() {
+            return mOpenedLength;
+        }
+
+        /**
+         * Read bytes of the transfer, waiting for the owner to fetch them if needed.
+         * @param lngPosition Position in the transfer to read from.
+         * @return Returns the number of bytes read, {@link C#RESULT_END_OF_INPUT} at the end of a
+         * complete transfer, or {@link #RESULT_ABANDONED} if the bytes will not come.
+         * @throws InterruptedIOException If the thread was interrupted while waiting.
+         */
+        public synchronized int read(long lngPosition, byte[] buffer, int offset, int readLength)
+                throws InterruptedIOException {
+            while (lngPosition >= mBufferedBytes && !mComplete && !mAbandoned) {
+                waitForChange();
+            }
+            if (lngPosition >= mBufferedBytes) {
+                return mComplete ? C.RESULT_END_OF_INPUT : RESULT_ABANDONED;
+            }
+            int chunkSize = mPool.getChunkSize();
+            byte[] chunk = mChunks.get((int) (lngPosition / chunkSize));
+            int iChunkOffset = (int) (lngPosition % chunkSize);
+            int bytesRead = (int) Math.min(readLength,
+                    Math.min(chunkSize - iChunkOffset, mBufferedBytes - lngPosition));
+            System.arraycopy(chunk, iChunkOffset, buffer, offset, bytesRead);
+            return bytesRead;
+        }
+
+        /**
+         * Give back the reference taken by {@link #attach(String)}.
+         */
+        public void release() {
+            synchronized (this) {
+                mRefCount--;
+                if (mRefCount > 0) {
+                    return;
+                }
+                for (byte[] chunk : mChunks) {
+                    mPool.release(chunk);
+                }
+                mChunks.clear();
+                mBufferedBytes = 0;
+                mAbandoned = true;
+            }
+            unregister(this);
+        }
+
+        private synchronized boolean retain(boolean bThrottled) {
+            if (mAbandoned || !mJoinable || mRefCount == 0 || (mThrottled && !bThrottled)) {
+                return false;
+            }
+            mRefCount++;
+            mShared = true;
+            return true;
+        }
+
+        private void waitForChange() throws InterruptedIOException {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+        }
+    }
+}
@@ -0,0 +1,297 @@
+/*
+ * Copyright (C) 2018 LLM HLS Playback Demo
+ */
+package com.lashawnmcghee.hlsplayback.cache;
+
+import android.os.SystemClock;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A bounded RAM tier for recently read playlists and segments.
+ * Entries are stored as chunks of a shared byte array pool and are kept in least recently used
+ * order. Readers hold a reference on the entry they read so its chunks are only given back to the
+ * pool once the last reader is done with it.
+ */
+public class MemorySegmentCache {
+
+    private final ByteArrayPool mPool;
+    private final LinkedHashMap<String, Entry> mEntries;
+    private final long mMaxEntryBytes;
+    private long mMaxBytes;
+    private long mCurrentBytes;
+
+    private long mHitCount;
+    private long mMissCount;
+
+    /**
+     * Constructor for this cache.
+     * @param maxBytes Maximum number of bytes held by all entries.
+     * @param maxEntryBytes Maximum size of a single entry. Larger content is not kept.
+     * @param chunkSize Size of the pooled byte arrays holding entry data.
+     */
+    public MemorySegmentCache(long maxBytes, long maxEntryBytes, int chunkSize) {
+        mMaxBytes = maxBytes;
+        mMaxEntryBytes = Math.min(maxEntryBytes, maxBytes);
+        mPool = new ByteArrayPool(chunkSize, (int) (maxBytes / chunkSize));
+        mEntries = new LinkedHashMap<>(16, 0.75f, true);
+    }
+
+    /**
+     * Get the maximum size of a single entry.
+     * @return
+     */
+    public long getMaxEntryBytes() {
+        return mMaxEntryBytes;
+    }
+
+    /**
+     * Get the number of bytes currently held by all entries.
+     * @return
+     */
+    public synchronized long getCurrentBytes() {
+        return mCurrentBytes;
+    }
+
+    /**
+     * Get the number of lookups served from memory.
+     * @return
+     */
+    public synchronized long getHitCount() {
+        return mHitCount;
+    }
+
+    /**
+     * Get the number of lookups which were not served from memory.
+     * @return
+     */
+    public synchronized long getMissCount() {
+        return mMissCount;
+    }
+
+    /**
+     * Get a complete entry for a key and hold a reference to it.
+     * The caller must call {@link Entry#release()} when done.
+     * @param key Cache key of the content.
+     * @return Returns the entry or null when it is not in memory or has expired.
+     */
+    public synchronized Entry acquire(String key) {
+        Entry entry = mEntries.get(key);
+        if (entry != null && entry.isExpired()) {
+            removeEntry(key);
+            entry = null;
+        }
+        if (entry == null) {
+            mMissCount++;
+            return null;
+        }
+        mHitCount++;
+        entry.mRefCount++;
+        return entry;
+    }
+
+    /**
+     * Start recording new content for a key.
+     * @param key Cache key of the content.
+     * @param maxAgeMs Maximum age of the entry once stored, or 0 for no expiry.
+     * @return
+     */
+    public Builder newBuilder(String key, long maxAgeMs) {
+        return new Builder(key, maxAgeMs);
+    }
+
+    /**
+     * Shrink the tier to the given number of bytes, evicting least recently used entries.
+     * @param maxBytes
+     */
+    public synchronized void trimToSize(long maxBytes) {
+        Iterator<Map.Entry<String, Entry>> iterator = mEntries.entrySet().iterator();
+        while (mCurrentBytes > maxBytes && iterator.hasNext()) {
+            Entry entry = iterator.next().getValue();
+            iterator.remove();
+            mCurrentBytes -= entry.mLength;
+            entry.evict();
+        }
+        mPool.setMaxPooledChunks((int) (maxBytes / mPool.getChunkSize()));
+    }
+
+    /**
+     * Drop every entry and every pooled array held by this tier.
+     */
+    public synchronized void clear() {
+        trimToSize(0);
+        mPool.clear();
+        mPool.setMaxPooledChunks((int) (mMaxBytes / mPool.getChunkSize()));
+    }
+
+    /**
+     * Store a completed entry, evicting older entries to make room.
+     * @param entry
+     */
+    private synchronized void put(Entry entry) {
+        removeEntry(entry.mKey);
+        trimToSize(mMaxBytes - entry.mLength);
+        mPool.setMaxPooledChunks((int) (mMaxBytes / mPool.getChunkSize()));
+        mEntries.put(entry.mKey, entry);
+        mCurrentBytes += entry.mLength;
+    }
+
+    private void removeEntry(String key) {
+        Entry entry = mEntries.remove(key);
+        if (entry != null) {
+            mCurrentBytes -= entry.mLength;
+            entry.evict();
+        }
+    }
+
+    /**
+     * Content held in memory for a single cache key.
+     */
+    public final class Entry {
+        private final String mKey;
+        private final List<byte[]> mChunks;
+        private final long mLength;
+        private final long mExpiryTimeMs;
+        private int mRefCount;
+        private boolean mEvicted;
+
+        private Entry(String key, List<byte[]> chunks, long length, long expiryTimeMs) {
+            mKey = key;
+            mChunks = chunks;
+            mLength = length;
+            mExpiryTimeMs = expiryTimeMs;
+        }
+
+        /**
+         * Get the total length of the content.
+         * @return
+         */
+        public long getLength() {
+            return mLength;
+        }
+
+        /**
+         * Copy content bytes into the provided buffer.
+         * @param position Position within the content to start reading from.
+         * @param buffer Buffer to copy into.
+         * @param offset Offset into the buffer.
+         * @param length Maximum number of bytes to copy.
+         * @return Returns the number of bytes copied, or -1 if the position is at the end.
+         */
+        public int read(long position, byte[] buffer, int offset, int length) {
+            if (position >= mLength) {
+                return -1;
+            }
+            int chunkSize = mPool.getChunkSize();
+            int chunkIndex = (int) (position / chunkSize);
+            int chunkOffset = (int) (position % chunkSize);
+            int bytesToCopy = (int) Math.min(length, Math.min(chunkSize - chunkOffset, mLength - position));
+            System.arraycopy(mChunks.get(chunkIndex), chunkOffset, buffer, offset, bytesToCopy);
+            return bytesToCopy;
+        }
+
+        /**
+         * Release the reference obtained from {@link MemorySegmentCache#acquire(String)}.
+         */
+        public void release() {
+            synchronized (MemorySegmentCache.this) {
+                mRefCount--;
+                maybeRecycle();
+            }
+        }
+
+        private boolean isExpired() {
+            return mExpiryTimeMs > 0 && SystemClock.elapsedRealtime() > mExpiryTimeMs;
+        }
+
+        private void evict() {
+            mEvicted = true;
+            maybeRecycle();
+        }
+
+        private void maybeRecycle() {
+            if (mEvicted && mRefCount == 0) {
+                for (byte[] chunk : mChunks) {
+                    mPool.release(chunk);
+                }
+                mChunks.clear();
+            }
+        }
+    }
+
+    /**
+     * Records content into pooled chunks as it is read from the layers below.
+     */
+    public final class Builder {
+        private final String mKey;
+        private final long mMaxAgeMs;
+        private final List<byte[]> mChunks;
+        private long mLength;
+        private boolean mAbandoned;
+
+        private Builder(String key, long maxAgeMs) {
+            mKey = key;
+            mMaxAgeMs = maxAgeMs;
+            mChunks = new ArrayList<>();
+        }
+
+        /**
+         * Append bytes to the content being recorded.
+         * Recording is abandoned once the content grows larger than the maximum entry size.
+         * @param buffer
+         * @param offset
+         * @param length
+         */
+        public void append(byte[] buffer, int offset, int length) {
+            if (mAbandoned) {
+                return;
+            }
+            if (mLength + length > mMaxEntryBytes) {
+                abandon();
+                return;
+            }
+            int chunkSize = mPool.getChunkSize();
+            while (length > 0) {
+                int chunkOffset = (int) (mLength % chunkSize);
+                if (chunkOffset == 0) {
+                    mChunks.add(mPool.acquire());
+                }
+                int bytesToCopy = Math.min(length, chunkSize - chunkOffset);
+                System.arraycopy(buffer, offset, mChunks.get(mChunks.size() - 1), chunkOffset, bytesToCopy);
+                offset += bytesToCopy;
+                length -= bytesToCopy;
+                mLength += bytesToCopy;
+            }
+        }
+
+        /**
+         * Store the recorded content as a complete entry.
+         */
+        public void commit() {
+            if (mAbandoned) {
+                return;
+            }
+            long expiryTimeMs = mMaxAgeMs > 0 ? SystemClock.elapsedRealtime() + mMaxAgeMs : 0;
+            put(new Entry(mKey, mChunks, mLength, expiryTimeMs));
+            mAbandoned = true;
+        }
+
+        /**
+         * Drop the recorded content and give its chunks back to the pool.
+         */
+        public void abandon() {
+            if (mAbandoned) {
+                return;
+            }
+            mAbandoned = true;
+            for (byte[] chunk : mChunks) {
+                mPool.release(chunk);
+            }
+            mChunks.clear();
+        }
+    }
+}
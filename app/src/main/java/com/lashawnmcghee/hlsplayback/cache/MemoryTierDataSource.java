@@ -0,0 +1,144 @@
+/*
+ * Copyright (C) 2018 LLM HLS Playback Demo
+ */
+package com.lashawnmcghee.hlsplayback.cache;
+
+import android.net.Uri;
+import android.support.annotation.Nullable;
+
+import com.google.android.exoplayer2.C;
+import com.google.android.exoplayer2.upstream.DataSource;
+import com.google.android.exoplayer2.upstream.DataSpec;
+import com.google.android.exoplayer2.upstream.TransferListener;
+import com.google.android.exoplayer2.upstream.cache.CacheUtil;
+import com.google.android.exoplayer2.util.Util;
+
+import java.io.IOException;
+
+/**
+ * A data source which serves recently read content from a {@link MemorySegmentCache} and falls
+ * back to the cache data source below it otherwise.
+ * Content read from the start through to its end is recorded into the memory tier on the way up.
+ */
+public class MemoryTierDataSource implements DataSource {
+    //live media playlists change while they play so they are only kept for a moment
+    private static final long PLAYLIST_MAX_AGE_MS = 2000;
+
+    private final DataSource mUpstream;
+    private final MemorySegmentCache mMemoryCache;
+
+    private Uri mUri;
+    private MemorySegmentCache.Entry mEntry;
+    private long mReadPosition;
+    private long mBytesRemaining;
+    private MemorySegmentCache.Builder mBuilder;
+    private boolean mUpstreamOpened;
+
+    /**
+     * Constructor for this data source.
+     * @param upstream The data source to read from when content is not in memory.
+     * @param memoryCache The memory tier.
+     */
+    public MemoryTierDataSource(DataSource upstream, MemorySegmentCache memoryCache) {
+        mUpstream = upstream;
+        mMemoryCache = memoryCache;
+    }
+
+    @Override
+    public void addTransferListener(TransferListener transferListener) {
+        mUpstream.addTransferListener(transferListener);
+    }
+
+    @Override
+    public long open(DataSpec dataSpec) throws IOException {
+        mUri = dataSpec.uri;
+        String key = CacheUtil.getKey(dataSpec);
+
+        //serve from memory whenever we hold the complete content
+        if (dataSpec.postBody == null) {
+            MemorySegmentCache.Entry entry = mMemoryCache.acquire(key);
+            if (entry != null) {
+                if (dataSpec.position <= entry.getLength()) {
+                    mEntry = entry;
+                    mReadPosition = dataSpec.position;
+                    long available = entry.getLength() - dataSpec.position;
+                    mBytesRemaining = dataSpec.length == C.LENGTH_UNSET
+                            ? available : Math.min(dataSpec.length, available);
+                    return mBytesRemaining;
+                }
+                entry.release();
+            }
+        }
+
+        long bytesToRead = mUpstream.open(dataSpec);
+        mUpstreamOpened = true;
+
+        //only content read from its very beginning can be recorded
+        if (dataSpec.position == 0
+                && dataSpec.length == C.LENGTH_UNSET
+                && dataSpec.postBody == null
+                && (bytesToRead == C.LENGTH_UNSET || bytesToRead <= mMemoryCache.getMaxEntryBytes())) {
+            long maxAgeMs = Util.inferContentType(dataSpec.uri) == C.TYPE_HLS ? PLAYLIST_MAX_AGE_MS : 0;
+            mBuilder = mMemoryCache.newBuilder(key, maxAgeMs);
+        }
+        return bytesToRead;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int readLength) throws IOException {
+        if (readLength == 0) {
+            return 0;
+        }
+
+        if (mEntry != null) {
+            if (mBytesRemaining == 0) {
+                return C.RESULT_END_OF_INPUT;
+            }
+            int bytesToRead = (int) Math.min(readLength, mBytesRemaining);
+            int bytesRead = mEntry.read(mReadPosition, buffer, offset, bytesToRead);
+            if (bytesRead == -1) {
+                return C.RESULT_END_OF_INPUT;
+            }
+            mReadPosition += bytesRead;
+            mBytesRemaining -= bytesRead;
+            return bytesRead;
+        }
+
+        int bytesRead = mUpstream.read(buffer, offset, readLength);
+        if (mBuilder != null) {
+            if (bytesRead == C.RESULT_END_OF_INPUT) {
+                mBuilder.commit();
+                mBuilder = null;
+            } else {
+                mBuilder.append(buffer, offset, bytesRead);
+            }
+        }
+        return bytesRead;
+    }
+
+    @Nullable
+    @Override
+    public Uri getUri() {
+        return mEntry != null ? mUri : mUpstream.getUri();
+    }
+
+    @Override
+    public void close() throws IOException {
+        mUri = null;
+        if (mEntry != null) {
+            mEntry.release();
+            mEntry = null;
+        }
+
+        //content closed before its end is incomplete and cannot be kept
+        if (mBuilder != null) {
+            mBuilder.abandon();
+            mBuilder = null;
+        }
+
+        if (mUpstreamOpened) {
+            mUpstreamOpened = false;
+            mUpstream.close();
+        }
+    }
+}
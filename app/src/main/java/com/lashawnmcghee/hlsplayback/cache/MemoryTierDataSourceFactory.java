@@ -0,0 +1,31 @@
+/*
+ * Copyright (C) 2018 LLM HLS Playback Demo
+ */
+package com.lashawnmcghee.hlsplayback.cache;
+
+import com.google.android.exoplayer2.upstream.DataSource;
+
+/**
+ * A {@link DataSource.Factory} which layers our memory tier over another factory.
+ */
+public class MemoryTierDataSourceFactory implements DataSource.Factory {
+
+    private final DataSource.Factory mUpstreamFactory;
+    private final MemorySegmentCache mMemoryCache;
+
+    /**
+     * Constructor for this factory.
+     * @param upstreamFactory Factory of the data sources read when content is not in memory.
+     * @param memoryCache The memory tier shared by every created data source.
+     */
+    public MemoryTierDataSourceFactory(DataSource.Factory upstreamFactory,
+                                       MemorySegmentCache memoryCache) {
+        mUpstreamFactory = upstreamFactory;
+        mMemoryCache = memoryCache;
+    }
+
+    @Override
+    public DataSource createDataSource() {
+        return new MemoryTierDataSource(mUpstreamFactory.createDataSource(), mMemoryCache);
+    }
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright (C) 2018 LLM HLS Playback Demo
+ */
+package com.lashawnmcghee.hlsplayback.cache;
+
+import android.net.Uri;
+import android.os.SystemClock;
+import android.support.annotation.Nullable;
+
+import com.google.android.exoplayer2.C;
+import com.google.android.exoplayer2.upstream.DataSource;
+import com.google.android.exoplayer2.upstream.DataSpec;
+import com.google.android.exoplayer2.upstream.TransferListener;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A {@link DataSource.Factory} which records every request into {@link DataSourceMetrics}.
+ *
+ * Each data source listens to the transfers of the data sources below it. Bytes reported by
+ * network sources count as network bytes, bytes reported by other sources, the cache files, count
+ * as cache bytes, and anything read without a transfer was served by the memory tier.
+ */
+public class MetricsDataSourceFactory implements DataSource.Factory {
+
+    private final DataSource.Factory mUpstreamFactory;
+    private final DataSourceMetrics mMetrics;
+
+    /**
+     * Constructor for this factory.
+     * @param upstreamFactory Factory of the data sources being measured.
+     * @param metrics Metrics every created data source records into.
+     */
+    public MetricsDataSourceFactory(DataSource.Factory upstreamFactory, DataSourceMetrics metrics) {
+        mUpstreamFactory = upstreamFactory;
+        mMetrics = metrics;
+    }
+
+    @Override
+    public DataSource createDataSource() {
+        return new MetricsDataSource(mUpstreamFactory.createDataSource());
+    }
+
+    /**
+     * Data source measuring a request from its open to its close.
+     * A data source is only used by one loader thread at a time so no state here is shared.
+     */
+    private final class MetricsDataSource implements DataSource, TransferListener {
+        private final DataSource mUpstream;
+
+        private boolean mOpened;
+        private long mOpenTimeUs;
+        private long mTimeToFirstByteUs;
+        private long mBytesRead;
+        private long mCacheBytes;
+        private long mNetworkBytes;
+
+        public MetricsDataSource(DataSource upstream) {
+            mUpstream = upstream;
+            mUpstream.addTransferListener(this);
+        }
+
+        @Override
+        public void addTransferListener(TransferListener transferListener) {
+            mUpstream.addTransferListener(transferListener);
+        }
+
+        @Override
+        public long open(DataSpec dataSpec) throws IOException {
+            mOpenTimeUs = getNowUs();
+            mTimeToFirstByteUs = C.TIME_UNSET;
+            mBytesRead = 0;
+            mCacheBytes = 0;
+            mNetworkBytes = 0;
+            try {
+                long bytesToRead = mUpstream.open(dataSpec);
+                mOpened = true;
+                return bytesToRead;
+            } catch (IOException e) {
+                mMetrics.onRequestFailed();
+                throw e;
+            }
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int readLength) throws IOException {
+            int bytesRead;
+            try {
+                bytesRead = mUpstream.read(buffer, offset, readLength);
+            } catch (IOException e) {
+                //the request is accounted as failed instead of completed on close
+                if (mOpened) {
+                    mOpened = false;
+                    mMetrics.onRequestFailed();
+                }
+                throw e;
+            }
+            if (bytesRead > 0) {
+                if (mBytesRead == 0) {
+                    mTimeToFirstByteUs = getNowUs() - mOpenTimeUs;
+                }
+                mBytesRead += bytesRead;
+            }
+            return bytesRead;
+        }
+
+        @Nullable
+        @Override
+        public Uri getUri() {
+            return mUpstream.getUri();
+        }
+
+        @Override
+        public Map<String, List<String>> getResponseHeaders() {
+            return mUpstream.getResponseHeaders();
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                mUpstream.close();
+            } finally {
+                if (mOpened) {
+                    mOpened = false;
+                    long lngMemoryBytes = Math.max(0, mBytesRead - mCacheBytes - mNetworkBytes);
+                    mMetrics.onRequestCompleted(lngMemoryBytes,
+                            Math.min(mCacheBytes, mBytesRead),
+                            Math.min(mNetworkBytes, mBytesRead),
+                            mTimeToFirstByteUs != C.TIME_UNSET ? mTimeToFirstByteUs : -1,
+                            getNowUs() - mOpenTimeUs);
+                }
+            }
+        }
+
+        @Override
+        public void onTransferInitializing(DataSource source, DataSpec dataSpec, boolean isNetwork) {
+            // Do nothing.
+        }
+
+        @Override
+        public void onTransferStart(DataSource source, DataSpec dataSpec, boolean isNetwork) {
+            // Do nothing.
+        }
+
+        @Override
+        public void onBytesTransferred(DataSource source,
+                                       DataSpec dataSpec,
+                                       boolean isNetwork,
+                                       int bytesTransferred) {
+            if (isNetwork) {
+                mNetworkBytes += bytesTransferred;
+            } else {
+                mCacheBytes += bytesTransferred;
+            }
+        }
+
+        @Override
+        public void onTransferEnd(DataSource source, DataSpec dataSpec, boolean isNetwork) {
+            // Do nothing.
+        }
+
+        private long getNowUs() {
+            return SystemClock.elapsedRealtimeNanos() / 1000;
+        }
+    }
+}
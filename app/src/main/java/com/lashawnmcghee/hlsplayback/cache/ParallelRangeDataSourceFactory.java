@@ -0,0 +1,461 @@
+/*
+ * Copyright (C) 2018 LLM HLS Playback Demo
+ */
+package com.lashawnmcghee.hlsplayback.cache;
+
+import android.net.Uri;
+import android.os.SystemClock;
+import android.support.annotation.Nullable;
+
+import com.google.android.exoplayer2.C;
+import com.google.android.exoplayer2.upstream.BaseDataSource;
+import com.google.android.exoplayer2.upstream.DataSource;
+import com.google.android.exoplayer2.upstream.DataSpec;
+import com.google.android.exoplayer2.util.Util;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A {@link DataSource.Factory} which fetches large segments as several concurrent byte ranges.
+ *
+ * Only requests of a known length spanning several ranges are split. The first range is requested
+ * on the loading thread and its Content-Range header confirms the host serves ranges. The
+ * following ranges are fetched ahead on a shared executor into pooled buffers, and their bytes are
+ * handed to the reader as soon as they are contiguous with what was already read. The pool bounds
+ * the buffers of every reader together, a reader finding it exhausted reads the rest of its
+ * request through a single request. Playlists, requests of unknown or small length and hosts which
+ * recently ignored a range request are read through a single request as before.
+ *
+ * This factory sits below the cache data sources, so the cache still receives the bytes in order.
+ */
+public class ParallelRangeDataSourceFactory implements DataSource.Factory {
+    private static final int MAX_RANGES_AHEAD = 3;
+    private static final String HEADER_CONTENT_RANGE = "Content-Range";
+
+    private final DataSource.Factory mUpstreamFactory;
+    private final Executor mExecutor;
+    private final ByteArrayPool mBufferPool;
+    private final AtomicBoolean mEnabled;
+    private final long mNoRangeRetryMs;
+    //hosts which answered a range request with the whole body, until they are tried again
+    private final ConcurrentHashMap<String, Long> mNoRangeHostsUntilMs = new ConcurrentHashMap<>();
+
+    /**
+     * Constructor for this factory.
+     * @param upstreamFactory Factory of the HTTP data sources fetching each range.
+     * @param executor Executor fetching the ranges ahead of the reader.
+     * @param bufferPool Pool of range buffers, its chunk size is the size of each range and its
+     *                   outstanding limit bounds the buffers of every reader together.
+     * @param enabled Flag switching range splitting on or off for requests opened afterwards.
+     * @param noRangeRetryMs How long a host which ignored a range request is read through single
+     *                       requests before ranges are tried again.
+     */
+    public ParallelRangeDataSourceFactory(DataSource.Factory upstreamFactory,
+                                          Executor executor,
+                                          ByteArrayPool bufferPool,
+                                          AtomicBoolean enabled,
+                                          long noRangeRetryMs) {
+        mUpstreamFactory = upstreamFactory;
+        mExecutor = executor;
+        mBufferPool = bufferPool;
+        mEnabled = enabled;
+        mNoRangeRetryMs = noRangeRetryMs;
+    }
+
+    @Override
+    public DataSource createDataSource() {
+        return new ParallelRangeDataSource();
+    }
+
+    /**
+     * Determines if a host may be sent range requests.
+     * @param sHost
+     * @return
+     */
+    private boolean isRangeHost(String sHost) {
+        if (sHost == null) {
+            return false;
+        }
+        Long lngUntilMs = mNoRangeHostsUntilMs.get(sHost);
+        if (lngUntilMs == null) {
+            return true;
+        }
+        if (SystemClock.elapsedRealtime() < lngUntilMs) {
+            return false;
+        }
+        //the host may have been one misconfigured edge, try ranges again
+        mNoRangeHostsUntilMs.remove(sHost, lngUntilMs);
+        return true;
+    }
+
+    /**
+     * Read the full resource size from a Content-Range header such as "bytes 0-1023/4096".
+     * @param headers Response headers of a range request.
+     * @return Returns the size, or {@link C#LENGTH_UNSET} if the header is missing or has no size.
+     */
+    private static long getContentRangeTotal(Map<String, List<String>> headers) {
+        if (headers == null) {
+            return C.LENGTH_UNSET;
+        }
+        for (Map.Entry<String, List<String>> header : headers.entrySet()) {
+            if (!HEADER_CONTENT_RANGE.equalsIgnoreCase(header.getKey())
+                    || header.getValue() == null
+                    || header.getValue().isEmpty()) {
+                continue;
+            }
+            String sValue = header.getValue().get(0);
+            int iSlash = sValue.lastIndexOf('/');
+            if (iSlash < 0) {
+                return C.LENGTH_UNSET;
+            }
+            try {
+                return Long.parseLong(sValue.substring(iSlash + 1).trim());
+            } catch (NumberFormatException e) {
+                //the size may be "*" when the server does not know it
+                return C.LENGTH_UNSET;
+            }
+        }
+        return C.LENGTH_UNSET;
+    }
+
+    /**
+     * Build the data spec of a byte range of a request.
+     * @param dataSpec The original request.
+     * @param lngPosition Position of the range in the resource.
+     * @param lngLength Length of the range.
+     * @return
+     */
+    private static DataSpec buildRangeDataSpec(DataSpec dataSpec, long lngPosition, long lngLength) {
+        return new DataSpec(dataSpec.uri,
+                null,
+                dataSpec.absoluteStreamPosition + (lngPosition - dataSpec.position),
+                lngPosition,
+                lngLength,
+                dataSpec.key,
+                dataSpec.flags);
+    }
+
+    /**
+     * Data source reading the first range itself and the following ones from range tasks.
+     * Only the loading thread calls into it, the range tasks share their state through their own
+     * monitor.
+     */
+    private final class ParallelRangeDataSource extends BaseDataSource {
+        private final ArrayDeque<RangeTask> mRanges = new ArrayDeque<>();
+
+        private DataSource mUpstream;
+        private Uri mUri;
+        private boolean mOpened;
+        private boolean mPassThrough;
+        private long mPrimaryRemaining;
+        private long mBytesRemaining;
+        private long mNextRangePosition;
+        private long mEndPosition;
+        private DataSpec mDataSpec;
+
+        public ParallelRangeDataSource() {
+            super(true);
+        }
+
+        @Override
+        public long open(DataSpec dataSpec) throws IOException {
+            mUri = dataSpec.uri;
+            mDataSpec = dataSpec;
+            transferInitializing(dataSpec);
+            int iRangeBytes = mBufferPool.getChunkSize();
+            long bytesToRead;
+            if (shouldSplit(dataSpec, iRangeBytes)) {
+                bytesToRead = openRanges(dataSpec, iRangeBytes);
+            } else {
+                bytesToRead = openPassThrough(dataSpec);
+            }
+            mOpened = true;
+            transferStarted(dataSpec);
+            return bytesToRead;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int readLength) throws IOException {
+            if (readLength == 0) {
+                return 0;
+            }
+            int bytesRead;
+            if (mPassThrough) {
+                bytesRead = mUpstream.read(buffer, offset, readLength);
+            } else if (mBytesRemaining == 0) {
+                bytesRead = C.RESULT_END_OF_INPUT;
+            } else if (mPrimaryRemaining > 0) {
+                bytesRead = readPrimary(buffer, offset, readLength);
+            } else {
+                bytesRead = readRange(buffer, offset, readLength);
+            }
+            if (bytesRead > 0) {
+                bytesTransferred(bytesRead);
+            }
+            return bytesRead;
+        }
+
+        @Nullable
+        @Override
+        public Uri getUri() {
+            return mUri;
+        }
+
+        @Override
+        public Map<String, List<String>> getResponseHeaders() {
+            return mUpstream != null ? mUpstream.getResponseHeaders()
+                    : Collections.<String, List<String>>emptyMap();
+        }
+
+        @Override
+        public void close() throws IOException {
+            mUri = null;
+            mDataSpec = null;
+            try {
+                if (mUpstream != null) {
+                    mUpstream.close();
+                }
+            } finally {
+                mUpstream = null;
+                for (RangeTask range : mRanges) {
+                    range.release();
+                }
+                mRanges.clear();
+                if (mOpened) {
+                    mOpened = false;
+                    transferEnded();
+                }
+            }
+        }
+
+        private boolean shouldSplit(DataSpec dataSpec, int iRangeBytes) {
+            String sScheme = dataSpec.uri.getScheme();
+            return mEnabled.get()
+                    && ("http".equalsIgnoreCase(sScheme) || "https".equalsIgnoreCase(sScheme))
+                    && dataSpec.postBody == null
+                    && !dataSpec.isFlagSet(DataSpec.FLAG_ALLOW_GZIP)
+                    && dataSpec.length != C.LENGTH_UNSET
+                    && dataSpec.length > iRangeBytes
+                    && Util.inferContentType(dataSpec.uri) != C.TYPE_HLS
+                    && isRangeHost(dataSpec.uri.getHost());
+        }
+
+        private long openPassThrough(DataSpec dataSpec) throws IOException {
+            mPassThrough = true;
+            mUpstream = mUpstreamFactory.createDataSource();
+            return mUpstream.open(dataSpec);
+        }
+
+        /**
+         * Open the first range and schedule the following ones.
+         * @return Returns the number of bytes the reader will get.
+         */
+        private long openRanges(DataSpec dataSpec, int iRangeBytes) throws IOException {
+            mPassThrough = false;
+            mUpstream = mUpstreamFactory.createDataSource();
+            mUpstream.open(buildRangeDataSpec(dataSpec, dataSpec.position, iRangeBytes));
+            long lngTotal = getContentRangeTotal(mUpstream.getResponseHeaders());
+            if (lngTotal == C.LENGTH_UNSET) {
+                //the server sent the whole body, read its requests through one request for a while
+                mNoRangeHostsUntilMs.put(dataSpec.uri.getHost(),
+                        SystemClock.elapsedRealtime() + mNoRangeRetryMs);
+                mUpstream.close();
+                return openPassThrough(dataSpec);
+            }
+
+            mEndPosition = Math.min(dataSpec.position + dataSpec.length, lngTotal);
+            mBytesRemaining = Math.max(0, mEndPosition - dataSpec.position);
+            mPrimaryRemaining = Math.min(iRangeBytes, mBytesRemaining);
+            mNextRangePosition = dataSpec.position + mPrimaryRemaining;
+            scheduleRanges();
+            return mBytesRemaining;
+        }
+
+        private int readPrimary(byte[] buffer, int offset, int readLength) throws IOException {
+            //never read past the range end, the upstream would report a truncated body
+            int bytesRead = mUpstream.read(buffer,
+                    offset,
+                    (int) Math.min(readLength, mPrimaryRemaining));
+            if (bytesRead == C.RESULT_END_OF_INPUT) {
+                throw new EOFException();
+            }
+            mPrimaryRemaining -= bytesRead;
+            mBytesRemaining -= bytesRead;
+            if (mPrimaryRemaining == 0) {
+                //give the connection back while the reader moves on to the fetched ranges
+                DataSource upstream = mUpstream;
+                mUpstream = null;
+                upstream.close();
+                scheduleRanges();
+            }
+            return bytesRead;
+        }
+
+        private int readRange(byte[] buffer, int offset, int readLength) throws IOException {
+            RangeTask range = mRanges.peekFirst();
+            if (range == null) {
+                throw new EOFException();
+            }
+            int bytesRead = range.read(buffer, offset, readLength);
+            mBytesRemaining -= bytesRead;
+            if (range.isConsumed()) {
+                mRanges.removeFirst();
+                range.release();
+                scheduleRanges();
+            }
+            return bytesRead;
+        }
+
+        private void scheduleRanges() throws IOException {
+            while (mRanges.size() < MAX_RANGES_AHEAD && mNextRangePosition < mEndPosition) {
+                byte[] rangeBuffer = mBufferPool.tryAcquire();
+                if (rangeBuffer == null) {
+                    if (mRanges.isEmpty() && mPrimaryRemaining == 0) {
+                        //other readers hold every buffer, read the rest through one request
+                        openTail();
+                    }
+                    return;
+                }
+                int iLength = (int) Math.min(mBufferPool.getChunkSize(),
+                        mEndPosition - mNextRangePosition);
+                RangeTask range = new RangeTask(
+                        buildRangeDataSpec(mDataSpec, mNextRangePosition, iLength),
+                        iLength,
+                        rangeBuffer);
+                mRanges.addLast(range);
+                mNextRangePosition += iLength;
+                try {
+                    mExecutor.execute(range);
+                } catch (RejectedExecutionException e) {
+                    throw new IOException("Range fetching has been shut down", e);
+                }
+            }
+        }
+
+        /**
+         * Read everything after the ranges already fetched as the primary request.
+         */
+        private void openTail() throws IOException {
+            long lngLength = mEndPosition - mNextRangePosition;
+            mUpstream = mUpstreamFactory.createDataSource();
+            mUpstream.open(buildRangeDataSpec(mDataSpec, mNextRangePosition, lngLength));
+            mPrimaryRemaining = lngLength;
+            mNextRangePosition = mEndPosition;
+        }
+    }
+
+    /**
+     * Fetches one byte range into a pooled buffer.
+     * The buffer goes back to the pool once both the reader released the range and the fetch is
+     * not running anymore.
+     */
+    private final class RangeTask implements Runnable {
+        private final DataSpec mDataSpec;
+        private final int mLength;
+        private final byte[] mBuffer;
+
+        private int mFilled;
+        private int mConsumed;
+        private IOException mError;
+        private boolean mStarted;
+        private boolean mDone;
+        private volatile boolean mReleased;
+
+        public RangeTask(DataSpec dataSpec, int length, byte[] buffer) {
+            mDataSpec = dataSpec;
+            mLength = length;
+            mBuffer = buffer;
+        }
+
+        @Override
+        public void run() {
+            synchronized (this) {
+                if (mReleased) {
+                    return;
+                }
+                mStarted = true;
+            }
+            DataSource source = mUpstreamFactory.createDataSource();
+            try {
+                source.open(mDataSpec);
+                int iFilled = 0;
+                while (iFilled < mLength && !mReleased) {
+                    int bytesRead = source.read(mBuffer, iFilled, mLength - iFilled);
+                    if (bytesRead == C.RESULT_END_OF_INPUT) {
+                        throw new EOFException();
+                    }
+                    iFilled += bytesRead;
+                    synchronized (this) {
+                        mFilled = iFilled;
+                        notifyAll();
+                    }
+                }
+            } catch (IOException e) {
+                synchronized (this) {
+                    mError = e;
+                    notifyAll();
+                }
+            } finally {
+                try {
+                    source.close();
+                } catch (IOException e) {
+                    //the range is complete or failed already
+                }
+                synchronized (this) {
+                    mDone = true;
+                    if (mReleased) {
+                        mBufferPool.release(mBuffer);
+                    }
+                }
+            }
+        }
+
+        /**
+         * Copy fetched bytes the reader has not seen yet, waiting for them if needed.
+         */
+        public synchronized int read(byte[] buffer, int offset, int readLength) throws IOException {
+            while (mFilled == mConsumed && mError == null) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException();
+                }
+            }
+            if (mFilled == mConsumed) {
+                throw mError;
+            }
+            int bytesRead = Math.min(readLength, mFilled - mConsumed);
+            System.arraycopy(mBuffer, mConsumed, buffer, offset, bytesRead);
+            mConsumed += bytesRead;
+            return bytesRead;
+        }
+
+        public synchronized boolean isConsumed() {
+            return mConsumed == mLength;
+        }
+
+        /**
+         * Stop the fetch if it is still running and recycle the buffer once it is unused.
+         */
+        public synchronized void release() {
+            if (mReleased) {
+                return;
+            }
+            mReleased = true;
+            if (!mStarted || mDone) {
+                mBufferPool.release(mBuffer);
+            }
+        }
+    }
+}
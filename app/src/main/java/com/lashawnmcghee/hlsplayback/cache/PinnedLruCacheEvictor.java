@@ -0,0 +1,336 @@
+/*
+ * Copyright (C) 2018 LLM HLS Playback Demo
+ */
+package com.lashawnmcghee.hlsplayback.cache;
+
+import com.google.android.exoplayer2.upstream.cache.Cache;
+import com.google.android.exoplayer2.upstream.cache.CacheEvictor;
+import com.google.android.exoplayer2.upstream.cache.CacheSpan;
+import com.google.android.exoplayer2.upstream.cache.ContentMetadataMutations;
+import com.lashawnmcghee.hlsplayback.util.LogTrace;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A size bounded cache evictor which removes streamed spans in least recently used order.
+ *
+ * Spans whose cache key has been pinned (content written by the download manager on behalf of
+ * the download tracker) are never evicted. The pinned flag is stored in the cache's own content
+ * metadata so it survives application restarts along with the cache index.
+ *
+ * All Cache.Listener callbacks are invoked by SimpleCache while it holds its own lock.
+ */
+public class PinnedLruCacheEvictor implements CacheEvictor {
+    private static final String TAG = PinnedLruCacheEvictor.class.getSimpleName();
+
+    //content metadata name used to mark a cache key as an explicit download
+    private static final String METADATA_PINNED = "hls_pinned";
+
+    private final TreeSet<CacheSpan> mLruSpans;
+    private final Set<String> mPendingUnpins;
+    private final Set<String> mPinnedKeys;
+    //bytes held by each key, so pinning a key counts what it already holds
+    private final HashMap<String, Long> mKeyBytes;
+
+    private volatile CacheIndexSnapshot mIndexSnapshot;
+    private volatile long mMaxBytes;
+    private long mCurrentSize;
+    //kept apart from the LRU ordering, which drops pinned spans as eviction skips them
+    private long mPinnedBytes;
+
+    private final AtomicLong mEvictedSpanCount = new AtomicLong();
+    private final AtomicLong mEvictedBytes = new AtomicLong();
+    private final AtomicLong mPinnedSkipCount = new AtomicLong();
+
+    /**
+     * Constructor for this evictor.
+     * @param maxBytes The byte budget of the cache. Streamed spans are evicted when it is exceeded.
+     */
+    public PinnedLruCacheEvictor(long maxBytes) {
+        mMaxBytes = maxBytes;
+        mLruSpans = new TreeSet<>(PinnedLruCacheEvictor::compare);
+        mPendingUnpins = new HashSet<>();
+        mPinnedKeys = Collections.newSetFromMap(new ConcurrentHashMap<>());
+        mKeyBytes = new HashMap<>();
+    }
+
+    /**
+     * Set the snapshot which records every span and pinned key change of the cache.
+     * @param indexSnapshot
+     */
+    public void setIndexSnapshot(CacheIndexSnapshot indexSnapshot) {
+        mIndexSnapshot = indexSnapshot;
+    }
+
+    /**
+     * Change the byte budget of the cache.
+     * The new budget is enforced the next time a file is started in the cache.
+     * @param maxBytes New budget in bytes.
+     */
+    public void setMaxBytes(long maxBytes) {
+        mMaxBytes = maxBytes;
+    }
+
+    /**
+     * Get the byte budget of the cache.
+     * @return
+     */
+    public long getMaxBytes() {
+        return mMaxBytes;
+    }
+
+    /**
+     * Get the total number of bytes currently held by the cache, pinned content included.
+     * @return
+     */
+    public synchronized long getCurrentSize() {
+        return mCurrentSize;
+    }
+
+    /**
+     * Get the number of bytes held by keys known to be pinned, that is content which is never
+     * evicted. Keys pinned in an earlier session are known once the index snapshot is verified.
+     * @return
+     */
+    public synchronized long getPinnedBytes() {
+        return mPinnedBytes;
+    }
+
+    /**
+     * Get the number of spans evicted since this evictor was created.
+     * @return
+     */
+    public long getEvictedSpanCount() {
+        return mEvictedSpanCount.get();
+    }
+
+    /**
+     * Get the number of bytes evicted since this evictor was created.
+     * @return
+     */
+    public long getEvictedBytes() {
+        return mEvictedBytes.get();
+    }
+
+    /**
+     * Get the number of times a least recently used span was skipped because it was pinned.
+     * @return
+     */
+    public long getPinnedSkipCount() {
+        return mPinnedSkipCount.get();
+    }
+
+    /**
+     * Mark a cache key as belonging to an explicit download so it is never evicted.
+     * Must not be called while holding the cache lock.
+     * @param cache Cache which holds the key.
+     * @param key Cache key to pin.
+     */
+    public void pin(Cache cache, String key) {
+        synchronized (this) {
+            mPendingUnpins.remove(key);
+        }
+        if (!markPinned(key) && isPinned(cache, key)) {
+            return;
+        }
+        try {
+            ContentMetadataMutations mutations = new ContentMetadataMutations();
+            mutations.set(METADATA_PINNED, 1L);
+            cache.applyContentMetadataMutations(key, mutations);
+        } catch (Cache.CacheException e) {
+            LogTrace.e(TAG, "Failed to pin cache key", e);
+        }
+
+        CacheIndexSnapshot indexSnapshot = mIndexSnapshot;
+        if (indexSnapshot != null) {
+            indexSnapshot.onPinnedChanged(key, true);
+        }
+    }
+
+    /**
+     * Determines if a cache key is pinned.
+     * @param cache Cache which holds the key.
+     * @param key Cache key to check.
+     * @return
+     */
+    public boolean isPinned(Cache cache, String key) {
+        if (mPinnedKeys.contains(key)) {
+            return true;
+        }
+        boolean bPinned = cache.getContentMetadata(key).get(METADATA_PINNED, 0L) == 1L;
+        if (bPinned) {
+            markPinned(key);
+        }
+        return bPinned;
+    }
+
+    @Override
+    public void onCacheInitialized() {
+        // Do nothing.
+    }
+
+    @Override
+    public void onStartFile(Cache cache, String key, long position, long length) {
+        processPendingUnpins(cache);
+        evictCache(cache, length);
+    }
+
+    @Override
+    public void onSpanAdded(Cache cache, CacheSpan span) {
+        synchronized (this) {
+            mCurrentSize += span.length;
+            mLruSpans.add(span);
+            addKeyBytes(span.key, span.length);
+        }
+
+        CacheIndexSnapshot indexSnapshot = mIndexSnapshot;
+        if (indexSnapshot != null) {
+            indexSnapshot.onSpanAdded(span);
+        }
+    }
+
+    @Override
+    public void onSpanRemoved(Cache cache, CacheSpan span) {
+        synchronized (this) {
+            mCurrentSize -= span.length;
+            mLruSpans.remove(span);
+            addKeyBytes(span.key, -span.length);
+        }
+
+        CacheIndexSnapshot indexSnapshot = mIndexSnapshot;
+        if (indexSnapshot != null) {
+            indexSnapshot.onSpanRemoved(span);
+        }
+
+        //a pinned key with nothing left in it has been removed by the download manager
+        if (mPinnedKeys.contains(span.key) || isPinned(cache, span.key)) {
+            synchronized (this) {
+                mPendingUnpins.add(span.key);
+            }
+        }
+    }
+
+    @Override
+    public synchronized void onSpanTouched(Cache cache, CacheSpan oldSpan, CacheSpan newSpan) {
+        //only the access time changed so there is nothing new to record or unpin
+        mLruSpans.remove(oldSpan);
+        mLruSpans.add(newSpan);
+    }
+
+    /**
+     * Add a key to the pinned keys and count the bytes it already holds.
+     * @param key
+     * @return Returns true if the key was not known to be pinned.
+     */
+    private synchronized boolean markPinned(String key) {
+        if (!mPinnedKeys.add(key)) {
+            return false;
+        }
+        mPinnedBytes += getKeyBytes(key);
+        return true;
+    }
+
+    private void addKeyBytes(String key, long lngBytes) {
+        long lngKeyBytes = getKeyBytes(key) + lngBytes;
+        if (lngKeyBytes > 0) {
+            mKeyBytes.put(key, lngKeyBytes);
+        } else {
+            mKeyBytes.remove(key);
+        }
+        if (mPinnedKeys.contains(key)) {
+            mPinnedBytes += lngBytes;
+        }
+    }
+
+    private long getKeyBytes(String key) {
+        Long lngKeyBytes = mKeyBytes.get(key);
+        return lngKeyBytes == null ? 0 : lngKeyBytes;
+    }
+
+    /**
+     * Clear the pinned flag of keys that no longer hold any spans.
+     * This is deferred from onSpanRemoved() since the cache may still be removing the content.
+     * @param cache
+     */
+    private void processPendingUnpins(Cache cache) {
+        String[] keys;
+        synchronized (this) {
+            if (mPendingUnpins.isEmpty()) {
+                return;
+            }
+            keys = mPendingUnpins.toArray(new String[0]);
+            mPendingUnpins.clear();
+        }
+
+        for (String key : keys) {
+            if (!cache.getCachedSpans(key).isEmpty()) {
+                continue;
+            }
+            synchronized (this) {
+                if (mPinnedKeys.remove(key)) {
+                    mPinnedBytes -= getKeyBytes(key);
+                }
+            }
+            CacheIndexSnapshot indexSnapshot = mIndexSnapshot;
+            if (indexSnapshot != null) {
+                indexSnapshot.onPinnedChanged(key, false);
+            }
+            try {
+                ContentMetadataMutations mutations = new ContentMetadataMutations();
+                mutations.remove(METADATA_PINNED);
+                cache.applyContentMetadataMutations(key, mutations);
+            } catch (Cache.CacheException e) {
+                LogTrace.e(TAG, "Failed to unpin cache key", e);
+            }
+        }
+    }
+
+    /**
+     * Evict streamed spans until the required space fits into our budget.
+     * Pinned spans are dropped from the LRU ordering as they are found.
+     * @param cache
+     * @param requiredSpace
+     */
+    private void evictCache(Cache cache, long requiredSpace) {
+        while (true) {
+            CacheSpan leastRecentSpan;
+            synchronized (this) {
+                if (mCurrentSize + requiredSpace <= mMaxBytes || mLruSpans.isEmpty()) {
+                    return;
+                }
+                leastRecentSpan = mLruSpans.pollFirst();
+            }
+
+            if (isPinned(cache, leastRecentSpan.key)) {
+                mPinnedSkipCount.incrementAndGet();
+                continue;
+            }
+
+            try {
+                cache.removeSpan(leastRecentSpan);
+                mEvictedSpanCount.incrementAndGet();
+                mEvictedBytes.addAndGet(leastRecentSpan.length);
+            } catch (Cache.CacheException e) {
+                // do nothing.
+            }
+        }
+    }
+
+    /**
+     * Order spans by last access time, falling back to their natural ordering.
+     */
+    private static int compare(CacheSpan lhs, CacheSpan rhs) {
+        long lastAccessTimestampDelta = lhs.lastAccessTimestamp - rhs.lastAccessTimestamp;
+        if (lastAccessTimestampDelta == 0) {
+            // Use the standard compareTo method as a tie-break.
+            return lhs.compareTo(rhs);
+        }
+        return lhs.lastAccessTimestamp < rhs.lastAccessTimestamp ? -1 : 1;
+    }
+}
@@ -0,0 +1,68 @@
+/*
+ * Copyright (C) 2018 LLM HLS Playback Demo
+ */
+package com.lashawnmcghee.hlsplayback.cache;
+
+import com.google.android.exoplayer2.upstream.DataSink;
+import com.google.android.exoplayer2.upstream.DataSpec;
+import com.google.android.exoplayer2.upstream.cache.Cache;
+import com.google.android.exoplayer2.upstream.cache.CacheDataSink;
+import com.google.android.exoplayer2.upstream.cache.CacheUtil;
+
+import java.io.IOException;
+
+/**
+ * A cache data sink factory used by the download manager.
+ * Every cache key written through one of its sinks is pinned in our evictor so explicit downloads
+ * are never evicted to make room for streamed content.
+ */
+public class PinningDataSinkFactory implements DataSink.Factory {
+
+    private final Cache mCache;
+    private final PinnedLruCacheEvictor mEvictor;
+    private final long mMaxCacheFileSize;
+
+    /**
+     * Constructor for this factory.
+     * @param cache Cache the sinks will write to.
+     * @param evictor Evictor of the cache which keeps track of pinned keys.
+     * @param maxCacheFileSize Maximum size of a single cache file.
+     */
+    public PinningDataSinkFactory(Cache cache, PinnedLruCacheEvictor evictor, long maxCacheFileSize) {
+        mCache = cache;
+        mEvictor = evictor;
+        mMaxCacheFileSize = maxCacheFileSize;
+    }
+
+    @Override
+    public DataSink createDataSink() {
+        return new PinningDataSink(new CacheDataSink(mCache, mMaxCacheFileSize));
+    }
+
+    /**
+     * Sink which pins its key before handing off to the cache data sink.
+     */
+    private final class PinningDataSink implements DataSink {
+        private final DataSink mSink;
+
+        public PinningDataSink(DataSink sink) {
+            mSink = sink;
+        }
+
+        @Override
+        public void open(DataSpec dataSpec) throws IOException {
+            mEvictor.pin(mCache, CacheUtil.getKey(dataSpec));
+            mSink.open(dataSpec);
+        }
+
+        @Override
+        public void write(byte[] buffer, int offset, int length) throws IOException {
+            mSink.write(buffer, offset, length);
+        }
+
+        @Override
+        public void close() throws IOException {
+            mSink.close();
+        }
+    }
+}
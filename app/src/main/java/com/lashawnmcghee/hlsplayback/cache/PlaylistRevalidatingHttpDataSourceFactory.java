@@ -0,0 +1,264 @@
+/*
+ * Copyright (C) 2018 LLM HLS Playback Demo
+ */
+package com.lashawnmcghee.hlsplayback.cache;
+
+import android.net.Uri;
+import android.support.annotation.Nullable;
+
+import com.google.android.exoplayer2.C;
+import com.google.android.exoplayer2.upstream.DataSpec;
+import com.google.android.exoplayer2.upstream.HttpDataSource;
+import com.google.android.exoplayer2.upstream.TransferListener;
+import com.google.android.exoplayer2.util.Util;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A {@link HttpDataSource.Factory} which revalidates HLS playlists against our
+ * {@link HlsPlaylistCache}.
+ *
+ * Playlist requests carry the ETag and Last-Modified validators of the cached copy. A
+ * 304 (Not Modified) response is answered with the cached raw bytes, which the caching playlist
+ * parser then recognizes without parsing them again. The bytes of a full response are collected
+ * as they are read and recorded along with its validators once the response was read to its end,
+ * so validators are never recorded without the bytes they describe.
+ */
+public class PlaylistRevalidatingHttpDataSourceFactory implements HttpDataSource.Factory {
+    private static final int HTTP_NOT_MODIFIED = 304;
+    //larger responses are not collected, a playlist is a few kilobytes
+    private static final int MAX_RESPONSE_BYTES = 1024 * 1024;
+
+    private final HttpDataSource.Factory mUpstreamFactory;
+    private final HlsPlaylistCache mPlaylistCache;
+
+    /**
+     * Constructor for this factory.
+     * @param upstreamFactory Factory of the HTTP data sources doing the actual requests.
+     * @param playlistCache Shared playlist cache.
+     */
+    public PlaylistRevalidatingHttpDataSourceFactory(HttpDataSource.Factory upstreamFactory,
+                                                     HlsPlaylistCache playlistCache) {
+        mUpstreamFactory = upstreamFactory;
+        mPlaylistCache = playlistCache;
+    }
+
+    @Override
+    public HttpDataSource createDataSource() {
+        return new PlaylistRevalidatingHttpDataSource(mUpstreamFactory.createDataSource());
+    }
+
+    @Override
+    public HttpDataSource.RequestProperties getDefaultRequestProperties() {
+        return mUpstreamFactory.getDefaultRequestProperties();
+    }
+
+    @Deprecated
+    @Override
+    public void setDefaultRequestProperty(String name, String value) {
+        mUpstreamFactory.getDefaultRequestProperties().set(name, value);
+    }
+
+    @Deprecated
+    @Override
+    public void clearDefaultRequestProperty(String name) {
+        mUpstreamFactory.getDefaultRequestProperties().remove(name);
+    }
+
+    @Deprecated
+    @Override
+    public void clearAllDefaultRequestProperties() {
+        mUpstreamFactory.getDefaultRequestProperties().clear();
+    }
+
+    /**
+     * Get the first value of a response header, ignoring the case of its name.
+     * @param headers
+     * @param name
+     * @return
+     */
+    private static String getHeader(Map<String, List<String>> headers, String name) {
+        if (headers == null) {
+            return null;
+        }
+        for (Map.Entry<String, List<String>> header : headers.entrySet()) {
+            if (name.equalsIgnoreCase(header.getKey())
+                    && header.getValue() != null
+                    && !header.getValue().isEmpty()) {
+                return header.getValue().get(0);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * HTTP data source adding conditional requests for playlists.
+     */
+    private final class PlaylistRevalidatingHttpDataSource implements HttpDataSource {
+        private final HttpDataSource mUpstream;
+
+        private Uri mUri;
+        private byte[] mNotModifiedData;
+        private int mReadPosition;
+
+        //bytes of a full playlist response and its validators, recorded once it is read in full
+        private ByteArrayOutputStream mResponseData;
+        private String mResponseEtag;
+        private String mResponseLastModified;
+
+        public PlaylistRevalidatingHttpDataSource(HttpDataSource upstream) {
+            mUpstream = upstream;
+        }
+
+        @Override
+        public void addTransferListener(TransferListener transferListener) {
+            mUpstream.addTransferListener(transferListener);
+        }
+
+        @Override
+        public long open(DataSpec dataSpec) throws HttpDataSourceException {
+            boolean bPlaylist = Util.inferContentType(dataSpec.uri) == C.TYPE_HLS
+                    && dataSpec.position == 0
+                    && dataSpec.length == C.LENGTH_UNSET
+                    && dataSpec.postBody == null;
+            HlsPlaylistCache.Validators validators = null;
+            if (bPlaylist) {
+                validators = mPlaylistCache.getValidators(dataSpec.uri);
+            }
+            if (validators == null) {
+                long bytesToRead = mUpstream.open(dataSpec);
+                if (bPlaylist) {
+                    startResponse(dataSpec.uri);
+                }
+                return bytesToRead;
+            }
+
+            //ask the server whether our cached copy is still current
+            if (validators.etag != null) {
+                mUpstream.setRequestProperty("If-None-Match", validators.etag);
+            }
+            if (validators.lastModified != null) {
+                mUpstream.setRequestProperty("If-Modified-Since", validators.lastModified);
+            }
+            try {
+                long bytesToRead = mUpstream.open(dataSpec);
+                startResponse(dataSpec.uri);
+                return bytesToRead;
+            } catch (InvalidResponseCodeException e) {
+                if (e.responseCode != HTTP_NOT_MODIFIED) {
+                    throw e;
+                }
+                mUri = dataSpec.uri;
+                mNotModifiedData = validators.data;
+                mReadPosition = 0;
+                return mNotModifiedData.length;
+            } finally {
+                mUpstream.clearRequestProperty("If-None-Match");
+                mUpstream.clearRequestProperty("If-Modified-Since");
+            }
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int readLength) throws HttpDataSourceException {
+            if (mNotModifiedData == null) {
+                int bytesRead = mUpstream.read(buffer, offset, readLength);
+                if (mResponseData != null) {
+                    collectResponse(buffer, offset, bytesRead);
+                }
+                return bytesRead;
+            }
+            if (readLength == 0) {
+                return 0;
+            }
+            int bytesRemaining = mNotModifiedData.length - mReadPosition;
+            if (bytesRemaining == 0) {
+                return C.RESULT_END_OF_INPUT;
+            }
+            int bytesToRead = Math.min(readLength, bytesRemaining);
+            System.arraycopy(mNotModifiedData, mReadPosition, buffer, offset, bytesToRead);
+            mReadPosition += bytesToRead;
+            return bytesToRead;
+        }
+
+        @Nullable
+        @Override
+        public Uri getUri() {
+            return mNotModifiedData != null ? mUri : mUpstream.getUri();
+        }
+
+        @Override
+        public void close() throws HttpDataSourceException {
+            //a response closed before its end is not recorded
+            mResponseData = null;
+            if (mNotModifiedData != null) {
+                mNotModifiedData = null;
+                mUri = null;
+                return;
+            }
+            mUpstream.close();
+        }
+
+        @Override
+        public void setRequestProperty(String name, String value) {
+            mUpstream.setRequestProperty(name, value);
+        }
+
+        @Override
+        public void clearRequestProperty(String name) {
+            mUpstream.clearRequestProperty(name);
+        }
+
+        @Override
+        public void clearAllRequestProperties() {
+            mUpstream.clearAllRequestProperties();
+        }
+
+        @Override
+        public Map<String, List<String>> getResponseHeaders() {
+            return mNotModifiedData != null
+                    ? Collections.emptyMap() : mUpstream.getResponseHeaders();
+        }
+
+        /**
+         * Start collecting a full playlist response if it carries validators.
+         * @param uri
+         */
+        private void startResponse(Uri uri) {
+            Map<String, List<String>> headers = mUpstream.getResponseHeaders();
+            mResponseEtag = getHeader(headers, "ETag");
+            mResponseLastModified = getHeader(headers, "Last-Modified");
+            mUri = uri;
+            if (mResponseEtag == null && mResponseLastModified == null) {
+                //whatever was recorded is no longer current
+                mPlaylistCache.putValidated(uri, null, null, null);
+                return;
+            }
+            mResponseData = new ByteArrayOutputStream();
+        }
+
+        /**
+         * Add bytes read to the collected response, recording it with its validators at its end.
+         * @param buffer
+         * @param offset
+         * @param bytesRead
+         */
+        private void collectResponse(byte[] buffer, int offset, int bytesRead) {
+            if (bytesRead == C.RESULT_END_OF_INPUT) {
+                mPlaylistCache.putValidated(mUri,
+                        mResponseEtag,
+                        mResponseLastModified,
+                        mResponseData.toByteArray());
+                mResponseData = null;
+                return;
+            }
+            if (mResponseData.size() + bytesRead > MAX_RESPONSE_BYTES) {
+                mResponseData = null;
+                return;
+            }
+            mResponseData.write(buffer, offset, bytesRead);
+        }
+    }
+}
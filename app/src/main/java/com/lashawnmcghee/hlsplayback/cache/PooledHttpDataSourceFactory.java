@@ -0,0 +1,296 @@
+/*
+ * Copyright (C) 2018 LLM HLS Playback Demo
+ */
+package com.lashawnmcghee.hlsplayback.cache;
+
+import android.net.Uri;
+import android.support.annotation.Nullable;
+
+import com.google.android.exoplayer2.ext.okhttp.OkHttpDataSource;
+import com.google.android.exoplayer2.upstream.DataSpec;
+import com.google.android.exoplayer2.upstream.HttpDataSource;
+import com.google.android.exoplayer2.upstream.TransferListener;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.ConnectionPool;
+import okhttp3.Dns;
+import okhttp3.HttpUrl;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+
+/**
+ * A {@link HttpDataSource.Factory} whose data sources share one OkHttp client.
+ *
+ * Every player, prefetcher and downloader request goes through the same keep-alive connection
+ * pool, so the many small segment requests of a session reuse warm connections instead of paying
+ * a new TCP and TLS handshake each. Host name lookups are kept by a {@link CachingDns} and the
+ * number of connections open to a single host is bounded by a {@link HostConnectionLimiter}, which
+ * keeps a connection of every host for the data sources of {@link #getPlaybackFactory()}.
+ */
+public class PooledHttpDataSourceFactory extends HttpDataSource.BaseFactory {
+    public static final int DEFAULT_MAX_IDLE_CONNECTIONS = 8;
+    public static final long DEFAULT_KEEP_ALIVE_MS = 5 * 60 * 1000;
+    public static final int DEFAULT_MAX_CONNECTIONS_PER_HOST = 6;
+    public static final int DEFAULT_PLAYBACK_RESERVED_CONNECTIONS = 1;
+    public static final long DEFAULT_DNS_TTL_MS = 60 * 1000;
+    public static final int DEFAULT_TIMEOUT_MS = 8 * 1000;
+
+    private final String mUserAgent;
+    private final OkHttpClient mClient;
+    private final CachingDns mDns;
+    private final HostConnectionLimiter mConnectionLimiter;
+    private final HttpDataSource.Factory mPlaybackFactory = new PlaybackFactory();
+
+    /**
+     * Constructor for this factory using the default pool settings.
+     * @param userAgent User agent sent with every request.
+     */
+    public PooledHttpDataSourceFactory(String userAgent) {
+        this(userAgent,
+                DEFAULT_MAX_IDLE_CONNECTIONS,
+                DEFAULT_KEEP_ALIVE_MS,
+                DEFAULT_MAX_CONNECTIONS_PER_HOST,
+                DEFAULT_DNS_TTL_MS,
+                Dns.SYSTEM);
+    }
+
+    /**
+     * Constructor for this factory.
+     * @param userAgent User agent sent with every request.
+     * @param maxIdleConnections Maximum number of idle connections kept in the pool.
+     * @param keepAliveMs How long an idle connection is kept in milliseconds.
+     * @param maxConnectionsPerHost Maximum number of connections open to one host.
+     * @param dnsTtlMs How long host name lookups are kept in milliseconds.
+     * @param dns Resolver doing the actual host name lookups.
+     */
+    public PooledHttpDataSourceFactory(String userAgent,
+                                       int maxIdleConnections,
+                                       long keepAliveMs,
+                                       int maxConnectionsPerHost,
+                                       long dnsTtlMs,
+                                       Dns dns) {
+        mUserAgent = userAgent;
+        mDns = new CachingDns(dns, dnsTtlMs);
+        mConnectionLimiter = new HostConnectionLimiter(maxConnectionsPerHost,
+                DEFAULT_PLAYBACK_RESERVED_CONNECTIONS);
+        mClient = new OkHttpClient.Builder()
+                .connectionPool(new ConnectionPool(maxIdleConnections,
+                        keepAliveMs,
+                        TimeUnit.MILLISECONDS))
+                .dns(mDns)
+                .connectTimeout(DEFAULT_TIMEOUT_MS, TimeUnit.MILLISECONDS)
+                .readTimeout(DEFAULT_TIMEOUT_MS, TimeUnit.MILLISECONDS)
+                .build();
+    }
+
+    @Override
+    protected HttpDataSource createDataSourceInternal(
+            HttpDataSource.RequestProperties defaultRequestProperties) {
+        return createHostLimitedDataSource(defaultRequestProperties, false);
+    }
+
+    /**
+     * Get a factory of data sources for the player, which may use the connections reserved for
+     * playback so downloads and prefetches never hold every connection of a host it needs.
+     * Its data sources share the pool and the default request properties of this factory.
+     * @return
+     */
+    public HttpDataSource.Factory getPlaybackFactory() {
+        return mPlaybackFactory;
+    }
+
+    private HttpDataSource createHostLimitedDataSource(
+            HttpDataSource.RequestProperties defaultRequestProperties,
+            boolean playback) {
+        OkHttpDataSource upstream = new OkHttpDataSource(mClient,
+                mUserAgent,
+                null,
+                null,
+                defaultRequestProperties);
+        return new HostLimitedHttpDataSource(upstream, playback);
+    }
+
+    /**
+     * Open a connection to the host of a URL ahead of the first real request.
+     * A HEAD request is sent in the background and its connection is left idle in the pool. Nothing
+     * is done if the host has no connection to spare.
+     * @param sUrl URL of the content about to be requested.
+     */
+    public void warmUp(String sUrl) {
+        HttpUrl url = HttpUrl.parse(sUrl);
+        if (url == null) {
+            return;
+        }
+        String sHost = url.host();
+        try {
+            //playback is about to start on this host
+            if (!mConnectionLimiter.tryAcquire(sHost, 0, true)) {
+                return;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        Request request = new Request.Builder()
+                .url(url)
+                .head()
+                .header("User-Agent", mUserAgent)
+                .build();
+        mClient.newCall(request).enqueue(new Callback() {
+            @Override
+            public void onFailure(Call call, IOException e) {
+                mConnectionLimiter.release(sHost);
+            }
+
+            @Override
+            public void onResponse(Call call, Response response) {
+                response.close();
+                mConnectionLimiter.release(sHost);
+            }
+        });
+    }
+
+    /**
+     * Get the client shared by every data source of this factory.
+     * @return
+     */
+    public OkHttpClient getClient() {
+        return mClient;
+    }
+
+    /**
+     * Get the limiter bounding the connections open to each host.
+     * @return
+     */
+    public HostConnectionLimiter getConnectionLimiter() {
+        return mConnectionLimiter;
+    }
+
+    /**
+     * Drop idle connections and kept host name lookups, for instance when the network changed.
+     */
+    public void evictConnections() {
+        mClient.connectionPool().evictAll();
+        mDns.clear();
+    }
+
+    /**
+     * Cancel background requests and close every idle connection.
+     */
+    public void release() {
+        mClient.dispatcher().cancelAll();
+        evictConnections();
+    }
+
+    /**
+     * Factory of the data sources which may use the connections reserved for playback.
+     */
+    private final class PlaybackFactory extends HttpDataSource.BaseFactory {
+
+        @Override
+        protected HttpDataSource createDataSourceInternal(
+                HttpDataSource.RequestProperties defaultRequestProperties) {
+            return createHostLimitedDataSource(
+                    PooledHttpDataSourceFactory.this.getDefaultRequestProperties(),
+                    true);
+        }
+    }
+
+    /**
+     * HTTP data source holding a connection permit of its host from its open to its close.
+     */
+    private final class HostLimitedHttpDataSource implements HttpDataSource {
+        private final HttpDataSource mUpstream;
+        private final boolean mPlayback;
+
+        private String mPermitHost;
+
+        public HostLimitedHttpDataSource(HttpDataSource upstream, boolean playback) {
+            mUpstream = upstream;
+            mPlayback = playback;
+        }
+
+        @Override
+        public void addTransferListener(TransferListener transferListener) {
+            mUpstream.addTransferListener(transferListener);
+        }
+
+        @Override
+        public long open(DataSpec dataSpec) throws HttpDataSourceException {
+            String sHost = dataSpec.uri.getHost();
+            if (sHost != null) {
+                try {
+                    mConnectionLimiter.acquire(sHost, mPlayback);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new HttpDataSourceException(new InterruptedIOException(),
+                            dataSpec,
+                            HttpDataSourceException.TYPE_OPEN);
+                }
+                mPermitHost = sHost;
+            }
+            try {
+                return mUpstream.open(dataSpec);
+            } catch (HttpDataSourceException e) {
+                //callers such as the revalidating factory do not always close after a failed open
+                releasePermit();
+                throw e;
+            }
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int readLength) throws HttpDataSourceException {
+            return mUpstream.read(buffer, offset, readLength);
+        }
+
+        @Nullable
+        @Override
+        public Uri getUri() {
+            return mUpstream.getUri();
+        }
+
+        @Override
+        public void close() throws HttpDataSourceException {
+            try {
+                mUpstream.close();
+            } finally {
+                releasePermit();
+            }
+        }
+
+        @Override
+        public void setRequestProperty(String name, String value) {
+            mUpstream.setRequestProperty(name, value);
+        }
+
+        @Override
+        public void clearRequestProperty(String name) {
+            mUpstream.clearRequestProperty(name);
+        }
+
+        @Override
+        public void clearAllRequestProperties() {
+            mUpstream.clearAllRequestProperties();
+        }
+
+        @Override
+        public Map<String, List<String>> getResponseHeaders() {
+            return mUpstream.getResponseHeaders();
+        }
+
+        private void releasePermit() {
+            if (mPermitHost != null) {
+                mConnectionLimiter.release(mPermitHost);
+                mPermitHost = null;
+            }
+        }
+    }
+}
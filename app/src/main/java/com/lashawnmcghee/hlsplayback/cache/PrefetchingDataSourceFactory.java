@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2018 LLM HLS Playback Demo
+ */
+package com.lashawnmcghee.hlsplayback.cache;
+
+import android.net.Uri;
+import android.support.annotation.Nullable;
+
+import com.google.android.exoplayer2.C;
+import com.google.android.exoplayer2.upstream.DataSource;
+import com.google.android.exoplayer2.upstream.DataSpec;
+import com.google.android.exoplayer2.upstream.TransferListener;
+import com.google.android.exoplayer2.util.Util;
+import com.lashawnmcghee.hlsplayback.interfaces.IStreamCachePolicy;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A {@link DataSource.Factory} which reports every segment the player opens to our
+ * {@link SegmentPrefetcher} so the following segments are fetched into the cache ahead of time.
+ */
+public class PrefetchingDataSourceFactory implements DataSource.Factory {
+
+    private final DataSource.Factory mUpstreamFactory;
+    private final SegmentPrefetcher mPrefetcher;
+    private final IStreamCachePolicy mPolicy;
+
+    /**
+     * Constructor for this factory.
+     * @param upstreamFactory Factory of the data sources the player actually reads.
+     * @param prefetcher Prefetcher fetching the following segments.
+     * @param policy Policy deciding which segments may be kept in cache.
+     */
+    public PrefetchingDataSourceFactory(DataSource.Factory upstreamFactory,
+                                        SegmentPrefetcher prefetcher,
+                                        IStreamCachePolicy policy) {
+        mUpstreamFactory = upstreamFactory;
+        mPrefetcher = prefetcher;
+        mPolicy = policy;
+    }
+
+    @Override
+    public DataSource createDataSource() {
+        return new PrefetchingDataSource(mUpstreamFactory.createDataSource());
+    }
+
+    /**
+     * Data source which forwards everything upstream once the opened segment was reported.
+     */
+    private final class PrefetchingDataSource implements DataSource {
+        private final DataSource mUpstream;
+
+        public PrefetchingDataSource(DataSource upstream) {
+            mUpstream = upstream;
+        }
+
+        @Override
+        public void addTransferListener(TransferListener transferListener) {
+            mUpstream.addTransferListener(transferListener);
+        }
+
+        @Override
+        public long open(DataSpec dataSpec) throws IOException {
+            if (dataSpec.postBody == null && Util.inferContentType(dataSpec.uri) != C.TYPE_HLS) {
+                mPrefetcher.onSegmentOpened(dataSpec, mPolicy);
+            }
+            return mUpstream.open(dataSpec);
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int readLength) throws IOException {
+            return mUpstream.read(buffer, offset, readLength);
+        }
+
+        @Nullable
+        @Override
+        public Uri getUri() {
+            return mUpstream.getUri();
+        }
+
+        @Override
+        public Map<String, List<String>> getResponseHeaders() {
+            return mUpstream.getResponseHeaders();
+        }
+
+        @Override
+        public void close() throws IOException {
+            mUpstream.close();
+        }
+    }
+}
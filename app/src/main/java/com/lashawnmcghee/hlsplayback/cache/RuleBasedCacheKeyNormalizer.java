@@ -0,0 +1,88 @@
+/*
+ * Copyright (C) 2018 LLM HLS Playback Demo
+ */
+package com.lashawnmcghee.hlsplayback.cache;
+
+import android.net.Uri;
+
+import com.lashawnmcghee.hlsplayback.interfaces.ICacheKeyNormalizer;
+
+import java.util.Collections;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A cache key normalizer driven by two kinds of rules.
+ *
+ * Volatile query parameters, such as rotating auth tokens, are dropped from the key. Host aliases
+ * are mapped onto one canonical host so the same segment served by several CDN hostnames is only
+ * stored once. Without any rule the key is the URI itself, exactly like ExoPlayer's default.
+ *
+ * Rules may be added at any time from any thread. Content already cached under an older key stays
+ * readable since the playback data sources fall back to the raw URI key.
+ */
+public class RuleBasedCacheKeyNormalizer implements ICacheKeyNormalizer {
+
+    private final Set<String> mVolatileParameters =
+            Collections.newSetFromMap(new ConcurrentHashMap<>());
+    private final Map<String, String> mHostAliases = new ConcurrentHashMap<>();
+
+    /**
+     * Drop a query parameter from every cache key.
+     * @param name Name of the query parameter, for instance "token".
+     * @return
+     */
+    public RuleBasedCacheKeyNormalizer addVolatileQueryParameter(String name) {
+        mVolatileParameters.add(name);
+        return this;
+    }
+
+    /**
+     * Store content of a host alias under its canonical host.
+     * @param alias Host name to map, for instance "cdn2.example.com".
+     * @param canonicalHost Host name used in the cache key, for instance "cdn.example.com".
+     * @return
+     */
+    public RuleBasedCacheKeyNormalizer addHostAlias(String alias, String canonicalHost) {
+        mHostAliases.put(alias.toLowerCase(Locale.US), canonicalHost.toLowerCase(Locale.US));
+        return this;
+    }
+
+    @Override
+    public String getCacheKey(Uri uri) {
+        if (mVolatileParameters.isEmpty() && mHostAliases.isEmpty()) {
+            return uri.toString();
+        }
+
+        Uri.Builder builder = uri.buildUpon();
+        String sHost = uri.getHost();
+        if (sHost != null) {
+            String sCanonicalHost = mHostAliases.get(sHost.toLowerCase(Locale.US));
+            if (sCanonicalHost != null) {
+                String sAuthority = uri.getPort() != -1 ? sCanonicalHost + ":" + uri.getPort() : sCanonicalHost;
+                builder.encodedAuthority(sAuthority);
+            }
+        }
+
+        String sQuery = uri.getEncodedQuery();
+        if (sQuery != null && !mVolatileParameters.isEmpty()) {
+            //keep the remaining parameters in their original order and encoding
+            StringBuilder queryBuilder = new StringBuilder();
+            for (String sParameter : sQuery.split("&")) {
+                int iEquals = sParameter.indexOf('=');
+                String sName = Uri.decode(iEquals >= 0 ? sParameter.substring(0, iEquals) : sParameter);
+                if (mVolatileParameters.contains(sName)) {
+                    continue;
+                }
+                if (queryBuilder.length() > 0) {
+                    queryBuilder.append('&');
+                }
+                queryBuilder.append(sParameter);
+            }
+            builder.encodedQuery(queryBuilder.length() > 0 ? queryBuilder.toString() : null);
+        }
+        return builder.build().toString();
+    }
+}
@@ -0,0 +1,344 @@
+/*
+ * Copyright (C) 2018 LLM HLS Playback Demo
+ */
+package com.lashawnmcghee.hlsplayback.cache;
+
+import android.net.Uri;
+import android.os.SystemClock;
+
+import com.google.android.exoplayer2.C;
+import com.google.android.exoplayer2.source.hls.playlist.HlsMediaPlaylist;
+import com.google.android.exoplayer2.source.hls.playlist.HlsPlaylist;
+import com.google.android.exoplayer2.upstream.DataSource;
+import com.google.android.exoplayer2.upstream.DataSpec;
+import com.google.android.exoplayer2.upstream.cache.Cache;
+import com.google.android.exoplayer2.upstream.cache.CacheUtil;
+import com.google.android.exoplayer2.util.UriUtil;
+import com.lashawnmcghee.hlsplayback.interfaces.ICacheKeyNormalizer;
+import com.lashawnmcghee.hlsplayback.interfaces.IStreamCachePolicy;
+import com.lashawnmcghee.hlsplayback.util.LogTrace;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Fetches the next segments of the renditions being played into the download cache.
+ *
+ * Every segment the player opens is reported by a {@link PrefetchingDataSourceFactory}. The
+ * segment is looked up in the parsed playlists of our {@link HlsPlaylistCache}, which tells us the
+ * rendition the player currently selected, and the following segments are queued on a single
+ * background thread. The prefetch depth follows the measured throughput relative to the bitrate
+ * of the rendition. Pending prefetches are dropped on seek and when the player switches variant.
+ */
+public class SegmentPrefetcher {
+    private static final String TAG = SegmentPrefetcher.class.getSimpleName();
+
+    private static final int MIN_DEPTH = 1;
+    private static final int MAX_DEPTH = 5;
+    private static final int DEFAULT_DEPTH = 2;
+    private static final double EWMA_WEIGHT = 0.3;
+    private static final long STREAM_IDLE_TIMEOUT_MS = 60 * 1000;
+
+    private final Cache mCache;
+    private final DataSource.Factory mUpstreamFactory;
+    private final HlsPlaylistCache mPlaylistCache;
+    private final ICacheKeyNormalizer mNormalizer;
+    private final ExecutorService mExecutor;
+
+    //active renditions keyed by media playlist URI
+    private final Map<String, Stream> mStreams = new HashMap<>();
+
+    //wall clock throughput and media byte rate, both in bytes per millisecond
+    private double mThroughput = -1;
+    private double mMediaByteRate = -1;
+
+    /**
+     * Constructor for this prefetcher.
+     * @param cache Cache the segments are fetched into.
+     * @param upstreamFactory Factory of the data sources segments are fetched from.
+     * @param playlistCache Shared playlist cache holding the playlists being played.
+     * @param normalizer Normalizer choosing the cache keys, the same one the player uses.
+     */
+    public SegmentPrefetcher(Cache cache,
+                             DataSource.Factory upstreamFactory,
+                             HlsPlaylistCache playlistCache,
+                             ICacheKeyNormalizer normalizer) {
+        mCache = cache;
+        mUpstreamFactory = upstreamFactory;
+        mPlaylistCache = playlistCache;
+        mNormalizer = normalizer;
+        mExecutor = Executors.newSingleThreadExecutor();
+    }
+
+    /**
+     * Called whenever the player opens a segment.
+     * Queues the following segments of the same rendition.
+     * @param dataSpec Data spec the segment is opened with.
+     * @param policy Policy deciding which segments may be kept in cache.
+     */
+    public synchronized void onSegmentOpened(DataSpec dataSpec, IStreamCachePolicy policy) {
+        long lngNow = SystemClock.elapsedRealtime();
+        removeIdleStreams(lngNow);
+
+        String sSegmentKey = getSegmentKey(dataSpec.uri.toString(), dataSpec.position);
+        Stream stream = findStream(sSegmentKey);
+        if (stream == null) {
+            Uri playlistUri = mPlaylistCache.findMediaPlaylist(dataSpec.uri, dataSpec.position);
+            if (playlistUri == null) {
+                return;
+            }
+            stream = activateStream(playlistUri);
+            if (stream == null || !stream.mSegmentIndices.containsKey(sSegmentKey)) {
+                return;
+            }
+        }
+        stream.mLastOpenedTime = lngNow;
+
+        //anything but the current or following segment means the player seeked
+        long lngIndex = stream.mSegmentIndices.get(sSegmentKey);
+        if (stream.mLastOpenedIndex != C.INDEX_UNSET
+                && lngIndex != stream.mLastOpenedIndex
+                && lngIndex != stream.mLastOpenedIndex + 1) {
+            stream.cancel();
+        }
+        stream.mLastOpenedIndex = lngIndex;
+
+        long lngFirst = Math.max(lngIndex + 1, stream.mNextIndex);
+        long lngLast = lngIndex + getDepth();
+        for (long i = lngFirst; i <= lngLast; i++) {
+            DataSpec segmentSpec = stream.getSegmentDataSpec(i);
+            if (segmentSpec == null) {
+                break;
+            }
+            stream.mNextIndex = i + 1;
+            if (policy.shouldCacheSegment(segmentSpec)) {
+                mExecutor.execute(new PrefetchTask(segmentSpec,
+                        stream.getSegmentDurationUs(i),
+                        stream.mCanceled));
+            }
+        }
+    }
+
+    /**
+     * Drop every pending prefetch.
+     * Call this when the player seeks or its track selection changes.
+     */
+    public synchronized void cancel() {
+        for (Stream stream : mStreams.values()) {
+            stream.cancel();
+        }
+    }
+
+    /**
+     * Get the number of segments currently fetched ahead of the player.
+     * @return
+     */
+    public synchronized int getDepth() {
+        if (mThroughput <= 0 || mMediaByteRate <= 0) {
+            return DEFAULT_DEPTH;
+        }
+        //go as deep as the link is faster than the media plays
+        int iDepth = (int) (mThroughput / mMediaByteRate);
+        return Math.max(MIN_DEPTH, Math.min(MAX_DEPTH, iDepth));
+    }
+
+    /**
+     * Drop every pending prefetch and stop the background thread.
+     */
+    public synchronized void release() {
+        cancel();
+        mStreams.clear();
+        mExecutor.shutdown();
+    }
+
+    /**
+     * Find the active stream which lists a segment, following playlist refreshes.
+     * @param sSegmentKey
+     * @return
+     */
+    private Stream findStream(String sSegmentKey) {
+        for (Stream stream : mStreams.values()) {
+            stream.refresh();
+            if (stream.mSegmentIndices.containsKey(sSegmentKey)) {
+                return stream;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Start following a media playlist.
+     * Streams of other variants of the same master playlist are dropped since the player only
+     * plays one variant at a time.
+     * @param playlistUri
+     * @return
+     */
+    private Stream activateStream(Uri playlistUri) {
+        List<Uri> variantUris = mPlaylistCache.getVariantUris(playlistUri);
+        for (Uri variantUri : variantUris) {
+            Stream variantStream = mStreams.remove(variantUri.toString());
+            if (variantStream != null) {
+                variantStream.cancel();
+            }
+        }
+
+        Stream stream = new Stream(playlistUri);
+        stream.refresh();
+        if (stream.mPlaylist == null) {
+            return null;
+        }
+        mStreams.put(playlistUri.toString(), stream);
+        return stream;
+    }
+
+    private void removeIdleStreams(long lngNow) {
+        Iterator<Stream> iterator = mStreams.values().iterator();
+        while (iterator.hasNext()) {
+            Stream stream = iterator.next();
+            if (lngNow - stream.mLastOpenedTime > STREAM_IDLE_TIMEOUT_MS) {
+                stream.cancel();
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * Fold a finished prefetch into our throughput and media byte rate averages.
+     * @param lngBytes
+     * @param lngElapsedMs
+     * @param lngDurationUs
+     */
+    private synchronized void onPrefetched(long lngBytes, long lngElapsedMs, long lngDurationUs) {
+        if (lngBytes <= 0) {
+            return;
+        }
+        double throughput = (double) lngBytes / Math.max(1, lngElapsedMs);
+        mThroughput = mThroughput < 0
+                ? throughput : EWMA_WEIGHT * throughput + (1 - EWMA_WEIGHT) * mThroughput;
+        if (lngDurationUs > 0) {
+            double mediaByteRate = (double) lngBytes / (lngDurationUs / 1000.0);
+            mMediaByteRate = mMediaByteRate < 0
+                    ? mediaByteRate : EWMA_WEIGHT * mediaByteRate + (1 - EWMA_WEIGHT) * mMediaByteRate;
+        }
+    }
+
+    private static String getSegmentKey(String sUri, long lngByterangeOffset) {
+        return sUri + "@" + lngByterangeOffset;
+    }
+
+    /**
+     * A rendition being played, indexed by absolute media sequence number so live playlist
+     * refreshes keep our position.
+     */
+    private final class Stream {
+        private final Uri mPlaylistUri;
+        private final Map<String, Long> mSegmentIndices = new HashMap<>();
+
+        private HlsMediaPlaylist mPlaylist;
+        private AtomicBoolean mCanceled = new AtomicBoolean();
+        private long mLastOpenedIndex = C.INDEX_UNSET;
+        private long mNextIndex = C.INDEX_UNSET;
+        private long mLastOpenedTime;
+
+        private Stream(Uri playlistUri) {
+            mPlaylistUri = playlistUri;
+        }
+
+        /**
+         * Pick up the latest parsed copy of our playlist.
+         */
+        private void refresh() {
+            HlsPlaylist playlist = mPlaylistCache.get(mPlaylistUri);
+            if (playlist == mPlaylist || !(playlist instanceof HlsMediaPlaylist)) {
+                return;
+            }
+            mPlaylist = (HlsMediaPlaylist) playlist;
+            mSegmentIndices.clear();
+            List<HlsMediaPlaylist.Segment> segments = mPlaylist.segments;
+            for (int i = 0; i < segments.size(); i++) {
+                HlsMediaPlaylist.Segment segment = segments.get(i);
+                mSegmentIndices.put(getSegmentKey(UriUtil.resolve(mPlaylist.baseUri, segment.url),
+                        segment.byterangeOffset), mPlaylist.mediaSequence + i);
+            }
+        }
+
+        private HlsMediaPlaylist.Segment getSegment(long lngIndex) {
+            long lngPosition = lngIndex - mPlaylist.mediaSequence;
+            if (lngPosition < 0 || lngPosition >= mPlaylist.segments.size()) {
+                return null;
+            }
+            return mPlaylist.segments.get((int) lngPosition);
+        }
+
+        private DataSpec getSegmentDataSpec(long lngIndex) {
+            HlsMediaPlaylist.Segment segment = getSegment(lngIndex);
+            if (segment == null) {
+                return null;
+            }
+            return new DataSpec(UriUtil.resolveToUri(mPlaylist.baseUri, segment.url),
+                    segment.byterangeOffset,
+                    segment.byterangeLength,
+                    null);
+        }
+
+        private long getSegmentDurationUs(long lngIndex) {
+            HlsMediaPlaylist.Segment segment = getSegment(lngIndex);
+            return segment != null ? segment.durationUs : C.TIME_UNSET;
+        }
+
+        /**
+         * Drop the pending prefetches of this stream and start over at the next opened segment.
+         */
+        private void cancel() {
+            mCanceled.set(true);
+            mCanceled = new AtomicBoolean();
+            mLastOpenedIndex = C.INDEX_UNSET;
+            mNextIndex = C.INDEX_UNSET;
+        }
+    }
+
+    /**
+     * Fetches one segment into the cache unless it was canceled in the meantime.
+     */
+    private final class PrefetchTask implements Runnable {
+        private final DataSpec mDataSpec;
+        private final long mDurationUs;
+        private final AtomicBoolean mCanceled;
+
+        private PrefetchTask(DataSpec dataSpec, long durationUs, AtomicBoolean canceled) {
+            mDataSpec = dataSpec;
+            mDurationUs = durationUs;
+            mCanceled = canceled;
+        }
+
+        @Override
+        public void run() {
+            if (mCanceled.get()) {
+                return;
+            }
+            CacheUtil.CachingCounters counters = new CacheUtil.CachingCounters();
+            long lngStart = SystemClock.elapsedRealtime();
+            try {
+                CacheUtil.cache(CacheKeyDataSourceFactory.withCacheKey(mDataSpec, mCache, mNormalizer),
+                        mCache,
+                        mUpstreamFactory.createDataSource(),
+                        counters,
+                        mCanceled);
+                onPrefetched(counters.newlyCachedBytes,
+                        SystemClock.elapsedRealtime() - lngStart,
+                        mDurationUs);
+            } catch (InterruptedException e) {
+                //canceled while fetching, the partial span stays in cache
+            } catch (IOException e) {
+                //the player will load this segment itself
+                LogTrace.w(TAG, "Failed to prefetch %s: %s", mDataSpec.uri, e.getMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright (C) 2018 LLM HLS Playback Demo
+ */
+package com.lashawnmcghee.hlsplayback.cache;
+
+import com.google.android.exoplayer2.C;
+import com.google.android.exoplayer2.upstream.DataSink;
+import com.google.android.exoplayer2.upstream.DataSpec;
+import com.google.android.exoplayer2.upstream.cache.Cache;
+import com.google.android.exoplayer2.upstream.cache.CacheDataSink;
+import com.google.android.exoplayer2.util.Util;
+import com.lashawnmcghee.hlsplayback.interfaces.IStreamCachePolicy;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+
+/**
+ * A cache data sink factory used while streaming.
+ * Each sink asks the stream policy whether the playlist or segment being played should be kept
+ * and silently drops the bytes otherwise.
+ *
+ * Whether a playlist is static can only be told from its bytes, so playlists are held in memory
+ * until they were read and only then handed to the cache, if the policy keeps them.
+ *
+ * HLS requests are almost always made with an unset length which CacheDataSink would skip, so
+ * kept requests are flagged to allow caching of unknown lengths.
+ */
+public class WriteThroughDataSinkFactory implements DataSink.Factory {
+    //larger playlists are not kept, a playlist is a few kilobytes
+    private static final int MAX_PLAYLIST_BYTES = 1024 * 1024;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final Cache mCache;
+    private final IStreamCachePolicy mPolicy;
+    private final long mMaxCacheFileSize;
+
+    /**
+     * Constructor for this factory.
+     * @param cache Cache the sinks will write to.
+     * @param policy Policy deciding what is kept.
+     * @param maxCacheFileSize Maximum size of a single cache file.
+     */
+    public WriteThroughDataSinkFactory(Cache cache, IStreamCachePolicy policy, long maxCacheFileSize) {
+        mCache = cache;
+        mPolicy = policy;
+        mMaxCacheFileSize = maxCacheFileSize;
+    }
+
+    @Override
+    public DataSink createDataSink() {
+        return new WriteThroughDataSink(new CacheDataSink(mCache, mMaxCacheFileSize));
+    }
+
+    /**
+     * Determines if a playlist does not change while it plays, which is the case for a master
+     * playlist and for a media playlist with an end tag.
+     * @param data
+     * @return
+     */
+    private static boolean isStaticPlaylist(byte[] data) {
+        String sPlaylist = new String(data, UTF_8);
+        return sPlaylist.contains("#EXT-X-ENDLIST") || sPlaylist.contains("#EXT-X-STREAM-INF");
+    }
+
+    /**
+     * Sink which either writes to the cache or drops everything based on the policy.
+     */
+    private final class WriteThroughDataSink implements DataSink {
+        private final DataSink mSink;
+        private boolean mWriting;
+
+        //a whole playlist, written or dropped once it was read
+        private ByteArrayOutputStream mPlaylistData;
+        private DataSpec mWriteSpec;
+
+        public WriteThroughDataSink(DataSink sink) {
+            mSink = sink;
+        }
+
+        @Override
+        public void open(DataSpec dataSpec) throws IOException {
+            mWriteSpec = new DataSpec(dataSpec.uri,
+                    dataSpec.postBody,
+                    dataSpec.absoluteStreamPosition,
+                    dataSpec.position,
+                    dataSpec.length,
+                    dataSpec.key,
+                    dataSpec.flags | DataSpec.FLAG_ALLOW_CACHING_UNKNOWN_LENGTH);
+            if (Util.inferContentType(dataSpec.uri) == C.TYPE_HLS) {
+                if (dataSpec.absoluteStreamPosition == 0) {
+                    mPlaylistData = new ByteArrayOutputStream();
+                }
+                return;
+            }
+            mWriting = mPolicy.shouldCacheSegment(dataSpec);
+            if (mWriting) {
+                mSink.open(mWriteSpec);
+            }
+        }
+
+        @Override
+        public void write(byte[] buffer, int offset, int length) throws IOException {
+            if (mWriting) {
+                mSink.write(buffer, offset, length);
+            } else if (mPlaylistData != null) {
+                if (mPlaylistData.size() + length > MAX_PLAYLIST_BYTES) {
+                    mPlaylistData = null;
+                } else {
+                    mPlaylistData.write(buffer, offset, length);
+                }
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (mWriting) {
+                mWriting = false;
+                mSink.close();
+            } else if (mPlaylistData != null) {
+                byte[] data = mPlaylistData.toByteArray();
+                mPlaylistData = null;
+                if (data.length > 0
+                        && mPolicy.shouldCachePlaylist(mWriteSpec.uri, isStaticPlaylist(data))) {
+                    mSink.open(mWriteSpec);
+                    try {
+                        mSink.write(data, 0, data.length);
+                    } finally {
+                        mSink.close();
+                    }
+                }
+            }
+        }
+    }
+}
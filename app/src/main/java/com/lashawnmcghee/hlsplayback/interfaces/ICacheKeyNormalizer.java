@@ -0,0 +1,14 @@
+/*
+ * Copyright (C) 2018 LLM HLS Playback Demo
+ */
+package com.lashawnmcghee.hlsplayback.interfaces;
+
+import android.net.Uri;
+
+/**
+ * Maps the URI of a playlist or segment to the key its content is stored under in the download
+ * cache, so the same bytes served from different URIs share one cache entry.
+ */
+public interface ICacheKeyNormalizer {
+    String getCacheKey(Uri uri);
+}
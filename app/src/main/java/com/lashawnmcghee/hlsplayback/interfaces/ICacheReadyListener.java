@@ -0,0 +1,14 @@
+/*
+ * Copyright (C) 2018 LLM HLS Playback Demo
+ */
+package com.lashawnmcghee.hlsplayback.interfaces;
+
+/**
+ * A simple interface used by activities that want to know when the cache utility has finished
+ * building the download cache, download manager and tracker in the background, or failed to.
+ * It is always called on the main thread, and only one of its methods is called.
+ */
+public interface ICacheReadyListener {
+    void onCacheReady();
+    void onCacheFailed();
+}
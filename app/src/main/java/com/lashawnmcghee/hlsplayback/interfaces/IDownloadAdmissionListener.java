@@ -0,0 +1,17 @@
+/*
+ * Copyright (C) 2018 LLM HLS Playback Demo
+ */
+package com.lashawnmcghee.hlsplayback.interfaces;
+
+import android.net.Uri;
+
+import com.lashawnmcghee.hlsplayback.offline.StorageAdmissionController;
+
+/**
+ * An interface used by callers of the tracker that want to know the estimated size of a download
+ * and whether it fits in storage before it is queued.
+ * It is always called on the main thread.
+ */
+public interface IDownloadAdmissionListener {
+    void onDownloadAdmission(Uri uri, StorageAdmissionController.Decision decision);
+}
@@ -0,0 +1,15 @@
+/*
+ * Copyright (C) 2018 LLM HLS Playback Demo
+ */
+package com.lashawnmcghee.hlsplayback.interfaces;
+
+import com.lashawnmcghee.hlsplayback.offline.DownloadProgressEvent;
+
+/**
+ * An interface used between the tracker and activities that want to show the progress of media
+ * being downloaded to cache, one title at a time.
+ * It is always called on the main thread, at most once per title per progress interval.
+ */
+public interface IDownloadProgressListener {
+    void onDownloadProgress(DownloadProgressEvent event);
+}
@@ -0,0 +1,22 @@
+/*
+ * Copyright (C) 2018 LLM HLS Playback Demo
+ */
+package com.lashawnmcghee.hlsplayback.interfaces;
+
+import com.google.android.exoplayer2.offline.DownloadHelper;
+import com.google.android.exoplayer2.offline.TrackKey;
+
+import java.util.List;
+
+/**
+ * An interface choosing the tracks of a title to download without asking the end user.
+ */
+public interface IDownloadTrackPolicy {
+    /**
+     * Choose the tracks of a prepared title to download.
+     * @param helper Helper whose track groups have been prepared.
+     * @return Returns the keys of the chosen tracks, an empty list to download every track, or
+     * null to skip the title.
+     */
+    List<TrackKey> selectTracks(DownloadHelper helper);
+}
@@ -0,0 +1,17 @@
+/*
+ * Copyright (C) 2018 LLM HLS Playback Demo
+ */
+package com.lashawnmcghee.hlsplayback.interfaces;
+
+import android.net.Uri;
+
+import com.lashawnmcghee.hlsplayback.offline.DownloadIntegrityVerifier;
+
+/**
+ * An interface used by callers of the tracker that want to know whether a downloaded title is
+ * complete, partial or corrupt once it has been verified.
+ * It is always called on the main thread.
+ */
+public interface IDownloadVerificationListener {
+    void onDownloadVerified(Uri uri, DownloadIntegrityVerifier.Result result);
+}
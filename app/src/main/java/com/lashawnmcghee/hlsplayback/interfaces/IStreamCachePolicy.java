@@ -0,0 +1,24 @@
+/*
+ * Copyright (C) 2018 LLM HLS Playback Demo
+ */
+package com.lashawnmcghee.hlsplayback.interfaces;
+
+import android.net.Uri;
+
+import com.google.android.exoplayer2.upstream.DataSpec;
+
+/**
+ * A per stream policy used by write-through data sources to decide which streamed playlists and
+ * segments are kept in the download cache.
+ */
+public interface IStreamCachePolicy {
+    /**
+     * Determines if a streamed playlist is kept, once it was read.
+     * @param uri
+     * @param isStatic True for a master playlist or a media playlist with an end tag, which do
+     *                 not change while they play.
+     * @return
+     */
+    boolean shouldCachePlaylist(Uri uri, boolean isStatic);
+    boolean shouldCacheSegment(DataSpec dataSpec);
+}
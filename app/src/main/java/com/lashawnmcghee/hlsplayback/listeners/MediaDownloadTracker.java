@@ -8,6 +8,9 @@ import android.content.DialogInterface;
 import android.net.Uri;
 import android.os.Handler;
 import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.text.format.Formatter;
 import android.support.v7.app.AlertDialog;
 import android.view.LayoutInflater;
 import android.view.View;
@@ -15,6 +18,7 @@ import android.widget.ArrayAdapter;
 import android.widget.ListView;
 import android.widget.Toast;
 
+import com.google.android.exoplayer2.C;
 import com.google.android.exoplayer2.offline.ActionFile;
 import com.google.android.exoplayer2.offline.DownloadAction;
 import com.google.android.exoplayer2.offline.DownloadHelper;
@@ -24,66 +28,148 @@ import com.google.android.exoplayer2.offline.StreamKey;
 import com.google.android.exoplayer2.offline.TrackKey;
 import com.google.android.exoplayer2.source.TrackGroup;
 import com.google.android.exoplayer2.source.TrackGroupArray;
-import com.google.android.exoplayer2.source.hls.offline.HlsDownloadHelper;
+import com.google.android.exoplayer2.source.hls.offline.HlsDownloadAction;
 import com.google.android.exoplayer2.ui.DefaultTrackNameProvider;
 import com.google.android.exoplayer2.ui.TrackNameProvider;
 import com.google.android.exoplayer2.upstream.DataSource;
 import com.google.android.exoplayer2.util.Util;
 import com.lashawnmcghee.hlsplayback.R;
+import com.lashawnmcghee.hlsplayback.cache.HlsPlaylistCache;
+import com.lashawnmcghee.hlsplayback.interfaces.ICacheKeyNormalizer;
+import com.lashawnmcghee.hlsplayback.interfaces.IDownloadAdmissionListener;
 import com.lashawnmcghee.hlsplayback.interfaces.IDownloadListener;
+import com.lashawnmcghee.hlsplayback.interfaces.IDownloadProgressListener;
+import com.lashawnmcghee.hlsplayback.interfaces.IDownloadTrackPolicy;
+import com.lashawnmcghee.hlsplayback.interfaces.IDownloadVerificationListener;
+import com.lashawnmcghee.hlsplayback.offline.CachingHlsDownloadHelper;
+import com.lashawnmcghee.hlsplayback.offline.DownloadIntegrityVerifier;
+import com.lashawnmcghee.hlsplayback.offline.DownloadProgressCoalescer;
+import com.lashawnmcghee.hlsplayback.offline.DownloadProgressEvent;
+import com.lashawnmcghee.hlsplayback.offline.DownloadSizeEstimator;
+import com.lashawnmcghee.hlsplayback.offline.DownloadStateStore;
+import com.lashawnmcghee.hlsplayback.offline.HlsCacheDownloadAction;
+import com.lashawnmcghee.hlsplayback.offline.StorageAdmissionController;
+import com.lashawnmcghee.hlsplayback.offline.TrackedActionJournal;
 import com.lashawnmcghee.hlsplayback.services.MediaDownloadService;
 import com.lashawnmcghee.hlsplayback.util.LogTrace;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
-import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
 
 /**
  * A media download tracker based on a demo provided by ExoPlayer.
  */
 public class MediaDownloadTracker implements DownloadManager.Listener {
     private static final String TAG = MediaDownloadTracker.class.getSimpleName();
+    private static final int BATCH_PREPARE_THREADS = 4;
+    private static final long DEFAULT_PROGRESS_INTERVAL_MS = 500;
+
+    /**
+     * Policy downloading every track of a title.
+     */
+    public static final IDownloadTrackPolicy ALL_TRACKS_POLICY =
+            helper -> Collections.emptyList();
 
     private final Context mContext;
-    private final ActionFile mActionFile;
+    //tracked actions are journaled per change instead of rewriting all of them
+    private final TrackedActionJournal mJournal;
     private final Handler mActionFileWriteHandler;
+    private final Handler mMainHandler;
+    private final ExecutorService mBatchExecutor;
+    //titles of the running batch are prepared on this pool, only one batch runs at a time
+    private final ExecutorService mPrepareExecutor;
+    //dialog titles are admitted apart from batches, so they never wait behind one
+    private final ExecutorService mAdmitExecutor;
     private final DataSource.Factory mDataSourceFactory;
+    private final HlsPlaylistCache mPlaylistCache;
+    private final ICacheKeyNormalizer mNormalizer;
+    private final StorageAdmissionController mAdmissionController;
+    private final DownloadIntegrityVerifier mIntegrityVerifier;
+    private final ExecutorService mVerifyExecutor;
+    private final ConcurrentHashMap<Uri, Integer> mIntegrityStates = new ConcurrentHashMap<>();
+    //titles downloaded again after a failed verification, so they are not requeued forever,
+    //touched by verification results and download manager callbacks on whatever thread they run
+    private final Set<Uri> mRequeuedUris = Collections.newSetFromMap(new ConcurrentHashMap<>());
     private final TrackNameProvider mTrackNameProvider;
     private final CopyOnWriteArraySet<IDownloadListener> mListeners;
-    private final HashMap<Uri, DownloadAction> mTrackedDownloadStates;
+    //read from any thread and written by the main and download manager threads without locks
+    private final DownloadStateStore<Uri, DownloadAction> mTrackedDownloadStates;
+
+    //progress is polled and coalesced on the main thread, away from the download threads
+    private final CopyOnWriteArraySet<IDownloadProgressListener> mProgressListeners;
+    private final DownloadProgressCoalescer mProgressCoalescer;
+    private final Runnable mProgressTick = this::onProgressTick;
+    private long mProgressIntervalMs = DEFAULT_PROGRESS_INTERVAL_MS;
+    private boolean mIsProgressTickScheduled;
+    private DownloadManager mDownloadManager;
+    //set on the main thread once released, background work finishing later is dropped
+    private boolean mReleased;
 
     public MediaDownloadTracker(Context context,
                                 DataSource.Factory dataSourceFactory,
-                                File actionFile,
+                                HlsPlaylistCache playlistCache,
+                                ICacheKeyNormalizer normalizer,
+                                StorageAdmissionController admissionController,
+                                DownloadIntegrityVerifier integrityVerifier,
+                                File journalFile,
+                                File legacyActionFile,
                                 DownloadAction.Deserializer... deserializers) {
 
         mContext = context.getApplicationContext();
         mDataSourceFactory = dataSourceFactory;
-        mActionFile = new ActionFile(actionFile);
+        mPlaylistCache = playlistCache;
+        mNormalizer = normalizer;
+        mAdmissionController = admissionController;
+        mIntegrityVerifier = integrityVerifier;
+        mJournal = new TrackedActionJournal(journalFile);
         mTrackNameProvider = new DefaultTrackNameProvider(context.getResources());
         mListeners = new CopyOnWriteArraySet<>();
-        mTrackedDownloadStates = new HashMap<>();
+        mTrackedDownloadStates = new DownloadStateStore<>();
+        mProgressListeners = new CopyOnWriteArraySet<>();
+        mProgressCoalescer = new DownloadProgressCoalescer();
 
         //create handler thread for writing to the action file
         HandlerThread actionFileWriteThread = new HandlerThread("DownloadTracker");
         actionFileWriteThread.start();
         mActionFileWriteHandler = new Handler(actionFileWriteThread.getLooper());
 
+        //batches prepare their titles in the background and apply them on the main thread
+        mMainHandler = new Handler(Looper.getMainLooper());
+        mBatchExecutor = Executors.newSingleThreadExecutor();
+        mPrepareExecutor = Executors.newFixedThreadPool(BATCH_PREPARE_THREADS);
+        mAdmitExecutor = Executors.newSingleThreadExecutor();
+        mVerifyExecutor = Executors.newSingleThreadExecutor();
+
         //deserialize saved actions which may be used and filters
         if(deserializers.length > 0) {
-            loadTrackedActions(deserializers);
+            loadTrackedActions(deserializers, legacyActionFile);
         } else {
-            loadTrackedActions(DownloadAction.getDefaultDeserializers());
+            loadTrackedActions(DownloadAction.getDefaultDeserializers(), legacyActionFile);
         }
     }
 
     /**
      * Determines if the provided URI already exists in our download cache.
      * Note: It may be partial or complete based on network availability during initial download.
+     * Use {@link #getIntegrityState(Uri)} to know which once it has been verified.
      * @param uri
      * @return
      */
@@ -92,6 +178,56 @@ public class MediaDownloadTracker implements DownloadManager.Listener {
         return bDownloaded;
     }
 
+    /**
+     * Get how complete a download was found the last time it was verified. Downloads are verified
+     * whenever they complete, and on demand with {@link #verifyDownload}.
+     * @param uri
+     * @return Returns one of the DownloadIntegrityVerifier STATE values.
+     */
+    public int getIntegrityState(Uri uri) {
+        Integer state = mIntegrityStates.get(uri);
+        return state != null ? state : DownloadIntegrityVerifier.STATE_UNKNOWN;
+    }
+
+    /**
+     * Check in the background that every segment of a download is in cache. A title with missing
+     * or corrupt segments is queued again, which fetches only the segments it lacks.
+     * Must be called on the main thread.
+     * @param uri URI of the downloaded media.
+     * @param hashSegments Whether every segment is read back and hashed as well, which is slower.
+     * @param listener Listener told the result on the main thread, or null.
+     */
+    public void verifyDownload(Uri uri,
+                               boolean hashSegments,
+                               IDownloadVerificationListener listener) {
+        DownloadAction action = mTrackedDownloadStates.get(uri);
+        if (!(action instanceof HlsCacheDownloadAction) || mReleased) {
+            //downloads stored before key normalization cannot be listed by our downloader
+            return;
+        }
+        HlsCacheDownloadAction hlsAction = (HlsCacheDownloadAction) action;
+        mVerifyExecutor.execute(() -> {
+            DownloadIntegrityVerifier.Result result;
+            try {
+                result = mIntegrityVerifier.verify(hlsAction, hashSegments);
+            } catch (InterruptedException e) {
+                return;
+            }
+            mMainHandler.post(() -> onDownloadVerified(hlsAction, result, listener));
+        });
+    }
+
+    /**
+     * Verify every tracked download, one title after another.
+     * @param hashSegments Whether every segment is read back and hashed as well.
+     * @param listener Listener told the result of every title on the main thread, or null.
+     */
+    public void verifyAllDownloads(boolean hashSegments, IDownloadVerificationListener listener) {
+        for (Uri uri : mTrackedDownloadStates.getSnapshot().keySet()) {
+            verifyDownload(uri, hashSegments, listener);
+        }
+    }
+
     /**
      * Gets a list of stream keys that are available for a given URI.
      * @param uri URI who keys are to be retrieved.
@@ -99,10 +235,20 @@ public class MediaDownloadTracker implements DownloadManager.Listener {
      * otherwise.
      */
     public List<StreamKey> getOfflineStreamKeys(Uri uri) {
-        if (!mTrackedDownloadStates.containsKey(uri)) {
+        DownloadAction action = mTrackedDownloadStates.get(uri);
+        if (action == null) {
             return Collections.emptyList();
         }
-        return mTrackedDownloadStates.get(uri).getKeys();
+        return action.getKeys();
+    }
+
+    /**
+     * Get the version of our tracked downloads. It changes whenever a download is tracked or
+     * stops being tracked, so a UI which saw the same version has nothing to redraw.
+     * @return
+     */
+    public long getStateVersion() {
+        return mTrackedDownloadStates.getVersion();
     }
 
     /**
@@ -113,19 +259,98 @@ public class MediaDownloadTracker implements DownloadManager.Listener {
      * @param uri URI to the media to be downloaded.
      */
     public void downloadMediaToCache(Context activityContext, Uri uri) {
+        downloadMediaToCache(activityContext, uri, null);
+    }
+
+    /**
+     * Attempts to download a given URI to cache, letting the end user select its tracks.
+     * The size of the selected tracks is estimated before the download is queued and a download
+     * which does not fit in storage is not started.
+     * @param activityContext Context of the activity or application responsible for the call.
+     * @param uri URI to the media to be downloaded.
+     * @param admissionListener Listener told the estimate and admission decision, or null.
+     */
+    public void downloadMediaToCache(Context activityContext,
+                                     Uri uri,
+                                     IDownloadAdmissionListener admissionListener) {
         //check if media already exists in cache
         if(!isDownloaded(uri)) {
             //since media is not in cache, ask end user which tracks to download
             String sName = uri.toString();
-            HlsDownloadHelper hlsHelper = new HlsDownloadHelper(uri, mDataSourceFactory);
+            CachingHlsDownloadHelper hlsHelper = new CachingHlsDownloadHelper(uri,
+                    mDataSourceFactory,
+                    mPlaylistCache,
+                    mNormalizer);
             StartDownloadDialogHelper helper = new StartDownloadDialogHelper(
                     activityContext,
                     hlsHelper,
-                    sName);
+                    sName,
+                    admissionListener);
             helper.prepare();
         }
     }
 
+    /**
+     * Download a URI to cache without asking the end user, choosing its tracks with a policy
+     * such as {@link com.lashawnmcghee.hlsplayback.offline.TrackSelectionPolicy}.
+     * The track dialog of {@link #downloadMediaToCache(Context, Uri)} is the manual alternative.
+     * @param uri URI to the media to be downloaded.
+     * @param policy Policy choosing the tracks of the title.
+     */
+    public void downloadMediaToCache(Uri uri, IDownloadTrackPolicy policy) {
+        downloadMediaToCache(Collections.singletonList(uri), policy);
+    }
+
+    /**
+     * Download many URIs to cache in one operation, choosing their tracks with a policy instead
+     * of asking the end user.
+     * Titles are prepared in the background. Once all of them are prepared they are tracked in a
+     * single state change, so listeners are notified once and the tracked actions are stored once.
+     * URIs already in our tracker, and titles which fail to prepare or are skipped by the policy,
+     * are left out.
+     * @param uris URIs to the media to be downloaded.
+     * @param policy Policy choosing the tracks of every title.
+     */
+    public void downloadMediaToCache(Collection<Uri> uris, IDownloadTrackPolicy policy) {
+        downloadMediaToCache(uris, policy, null);
+    }
+
+    /**
+     * Download many URIs to cache in one operation, choosing their tracks with a policy.
+     * The size of every title is estimated once its tracks are chosen, and titles which do not fit
+     * in storage are left out of the batch.
+     * @param uris URIs to the media to be downloaded.
+     * @param policy Policy choosing the tracks of every title.
+     * @param admissionListener Listener told the estimate and admission decision of every title,
+     *                          or null.
+     */
+    public void downloadMediaToCache(Collection<Uri> uris,
+                                     IDownloadTrackPolicy policy,
+                                     IDownloadAdmissionListener admissionListener) {
+        LinkedHashSet<Uri> pendingUris = new LinkedHashSet<>();
+        for (Uri uri : uris) {
+            if (!isDownloaded(uri)) {
+                pendingUris.add(uri);
+            }
+        }
+        if (pendingUris.isEmpty() || mReleased) {
+            return;
+        }
+        mBatchExecutor.execute(() -> {
+            List<DownloadAction> actions =
+                    prepareDownloadActions(pendingUris, policy, admissionListener);
+            mMainHandler.post(() -> {
+                if (!mReleased) {
+                    startDownloads(actions);
+                    return;
+                }
+                for (DownloadAction action : actions) {
+                    mAdmissionController.release(action.uri.toString());
+                }
+            });
+        });
+    }
+
     /**
      * Removes downloaded media from cache.
      * @param uri URI of the media to remove from cache.
@@ -134,9 +359,18 @@ public class MediaDownloadTracker implements DownloadManager.Listener {
         //first ensure the media is in cache
         if(isDownloaded(uri)) {
             //since the media exists in cache, lets remove it
+            //downloads stored before key normalization are removed under their raw keys
             String sName = uri.toString();
-            HlsDownloadHelper hlsHelper = new HlsDownloadHelper(uri, mDataSourceFactory);
-            DownloadAction removeAction = hlsHelper.getRemoveAction(Util.getUtf8Bytes(sName));
+            DownloadAction removeAction;
+            if (mTrackedDownloadStates.get(uri) instanceof HlsDownloadAction) {
+                removeAction = HlsDownloadAction.createRemoveAction(uri, Util.getUtf8Bytes(sName));
+            } else {
+                CachingHlsDownloadHelper hlsHelper = new CachingHlsDownloadHelper(uri,
+                        mDataSourceFactory,
+                        mPlaylistCache,
+                        mNormalizer);
+                removeAction = hlsHelper.getRemoveAction(Util.getUtf8Bytes(sName));
+            }
             startServiceWithAction(removeAction);
         }
     }
@@ -157,9 +391,59 @@ public class MediaDownloadTracker implements DownloadManager.Listener {
         mListeners.remove(listener);
     }
 
+    /**
+     * Add a listener for the progress of every download and remove, delivered on the main thread.
+     * @param listener A class which implements the IDownloadProgressListener interface.
+     */
+    public void addProgressListener(IDownloadProgressListener listener) {
+        mProgressListeners.add(listener);
+    }
+
+    /**
+     * Remove a progress listener from this tracker.
+     * @param listener A class which implements the IDownloadProgressListener interface.
+     */
+    public void removeProgressListener(IDownloadProgressListener listener) {
+        mProgressListeners.remove(listener);
+    }
+
+    /**
+     * Set how often progress listeners may hear about each title. Changes in between are
+     * coalesced into the latest one.
+     * @param intervalMs Interval in milliseconds.
+     */
+    public void setProgressInterval(long intervalMs) {
+        mProgressIntervalMs = Math.max(1, intervalMs);
+    }
+
+    /**
+     * Stop delivering progress and close the action journal once pending changes are written.
+     * Batches and verifications still running are stopped and their results dropped.
+     * Called on the main thread before the download manager is released.
+     */
+    public void release() {
+        mReleased = true;
+        mBatchExecutor.shutdownNow();
+        mPrepareExecutor.shutdownNow();
+        mAdmitExecutor.shutdownNow();
+        mVerifyExecutor.shutdownNow();
+        mActionFileWriteHandler.post(
+                () -> {
+                    try {
+                        mJournal.close();
+                    } catch (IOException e) {
+                        LogTrace.e(TAG, "Failed to close tracked action journal", e);
+                    }
+                });
+        mMainHandler.removeCallbacks(mProgressTick);
+        mIsProgressTickScheduled = false;
+        mProgressListeners.clear();
+        mDownloadManager = null;
+    }
+
     @Override
     public void onInitialized(DownloadManager downloadManager) {
-        // Do nothing.
+        mDownloadManager = downloadManager;
     }
 
     /**
@@ -169,14 +453,29 @@ public class MediaDownloadTracker implements DownloadManager.Listener {
      */
     @Override
     public void onTaskStateChanged(DownloadManager downloadManager, DownloadManager.TaskState taskState) {
+        mDownloadManager = downloadManager;
         DownloadAction action = taskState.action;
         Uri uri = action.uri;
-        if ((action.isRemoveAction && taskState.state == DownloadManager.TaskState.STATE_COMPLETED)
+        onProgress(uri, toProgressState(taskState), taskState.downloadedBytes,
+                taskState.downloadPercentage);
+        updateAdmission(taskState);
+        if (!action.isRemoveAction && taskState.state == DownloadManager.TaskState.STATE_FAILED
+                && mRequeuedUris.contains(uri)) {
+            //the title completed before, what it still lacks stays recorded in its integrity state
+            LogTrace.w(TAG, "Downloading %s again failed, keeping what is cached", uri);
+        } else if ((action.isRemoveAction
+                && taskState.state == DownloadManager.TaskState.STATE_COMPLETED)
                 || (!action.isRemoveAction && taskState.state == DownloadManager.TaskState.STATE_FAILED)) {
             // A download has been removed, or has failed. Stop tracking it.
+            mIntegrityStates.remove(uri);
+            mRequeuedUris.remove(uri);
             if (mTrackedDownloadStates.remove(uri) != null) {
-                handleTrackedDownloadStatesChanged();
+                handleTrackedDownloadStatesChanged(Collections.singletonList(uri));
             }
+        } else if (!action.isRemoveAction
+                && taskState.state == DownloadManager.TaskState.STATE_COMPLETED) {
+            //a complete task may still have left segments behind
+            verifyDownload(uri, false, null);
         }
     }
 
@@ -191,51 +490,351 @@ public class MediaDownloadTracker implements DownloadManager.Listener {
 
 
     /**
-     *
+     * Replay the journal of tracked actions. Actions stored by earlier versions in a single
+     * action file are moved into the journal, which only counts as done once that file is gone.
      * @param deserializers
+     * @param legacyActionFile
      */
-    private void loadTrackedActions(DownloadAction.Deserializer[] deserializers) {
+    private void loadTrackedActions(DownloadAction.Deserializer[] deserializers,
+                                    File legacyActionFile) {
+        //a crash before the legacy file was deleted leaves it behind, so it is moved again
+        DownloadAction[] legacyActions = null;
+        if (legacyActionFile.exists()) {
+            try {
+                legacyActions = new ActionFile(legacyActionFile).load(deserializers);
+            } catch (IOException e) {
+                LogTrace.e(TAG, "Failed to load legacy tracked actions", e);
+            }
+        }
+
+        LinkedHashMap<Uri, DownloadAction> actions = new LinkedHashMap<>();
         try {
-            DownloadAction[] allActions = mActionFile.load(deserializers);
-            for (DownloadAction action : allActions) {
-                mTrackedDownloadStates.put(action.uri, action);
+            Map<String, byte[]> entries = mJournal.load();
+            if (legacyActions != null) {
+                //titles already journaled are newer than their legacy actions
+                LinkedHashMap<String, byte[]> migrated = new LinkedHashMap<>();
+                for (DownloadAction action : legacyActions) {
+                    migrated.put(action.uri.toString(), serializeAction(action));
+                }
+                migrated.putAll(entries);
+                mJournal.replaceAll(migrated);
+                entries = migrated;
+                if (!legacyActionFile.delete()) {
+                    LogTrace.w(TAG, "Failed to delete %s", legacyActionFile);
+                }
+            }
+
+            for (Map.Entry<String, byte[]> entry : entries.entrySet()) {
+                DownloadAction action = deserializeAction(deserializers, entry.getValue());
+                if (action != null) {
+                    actions.put(action.uri, action);
+                }
             }
         } catch (IOException e) {
             LogTrace.e(TAG, "Failed to load tracked actions", e);
         }
+        mTrackedDownloadStates.putAll(actions);
     }
 
     /**
-     * Notify our listeners and store our download action to a file.
+     * Notify our listeners and journal the current action of each changed URI.
+     * @param changedUris
      */
-    private void handleTrackedDownloadStatesChanged() {
+    private void handleTrackedDownloadStatesChanged(Collection<Uri> changedUris) {
         for (IDownloadListener listener : mListeners) {
             listener.onDownloadStatusChanged();
         }
 
-        final DownloadAction[] actions = mTrackedDownloadStates.values().toArray(new DownloadAction[0]);
+        final Uri[] uris = changedUris.toArray(new Uri[0]);
         mActionFileWriteHandler.post(
                 () -> {
-                    try {
-                        mActionFile.store(actions);
-                    } catch (IOException e) {
-                        LogTrace.e(TAG, "Failed to store tracked actions", e);
+                    //changes made on two threads may be posted out of order, so the state at
+                    //the time of writing is journaled rather than the change itself
+                    for (Uri uri : uris) {
+                        DownloadAction action = mTrackedDownloadStates.get(uri);
+                        try {
+                            if (action != null) {
+                                mJournal.put(uri.toString(), serializeAction(action));
+                            } else {
+                                mJournal.remove(uri.toString());
+                            }
+                        } catch (IOException e) {
+                            LogTrace.e(TAG, "Failed to journal tracked action", e);
+                        }
                     }
                 });
     }
 
+    private static byte[] serializeAction(DownloadAction action) throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        DownloadAction.serializeToStream(action, output);
+        return output.toByteArray();
+    }
+
+    private static DownloadAction deserializeAction(DownloadAction.Deserializer[] deserializers,
+                                                    byte[] payload) {
+        try {
+            return DownloadAction.deserializeFromStream(deserializers,
+                    new ByteArrayInputStream(payload));
+        } catch (IOException e) {
+            //an action of a type no longer known, the rest are still usable
+            LogTrace.e(TAG, "Failed to read tracked action", e);
+            return null;
+        }
+    }
+
     /**
-     * Start downloading one or more URI(s) and notify our listeners.
+     * Start downloading one URI and notify our listeners.
      * @param action
      */
     private void startDownload(DownloadAction action) {
-        if (mTrackedDownloadStates.containsKey(action.uri)) {
-            // This content is already being downloaded. Do nothing.
+        startDownloads(Collections.singletonList(action));
+    }
+
+    /**
+     * Start downloading one or more URI(s) and notify our listeners once for all of them.
+     * @param actions
+     */
+    private void startDownloads(List<DownloadAction> actions) {
+        ArrayList<DownloadAction> newActions = new ArrayList<>(actions.size());
+        ArrayList<Uri> newUris = new ArrayList<>(actions.size());
+        for (DownloadAction action : actions) {
+            if (!mTrackedDownloadStates.putIfAbsent(action.uri, action)) {
+                // This content is already being downloaded. Do nothing.
+                mAdmissionController.release(action.uri.toString());
+                continue;
+            }
+            newActions.add(action);
+            newUris.add(action.uri);
+        }
+        if (newActions.isEmpty()) {
             return;
         }
-        mTrackedDownloadStates.put(action.uri, action);
-        handleTrackedDownloadStatesChanged();
-        startServiceWithAction(action);
+        handleTrackedDownloadStatesChanged(newUris);
+        for (DownloadAction action : newActions) {
+            onProgress(action.uri, DownloadProgressEvent.STATE_QUEUED, 0, C.PERCENTAGE_UNSET);
+            startServiceWithAction(action);
+        }
+    }
+
+    /**
+     * Record the progress of a title and make sure it is delivered at the next tick.
+     * Must be called on the main thread.
+     * @param uri
+     * @param state One of the DownloadProgressEvent STATE values.
+     * @param downloadedBytes
+     * @param percentage
+     */
+    private void onProgress(Uri uri, int state, long downloadedBytes, float percentage) {
+        mProgressCoalescer.onProgress(uri.toString(),
+                state,
+                downloadedBytes,
+                percentage,
+                SystemClock.elapsedRealtime());
+        if (!mIsProgressTickScheduled) {
+            mIsProgressTickScheduled = true;
+            mMainHandler.postDelayed(mProgressTick, mProgressIntervalMs);
+        }
+    }
+
+    /**
+     * Poll the running tasks for their bytes, then deliver what changed since the last tick.
+     * Ticks keep going only while there is a download which has not finished.
+     */
+    private void onProgressTick() {
+        mIsProgressTickScheduled = false;
+        if (mDownloadManager != null && mDownloadManager.getTaskCount() > 0) {
+            long lngNowMs = SystemClock.elapsedRealtime();
+            for (DownloadManager.TaskState taskState : mDownloadManager.getAllTaskStates()) {
+                mProgressCoalescer.onProgress(taskState.action.uri.toString(),
+                        toProgressState(taskState),
+                        taskState.downloadedBytes,
+                        taskState.downloadPercentage,
+                        lngNowMs);
+                updateAdmission(taskState);
+            }
+        }
+
+        for (DownloadProgressEvent event : mProgressCoalescer.drain()) {
+            for (IDownloadProgressListener listener : mProgressListeners) {
+                listener.onDownloadProgress(event);
+            }
+        }
+
+        if (mProgressCoalescer.hasActive()) {
+            mIsProgressTickScheduled = true;
+            mMainHandler.postDelayed(mProgressTick, mProgressIntervalMs);
+        }
+    }
+
+    private static int toProgressState(DownloadManager.TaskState taskState) {
+        if (taskState.action.isRemoveAction) {
+            switch (taskState.state) {
+                case DownloadManager.TaskState.STATE_COMPLETED:
+                    return DownloadProgressEvent.STATE_REMOVED;
+                case DownloadManager.TaskState.STATE_FAILED:
+                case DownloadManager.TaskState.STATE_CANCELED:
+                    //the title is still in cache
+                    return DownloadProgressEvent.STATE_COMPLETED;
+                default:
+                    return DownloadProgressEvent.STATE_REMOVING;
+            }
+        }
+        switch (taskState.state) {
+            case DownloadManager.TaskState.STATE_QUEUED:
+                return DownloadProgressEvent.STATE_QUEUED;
+            case DownloadManager.TaskState.STATE_COMPLETED:
+                return DownloadProgressEvent.STATE_COMPLETED;
+            case DownloadManager.TaskState.STATE_FAILED:
+                return DownloadProgressEvent.STATE_FAILED;
+            case DownloadManager.TaskState.STATE_CANCELED:
+                return DownloadProgressEvent.STATE_CANCELED;
+            default:
+                return DownloadProgressEvent.STATE_DOWNLOADING;
+        }
+    }
+
+    /**
+     * Record the result of a verification and queue the download again if it lacks segments.
+     * @param action
+     * @param result
+     * @param listener
+     */
+    private void onDownloadVerified(HlsCacheDownloadAction action,
+                                    DownloadIntegrityVerifier.Result result,
+                                    IDownloadVerificationListener listener) {
+        Uri uri = action.uri;
+        if (mReleased || !mTrackedDownloadStates.containsKey(uri)) {
+            //released, or removed while it was being verified
+            return;
+        }
+        mIntegrityStates.put(uri, result.state);
+        if (!result.needsDownload()
+                || result.missingSegmentCount + result.corruptSegmentCount == 0) {
+            //nothing to fetch, a download queued again would have no segment to run
+            mRequeuedUris.remove(uri);
+        } else if (mRequeuedUris.add(uri)) {
+            LogTrace.w(TAG, "Downloading %d missing and %d corrupt segments of %s again",
+                    result.missingSegmentCount, result.corruptSegmentCount, uri);
+            onProgress(uri, DownloadProgressEvent.STATE_QUEUED, 0, C.PERCENTAGE_UNSET);
+            startServiceWithAction(action);
+        } else {
+            LogTrace.w(TAG, "%s is still incomplete after downloading it again", uri);
+        }
+
+        if (listener != null) {
+            listener.onDownloadVerified(uri, result);
+        }
+    }
+
+    /**
+     * Estimate the size of a download and ask our admission controller whether it fits.
+     * Loads media playlists, so it must not be called on the main thread.
+     * @param uri
+     * @param helper Prepared helper of the title.
+     * @param trackKeys Chosen tracks of the title.
+     * @param listener Listener told the decision on the main thread, or null.
+     * @return
+     */
+    private StorageAdmissionController.Decision admitDownload(Uri uri,
+                                  CachingHlsDownloadHelper helper,
+                                  List<TrackKey> trackKeys,
+                                  IDownloadAdmissionListener listener) {
+        DownloadSizeEstimator.Estimate estimate = DownloadSizeEstimator.estimate(helper, trackKeys);
+        StorageAdmissionController.Decision decision =
+                mAdmissionController.admit(uri.toString(), estimate);
+        if (!decision.isAdmitted()) {
+            LogTrace.w(TAG, "Download of %s needs about %d bytes but %d are available",
+                    uri, estimate.bytes, decision.availableBytes);
+        }
+        if (listener != null) {
+            mMainHandler.post(() -> listener.onDownloadAdmission(uri, decision));
+        }
+        return decision;
+    }
+
+    /**
+     * Keep the reservation of a download in step with its progress, releasing it once done.
+     * @param taskState
+     */
+    private void updateAdmission(DownloadManager.TaskState taskState) {
+        if (taskState.action.isRemoveAction) {
+            return;
+        }
+        String sKey = taskState.action.uri.toString();
+        if (taskState.state == DownloadManager.TaskState.STATE_QUEUED
+                || taskState.state == DownloadManager.TaskState.STATE_STARTED) {
+            mAdmissionController.onProgress(sKey, taskState.downloadedBytes);
+        } else {
+            mAdmissionController.release(sKey);
+        }
+    }
+
+    /**
+     * Prepare the titles of a batch on our prepare pool and build their download actions.
+     * Titles still being prepared are canceled if the batch is interrupted.
+     * @param uris
+     * @param policy
+     * @return
+     */
+    private List<DownloadAction> prepareDownloadActions(Collection<Uri> uris,
+                                                        IDownloadTrackPolicy policy,
+                                                        IDownloadAdmissionListener listener) {
+        ArrayList<Future<DownloadAction>> futures = new ArrayList<>(uris.size());
+        ArrayList<DownloadAction> actions = new ArrayList<>(uris.size());
+        try {
+            for (Uri uri : uris) {
+                futures.add(mPrepareExecutor.submit(buildPrepareTask(uri, policy, listener)));
+            }
+            for (Future<DownloadAction> future : futures) {
+                try {
+                    DownloadAction action = future.get();
+                    if (action != null) {
+                        actions.add(action);
+                    }
+                } catch (ExecutionException e) {
+                    LogTrace.e(TAG, "Failed to prepare batch download", e.getCause());
+                }
+            }
+        } catch (RejectedExecutionException e) {
+            //released while the batch was submitted, its result is dropped anyway
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            for (Future<DownloadAction> future : futures) {
+                future.cancel(true);
+            }
+        }
+        return actions;
+    }
+
+    /**
+     * Build the task preparing a single title of a batch.
+     * @param uri
+     * @param policy
+     * @param listener
+     * @return
+     */
+    private Callable<DownloadAction> buildPrepareTask(Uri uri,
+                                                      IDownloadTrackPolicy policy,
+                                                      IDownloadAdmissionListener listener) {
+        return new Callable<DownloadAction>() {
+            @Override
+            public DownloadAction call() throws IOException {
+                CachingHlsDownloadHelper hlsHelper = new CachingHlsDownloadHelper(uri,
+                        mDataSourceFactory,
+                        mPlaylistCache,
+                        mNormalizer);
+                hlsHelper.prepareOnCurrentThread();
+                List<TrackKey> trackKeys = policy.selectTracks(hlsHelper);
+                if (trackKeys == null
+                        || !admitDownload(uri, hlsHelper, trackKeys, listener).isAdmitted()) {
+                    return null;
+                }
+                return hlsHelper.getDownloadAction(Util.getUtf8Bytes(uri.toString()),
+                        trackKeys);
+            }
+        };
     }
 
     /**
@@ -253,8 +852,9 @@ public class MediaDownloadTracker implements DownloadManager.Listener {
             implements DownloadHelper.Callback, DialogInterface.OnClickListener {
 
         private final Context mContext;
-        private final DownloadHelper downloadHelper;
+        private final CachingHlsDownloadHelper downloadHelper;
         private final String name;
+        private final IDownloadAdmissionListener admissionListener;
 
         private final AlertDialog.Builder builder;
         private final View dialogView;
@@ -262,11 +862,14 @@ public class MediaDownloadTracker implements DownloadManager.Listener {
         private final ArrayAdapter<String> trackTitles;
         private final ListView representationList;
 
-        public StartDownloadDialogHelper(
-                Context context, DownloadHelper downloadHelper, String name) {
+        public StartDownloadDialogHelper(Context context,
+                                         CachingHlsDownloadHelper downloadHelper,
+                                         String name,
+                                         IDownloadAdmissionListener admissionListener) {
             mContext = context;
             this.downloadHelper = downloadHelper;
             this.name = name;
+            this.admissionListener = admissionListener;
             builder =
                     new AlertDialog.Builder(context)
                             .setTitle(R.string.exo_download_description)
@@ -329,13 +932,51 @@ public class MediaDownloadTracker implements DownloadManager.Listener {
                     // We have selected keys, or we're dealing with single stream content.
                     DownloadAction downloadAction =
                             downloadHelper.getDownloadAction(Util.getUtf8Bytes(name), selectedTrackKeys);
-                    startDownload(downloadAction);
+                    startAdmittedDownload(downloadAction, selectedTrackKeys);
                 }
             } else {
                 for (IDownloadListener listener : mListeners) {
                     listener.onDownloadStatusChanged();
                 }
+                //rows which hid their download button get it back
+                onProgress(Uri.parse(name), DownloadProgressEvent.STATE_CANCELED, 0,
+                        C.PERCENTAGE_UNSET);
             }
         }
+
+        /**
+         * Estimate the selected tracks in the background and start the download if it fits.
+         * @param downloadAction
+         * @param selectedTrackKeys
+         */
+        private void startAdmittedDownload(DownloadAction downloadAction,
+                                           List<TrackKey> selectedTrackKeys) {
+            Uri uri = downloadAction.uri;
+            if (mReleased) {
+                return;
+            }
+            mAdmitExecutor.execute(() -> {
+                StorageAdmissionController.Decision decision = admitDownload(uri,
+                        downloadHelper,
+                        selectedTrackKeys,
+                        admissionListener);
+                mMainHandler.post(() -> {
+                    if (mReleased) {
+                        mAdmissionController.release(uri.toString());
+                        return;
+                    }
+                    if (decision.isAdmitted()) {
+                        startDownload(downloadAction);
+                        return;
+                    }
+                    String sNeeded = Formatter.formatShortFileSize(mContext,
+                            decision.estimate.bytes);
+                    Toast.makeText(mContext.getApplicationContext(),
+                            mContext.getString(R.string.download_no_space, sNeeded),
+                            Toast.LENGTH_LONG).show();
+                    onProgress(uri, DownloadProgressEvent.STATE_CANCELED, 0, C.PERCENTAGE_UNSET);
+                });
+            });
+        }
     }
 }
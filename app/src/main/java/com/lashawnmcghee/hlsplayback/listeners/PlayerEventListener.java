@@ -14,6 +14,7 @@ import com.google.android.exoplayer2.Player;
 import com.google.android.exoplayer2.Timeline;
 import com.google.android.exoplayer2.source.TrackGroupArray;
 import com.google.android.exoplayer2.trackselection.TrackSelectionArray;
+import com.lashawnmcghee.hlsplayback.cache.SegmentPrefetcher;
 
 import java.lang.ref.WeakReference;
 
@@ -27,6 +28,7 @@ public class PlayerEventListener implements Player.EventListener {
     private WeakReference<Context> mWeakContext;
     private WeakReference<Player> mWeakPlayer;
     private long mStartPosition = 0;
+    private SegmentPrefetcher mPrefetcher;
 
     /**
      * When this listener is used, we must grab a weak reference to the player and its context
@@ -52,6 +54,14 @@ public class PlayerEventListener implements Player.EventListener {
         mStartPosition = position;
     }
 
+    /**
+     * Set the prefetcher feeding the player so it is canceled on seek and track changes.
+     * @param prefetcher
+     */
+    public void setSegmentPrefetcher(SegmentPrefetcher prefetcher) {
+        mPrefetcher = prefetcher;
+    }
+
     @Override
     public void onTimelineChanged(Timeline timeline, @Nullable Object manifest, int reason) {
 
@@ -59,7 +69,9 @@ public class PlayerEventListener implements Player.EventListener {
 
     @Override
     public void onTracksChanged(TrackGroupArray trackGroups, TrackSelectionArray trackSelections) {
-
+        if (mPrefetcher != null) {
+            mPrefetcher.cancel();
+        }
     }
 
     @Override
@@ -121,6 +133,8 @@ public class PlayerEventListener implements Player.EventListener {
 
     @Override
     public void onSeekProcessed() {
-
+        if (mPrefetcher != null) {
+            mPrefetcher.cancel();
+        }
     }
 }
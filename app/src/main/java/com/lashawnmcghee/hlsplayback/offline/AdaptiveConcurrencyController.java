@@ -0,0 +1,255 @@
+/*
+ * Copyright (C) 2018 LLM HLS Playback Demo
+ */
+package com.lashawnmcghee.hlsplayback.offline;
+
+import java.io.InterruptedIOException;
+import java.util.Locale;
+
+/**
+ * Decides how many downloads may transfer at the same time.
+ *
+ * Completed requests are gathered into windows. At the end of each window the aggregate
+ * throughput and the average time to first byte are compared with what we saw before, additive
+ * increase multiplicative decrease style:
+ * <ul>
+ *     <li>a failure or a latency well above the lowest latency seen halves the limit,</li>
+ *     <li>an increase which did not raise the throughput is held,</li>
+ *     <li>anything else raises the limit by one.</li>
+ * </ul>
+ * Download requests take a permit through {@link #acquire()} before they open, so lowering the
+ * limit pauses downloads between segments rather than cancelling them.
+ */
+public class AdaptiveConcurrencyController {
+    public static final int DECISION_NONE = 0;
+    public static final int DECISION_INCREASE = 1;
+    public static final int DECISION_HOLD = 2;
+    public static final int DECISION_DECREASE = 3;
+
+    //a window needs this many completed requests and this much time to be judged
+    private static final int WINDOW_MIN_REQUESTS = 4;
+    private static final long WINDOW_MIN_MS = 2000;
+    //latency this many times the base latency means requests are queueing somewhere
+    private static final double LATENCY_INFLATION = 2.0;
+    //an increase must raise the throughput by this share to be kept going
+    private static final double MIN_THROUGHPUT_GAIN = 0.05;
+
+    private int mMinLimit;
+    private int mMaxLimit;
+    private int mLimit;
+    private int mActive;
+
+    private long mWindowStartMs = -1;
+    private int mWindowRequests;
+    private int mWindowFailures;
+    private long mWindowBytes;
+    private long mWindowLatencyMs;
+
+    private long mBaseLatencyMs = -1;
+    private long mLastThroughputBps;
+    private long mLastLatencyMs;
+    private int mLastDecision = DECISION_NONE;
+    private long mIncreaseCount;
+    private long mHoldCount;
+    private long mDecreaseCount;
+
+    /**
+     * Constructor for this controller.
+     * @param minLimit Lowest number of concurrent downloads.
+     * @param maxLimit Highest number of concurrent downloads.
+     * @param initialLimit Number of concurrent downloads before anything was measured.
+     */
+    public AdaptiveConcurrencyController(int minLimit, int maxLimit, int initialLimit) {
+        mMinLimit = Math.max(1, minLimit);
+        mMaxLimit = Math.max(mMinLimit, maxLimit);
+        mLimit = clamp(initialLimit);
+    }
+
+    /**
+     * Change the bounds of the limit.
+     * @param minLimit Lowest number of concurrent downloads.
+     * @param maxLimit Highest number of concurrent downloads.
+     */
+    public synchronized void setBounds(int minLimit, int maxLimit) {
+        mMinLimit = Math.max(1, minLimit);
+        mMaxLimit = Math.max(mMinLimit, maxLimit);
+        mLimit = clamp(mLimit);
+        notifyAll();
+    }
+
+    /**
+     * Wait until a download may transfer.
+     * @throws InterruptedIOException If the download was cancelled while waiting.
+     */
+    public synchronized void acquire() throws InterruptedIOException {
+        while (mActive >= mLimit) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+        }
+        mActive++;
+    }
+
+    /**
+     * Give back a permit taken by {@link #acquire()}.
+     */
+    public synchronized void release() {
+        mActive--;
+        notifyAll();
+    }
+
+    /**
+     * Record a download request which completed.
+     * @param bytes Bytes transferred by the request.
+     * @param latencyMs Time from its open to its first byte.
+     * @param nowMs Current elapsed realtime.
+     */
+    public synchronized void onRequestCompleted(long bytes, long latencyMs, long nowMs) {
+        startWindowIfNeeded(nowMs);
+        mWindowRequests++;
+        mWindowBytes += bytes;
+        mWindowLatencyMs += latencyMs;
+        evaluateIfDue(nowMs);
+    }
+
+    /**
+     * Record a download request which failed.
+     * @param nowMs Current elapsed realtime.
+     */
+    public synchronized void onRequestFailed(long nowMs) {
+        startWindowIfNeeded(nowMs);
+        mWindowRequests++;
+        mWindowFailures++;
+        evaluateIfDue(nowMs);
+    }
+
+    /**
+     * Get the current number of downloads allowed to transfer at the same time.
+     * @return
+     */
+    public synchronized int getLimit() {
+        return mLimit;
+    }
+
+    /**
+     * Take a copy of the controller state and decision counters.
+     * @return
+     */
+    public synchronized Snapshot snapshot() {
+        return new Snapshot(mLimit,
+                mActive,
+                mLastThroughputBps,
+                mLastLatencyMs,
+                mBaseLatencyMs,
+                mLastDecision,
+                mIncreaseCount,
+                mHoldCount,
+                mDecreaseCount);
+    }
+
+    private void startWindowIfNeeded(long nowMs) {
+        if (mWindowStartMs < 0) {
+            mWindowStartMs = nowMs;
+        }
+    }
+
+    private void evaluateIfDue(long nowMs) {
+        long lngElapsedMs = nowMs - mWindowStartMs;
+        if (mWindowRequests < WINDOW_MIN_REQUESTS || lngElapsedMs < WINDOW_MIN_MS) {
+            return;
+        }
+        int iCompleted = mWindowRequests - mWindowFailures;
+        long lngLatencyMs = iCompleted > 0 ? mWindowLatencyMs / iCompleted : mLastLatencyMs;
+        long lngThroughputBps = mWindowBytes * 8 * 1000 / lngElapsedMs;
+        if (iCompleted > 0) {
+            if (mBaseLatencyMs < 0 || lngLatencyMs < mBaseLatencyMs) {
+                mBaseLatencyMs = lngLatencyMs;
+            } else {
+                //let the base follow a network which became slower for good
+                mBaseLatencyMs += (lngLatencyMs - mBaseLatencyMs) / 16;
+            }
+        }
+
+        int iDecision;
+        if (mWindowFailures > 0
+                || (mBaseLatencyMs > 0 && lngLatencyMs > mBaseLatencyMs * LATENCY_INFLATION)) {
+            iDecision = DECISION_DECREASE;
+            mLimit = clamp(mLimit / 2);
+            mDecreaseCount++;
+        } else if (mLastDecision == DECISION_INCREASE
+                && lngThroughputBps < mLastThroughputBps * (1 + MIN_THROUGHPUT_GAIN)) {
+            iDecision = DECISION_HOLD;
+            mHoldCount++;
+        } else {
+            iDecision = DECISION_INCREASE;
+            mLimit = clamp(mLimit + 1);
+            mIncreaseCount++;
+        }
+        mLastDecision = iDecision;
+        mLastThroughputBps = lngThroughputBps;
+        mLastLatencyMs = lngLatencyMs;
+        mWindowStartMs = nowMs;
+        mWindowRequests = 0;
+        mWindowFailures = 0;
+        mWindowBytes = 0;
+        mWindowLatencyMs = 0;
+        notifyAll();
+    }
+
+    private int clamp(int iLimit) {
+        return Math.max(mMinLimit, Math.min(mMaxLimit, iLimit));
+    }
+
+    /**
+     * An immutable copy of the controller state.
+     */
+    public static final class Snapshot {
+        public final int limit;
+        public final int active;
+        public final long throughputBps;
+        public final long latencyMs;
+        public final long baseLatencyMs;
+        public final int lastDecision;
+        public final long increaseCount;
+        public final long holdCount;
+        public final long decreaseCount;
+
+        private Snapshot(int limit,
+                         int active,
+                         long throughputBps,
+                         long latencyMs,
+                         long baseLatencyMs,
+                         int lastDecision,
+                         long increaseCount,
+                         long holdCount,
+                         long decreaseCount) {
+            this.limit = limit;
+            this.active = active;
+            this.throughputBps = throughputBps;
+            this.latencyMs = latencyMs;
+            this.baseLatencyMs = baseLatencyMs;
+            this.lastDecision = lastDecision;
+            this.increaseCount = increaseCount;
+            this.holdCount = holdCount;
+            this.decreaseCount = decreaseCount;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US,
+                    "limit=%d active=%d throughput=%dkbps latency=%dms base=%dms "
+                            + "increases=%d holds=%d decreases=%d",
+                    limit,
+                    active,
+                    throughputBps / 1000,
+                    latencyMs,
+                    baseLatencyMs,
+                    increaseCount,
+                    holdCount,
+                    decreaseCount);
+        }
+    }
+}
@@ -0,0 +1,357 @@
+/*
+ * Copyright (C) 2018 LLM HLS Playback Demo
+ */
+package com.lashawnmcghee.hlsplayback.offline;
+
+import com.google.android.exoplayer2.upstream.DataSource;
+import com.google.android.exoplayer2.upstream.DataSpec;
+import com.google.android.exoplayer2.upstream.TransferListener;
+
+import java.io.InterruptedIOException;
+import java.util.Locale;
+
+/**
+ * Shares the link between the player and background downloads, the player first.
+ *
+ * The player reports its buffer level and its data sources report the bytes they transfer.
+ * Downloads wait for their turn before each read and report the bytes they read:
+ * <ul>
+ *     <li>without playback, or with a buffer at or above the high watermark, they are released,</li>
+ *     <li>with a buffer between the watermarks they are throttled by a token bucket refilled at a
+ *     share of the player's bandwidth estimate,</li>
+ *     <li>with a buffer below the low watermark they are paused until the buffer is back at the
+ *     high watermark.</li>
+ * </ul>
+ * Methods taking the current time exist so the arbiter can be driven without a real clock.
+ */
+public class BandwidthArbiter {
+    public static final int STATE_IDLE = 0;
+    public static final int STATE_RELEASED = 1;
+    public static final int STATE_THROTTLED = 2;
+    public static final int STATE_PAUSED = 3;
+
+    //playback which stopped reporting its buffer is treated as gone
+    private static final long PLAYBACK_REPORT_TIMEOUT_MS = 5000;
+    //share of the player's bandwidth estimate left to throttled downloads
+    private static final double THROTTLED_SHARE = 0.25;
+    private static final long MIN_THROTTLED_BYTES_PER_SECOND = 32 * 1024;
+    private static final long DEFAULT_THROTTLED_BYTES_PER_SECOND = 128 * 1024;
+    private static final long MIN_BUCKET_BYTES = 16 * 1024;
+    //waits are sliced so state changes and interruptions are noticed quickly
+    private static final long MAX_WAIT_SLICE_MS = 100;
+
+    private final long mLowWatermarkMs;
+    private final long mHighWatermarkMs;
+    private final TransferListener mPlaybackTransferListener = new PlaybackTransferListener();
+
+    private int mState = STATE_IDLE;
+    private long mBufferedMs = -1;
+    private long mLastReportMs;
+    private long mRateBytesPerSecond;
+    private long mBucketCapacity;
+    private long mTokens;
+    private long mLastRefillMs;
+
+    private long mPlaybackBytes;
+    private long mDownloadBytes;
+    private long mPauseCount;
+    private long mThrottleCount;
+    private long mDownloadWaitMs;
+
+    /**
+     * Constructor for this arbiter.
+     * @param lowWatermarkMs Buffer below which downloads are paused.
+     * @param highWatermarkMs Buffer from which downloads are released.
+     */
+    public BandwidthArbiter(long lowWatermarkMs, long highWatermarkMs) {
+        mLowWatermarkMs = lowWatermarkMs;
+        mHighWatermarkMs = Math.max(lowWatermarkMs, highWatermarkMs);
+    }
+
+    /**
+     * Get the listener which the player's data sources report their transfers to.
+     * @return
+     */
+    public TransferListener getPlaybackTransferListener() {
+        return mPlaybackTransferListener;
+    }
+
+    /**
+     * Report the buffer level of the player.
+     * @param bufferedMs Media buffered ahead of the playback position.
+     * @param bitrateEstimate Bandwidth estimate of the player in bits per second, or a value
+     *                        below one if unknown.
+     */
+    public void onPlaybackBufferChanged(long bufferedMs, long bitrateEstimate) {
+        onPlaybackBufferChanged(bufferedMs, bitrateEstimate, elapsedRealtimeMs());
+    }
+
+    /**
+     * Report the buffer level of the player.
+     * @param bufferedMs Media buffered ahead of the playback position.
+     * @param bitrateEstimate Bandwidth estimate of the player in bits per second, or a value
+     *                        below one if unknown.
+     * @param nowMs Current elapsed time.
+     */
+    public synchronized void onPlaybackBufferChanged(long bufferedMs,
+                                                     long bitrateEstimate,
+                                                     long nowMs) {
+        mBufferedMs = bufferedMs;
+        mLastReportMs = nowMs;
+        int iState;
+        if (bufferedMs < mLowWatermarkMs) {
+            iState = STATE_PAUSED;
+        } else if (bufferedMs >= mHighWatermarkMs) {
+            iState = STATE_RELEASED;
+        } else {
+            //a paused download waits for the buffer to be healthy again
+            iState = mState == STATE_PAUSED ? STATE_PAUSED : STATE_THROTTLED;
+        }
+
+        if (iState == STATE_THROTTLED) {
+            long lngRate = bitrateEstimate > 0
+                    ? (long) (bitrateEstimate / 8 * THROTTLED_SHARE)
+                    : DEFAULT_THROTTLED_BYTES_PER_SECOND;
+            mRateBytesPerSecond = Math.max(MIN_THROTTLED_BYTES_PER_SECOND, lngRate);
+            mBucketCapacity = Math.max(MIN_BUCKET_BYTES, mRateBytesPerSecond / 2);
+        }
+        setState(iState, nowMs);
+    }
+
+    /**
+     * Report that the player stopped, which releases every download.
+     */
+    public synchronized void onPlaybackStopped() {
+        mBufferedMs = -1;
+        setState(STATE_IDLE, elapsedRealtimeMs());
+    }
+
+    /**
+     * Wait until a download may read from the network.
+     * @throws InterruptedIOException If the download was cancelled while waiting.
+     */
+    public synchronized void awaitDownloadTurn() throws InterruptedIOException {
+        long lngWaitMs;
+        while ((lngWaitMs = getDownloadWaitMs(elapsedRealtimeMs())) > 0) {
+            try {
+                wait(lngWaitMs);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+            mDownloadWaitMs += lngWaitMs;
+        }
+    }
+
+    /**
+     * Get how long a download should wait before reading.
+     * @param nowMs Current elapsed time.
+     * @return Returns zero if the download may read now.
+     */
+    public synchronized long getDownloadWaitMs(long nowMs) {
+        expireStalePlayback(nowMs);
+        switch (mState) {
+            case STATE_PAUSED:
+                return MAX_WAIT_SLICE_MS;
+            case STATE_THROTTLED:
+                refill(nowMs);
+                if (mTokens > 0) {
+                    return 0;
+                }
+                long lngWaitMs = (-mTokens * 1000) / mRateBytesPerSecond + 1;
+                return Math.min(MAX_WAIT_SLICE_MS, lngWaitMs);
+            default:
+                return 0;
+        }
+    }
+
+    /**
+     * Determines if downloads are paused, in which case they should not hold any connection.
+     * @return
+     */
+    public boolean isDownloadPaused() {
+        return isDownloadPaused(elapsedRealtimeMs());
+    }
+
+    /**
+     * Determines if downloads are paused, in which case they should not hold any connection.
+     * @param nowMs Current elapsed time.
+     * @return
+     */
+    public synchronized boolean isDownloadPaused(long nowMs) {
+        expireStalePlayback(nowMs);
+        return mState == STATE_PAUSED;
+    }
+
+    /**
+     * Report bytes read by a download.
+     * @param bytes
+     */
+    public void onDownloadBytes(long bytes) {
+        onDownloadBytes(bytes, elapsedRealtimeMs());
+    }
+
+    /**
+     * Report bytes read by a download.
+     * @param bytes
+     * @param nowMs Current elapsed time.
+     */
+    public synchronized void onDownloadBytes(long bytes, long nowMs) {
+        mDownloadBytes += bytes;
+        if (mState == STATE_THROTTLED) {
+            refill(nowMs);
+            //reads are not split, the debt is paid back by waiting
+            mTokens -= bytes;
+        }
+    }
+
+    /**
+     * Get the current state of the downloads.
+     * @return
+     */
+    public synchronized int getState() {
+        return mState;
+    }
+
+    /**
+     * Take a copy of the arbiter state, token bucket included.
+     * @return
+     */
+    public synchronized Snapshot snapshot() {
+        return new Snapshot(mState,
+                mBufferedMs,
+                mState == STATE_THROTTLED ? mRateBytesPerSecond : 0,
+                mState == STATE_THROTTLED ? mBucketCapacity : 0,
+                mState == STATE_THROTTLED ? mTokens : 0,
+                mPlaybackBytes,
+                mDownloadBytes,
+                mPauseCount,
+                mThrottleCount,
+                mDownloadWaitMs);
+    }
+
+    private synchronized void onPlaybackBytes(long bytes) {
+        mPlaybackBytes += bytes;
+    }
+
+    private void expireStalePlayback(long nowMs) {
+        if (mState != STATE_IDLE && nowMs - mLastReportMs > PLAYBACK_REPORT_TIMEOUT_MS) {
+            mBufferedMs = -1;
+            setState(STATE_IDLE, nowMs);
+        }
+    }
+
+    private void setState(int iState, long nowMs) {
+        if (iState == mState) {
+            return;
+        }
+        if (iState == STATE_THROTTLED) {
+            mTokens = mBucketCapacity;
+            mLastRefillMs = nowMs;
+            mThrottleCount++;
+        } else if (iState == STATE_PAUSED) {
+            mPauseCount++;
+        }
+        mState = iState;
+        notifyAll();
+    }
+
+    private void refill(long nowMs) {
+        long lngElapsedMs = nowMs - mLastRefillMs;
+        if (lngElapsedMs <= 0) {
+            return;
+        }
+        mTokens = Math.min(mBucketCapacity, mTokens + mRateBytesPerSecond * lngElapsedMs / 1000);
+        mLastRefillMs = nowMs;
+    }
+
+    private static long elapsedRealtimeMs() {
+        return System.nanoTime() / 1000000;
+    }
+
+    /**
+     * Counts the bytes the player's data sources fetch from the network.
+     */
+    private final class PlaybackTransferListener implements TransferListener {
+
+        @Override
+        public void onTransferInitializing(DataSource source, DataSpec dataSpec, boolean isNetwork) {
+            //nothing to do
+        }
+
+        @Override
+        public void onTransferStart(DataSource source, DataSpec dataSpec, boolean isNetwork) {
+            //nothing to do
+        }
+
+        @Override
+        public void onBytesTransferred(DataSource source,
+                                       DataSpec dataSpec,
+                                       boolean isNetwork,
+                                       int bytesTransferred) {
+            if (isNetwork) {
+                onPlaybackBytes(bytesTransferred);
+            }
+        }
+
+        @Override
+        public void onTransferEnd(DataSource source, DataSpec dataSpec, boolean isNetwork) {
+            //nothing to do
+        }
+    }
+
+    /**
+     * An immutable copy of the arbiter state.
+     */
+    public static final class Snapshot {
+        public final int state;
+        public final long bufferedMs;
+        public final long rateBytesPerSecond;
+        public final long bucketCapacity;
+        public final long tokens;
+        public final long playbackBytes;
+        public final long downloadBytes;
+        public final long pauseCount;
+        public final long throttleCount;
+        public final long downloadWaitMs;
+
+        private Snapshot(int state,
+                         long bufferedMs,
+                         long rateBytesPerSecond,
+                         long bucketCapacity,
+                         long tokens,
+                         long playbackBytes,
+                         long downloadBytes,
+                         long pauseCount,
+                         long throttleCount,
+                         long downloadWaitMs) {
+            this.state = state;
+            this.bufferedMs = bufferedMs;
+            this.rateBytesPerSecond = rateBytesPerSecond;
+            this.bucketCapacity = bucketCapacity;
+            this.tokens = tokens;
+            this.playbackBytes = playbackBytes;
+            this.downloadBytes = downloadBytes;
+            this.pauseCount = pauseCount;
+            this.throttleCount = throttleCount;
+            this.downloadWaitMs = downloadWaitMs;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US,
+                    "state=%d buffered=%dms rate=%dB/s tokens=%d/%d playback=%dB download=%dB "
+                            + "pauses=%d throttles=%d waited=%dms",
+                    state,
+                    bufferedMs,
+                    rateBytesPerSecond,
+                    tokens,
+                    bucketCapacity,
+                    playbackBytes,
+                    downloadBytes,
+                    pauseCount,
+                    throttleCount,
+                    downloadWaitMs);
+        }
+    }
+}
@@ -0,0 +1,222 @@
+/*
+ * Copyright (C) 2018 LLM HLS Playback Demo
+ */
+package com.lashawnmcghee.hlsplayback.offline;
+
+import android.net.Uri;
+import android.support.annotation.Nullable;
+
+import com.google.android.exoplayer2.C;
+import com.google.android.exoplayer2.Format;
+import com.google.android.exoplayer2.offline.DownloadAction;
+import com.google.android.exoplayer2.offline.DownloadHelper;
+import com.google.android.exoplayer2.offline.StreamKey;
+import com.google.android.exoplayer2.offline.TrackKey;
+import com.google.android.exoplayer2.source.TrackGroup;
+import com.google.android.exoplayer2.source.TrackGroupArray;
+import com.google.android.exoplayer2.source.hls.playlist.HlsMasterPlaylist;
+import com.google.android.exoplayer2.source.hls.playlist.HlsMediaPlaylist;
+import com.google.android.exoplayer2.source.hls.playlist.HlsPlaylist;
+import com.google.android.exoplayer2.upstream.DataSource;
+import com.google.android.exoplayer2.upstream.ParsingLoadable;
+import com.google.android.exoplayer2.util.UriUtil;
+import com.lashawnmcghee.hlsplayback.cache.CachingHlsPlaylistParserFactory;
+import com.lashawnmcghee.hlsplayback.cache.HlsPlaylistCache;
+import com.lashawnmcghee.hlsplayback.interfaces.ICacheKeyNormalizer;
+import com.lashawnmcghee.hlsplayback.util.LogTrace;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * An HLS download helper which loads its playlist through our shared {@link HlsPlaylistCache}.
+ * It mirrors ExoPlayer's HlsDownloadHelper, which always parses the playlist with a new parser,
+ * so preparing a download for a title the player has already loaded skips the parse.
+ * Its actions store the download under the keys of our cache key normalizer.
+ */
+public class CachingHlsDownloadHelper extends DownloadHelper {
+    private static final String TAG = CachingHlsDownloadHelper.class.getSimpleName();
+
+    private final Uri mUri;
+    private final DataSource.Factory mManifestDataSourceFactory;
+    private final HlsPlaylistCache mPlaylistCache;
+    private final ICacheKeyNormalizer mNormalizer;
+
+    private HlsPlaylist mPlaylist;
+    private int[] mRenditionGroups;
+    private volatile long mDurationUs = C.TIME_UNSET;
+
+    /**
+     * Constructor for this helper.
+     * @param uri URI of the master or media playlist.
+     * @param manifestDataSourceFactory Factory of the data sources used to load the playlist.
+     * @param playlistCache Shared playlist cache.
+     * @param normalizer Normalizer choosing the cache keys of the download.
+     */
+    public CachingHlsDownloadHelper(Uri uri,
+                                    DataSource.Factory manifestDataSourceFactory,
+                                    HlsPlaylistCache playlistCache,
+                                    ICacheKeyNormalizer normalizer) {
+        mUri = uri;
+        mManifestDataSourceFactory = manifestDataSourceFactory;
+        mPlaylistCache = playlistCache;
+        mNormalizer = normalizer;
+    }
+
+    @Override
+    protected void prepareInternal() throws IOException {
+        mPlaylist = loadPlaylist(mUri);
+        mDurationUs = C.TIME_UNSET;
+    }
+
+    /**
+     * Load the playlist on the calling thread instead of a new one.
+     * Used when many titles are prepared at once on a shared pool.
+     * @throws IOException If the playlist could not be loaded.
+     */
+    public void prepareOnCurrentThread() throws IOException {
+        prepareInternal();
+    }
+
+    /**
+     * Get the playlist loaded by {@link #prepare(Callback)}.
+     * @return
+     */
+    public HlsPlaylist getPlaylist() {
+        return mPlaylist;
+    }
+
+    @Override
+    public int getPeriodCount() {
+        return 1;
+    }
+
+    @Override
+    public TrackGroupArray getTrackGroups(int periodIndex) {
+        if (mPlaylist instanceof HlsMediaPlaylist) {
+            mRenditionGroups = new int[0];
+            return TrackGroupArray.EMPTY;
+        }
+
+        HlsMasterPlaylist masterPlaylist = (HlsMasterPlaylist) mPlaylist;
+        TrackGroup[] trackGroups = new TrackGroup[3];
+        mRenditionGroups = new int[3];
+        int trackGroupIndex = 0;
+        if (!masterPlaylist.variants.isEmpty()) {
+            mRenditionGroups[trackGroupIndex] = HlsMasterPlaylist.GROUP_INDEX_VARIANT;
+            trackGroups[trackGroupIndex++] = new TrackGroup(toFormats(masterPlaylist.variants));
+        }
+        if (!masterPlaylist.audios.isEmpty()) {
+            mRenditionGroups[trackGroupIndex] = HlsMasterPlaylist.GROUP_INDEX_AUDIO;
+            trackGroups[trackGroupIndex++] = new TrackGroup(toFormats(masterPlaylist.audios));
+        }
+        if (!masterPlaylist.subtitles.isEmpty()) {
+            mRenditionGroups[trackGroupIndex] = HlsMasterPlaylist.GROUP_INDEX_SUBTITLE;
+            trackGroups[trackGroupIndex++] = new TrackGroup(toFormats(masterPlaylist.subtitles));
+        }
+        return new TrackGroupArray(Arrays.copyOf(trackGroups, trackGroupIndex));
+    }
+
+    /**
+     * Get the kind of HLS rendition held by one of our track groups.
+     * @param trackGroupIndex
+     * @return Returns one of the HlsMasterPlaylist GROUP_INDEX values.
+     */
+    public int getRenditionGroup(int trackGroupIndex) {
+        if (mRenditionGroups == null) {
+            getTrackGroups(0);
+        }
+        return mRenditionGroups[trackGroupIndex];
+    }
+
+    /**
+     * Get the duration of the title, loading the media playlist of its first variant through the
+     * playlist cache when a master playlist was prepared. Must not be called on the main thread.
+     * @return Returns the duration, or {@link C#TIME_UNSET} if it could not be found.
+     */
+    public long getDurationUs() {
+        if (mDurationUs != C.TIME_UNSET || mPlaylist == null) {
+            return mDurationUs;
+        }
+        HlsPlaylist playlist = mPlaylist;
+        if (playlist instanceof HlsMasterPlaylist) {
+            HlsMasterPlaylist masterPlaylist = (HlsMasterPlaylist) playlist;
+            if (masterPlaylist.variants.isEmpty()) {
+                return C.TIME_UNSET;
+            }
+            Uri variantUri = UriUtil.resolveToUri(masterPlaylist.baseUri,
+                    masterPlaylist.variants.get(0).url);
+            try {
+                playlist = loadPlaylist(variantUri);
+            } catch (IOException e) {
+                LogTrace.w(TAG, "Failed to load variant playlist of %s", mUri);
+                return C.TIME_UNSET;
+            }
+        }
+        if (playlist instanceof HlsMediaPlaylist) {
+            mDurationUs = ((HlsMediaPlaylist) playlist).durationUs;
+        }
+        return mDurationUs;
+    }
+
+    @Override
+    public DownloadAction getDownloadAction(@Nullable byte[] data, List<TrackKey> trackKeys) {
+        if (mRenditionGroups == null) {
+            getTrackGroups(0);
+        }
+        return HlsCacheDownloadAction.createDownloadAction(mUri,
+                data,
+                toStreamKeys(trackKeys),
+                mNormalizer);
+    }
+
+    @Override
+    public DownloadAction getRemoveAction(@Nullable byte[] data) {
+        return HlsCacheDownloadAction.createRemoveAction(mUri, data, mNormalizer);
+    }
+
+    /**
+     * Convert track keys of our track groups into HLS stream keys.
+     * @param trackKeys
+     * @return
+     */
+    private List<StreamKey> toStreamKeys(List<TrackKey> trackKeys) {
+        if (trackKeys.isEmpty()) {
+            return Collections.emptyList();
+        }
+        List<StreamKey> streamKeys = new ArrayList<>(trackKeys.size());
+        for (TrackKey trackKey : trackKeys) {
+            streamKeys.add(new StreamKey(mRenditionGroups[trackKey.groupIndex], trackKey.trackIndex));
+        }
+        return streamKeys;
+    }
+
+    /**
+     * Load a playlist of this title through the playlist cache on the calling thread.
+     * @param uri
+     * @return
+     * @throws IOException If the playlist could not be loaded.
+     */
+    HlsPlaylist loadPlaylist(Uri uri) throws IOException {
+        DataSource dataSource = mManifestDataSourceFactory.createDataSource();
+        CachingHlsPlaylistParserFactory parserFactory =
+                new CachingHlsPlaylistParserFactory(mPlaylistCache, null);
+        ParsingLoadable<HlsPlaylist> loadable = new ParsingLoadable<>(dataSource,
+                uri,
+                C.DATA_TYPE_MANIFEST,
+                parserFactory.createPlaylistParser());
+        loadable.load();
+        return loadable.getResult();
+    }
+
+    private static Format[] toFormats(List<HlsMasterPlaylist.HlsUrl> hlsUrls) {
+        Format[] formats = new Format[hlsUrls.size()];
+        for (int i = 0; i < hlsUrls.size(); i++) {
+            formats[i] = hlsUrls.get(i).format;
+        }
+        return formats;
+    }
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2018 LLM HLS Playback Demo
+ */
+package com.lashawnmcghee.hlsplayback.offline;
+
+import android.net.Uri;
+import android.os.SystemClock;
+import android.support.annotation.Nullable;
+
+import com.google.android.exoplayer2.upstream.DataSource;
+import com.google.android.exoplayer2.upstream.DataSpec;
+import com.google.android.exoplayer2.upstream.TransferListener;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A {@link DataSource.Factory} for download requests which takes a permit of an
+ * {@link AdaptiveConcurrencyController} from open to close and reports how each request went.
+ *
+ * The latency of a request is the time spent inside the upstream until its first byte, that is its
+ * open and the reads which returned nothing yet. Time spent between calls, such as a
+ * {@link BandwidthArbiter} holding the download back above us, is not the network's doing and is
+ * left out.
+ */
+public class ConcurrencyLimitedDataSourceFactory implements DataSource.Factory {
+
+    private final DataSource.Factory mUpstreamFactory;
+    private final AdaptiveConcurrencyController mController;
+
+    /**
+     * Constructor for this factory.
+     * @param upstreamFactory Factory of the data sources doing the actual requests.
+     * @param controller Controller deciding how many downloads transfer at the same time.
+     */
+    public ConcurrencyLimitedDataSourceFactory(DataSource.Factory upstreamFactory,
+                                               AdaptiveConcurrencyController controller) {
+        mUpstreamFactory = upstreamFactory;
+        mController = controller;
+    }
+
+    @Override
+    public DataSource createDataSource() {
+        return new ConcurrencyLimitedDataSource(mUpstreamFactory.createDataSource());
+    }
+
+    /**
+     * Data source holding a controller permit while it is open.
+     */
+    private final class ConcurrencyLimitedDataSource implements DataSource {
+        private final DataSource mUpstream;
+
+        private boolean mPermitHeld;
+        private boolean mFailed;
+        private long mLatencyMs;
+        private long mBytesRead;
+
+        public ConcurrencyLimitedDataSource(DataSource upstream) {
+            mUpstream = upstream;
+        }
+
+        @Override
+        public void addTransferListener(TransferListener transferListener) {
+            mUpstream.addTransferListener(transferListener);
+        }
+
+        @Override
+        public long open(DataSpec dataSpec) throws IOException {
+            mController.acquire();
+            mPermitHeld = true;
+            mFailed = false;
+            mBytesRead = 0;
+            mLatencyMs = 0;
+            long lngStartMs = SystemClock.elapsedRealtime();
+            try {
+                long lngLength = mUpstream.open(dataSpec);
+                mLatencyMs = SystemClock.elapsedRealtime() - lngStartMs;
+                return lngLength;
+            } catch (IOException e) {
+                mFailed = !(e instanceof InterruptedIOException);
+                releasePermit();
+                throw e;
+            }
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int readLength) throws IOException {
+            int bytesRead;
+            long lngStartMs = mBytesRead == 0 ? SystemClock.elapsedRealtime() : 0;
+            try {
+                bytesRead = mUpstream.read(buffer, offset, readLength);
+            } catch (IOException e) {
+                //a cancelled download says nothing about the network
+                mFailed = !(e instanceof InterruptedIOException);
+                throw e;
+            }
+            if (mBytesRead == 0) {
+                //only the time spent waiting on the upstream counts towards the first byte
+                mLatencyMs += SystemClock.elapsedRealtime() - lngStartMs;
+            }
+            if (bytesRead > 0) {
+                mBytesRead += bytesRead;
+            }
+            return bytesRead;
+        }
+
+        @Nullable
+        @Override
+        public Uri getUri() {
+            return mUpstream.getUri();
+        }
+
+        @Override
+        public Map<String, List<String>> getResponseHeaders() {
+            return mUpstream.getResponseHeaders();
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                mUpstream.close();
+            } finally {
+                releasePermit();
+            }
+        }
+
+        private void releasePermit() {
+            if (!mPermitHeld) {
+                return;
+            }
+            mPermitHeld = false;
+            mController.release();
+            long lngNowMs = SystemClock.elapsedRealtime();
+            if (mFailed) {
+                mController.onRequestFailed(lngNowMs);
+            } else if (mBytesRead > 0) {
+                mController.onRequestCompleted(mBytesRead, mLatencyMs, lngNowMs);
+            }
+        }
+    }
+}
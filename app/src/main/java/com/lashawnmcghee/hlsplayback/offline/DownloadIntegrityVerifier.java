@@ -0,0 +1,368 @@
+/*
+ * Copyright (C) 2018 LLM HLS Playback Demo
+ */
+package com.lashawnmcghee.hlsplayback.offline;
+
+import com.google.android.exoplayer2.C;
+import com.google.android.exoplayer2.offline.DownloaderConstructorHelper;
+import com.google.android.exoplayer2.upstream.DataSpec;
+import com.google.android.exoplayer2.upstream.cache.Cache;
+import com.google.android.exoplayer2.upstream.cache.CacheDataSource;
+import com.google.android.exoplayer2.upstream.cache.CacheSpan;
+import com.google.android.exoplayer2.upstream.cache.CacheUtil;
+import com.google.android.exoplayer2.upstream.cache.ContentMetadataMutations;
+import com.google.android.exoplayer2.util.Util;
+import com.lashawnmcghee.hlsplayback.cache.ByteArrayPool;
+import com.lashawnmcghee.hlsplayback.util.LogTrace;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+/**
+ * Checks that a completed download is fully present in the cache before it is needed offline.
+ *
+ * The playlists of the download are read back from the cache and every segment is checked
+ * against the cached spans of its key: a segment is missing when bytes of its range are not
+ * cached, and corrupt when a span file on disk is shorter than the cache index says. Segments can
+ * also be read back in full and hashed. The reference hash of a segment is the one taken by a
+ * {@link HashingDataSinkFactory} as its bytes came from the network, and only a segment written
+ * without one, such as a resumed one, falls back to the hash of its first read. The reference
+ * hashes of a title are kept together in the content metadata of its playlist key, so recording
+ * them costs one write of the cache index per verification.
+ *
+ * Segments are checked on a bounded pool, each check borrowing its read buffer from a shared pool.
+ * Spans of corrupt segments are removed, so downloading the action again fetches only what is
+ * missing.
+ */
+public class DownloadIntegrityVerifier {
+    private static final String TAG = DownloadIntegrityVerifier.class.getSimpleName();
+
+    public static final int STATE_UNKNOWN = 0;
+    public static final int STATE_COMPLETE = 1;
+    public static final int STATE_PARTIAL = 2;
+    public static final int STATE_CORRUPT = 3;
+
+    //content metadata name of the segment hashes of a title
+    private static final String METADATA_CRC32 = "hls_crc32";
+
+    private static final int SEGMENT_OK = 0;
+    private static final int SEGMENT_MISSING = 1;
+    private static final int SEGMENT_CORRUPT = 2;
+
+    private final DownloaderConstructorHelper mConstructorHelper;
+    private final Cache mCache;
+    private final HashingDataSinkFactory mHashingSinkFactory;
+    private final ExecutorService mExecutor;
+    private final ByteArrayPool mBufferPool;
+
+    /**
+     * Constructor for this verifier, without hashes taken as segments were written.
+     * @param constructorHelper Helper providing the cache and its data sources, as used by the
+     *                          download manager.
+     * @param threads Maximum number of segments checked at the same time.
+     */
+    public DownloadIntegrityVerifier(DownloaderConstructorHelper constructorHelper, int threads) {
+        this(constructorHelper, threads, null);
+    }
+
+    /**
+     * Constructor for this verifier.
+     * @param constructorHelper Helper providing the cache and its data sources, as used by the
+     *                          download manager.
+     * @param threads Maximum number of segments checked at the same time.
+     * @param hashingSinkFactory Sink factory of the download manager hashing what it writes, or
+     *                           null.
+     */
+    public DownloadIntegrityVerifier(DownloaderConstructorHelper constructorHelper,
+                                     int threads,
+                                     HashingDataSinkFactory hashingSinkFactory) {
+        mConstructorHelper = constructorHelper;
+        mHashingSinkFactory = hashingSinkFactory;
+        mCache = constructorHelper.getCache();
+        mExecutor = Executors.newFixedThreadPool(Math.max(1, threads));
+        mBufferPool = new ByteArrayPool(CacheUtil.DEFAULT_BUFFER_SIZE_BYTES, Math.max(1, threads));
+    }
+
+    /**
+     * Verify one download. Blocks until every segment has been checked, so it must not be called
+     * on the main thread.
+     * @param action Action of the completed download.
+     * @param hashSegments Whether every segment is read back and hashed as well.
+     * @return
+     * @throws InterruptedException If the calling thread was interrupted.
+     */
+    public Result verify(HlsCacheDownloadAction action, boolean hashSegments)
+            throws InterruptedException {
+        List<DataSpec> dataSpecs;
+        try {
+            dataSpecs = action.createDownloader(mConstructorHelper).getCachedSegmentDataSpecs();
+        } catch (IOException e) {
+            //without its playlists nothing else can be listed, downloading again restores them
+            LogTrace.w(TAG, "Playlists of %s are not in cache: %s", action.uri, e.getMessage());
+            return new Result(STATE_PARTIAL, 0, 1, 0, 0);
+        }
+
+        //the master or media playlist comes first
+        String sTitleKey = dataSpecs.get(0).key;
+        Map<String, Long> recordedHashes = readHashes(sTitleKey);
+        ConcurrentHashMap<String, Long> hashes = new ConcurrentHashMap<>(recordedHashes);
+        AtomicLong verifiedBytes = new AtomicLong();
+        ArrayList<Future<Integer>> futures = new ArrayList<>(dataSpecs.size());
+        for (DataSpec dataSpec : dataSpecs) {
+            futures.add(mExecutor.submit(
+                    () -> checkSegment(dataSpec, hashSegments, hashes, verifiedBytes)));
+        }
+
+        int iMissing = 0;
+        int iCorrupt = 0;
+        try {
+            for (int i = 0; i < futures.size(); i++) {
+                int iStatus;
+                try {
+                    iStatus = futures.get(i).get();
+                } catch (ExecutionException e) {
+                    LogTrace.e(TAG, "Failed to check segment", e.getCause());
+                    iStatus = SEGMENT_MISSING;
+                }
+                if (iStatus == SEGMENT_MISSING) {
+                    iMissing++;
+                } else if (iStatus == SEGMENT_CORRUPT) {
+                    iCorrupt++;
+                }
+            }
+        } catch (InterruptedException e) {
+            for (Future<Integer> future : futures) {
+                future.cancel(true);
+            }
+            throw e;
+        }
+
+        if (!hashes.equals(recordedHashes)) {
+            writeHashes(sTitleKey, hashes);
+        }
+        int iState = iCorrupt > 0 ? STATE_CORRUPT : (iMissing > 0 ? STATE_PARTIAL : STATE_COMPLETE);
+        LogTrace.d(TAG, "%s: %d segments, %d missing, %d corrupt",
+                action.uri, dataSpecs.size(), iMissing, iCorrupt);
+        return new Result(iState, dataSpecs.size(), iMissing, iCorrupt, verifiedBytes.get());
+    }
+
+    /**
+     * Stop the verification pool. Verifications in progress are interrupted.
+     */
+    public void release() {
+        mExecutor.shutdownNow();
+        mBufferPool.clear();
+    }
+
+    /**
+     * Check one segment on a pool thread.
+     * @param dataSpec
+     * @param hashSegments
+     * @param hashes Reference hashes of the title, updated for this segment.
+     * @param verifiedBytes Counter the length of a segment found intact is added to.
+     * @return Returns one of the SEGMENT values.
+     */
+    private int checkSegment(DataSpec dataSpec,
+                             boolean hashSegments,
+                             Map<String, Long> hashes,
+                             AtomicLong verifiedBytes) {
+        CacheUtil.CachingCounters counters = new CacheUtil.CachingCounters();
+        CacheUtil.getCached(dataSpec, mCache, counters);
+        if (counters.contentLength == C.LENGTH_UNSET
+                || counters.alreadyCachedBytes < counters.contentLength) {
+            return SEGMENT_MISSING;
+        }
+        long lngEnd = dataSpec.absoluteStreamPosition + counters.contentLength;
+        String sName = getHashName(dataSpec);
+
+        //the index may list span files which were truncated or deleted behind its back
+        ArrayList<CacheSpan> spans = new ArrayList<>();
+        for (CacheSpan span : mCache.getCachedSpans(dataSpec.key)) {
+            if (span.position < lngEnd
+                    && span.position + span.length > dataSpec.absoluteStreamPosition) {
+                spans.add(span);
+            }
+        }
+        for (CacheSpan span : spans) {
+            if (span.file == null || span.file.length() != span.length) {
+                removeSpans(spans);
+                hashes.remove(sName);
+                return SEGMENT_CORRUPT;
+            }
+        }
+
+        //a hash taken as the segment was written replaces any older one
+        Long writtenHash = mHashingSinkFactory == null ? null
+                : mHashingSinkFactory.take(dataSpec.key,
+                        dataSpec.absoluteStreamPosition,
+                        counters.contentLength);
+        if (writtenHash != null) {
+            hashes.put(sName, writtenHash);
+        }
+        if (hashSegments) {
+            long lngHash = readHash(dataSpec, counters.contentLength);
+            Long referenceHash = hashes.get(sName);
+            if (lngHash == C.LENGTH_UNSET
+                    || (referenceHash != null && referenceHash != lngHash)) {
+                removeSpans(spans);
+                hashes.remove(sName);
+                return SEGMENT_CORRUPT;
+            }
+            if (referenceHash == null) {
+                //written without a hash, its first read is the best reference left
+                hashes.put(sName, lngHash);
+            }
+        }
+        verifiedBytes.addAndGet(counters.contentLength);
+        return SEGMENT_OK;
+    }
+
+    /**
+     * Read a segment back from the cache and hash it.
+     * @param dataSpec
+     * @param lngLength
+     * @return Returns the CRC32 of the segment, or {@link C#LENGTH_UNSET} if it could not be
+     * read in full.
+     */
+    private long readHash(DataSpec dataSpec, long lngLength) {
+        CacheDataSource dataSource = mConstructorHelper.buildCacheDataSource(true);
+        byte[] buffer = mBufferPool.acquire();
+        CRC32 crc = new CRC32();
+        long lngRead = 0;
+        try {
+            dataSource.open(new DataSpec(dataSpec.uri,
+                    dataSpec.absoluteStreamPosition,
+                    lngLength,
+                    dataSpec.key));
+            int iRead;
+            while ((iRead = dataSource.read(buffer, 0, buffer.length)) != C.RESULT_END_OF_INPUT) {
+                crc.update(buffer, 0, iRead);
+                lngRead += iRead;
+            }
+        } catch (IOException e) {
+            LogTrace.w(TAG, "Failed to read back %s: %s", dataSpec.uri, e.getMessage());
+            return C.LENGTH_UNSET;
+        } finally {
+            Util.closeQuietly(dataSource);
+            mBufferPool.release(buffer);
+        }
+        return lngRead == lngLength ? crc.getValue() : C.LENGTH_UNSET;
+    }
+
+    private void removeSpans(List<CacheSpan> spans) {
+        for (CacheSpan span : spans) {
+            try {
+                mCache.removeSpan(span);
+            } catch (Cache.CacheException e) {
+                LogTrace.e(TAG, "Failed to remove corrupt span", e);
+            }
+        }
+    }
+
+    /**
+     * Read the reference hashes recorded for the segments of a title.
+     * @param sTitleKey Cache key of the playlist of the title.
+     * @return
+     */
+    private Map<String, Long> readHashes(String sTitleKey) {
+        HashMap<String, Long> hashes = new HashMap<>();
+        byte[] value = mCache.getContentMetadata(sTitleKey).get(METADATA_CRC32, (byte[]) null);
+        if (value == null) {
+            return hashes;
+        }
+        try (DataInputStream input = new DataInputStream(new ByteArrayInputStream(value))) {
+            int iCount = input.readInt();
+            for (int i = 0; i < iCount; i++) {
+                int iKeyHash = input.readInt();
+                long lngPosition = input.readLong();
+                hashes.put(iKeyHash + "@" + lngPosition, input.readInt() & 0xFFFFFFFFL);
+            }
+        } catch (IOException e) {
+            //a damaged value is replaced by the hashes of this verification
+            LogTrace.w(TAG, "Failed to read segment hashes of %s", sTitleKey);
+            hashes.clear();
+        }
+        return hashes;
+    }
+
+    /**
+     * Record the reference hashes of the segments of a title in one metadata write.
+     * @param sTitleKey Cache key of the playlist of the title.
+     * @param hashes
+     */
+    private void writeHashes(String sTitleKey, Map<String, Long> hashes) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(4 + hashes.size() * 16);
+        DataOutputStream output = new DataOutputStream(bytes);
+        try {
+            output.writeInt(hashes.size());
+            for (Map.Entry<String, Long> hash : hashes.entrySet()) {
+                String sName = hash.getKey();
+                int iSeparator = sName.indexOf('@');
+                output.writeInt(Integer.parseInt(sName.substring(0, iSeparator)));
+                output.writeLong(Long.parseLong(sName.substring(iSeparator + 1)));
+                output.writeInt((int) (long) hash.getValue());
+            }
+            ContentMetadataMutations mutations = new ContentMetadataMutations();
+            mutations.set(METADATA_CRC32, bytes.toByteArray());
+            mCache.applyContentMetadataMutations(sTitleKey, mutations);
+        } catch (IOException e) {
+            LogTrace.e(TAG, "Failed to record segment hashes", e);
+        }
+    }
+
+    /**
+     * Name a segment among the hashes of its title by the hash of its key and its position.
+     * @param dataSpec
+     * @return
+     */
+    private static String getHashName(DataSpec dataSpec) {
+        return dataSpec.key.hashCode() + "@" + dataSpec.absoluteStreamPosition;
+    }
+
+    /**
+     * The outcome of verifying one download.
+     */
+    public static final class Result {
+        //one of the STATE values
+        public final int state;
+        public final int segmentCount;
+        public final int missingSegmentCount;
+        public final int corruptSegmentCount;
+        //bytes of the segments found intact
+        public final long verifiedBytes;
+
+        Result(int state,
+               int segmentCount,
+               int missingSegmentCount,
+               int corruptSegmentCount,
+               long verifiedBytes) {
+            this.state = state;
+            this.segmentCount = segmentCount;
+            this.missingSegmentCount = missingSegmentCount;
+            this.corruptSegmentCount = corruptSegmentCount;
+            this.verifiedBytes = verifiedBytes;
+        }
+
+        /**
+         * Whether the download must be queued again to fetch missing or corrupt segments.
+         * @return
+         */
+        public boolean needsDownload() {
+            return state == STATE_PARTIAL || state == STATE_CORRUPT;
+        }
+    }
+}
@@ -0,0 +1,523 @@
+/*
+ * Copyright (C) 2018 LLM HLS Playback Demo
+ */
+package com.lashawnmcghee.hlsplayback.offline;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.zip.CRC32;
+
+/**
+ * A journal of the bytes fetched for segments which are still being downloaded.
+ *
+ * The bytes of an unfinished segment are appended to a part file. Once a batch of them was
+ * written, the part file is fsynced and a small checksummed record of the new offset is appended
+ * to the journal file, so a power loss or a dying process costs at most one batch. An interrupted
+ * request records its offset when it is closed. After a restart the journal is replayed, and a
+ * segment resumes at the lower of its recorded offset and its part file length instead of from
+ * scratch. Once a segment is complete its part file is deleted.
+ *
+ * Part files are written and fsynced under a lock of their own entry, so lanes downloading
+ * different segments never wait for each other's disk. The journal itself is only locked while a
+ * record is appended, and is fsynced outside that lock.
+ */
+public class DownloadJournal {
+    private static final int MAGIC = 0x484C444A;
+    private static final int VERSION = 1;
+
+    private static final byte OP_BEGIN = 1;
+    private static final byte OP_PROGRESS = 2;
+    private static final byte OP_COMPLETE = 3;
+
+    /**
+     * Bytes of a segment written between two fsyncs and offset records. A segment no longer than
+     * this costs no more to fetch again than a crash may lose anyway, so it is not journaled.
+     */
+    public static final long SYNC_BATCH_BYTES = 512 * 1024;
+
+    private static final String PART_SUFFIX = ".part";
+    private static final int COMPACT_MIN_RECORDS = 4096;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final File mJournalFile;
+    private final File mPartDirectory;
+    private final HashMap<String, Entry> mEntries = new HashMap<>();
+    //orders journal fsyncs against compaction, which replaces the journal output
+    private final Object mSyncLock = new Object();
+
+    private FileOutputStream mJournalOutput;
+    private int mRecordCount;
+
+    /**
+     * Constructor for this journal.
+     * @param journalFile File holding the journal records.
+     * @param partDirectory Directory holding the bytes of unfinished segments.
+     */
+    public DownloadJournal(File journalFile, File partDirectory) {
+        mJournalFile = journalFile;
+        mPartDirectory = partDirectory;
+    }
+
+    /**
+     * Replay the journal and drop part files nothing refers to.
+     * The journal is rewritten with one record per unfinished segment.
+     * @throws IOException If the journal could not be rewritten.
+     */
+    public void load() throws IOException {
+        synchronized (mSyncLock) {
+            synchronized (this) {
+                loadEntries();
+            }
+        }
+    }
+
+    private void loadEntries() throws IOException {
+        mEntries.clear();
+        if (mJournalFile.exists()) {
+            try (DataInputStream input =
+                         new DataInputStream(new FileInputStream(mJournalFile))) {
+                replay(input);
+            }
+        }
+
+        //a part file shorter than its record lost its tail to a power loss
+        for (Entry entry : mEntries.values().toArray(new Entry[0])) {
+            File partFile = getPartFile(entry.key);
+            if (!partFile.exists()) {
+                mEntries.remove(entry.key);
+            } else if (partFile.length() < entry.mOffset) {
+                entry.mOffset = partFile.length();
+                entry.mRecordedOffset = entry.mOffset;
+            }
+        }
+        if (!mPartDirectory.exists() && !mPartDirectory.mkdirs()) {
+            throw new IOException("Failed to create " + mPartDirectory);
+        }
+        File[] partFiles = mPartDirectory.listFiles();
+        if (partFiles != null) {
+            for (File partFile : partFiles) {
+                if (!isReferenced(partFile)) {
+                    partFile.delete();
+                }
+            }
+        }
+        rewrite();
+    }
+
+    /**
+     * Get the unfinished segment recorded for a cache key.
+     * @param key
+     * @return Returns the entry, or null if nothing is recorded.
+     */
+    public synchronized Entry get(String key) {
+        return mEntries.get(key);
+    }
+
+    /**
+     * Get the number of unfinished segments.
+     * @return
+     */
+    public synchronized int getEntryCount() {
+        return mEntries.size();
+    }
+
+    /**
+     * Start recording the bytes of a segment, dropping whatever was recorded for its key.
+     * @param key Cache key of the segment.
+     * @param start Position in the segment of the first byte recorded.
+     * @return
+     */
+    public Entry begin(String key, long start) throws IOException {
+        Entry previous;
+        synchronized (this) {
+            previous = mEntries.remove(key);
+        }
+        if (previous != null) {
+            previous.close();
+        }
+        getPartFile(key).delete();
+        Entry entry = new Entry(key, start);
+        synchronized (this) {
+            mEntries.put(key, entry);
+            appendRecord(OP_BEGIN, key, start, 0);
+        }
+        compactIfNeeded();
+        return entry;
+    }
+
+    /**
+     * Append bytes of a segment following those already recorded. Every full batch is fsynced
+     * and its offset recorded.
+     * @param entry
+     * @param buffer
+     * @param offset
+     * @param length
+     */
+    public void append(Entry entry, byte[] buffer, int offset, int length) throws IOException {
+        long lngOffset;
+        synchronized (entry) {
+            if (entry.mClosed) {
+                //the entry was completed or restarted by someone else
+                return;
+            }
+            RandomAccessFile part = entry.openPart(getPartFile(entry.key));
+            part.seek(entry.mOffset);
+            part.write(buffer, offset, length);
+            entry.mOffset += length;
+            entry.mUnsyncedBytes += length;
+            if (entry.mUnsyncedBytes < SYNC_BATCH_BYTES) {
+                return;
+            }
+            lngOffset = entry.syncPart();
+        }
+        recordProgress(entry, lngOffset);
+        syncJournal();
+    }
+
+    /**
+     * Record how far an unfinished segment got, for a request which stops before its end.
+     * @param entry
+     */
+    public void checkpoint(Entry entry) throws IOException {
+        long lngOffset;
+        synchronized (entry) {
+            if (entry.mClosed || entry.mOffset == entry.mRecordedOffset) {
+                return;
+            }
+            lngOffset = entry.syncPart();
+        }
+        recordProgress(entry, lngOffset);
+    }
+
+    /**
+     * Open the recorded bytes of a segment.
+     * @param entry
+     * @param position Position in the segment of the first byte to read.
+     * @return
+     */
+    public InputStream openPart(Entry entry, long position) throws IOException {
+        FileInputStream input = new FileInputStream(getPartFile(entry.key));
+        long lngSkip = position - entry.start;
+        while (lngSkip > 0) {
+            long lngSkipped = input.skip(lngSkip);
+            if (lngSkipped <= 0) {
+                input.close();
+                throw new EOFException();
+            }
+            lngSkip -= lngSkipped;
+        }
+        return input;
+    }
+
+    /**
+     * Forget a segment whose bytes are all in the cache now.
+     * @param entry
+     */
+    public void complete(Entry entry) throws IOException {
+        synchronized (this) {
+            if (mEntries.get(entry.key) != entry) {
+                return;
+            }
+            mEntries.remove(entry.key);
+        }
+        entry.close();
+        getPartFile(entry.key).delete();
+        //a lost record only replays an entry whose part file is gone, which load() drops
+        synchronized (this) {
+            appendRecord(OP_COMPLETE, entry.key, entry.start, 0);
+        }
+        compactIfNeeded();
+    }
+
+    /**
+     * Fsync the part files, record their offsets and fsync the journal.
+     */
+    public void sync() throws IOException {
+        Entry[] entries;
+        synchronized (this) {
+            entries = mEntries.values().toArray(new Entry[0]);
+        }
+        for (Entry entry : entries) {
+            checkpoint(entry);
+        }
+        syncJournal();
+    }
+
+    /**
+     * Sync and close every file of the journal.
+     */
+    public void close() throws IOException {
+        sync();
+        Entry[] entries;
+        synchronized (this) {
+            entries = mEntries.values().toArray(new Entry[0]);
+        }
+        for (Entry entry : entries) {
+            synchronized (entry) {
+                entry.closePart();
+            }
+        }
+        synchronized (mSyncLock) {
+            synchronized (this) {
+                if (mJournalOutput != null) {
+                    mJournalOutput.close();
+                    mJournalOutput = null;
+                }
+            }
+        }
+    }
+
+    private void recordProgress(Entry entry, long lngOffset) throws IOException {
+        synchronized (this) {
+            if (mEntries.get(entry.key) != entry || lngOffset <= entry.mRecordedOffset) {
+                return;
+            }
+            entry.mRecordedOffset = lngOffset;
+            appendRecord(OP_PROGRESS, entry.key, entry.start, lngOffset);
+        }
+        compactIfNeeded();
+    }
+
+    /**
+     * Fsync the journal without blocking writers of records.
+     */
+    private void syncJournal() throws IOException {
+        synchronized (mSyncLock) {
+            FileOutputStream output;
+            synchronized (this) {
+                output = mJournalOutput;
+            }
+            if (output != null) {
+                output.getFD().sync();
+            }
+        }
+    }
+
+    private void compactIfNeeded() throws IOException {
+        synchronized (mSyncLock) {
+            synchronized (this) {
+                if (mJournalOutput != null
+                        && mRecordCount > COMPACT_MIN_RECORDS
+                        && mRecordCount > 4 * mEntries.size()) {
+                    rewrite();
+                }
+            }
+        }
+    }
+
+    private void replay(DataInputStream input) throws IOException {
+        try {
+            if (input.readInt() != MAGIC || input.readInt() != VERSION) {
+                return;
+            }
+            CRC32 crc = new CRC32();
+            while (true) {
+                byte op = input.readByte();
+                int keyLength = input.readUnsignedShort();
+                byte[] keyBytes = new byte[keyLength];
+                input.readFully(keyBytes);
+                long position = input.readLong();
+                long value = input.readLong();
+                int checksum = input.readInt();
+
+                crc.reset();
+                crc.update(encodeRecord(op, keyBytes, position, value));
+                if ((int) crc.getValue() != checksum) {
+                    //a damaged tail, keep everything before it
+                    return;
+                }
+                String key = new String(keyBytes, UTF_8);
+                Entry entry = mEntries.get(key);
+                switch (op) {
+                    case OP_BEGIN:
+                        mEntries.put(key, new Entry(key, position));
+                        break;
+                    case OP_PROGRESS:
+                        if (entry != null && entry.start == position) {
+                            entry.mOffset = value;
+                            entry.mRecordedOffset = value;
+                        }
+                        break;
+                    case OP_COMPLETE:
+                        if (entry != null && entry.start == position) {
+                            mEntries.remove(key);
+                        }
+                        break;
+                    default:
+                        return;
+                }
+            }
+        } catch (EOFException e) {
+            //a truncated tail from an interrupted write, keep everything before it
+        }
+    }
+
+    /**
+     * Replace the journal with one record per unfinished segment and keep it open for appending.
+     * Only recorded offsets are written, since later bytes may not be synced yet.
+     */
+    private void rewrite() throws IOException {
+        if (mJournalOutput != null) {
+            mJournalOutput.close();
+            mJournalOutput = null;
+        }
+        File tempFile = new File(mJournalFile.getPath() + ".tmp");
+        try (FileOutputStream output = new FileOutputStream(tempFile)) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream data = new DataOutputStream(bytes);
+            data.writeInt(MAGIC);
+            data.writeInt(VERSION);
+            for (Entry entry : mEntries.values()) {
+                writeRecord(data, OP_BEGIN, entry.key, entry.start, 0);
+                writeRecord(data, OP_PROGRESS, entry.key, entry.start, entry.mRecordedOffset);
+            }
+            output.write(bytes.toByteArray());
+            output.getFD().sync();
+        }
+        if (!tempFile.renameTo(mJournalFile)) {
+            throw new IOException("Failed to replace " + mJournalFile);
+        }
+        mRecordCount = mEntries.size() * 2;
+        mJournalOutput = new FileOutputStream(mJournalFile, true);
+    }
+
+    private void appendRecord(byte op, String key, long position, long value) throws IOException {
+        if (mJournalOutput == null) {
+            throw new IOException("Download journal is not loaded");
+        }
+        //one write per record so a dying process leaves whole records behind
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        writeRecord(new DataOutputStream(bytes), op, key, position, value);
+        mJournalOutput.write(bytes.toByteArray());
+        mRecordCount++;
+    }
+
+    private static void writeRecord(DataOutputStream output,
+                                    byte op,
+                                    String key,
+                                    long position,
+                                    long value) throws IOException {
+        byte[] record = encodeRecord(op, key.getBytes(UTF_8), position, value);
+        CRC32 crc = new CRC32();
+        crc.update(record);
+        output.write(record);
+        output.writeInt((int) crc.getValue());
+    }
+
+    private static byte[] encodeRecord(byte op, byte[] keyBytes, long position, long value)
+            throws IOException {
+        ByteArrayOutputStream recordBytes = new ByteArrayOutputStream(keyBytes.length + 19);
+        DataOutputStream record = new DataOutputStream(recordBytes);
+        record.writeByte(op);
+        record.writeShort(keyBytes.length);
+        record.write(keyBytes);
+        record.writeLong(position);
+        record.writeLong(value);
+        return recordBytes.toByteArray();
+    }
+
+    private synchronized boolean isReferenced(File partFile) {
+        for (Entry entry : mEntries.values()) {
+            if (getPartFile(entry.key).equals(partFile)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private File getPartFile(String key) {
+        return new File(mPartDirectory, hash(key) + PART_SUFFIX);
+    }
+
+    private static String hash(String key) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(key.getBytes(UTF_8));
+            StringBuilder builder = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                builder.append(String.format("%02x", b & 0xFF));
+            }
+            return builder.toString();
+        } catch (NoSuchAlgorithmException e) {
+            return Integer.toHexString(key.hashCode());
+        }
+    }
+
+    /**
+     * The recorded bytes of one unfinished segment.
+     */
+    public static final class Entry {
+        public final String key;
+        public final long start;
+
+        private volatile long mOffset;
+        private long mRecordedOffset;
+        private long mUnsyncedBytes;
+        private boolean mClosed;
+        private RandomAccessFile mPart;
+
+        private Entry(String key, long start) {
+            this.key = key;
+            this.start = start;
+        }
+
+        /**
+         * Get the number of bytes recorded from the start position.
+         * @return
+         */
+        public long getRecordedBytes() {
+            return mOffset;
+        }
+
+        /**
+         * Get the position in the segment following the last recorded byte.
+         * @return
+         */
+        public long getEndPosition() {
+            return start + mOffset;
+        }
+
+        private RandomAccessFile openPart(File partFile) throws IOException {
+            if (mPart == null) {
+                mPart = new RandomAccessFile(partFile, "rw");
+            }
+            return mPart;
+        }
+
+        /**
+         * Fsync the part file, called holding the lock of this entry.
+         * @return Returns the offset which is durable now.
+         */
+        private long syncPart() throws IOException {
+            if (mPart != null) {
+                mPart.getFD().sync();
+            }
+            mUnsyncedBytes = 0;
+            return mOffset;
+        }
+
+        private synchronized void close() throws IOException {
+            mClosed = true;
+            closePart();
+        }
+
+        private void closePart() throws IOException {
+            if (mPart != null) {
+                mPart.close();
+                mPart = null;
+            }
+        }
+    }
+}
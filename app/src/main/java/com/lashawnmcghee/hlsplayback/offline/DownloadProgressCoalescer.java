@@ -0,0 +1,138 @@
+/*
+ * Copyright (C) 2018 LLM HLS Playback Demo
+ */
+package com.lashawnmcghee.hlsplayback.offline;
+
+import com.google.android.exoplayer2.C;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Collects download progress as often as it is reported and hands out at most one event per
+ * title each time it is drained, so listeners see the latest progress at the drain rate no matter
+ * how often it changed in between.
+ *
+ * Throughput is measured from the bytes downloaded since the previous sample, with samples at
+ * least {@link #MIN_SAMPLE_WINDOW_MS} apart so close reports do not make it jump.
+ * A title is forgotten once an event with a finished state has been drained.
+ * It is not thread safe, our tracker only uses it on the main thread.
+ */
+public class DownloadProgressCoalescer {
+    static final long MIN_SAMPLE_WINDOW_MS = 250;
+
+    private final LinkedHashMap<String, Progress> mProgress = new LinkedHashMap<>();
+
+    /**
+     * Report the progress of one title.
+     * @param url URL of the title.
+     * @param state One of the DownloadProgressEvent STATE values.
+     * @param downloadedBytes Bytes downloaded so far.
+     * @param percentage Percentage downloaded, or {@link C#PERCENTAGE_UNSET} if unknown.
+     * @param nowMs Current time in milliseconds.
+     */
+    public void onProgress(String url,
+                           int state,
+                           long downloadedBytes,
+                           float percentage,
+                           long nowMs) {
+        Progress progress = mProgress.get(url);
+        if (progress == null) {
+            progress = new Progress(downloadedBytes, nowMs);
+            mProgress.put(url, progress);
+        } else if (progress.state == state
+                && progress.downloadedBytes == downloadedBytes
+                && progress.percentage == percentage) {
+            //nothing new, but a stalled download must show its throughput falling
+            updateRate(progress, state, downloadedBytes, nowMs);
+            return;
+        }
+        updateRate(progress, state, downloadedBytes, nowMs);
+        progress.state = state;
+        progress.downloadedBytes = Math.max(0, downloadedBytes);
+        progress.percentage = percentage;
+        progress.isDirty = true;
+    }
+
+    /**
+     * Take an event for every title which changed since the last drain.
+     * @return Returns the events in the order their titles were first reported.
+     */
+    public List<DownloadProgressEvent> drain() {
+        ArrayList<DownloadProgressEvent> events = new ArrayList<>();
+        Iterator<Map.Entry<String, Progress>> iterator = mProgress.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<String, Progress> entry = iterator.next();
+            Progress progress = entry.getValue();
+            if (!progress.isDirty) {
+                continue;
+            }
+            progress.isDirty = false;
+            events.add(new DownloadProgressEvent(entry.getKey(),
+                    progress.state,
+                    progress.downloadedBytes,
+                    progress.percentage,
+                    progress.bytesPerSecond));
+            if (DownloadProgressEvent.isFinished(progress.state)) {
+                iterator.remove();
+            }
+        }
+        return events;
+    }
+
+    /**
+     * Whether any title may still report progress, so it is worth polling for.
+     * @return
+     */
+    public boolean hasActive() {
+        for (Progress progress : mProgress.values()) {
+            if (progress.isDirty || !DownloadProgressEvent.isFinished(progress.state)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static void updateRate(Progress progress, int state, long downloadedBytes, long nowMs) {
+        if (state != DownloadProgressEvent.STATE_DOWNLOADING) {
+            if (progress.bytesPerSecond != 0) {
+                progress.bytesPerSecond = 0;
+                progress.isDirty = true;
+            }
+            progress.sampleBytes = downloadedBytes;
+            progress.sampleMs = nowMs;
+            return;
+        }
+        long lngElapsedMs = nowMs - progress.sampleMs;
+        if (lngElapsedMs < MIN_SAMPLE_WINDOW_MS) {
+            return;
+        }
+        //a restarted download counts from zero again
+        long lngBytes = Math.max(0, downloadedBytes - progress.sampleBytes);
+        long lngRate = lngBytes * 1000 / lngElapsedMs;
+        if (lngRate != progress.bytesPerSecond) {
+            progress.bytesPerSecond = lngRate;
+            progress.isDirty = true;
+        }
+        progress.sampleBytes = downloadedBytes;
+        progress.sampleMs = nowMs;
+    }
+
+    private static final class Progress {
+        int state = -1;
+        long downloadedBytes;
+        float percentage = C.PERCENTAGE_UNSET;
+        long bytesPerSecond;
+        long sampleBytes;
+        long sampleMs;
+        boolean isDirty;
+
+        Progress(long sampleBytes, long sampleMs) {
+            this.sampleBytes = sampleBytes;
+            this.sampleMs = sampleMs;
+        }
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright (C) 2018 LLM HLS Playback Demo
+ */
+package com.lashawnmcghee.hlsplayback.offline;
+
+import com.google.android.exoplayer2.C;
+
+/**
+ * The progress of one tracked download at a point in time, as delivered to
+ * {@link com.lashawnmcghee.hlsplayback.interfaces.IDownloadProgressListener}s.
+ * Titles are identified by their URL, which is also the tag of their row in our media list.
+ */
+public final class DownloadProgressEvent {
+    public static final int STATE_QUEUED = 0;
+    public static final int STATE_DOWNLOADING = 1;
+    public static final int STATE_COMPLETED = 2;
+    public static final int STATE_FAILED = 3;
+    public static final int STATE_CANCELED = 4;
+    public static final int STATE_REMOVING = 5;
+    public static final int STATE_REMOVED = 6;
+
+    public final String url;
+    public final int state;
+    public final long downloadedBytes;
+    //C.PERCENTAGE_UNSET while the size of the title is unknown
+    public final float percentage;
+    //throughput over the last sample window, 0 when not downloading
+    public final long bytesPerSecond;
+
+    public DownloadProgressEvent(String url,
+                                 int state,
+                                 long downloadedBytes,
+                                 float percentage,
+                                 long bytesPerSecond) {
+        this.url = url;
+        this.state = state;
+        this.downloadedBytes = downloadedBytes;
+        this.percentage = percentage;
+        this.bytesPerSecond = bytesPerSecond;
+    }
+
+    /**
+     * Whether no more events will follow for this download.
+     * @return
+     */
+    public boolean isFinished() {
+        return isFinished(state);
+    }
+
+    /**
+     * Whether the title is, or is becoming, part of our tracked downloads.
+     * @return
+     */
+    public boolean isTracked() {
+        return state == STATE_QUEUED || state == STATE_DOWNLOADING || state == STATE_COMPLETED;
+    }
+
+    /**
+     * Whether a percentage is known for this download.
+     * @return
+     */
+    public boolean hasPercentage() {
+        return percentage != C.PERCENTAGE_UNSET;
+    }
+
+    static boolean isFinished(int state) {
+        return state == STATE_COMPLETED
+                || state == STATE_FAILED
+                || state == STATE_CANCELED
+                || state == STATE_REMOVED;
+    }
+
+    @Override
+    public String toString() {
+        return "DownloadProgressEvent{" + url
+                + " state=" + state
+                + " bytes=" + downloadedBytes
+                + " percentage=" + percentage
+                + " bytesPerSecond=" + bytesPerSecond + "}";
+    }
+}
@@ -0,0 +1,172 @@
+/*
+ * Copyright (C) 2018 LLM HLS Playback Demo
+ */
+package com.lashawnmcghee.hlsplayback.offline;
+
+import android.net.Uri;
+
+import com.google.android.exoplayer2.C;
+import com.google.android.exoplayer2.Format;
+import com.google.android.exoplayer2.offline.TrackKey;
+import com.google.android.exoplayer2.source.hls.playlist.HlsMasterPlaylist;
+import com.google.android.exoplayer2.source.hls.playlist.HlsMediaPlaylist;
+import com.google.android.exoplayer2.source.hls.playlist.HlsPlaylist;
+import com.google.android.exoplayer2.util.UriUtil;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+
+/**
+ * Estimates how many bytes a download needs before it is queued.
+ *
+ * The media playlist of every chosen rendition is loaded through the playlist cache. Segments
+ * with a byte range count their exact length, other segments count the bitrate of their rendition
+ * over their duration. Segments of a rendition without a bitrate cannot be estimated, in which case
+ * the estimate is a lower bound and says so.
+ */
+public final class DownloadSizeEstimator {
+
+    private DownloadSizeEstimator() {
+        //Do nothing...
+    }
+
+    /**
+     * Estimate the size of a download. Loads media playlists, so it must not be called on the
+     * main thread.
+     * @param helper Prepared helper of the title.
+     * @param trackKeys Chosen tracks, or an empty list for every track.
+     * @return
+     */
+    public static Estimate estimate(CachingHlsDownloadHelper helper, List<TrackKey> trackKeys) {
+        Accumulator accumulator = new Accumulator();
+        HlsPlaylist playlist = helper.getPlaylist();
+        if (playlist instanceof HlsMediaPlaylist) {
+            //single stream content has no bitrate, only its byte ranges can be counted
+            accumulator.addPlaylist((HlsMediaPlaylist) playlist, Format.NO_VALUE);
+            return accumulator.build();
+        }
+
+        HlsMasterPlaylist masterPlaylist = (HlsMasterPlaylist) playlist;
+        for (HlsMasterPlaylist.HlsUrl hlsUrl : getChosenUrls(helper, masterPlaylist, trackKeys)) {
+            Uri uri = UriUtil.resolveToUri(masterPlaylist.baseUri, hlsUrl.url);
+            int iBitrate = hlsUrl.format.bitrate;
+            try {
+                HlsPlaylist mediaPlaylist = helper.loadPlaylist(uri);
+                if (mediaPlaylist instanceof HlsMediaPlaylist) {
+                    accumulator.addPlaylist((HlsMediaPlaylist) mediaPlaylist, iBitrate);
+                    continue;
+                }
+            } catch (IOException e) {
+                //fall back to the duration of the title below
+            }
+            accumulator.addDuration(helper.getDurationUs(), iBitrate);
+        }
+        return accumulator.build();
+    }
+
+    private static List<HlsMasterPlaylist.HlsUrl> getChosenUrls(CachingHlsDownloadHelper helper,
+                                                                HlsMasterPlaylist masterPlaylist,
+                                                                List<TrackKey> trackKeys) {
+        ArrayList<HlsMasterPlaylist.HlsUrl> hlsUrls = new ArrayList<>();
+        if (trackKeys.isEmpty()) {
+            hlsUrls.addAll(masterPlaylist.variants);
+            hlsUrls.addAll(masterPlaylist.audios);
+            hlsUrls.addAll(masterPlaylist.subtitles);
+            return hlsUrls;
+        }
+        for (TrackKey trackKey : trackKeys) {
+            switch (helper.getRenditionGroup(trackKey.groupIndex)) {
+                case HlsMasterPlaylist.GROUP_INDEX_VARIANT:
+                    hlsUrls.add(masterPlaylist.variants.get(trackKey.trackIndex));
+                    break;
+                case HlsMasterPlaylist.GROUP_INDEX_AUDIO:
+                    hlsUrls.add(masterPlaylist.audios.get(trackKey.trackIndex));
+                    break;
+                default:
+                    hlsUrls.add(masterPlaylist.subtitles.get(trackKey.trackIndex));
+                    break;
+            }
+        }
+        return hlsUrls;
+    }
+
+    /**
+     * Sums the segments of the chosen renditions into an estimate.
+     */
+    static final class Accumulator {
+        private final HashSet<String> mInitializationSegments = new HashSet<>();
+        private long mMeasuredBytes;
+        private long mEstimatedBytes;
+        private int mSegmentCount;
+        private int mUnknownSegmentCount;
+
+        void addPlaylist(HlsMediaPlaylist playlist, int bitrate) {
+            for (HlsMediaPlaylist.Segment segment : playlist.segments) {
+                HlsMediaPlaylist.Segment initializationSegment = segment.initializationSegment;
+                //initialization segments are shared by many segments but downloaded once
+                if (initializationSegment != null
+                        && mInitializationSegments.add(playlist.baseUri + " "
+                        + initializationSegment.url + " " + initializationSegment.byterangeOffset)
+                        && initializationSegment.byterangeLength != C.LENGTH_UNSET) {
+                    mMeasuredBytes += initializationSegment.byterangeLength;
+                }
+                addSegment(segment.durationUs, segment.byterangeLength, bitrate);
+            }
+        }
+
+        void addSegment(long durationUs, long byterangeLength, int bitrate) {
+            mSegmentCount++;
+            if (byterangeLength != C.LENGTH_UNSET) {
+                mMeasuredBytes += byterangeLength;
+            } else if (bitrate != Format.NO_VALUE && bitrate > 0) {
+                mEstimatedBytes += bitrate * (durationUs / 1000) / 8000;
+            } else {
+                mUnknownSegmentCount++;
+            }
+        }
+
+        void addDuration(long durationUs, int bitrate) {
+            if (durationUs == C.TIME_UNSET) {
+                mSegmentCount++;
+                mUnknownSegmentCount++;
+                return;
+            }
+            addSegment(durationUs, C.LENGTH_UNSET, bitrate);
+        }
+
+        Estimate build() {
+            return new Estimate(mMeasuredBytes, mEstimatedBytes, mSegmentCount, mUnknownSegmentCount);
+        }
+    }
+
+    /**
+     * The estimated size of one download.
+     */
+    public static final class Estimate {
+        //bytes known from byte ranges plus bytes estimated from bitrates
+        public final long bytes;
+        public final long measuredBytes;
+        public final long estimatedBytes;
+        public final int segmentCount;
+        //segments without a byte range or a bitrate, not part of bytes
+        public final int unknownSegmentCount;
+
+        Estimate(long measuredBytes, long estimatedBytes, int segmentCount, int unknownSegmentCount) {
+            this.bytes = measuredBytes + estimatedBytes;
+            this.measuredBytes = measuredBytes;
+            this.estimatedBytes = estimatedBytes;
+            this.segmentCount = segmentCount;
+            this.unknownSegmentCount = unknownSegmentCount;
+        }
+
+        /**
+         * Whether every segment was counted, otherwise bytes is a lower bound.
+         * @return
+         */
+        public boolean isComplete() {
+            return unknownSegmentCount == 0;
+        }
+    }
+}
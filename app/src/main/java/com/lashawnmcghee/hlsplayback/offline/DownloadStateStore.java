@@ -0,0 +1,194 @@
+/*
+ * Copyright (C) 2018 LLM HLS Playback Demo
+ */
+package com.lashawnmcghee.hlsplayback.offline;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A store of download states which any thread may read or write without locking.
+ *
+ * The states are held in an immutable snapshot. Writers copy the current snapshot, apply their
+ * change and publish the copy with a compare and set, retrying if another writer published first.
+ * Readers take the current snapshot and never block nor see a change half applied. Every published
+ * change increments the snapshot version, so a reader can tell nothing changed since it last looked.
+ *
+ * Writes copy every state, which suits a few hundred tracked titles read far more often than
+ * they change.
+ * @param <K> Type of the keys, such as the URI of a title.
+ * @param <V> Type of the states.
+ */
+public class DownloadStateStore<K, V> {
+    private final AtomicReference<Snapshot<K, V>> mSnapshot =
+            new AtomicReference<>(new Snapshot<>(0, new HashMap<>()));
+
+    /**
+     * Get the current snapshot of every state.
+     * @return
+     */
+    public Snapshot<K, V> getSnapshot() {
+        return mSnapshot.get();
+    }
+
+    /**
+     * Get the version of the current snapshot.
+     * @return
+     */
+    public long getVersion() {
+        return mSnapshot.get().version;
+    }
+
+    /**
+     * Get the current state of a key.
+     * @param key
+     * @return Returns the state, or null if the key has none.
+     */
+    public V get(K key) {
+        return mSnapshot.get().get(key);
+    }
+
+    /**
+     * Determines if a key currently has a state.
+     * @param key
+     * @return
+     */
+    public boolean containsKey(K key) {
+        return mSnapshot.get().containsKey(key);
+    }
+
+    /**
+     * Set the state of a key.
+     * A state equal to the current one changes nothing and publishes no new version.
+     * @param key
+     * @param value
+     * @return Returns the previous state, or null if the key had none.
+     */
+    public V put(K key, V value) {
+        while (true) {
+            Snapshot<K, V> current = mSnapshot.get();
+            V previous = current.get(key);
+            boolean bSame = previous == null ? value == null : previous.equals(value);
+            if (bSame && current.containsKey(key)) {
+                return previous;
+            }
+            HashMap<K, V> states = current.copyStates();
+            states.put(key, value);
+            if (mSnapshot.compareAndSet(current, new Snapshot<>(current.version + 1, states))) {
+                return previous;
+            }
+        }
+    }
+
+    /**
+     * Set the state of a key only if it has none.
+     * @param key
+     * @param value
+     * @return Returns true if the state was set.
+     */
+    public boolean putIfAbsent(K key, V value) {
+        while (true) {
+            Snapshot<K, V> current = mSnapshot.get();
+            if (current.containsKey(key)) {
+                return false;
+            }
+            HashMap<K, V> states = current.copyStates();
+            states.put(key, value);
+            if (mSnapshot.compareAndSet(current, new Snapshot<>(current.version + 1, states))) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Set the states of many keys in a single change.
+     * @param states
+     */
+    public void putAll(Map<K, V> states) {
+        if (states.isEmpty()) {
+            return;
+        }
+        while (true) {
+            Snapshot<K, V> current = mSnapshot.get();
+            HashMap<K, V> newStates = current.copyStates();
+            newStates.putAll(states);
+            if (mSnapshot.compareAndSet(current, new Snapshot<>(current.version + 1, newStates))) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Remove the state of a key.
+     * @param key
+     * @return Returns the removed state, or null if the key had none.
+     */
+    public V remove(K key) {
+        while (true) {
+            Snapshot<K, V> current = mSnapshot.get();
+            if (!current.containsKey(key)) {
+                return null;
+            }
+            HashMap<K, V> states = current.copyStates();
+            V previous = states.remove(key);
+            if (mSnapshot.compareAndSet(current, new Snapshot<>(current.version + 1, states))) {
+                return previous;
+            }
+        }
+    }
+
+    /**
+     * An immutable view of every state at one version.
+     * @param <K>
+     * @param <V>
+     */
+    public static final class Snapshot<K, V> {
+        public final long version;
+        private final Map<K, V> mStates;
+
+        private Snapshot(long version, HashMap<K, V> states) {
+            this.version = version;
+            mStates = Collections.unmodifiableMap(states);
+        }
+
+        public V get(K key) {
+            return mStates.get(key);
+        }
+
+        public boolean containsKey(K key) {
+            return mStates.containsKey(key);
+        }
+
+        public int size() {
+            return mStates.size();
+        }
+
+        public boolean isEmpty() {
+            return mStates.isEmpty();
+        }
+
+        public Set<K> keySet() {
+            return mStates.keySet();
+        }
+
+        public Collection<V> values() {
+            return mStates.values();
+        }
+
+        /**
+         * Get every state as a read only map.
+         * @return
+         */
+        public Map<K, V> asMap() {
+            return mStates;
+        }
+
+        private HashMap<K, V> copyStates() {
+            return new HashMap<>(mStates);
+        }
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2018 LLM HLS Playback Demo
+ */
+package com.lashawnmcghee.hlsplayback.offline;
+
+import com.google.android.exoplayer2.upstream.DataSink;
+import com.google.android.exoplayer2.upstream.DataSpec;
+import com.google.android.exoplayer2.upstream.cache.CacheUtil;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * A {@link DataSink.Factory} for downloads which hashes the bytes its sinks write to the cache.
+ *
+ * The hash of every write is kept in memory under its key, start position and length until the
+ * {@link DownloadIntegrityVerifier} takes it, so a verification compares what is on disk with what
+ * came from the network. Only a bounded number of hashes is kept, the oldest are dropped first.
+ */
+public class HashingDataSinkFactory implements DataSink.Factory {
+    public static final int DEFAULT_MAX_HASHES = 8192;
+
+    private final DataSink.Factory mUpstreamFactory;
+    private final LinkedHashMap<String, Long> mHashes;
+
+    /**
+     * Constructor for this factory.
+     * @param upstreamFactory Factory of the sinks doing the actual writes.
+     * @param maxHashes Maximum number of hashes kept until they are taken.
+     */
+    public HashingDataSinkFactory(DataSink.Factory upstreamFactory, int maxHashes) {
+        mUpstreamFactory = upstreamFactory;
+        mHashes = new LinkedHashMap<String, Long>(16, 0.75f, false) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+                return size() > maxHashes;
+            }
+        };
+    }
+
+    @Override
+    public DataSink createDataSink() {
+        return new HashingDataSink(mUpstreamFactory.createDataSink());
+    }
+
+    /**
+     * Take the hash of bytes written in one go.
+     * @param key Cache key the bytes were written under.
+     * @param position Position of the first byte written.
+     * @param length Number of bytes written.
+     * @return Returns the CRC32 of the bytes, or null if no write matches.
+     */
+    public synchronized Long take(String key, long position, long length) {
+        return mHashes.remove(getName(key, position, length));
+    }
+
+    private synchronized void put(String key, long position, long length, long crc) {
+        mHashes.put(getName(key, position, length), crc);
+    }
+
+    private static String getName(String key, long position, long length) {
+        return key + "@" + position + ":" + length;
+    }
+
+    /**
+     * Sink hashing what it hands off to the sink doing the write.
+     */
+    private final class HashingDataSink implements DataSink {
+        private final DataSink mSink;
+        private final CRC32 mCrc = new CRC32();
+
+        private String mKey;
+        private long mPosition;
+        private long mBytesWritten;
+
+        public HashingDataSink(DataSink sink) {
+            mSink = sink;
+        }
+
+        @Override
+        public void open(DataSpec dataSpec) throws IOException {
+            mKey = CacheUtil.getKey(dataSpec);
+            mPosition = dataSpec.absoluteStreamPosition;
+            mBytesWritten = 0;
+            mCrc.reset();
+            mSink.open(dataSpec);
+        }
+
+        @Override
+        public void write(byte[] buffer, int offset, int length) throws IOException {
+            mSink.write(buffer, offset, length);
+            mCrc.update(buffer, offset, length);
+            mBytesWritten += length;
+        }
+
+        @Override
+        public void close() throws IOException {
+            mSink.close();
+            //bytes are only known to be in the cache once the sink closed cleanly
+            if (mKey != null && mBytesWritten > 0) {
+                put(mKey, mPosition, mBytesWritten, mCrc.getValue());
+            }
+            mKey = null;
+        }
+    }
+}
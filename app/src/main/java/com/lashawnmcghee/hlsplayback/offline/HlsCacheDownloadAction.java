@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) 2018 LLM HLS Playback Demo
+ */
+package com.lashawnmcghee.hlsplayback.offline;
+
+import android.net.Uri;
+import android.support.annotation.Nullable;
+
+import com.google.android.exoplayer2.offline.DownloadAction;
+import com.google.android.exoplayer2.offline.DownloaderConstructorHelper;
+import com.google.android.exoplayer2.offline.SegmentDownloadAction;
+import com.google.android.exoplayer2.offline.StreamKey;
+import com.lashawnmcghee.hlsplayback.cache.PinnedLruCacheEvictor;
+import com.lashawnmcghee.hlsplayback.interfaces.ICacheKeyNormalizer;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * An action to download or remove HLS content with normalized cache keys.
+ *
+ * The action has its own type so downloads stored by ExoPlayer's HlsDownloadAction keep being
+ * resumed and removed under the raw keys they were written with. The normalizer is not part of
+ * the serialized action, it is handed over by the deserializer instead. So is the evictor pinning
+ * the segments of a download: the download manager runs the actions its own deserializers
+ * created, so those are the ones which need it.
+ */
+public final class HlsCacheDownloadAction extends SegmentDownloadAction {
+    private static final String TYPE = "hls_cache_key";
+    private static final int VERSION = 1;
+
+    private final ICacheKeyNormalizer mNormalizer;
+    @Nullable
+    private final PinnedLruCacheEvictor mEvictor;
+
+    /**
+     * Create a deserializer for actions of this type.
+     * @param normalizer Normalizer given to every deserialized action.
+     * @param evictor Evictor of the download cache given to every deserialized action, or null.
+     * @return
+     */
+    public static Deserializer createDeserializer(ICacheKeyNormalizer normalizer,
+                                                  @Nullable PinnedLruCacheEvictor evictor) {
+        return new SegmentDownloadActionDeserializer(TYPE, VERSION) {
+            @Override
+            protected DownloadAction createDownloadAction(Uri uri,
+                                                          boolean isRemoveAction,
+                                                          byte[] data,
+                                                          List<StreamKey> keys) {
+                return new HlsCacheDownloadAction(uri,
+                        isRemoveAction,
+                        data,
+                        keys,
+                        normalizer,
+                        evictor);
+            }
+        };
+    }
+
+    /**
+     * Create an action to download HLS content.
+     * @param uri URI of the master or media playlist.
+     * @param data Optional custom data for this action.
+     * @param keys Keys of the renditions to download, or an empty list for all of them.
+     * @param normalizer Normalizer choosing the cache keys.
+     * @return
+     */
+    public static HlsCacheDownloadAction createDownloadAction(Uri uri,
+                                                              @Nullable byte[] data,
+                                                              List<StreamKey> keys,
+                                                              ICacheKeyNormalizer normalizer) {
+        return new HlsCacheDownloadAction(uri, false, data, keys, normalizer, null);
+    }
+
+    /**
+     * Create an action to remove HLS content.
+     * @param uri URI of the master or media playlist.
+     * @param data Optional custom data for this action.
+     * @param normalizer Normalizer choosing the cache keys.
+     * @return
+     */
+    public static HlsCacheDownloadAction createRemoveAction(Uri uri,
+                                                            @Nullable byte[] data,
+                                                            ICacheKeyNormalizer normalizer) {
+        return new HlsCacheDownloadAction(uri,
+                true,
+                data,
+                Collections.emptyList(),
+                normalizer,
+                null);
+    }
+
+    private HlsCacheDownloadAction(Uri uri,
+                                   boolean isRemoveAction,
+                                   @Nullable byte[] data,
+                                   List<StreamKey> keys,
+                                   ICacheKeyNormalizer normalizer,
+                                   @Nullable PinnedLruCacheEvictor evictor) {
+        super(TYPE, VERSION, uri, isRemoveAction, data, keys);
+        mNormalizer = normalizer;
+        mEvictor = evictor;
+    }
+
+    @Override
+    public HlsCacheDownloader createDownloader(DownloaderConstructorHelper constructorHelper) {
+        return new HlsCacheDownloader(uri,
+                keys,
+                constructorHelper,
+                mNormalizer,
+                mEvictor,
+                HlsCacheDownloader.DEFAULT_PARALLEL_SEGMENTS);
+    }
+}
@@ -0,0 +1,495 @@
+/*
+ * Copyright (C) 2018 LLM HLS Playback Demo
+ */
+package com.lashawnmcghee.hlsplayback.offline;
+
+import android.net.Uri;
+
+import com.google.android.exoplayer2.C;
+import com.google.android.exoplayer2.offline.Downloader;
+import com.google.android.exoplayer2.offline.DownloaderConstructorHelper;
+import com.google.android.exoplayer2.offline.StreamKey;
+import com.google.android.exoplayer2.source.hls.playlist.HlsMasterPlaylist;
+import com.google.android.exoplayer2.source.hls.playlist.HlsMediaPlaylist;
+import com.google.android.exoplayer2.source.hls.playlist.HlsPlaylist;
+import com.google.android.exoplayer2.source.hls.playlist.HlsPlaylistParser;
+import com.google.android.exoplayer2.upstream.DataSource;
+import com.google.android.exoplayer2.upstream.DataSpec;
+import com.google.android.exoplayer2.upstream.ParsingLoadable;
+import com.google.android.exoplayer2.upstream.cache.Cache;
+import com.google.android.exoplayer2.upstream.cache.CacheDataSource;
+import com.google.android.exoplayer2.upstream.cache.CacheUtil;
+import com.google.android.exoplayer2.util.PriorityTaskManager;
+import com.google.android.exoplayer2.util.UriUtil;
+import com.lashawnmcghee.hlsplayback.cache.PinnedLruCacheEvictor;
+import com.lashawnmcghee.hlsplayback.interfaces.ICacheKeyNormalizer;
+import com.lashawnmcghee.hlsplayback.util.LogTrace;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * An HLS downloader which stores every playlist and segment under the key chosen by our
+ * {@link ICacheKeyNormalizer}, so downloads share their cache entries with streamed playback.
+ *
+ * The segments of a title are fetched on a small worker pool instead of one after another, since
+ * a long title with thousands of short segments is bound by request latency rather than bandwidth.
+ * Segments sharing a cache key, such as byte ranges of a single file, stay on one worker because
+ * the cache accepts a single writer per key. A failed segment is retried a few times before the
+ * whole download fails. The cache itself is the resumable state: on a restart, cached segments
+ * are counted and skipped and partial ones continue where they stopped.
+ *
+ * Segments already cached by streaming, prefetching or prewarming are pinned when they are
+ * counted, since they are skipped and never written through the pinning sinks of the download.
+ */
+public class HlsCacheDownloader implements Downloader {
+    private static final String TAG = HlsCacheDownloader.class.getSimpleName();
+
+    public static final int DEFAULT_PARALLEL_SEGMENTS = 4;
+    private static final int MAX_SEGMENT_ATTEMPTS = 3;
+    private static final long RETRY_DELAY_MS = 1000;
+
+    private final Uri mManifestUri;
+    private final ArrayList<StreamKey> mStreamKeys;
+    private final DownloaderConstructorHelper mConstructorHelper;
+    private final ICacheKeyNormalizer mNormalizer;
+    private final PinnedLruCacheEvictor mEvictor;
+    private final Cache mCache;
+    private final PriorityTaskManager mPriorityTaskManager;
+    private final int mParallelSegments;
+    private final AtomicBoolean mCanceled = new AtomicBoolean();
+
+    private volatile int mTotalSegments = C.LENGTH_UNSET;
+    private volatile int mDownloadedSegments;
+    private volatile long mDownloadedBytes;
+    private volatile int mContiguousSegments;
+    private boolean[] mSegmentDone;
+
+    /**
+     * Constructor for this downloader.
+     * @param manifestUri URI of the master or media playlist.
+     * @param streamKeys Keys of the renditions to download, or an empty list for all of them.
+     * @param constructorHelper Helper providing the cache and data sources.
+     * @param normalizer Normalizer choosing the cache keys.
+     */
+    public HlsCacheDownloader(Uri manifestUri,
+                              List<StreamKey> streamKeys,
+                              DownloaderConstructorHelper constructorHelper,
+                              ICacheKeyNormalizer normalizer) {
+        this(manifestUri,
+                streamKeys,
+                constructorHelper,
+                normalizer,
+                null,
+                DEFAULT_PARALLEL_SEGMENTS);
+    }
+
+    /**
+     * Constructor for this downloader.
+     * @param manifestUri URI of the master or media playlist.
+     * @param streamKeys Keys of the renditions to download, or an empty list for all of them.
+     * @param constructorHelper Helper providing the cache and data sources.
+     * @param normalizer Normalizer choosing the cache keys.
+     * @param evictor Evictor of the cache pinning segments which were cached before, or null.
+     * @param parallelSegments Maximum number of segments fetched at the same time.
+     */
+    public HlsCacheDownloader(Uri manifestUri,
+                              List<StreamKey> streamKeys,
+                              DownloaderConstructorHelper constructorHelper,
+                              ICacheKeyNormalizer normalizer,
+                              PinnedLruCacheEvictor evictor,
+                              int parallelSegments) {
+        mManifestUri = manifestUri;
+        mStreamKeys = new ArrayList<>(streamKeys);
+        mConstructorHelper = constructorHelper;
+        mNormalizer = normalizer;
+        mEvictor = evictor;
+        mCache = constructorHelper.getCache();
+        mPriorityTaskManager = constructorHelper.getPriorityTaskManager();
+        mParallelSegments = Math.max(1, parallelSegments);
+    }
+
+    @Override
+    public void download() throws InterruptedException, IOException {
+        mPriorityTaskManager.add(C.PRIORITY_DOWNLOAD);
+        ExecutorService executor = null;
+        try {
+            List<Segment> segments = initDownload();
+            List<List<Integer>> lanes = buildLanes(segments);
+            if (lanes.isEmpty()) {
+                //everything is cached already
+                return;
+            }
+            executor = Executors.newFixedThreadPool(Math.min(mParallelSegments, lanes.size()));
+            ArrayList<Future<?>> futures = new ArrayList<>();
+            for (List<Integer> lane : lanes) {
+                futures.add(executor.submit(() -> {
+                    downloadLane(segments, lane);
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    //stop the other workers and report the first failure
+                    mCanceled.set(true);
+                    Throwable cause = e.getCause();
+                    if (cause instanceof IOException) {
+                        throw (IOException) cause;
+                    }
+                    if (cause instanceof InterruptedException) {
+                        throw (InterruptedException) cause;
+                    }
+                    throw new IOException(cause);
+                }
+            }
+        } catch (InterruptedException e) {
+            mCanceled.set(true);
+            throw e;
+        } finally {
+            if (executor != null) {
+                executor.shutdownNow();
+            }
+            mPriorityTaskManager.remove(C.PRIORITY_DOWNLOAD);
+        }
+    }
+
+    @Override
+    public void cancel() {
+        mCanceled.set(true);
+    }
+
+    @Override
+    public long getDownloadedBytes() {
+        return mDownloadedBytes;
+    }
+
+    @Override
+    public float getDownloadPercentage() {
+        int iTotalSegments = mTotalSegments;
+        int iDownloadedSegments = mDownloadedSegments;
+        if (iTotalSegments == C.LENGTH_UNSET || iDownloadedSegments == C.LENGTH_UNSET) {
+            return C.PERCENTAGE_UNSET;
+        }
+        return iTotalSegments == 0 ? 100f : (iDownloadedSegments * 100f) / iTotalSegments;
+    }
+
+    /**
+     * Get the number of segments downloaded without a gap from the start of the title, which is
+     * how far the download could be played offline.
+     * @return
+     */
+    public int getContiguousSegmentCount() {
+        return mContiguousSegments;
+    }
+
+    /**
+     * Get the number of segments of the title, or {@link C#LENGTH_UNSET} before the playlists
+     * were loaded.
+     * @return
+     */
+    public int getTotalSegmentCount() {
+        return mTotalSegments;
+    }
+
+    @Override
+    public void remove() throws InterruptedException {
+        CacheDataSource dataSource = mConstructorHelper.buildCacheDataSource(true);
+        try {
+            HlsPlaylist playlist = loadPlaylist(dataSource, mManifestUri);
+            List<Segment> segments = getSegments(dataSource, playlist, true);
+            for (Segment segment : segments) {
+                removeKeys(segment.dataSpec.uri, segment.dataSpec.key);
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+            }
+        } catch (IOException e) {
+            //whatever we know of is removed below
+        } finally {
+            removeKeys(mManifestUri, mNormalizer.getCacheKey(mManifestUri));
+        }
+    }
+
+    /**
+     * Remove the content of a URI under its normalized key and under its raw key, which holds
+     * content downloaded before the normalizing rules existed.
+     * @param uri
+     * @param key
+     */
+    private void removeKeys(Uri uri, String key) {
+        CacheUtil.remove(mCache, key);
+        String sRawKey = uri.toString();
+        if (!sRawKey.equals(key)) {
+            CacheUtil.remove(mCache, sRawKey);
+        }
+    }
+
+    /**
+     * List the playlists, keys and segments of the download in playback order, loading the
+     * playlists from the cache only. Used to verify a download which has completed.
+     * @return
+     * @throws IOException If a playlist is not in the cache.
+     */
+    List<DataSpec> getCachedSegmentDataSpecs() throws IOException {
+        List<Segment> segments = loadSegments(mConstructorHelper.buildCacheDataSource(true));
+        ArrayList<DataSpec> dataSpecs = new ArrayList<>(segments.size());
+        for (Segment segment : segments) {
+            dataSpecs.add(segment.dataSpec);
+        }
+        return dataSpecs;
+    }
+
+    /**
+     * Load the playlists, list the segments and count what the cache already holds.
+     * Whatever is already cached is pinned, the rest is pinned by the sinks writing it.
+     * @return
+     */
+    private List<Segment> initDownload() throws IOException, InterruptedException {
+        List<Segment> segments = loadSegments(mConstructorHelper.buildCacheDataSource(false));
+
+        CacheUtil.CachingCounters counters = new CacheUtil.CachingCounters();
+        int iDownloadedSegments = 0;
+        long lngDownloadedBytes = 0;
+        boolean[] segmentDone = new boolean[segments.size()];
+        for (int i = segments.size() - 1; i >= 0; i--) {
+            CacheUtil.getCached(segments.get(i).dataSpec, mCache, counters);
+            lngDownloadedBytes += counters.alreadyCachedBytes;
+            if (counters.alreadyCachedBytes > 0 && mEvictor != null) {
+                mEvictor.pin(mCache, segments.get(i).dataSpec.key);
+            }
+            if (counters.alreadyCachedBytes == counters.contentLength) {
+                iDownloadedSegments++;
+                segmentDone[i] = true;
+            }
+        }
+        synchronized (this) {
+            mSegmentDone = segmentDone;
+            mContiguousSegments = 0;
+            advanceContiguous();
+        }
+        mDownloadedBytes = lngDownloadedBytes;
+        mDownloadedSegments = iDownloadedSegments;
+        mTotalSegments = segments.size();
+        LogTrace.d(TAG, "%d of %d segments already cached", iDownloadedSegments, segments.size());
+        return segments;
+    }
+
+    /**
+     * Group the segments which are not cached yet into lanes, one per cache key.
+     * @param segments
+     * @return
+     */
+    private List<List<Integer>> buildLanes(List<Segment> segments) {
+        LinkedHashMap<String, List<Integer>> lanes = new LinkedHashMap<>();
+        synchronized (this) {
+            for (int i = 0; i < segments.size(); i++) {
+                if (mSegmentDone[i]) {
+                    continue;
+                }
+                String sKey = segments.get(i).dataSpec.key;
+                List<Integer> lane = lanes.get(sKey);
+                if (lane == null) {
+                    lane = new ArrayList<>();
+                    lanes.put(sKey, lane);
+                }
+                lane.add(i);
+            }
+        }
+        return new ArrayList<>(lanes.values());
+    }
+
+    /**
+     * Download the segments of one lane in order on a worker thread.
+     */
+    private void downloadLane(List<Segment> segments, List<Integer> lane)
+            throws IOException, InterruptedException {
+        CacheDataSource dataSource = mConstructorHelper.buildCacheDataSource(false);
+        byte[] buffer = new byte[CacheUtil.DEFAULT_BUFFER_SIZE_BYTES];
+        for (int iIndex : lane) {
+            if (mCanceled.get()) {
+                throw new InterruptedException();
+            }
+            downloadSegment(segments.get(iIndex), dataSource, buffer);
+            onSegmentDownloaded(iIndex);
+        }
+    }
+
+    /**
+     * Download one segment, retrying failures which are not cancellations.
+     */
+    private void downloadSegment(Segment segment, CacheDataSource dataSource, byte[] buffer)
+            throws IOException, InterruptedException {
+        for (int iAttempt = 1; ; iAttempt++) {
+            CacheUtil.CachingCounters counters = new CacheUtil.CachingCounters();
+            try {
+                CacheUtil.cache(segment.dataSpec,
+                        mCache,
+                        dataSource,
+                        buffer,
+                        mPriorityTaskManager,
+                        C.PRIORITY_DOWNLOAD,
+                        counters,
+                        mCanceled,
+                        true);
+                addDownloadedBytes(counters.newlyCachedBytes);
+                return;
+            } catch (IOException e) {
+                //bytes cached before the failure are kept and not fetched again
+                addDownloadedBytes(counters.newlyCachedBytes);
+                if (e instanceof InterruptedIOException
+                        || mCanceled.get()
+                        || iAttempt >= MAX_SEGMENT_ATTEMPTS) {
+                    throw e;
+                }
+                LogTrace.w(TAG, "Retrying %s after attempt %d: %s",
+                        segment.dataSpec.uri, iAttempt, e.getMessage());
+                Thread.sleep(RETRY_DELAY_MS * iAttempt);
+            }
+        }
+    }
+
+    private synchronized void addDownloadedBytes(long lngBytes) {
+        mDownloadedBytes += lngBytes;
+    }
+
+    private synchronized void onSegmentDownloaded(int iIndex) {
+        mSegmentDone[iIndex] = true;
+        mDownloadedSegments++;
+        advanceContiguous();
+    }
+
+    private void advanceContiguous() {
+        int iContiguous = mContiguousSegments;
+        while (iContiguous < mSegmentDone.length && mSegmentDone[iContiguous]) {
+            iContiguous++;
+        }
+        mContiguousSegments = iContiguous;
+    }
+
+    /**
+     * Load the playlists of the chosen renditions and list their segments in playback order.
+     * @param dataSource
+     * @return
+     */
+    private List<Segment> loadSegments(CacheDataSource dataSource) throws IOException {
+        HlsPlaylist playlist = loadPlaylist(dataSource, mManifestUri);
+        if (!mStreamKeys.isEmpty()) {
+            playlist = playlist.copy(mStreamKeys);
+        }
+        List<Segment> segments = getSegments(dataSource, playlist, false);
+        Collections.sort(segments);
+        return segments;
+    }
+
+    private List<Segment> getSegments(DataSource dataSource,
+                                      HlsPlaylist playlist,
+                                      boolean allowIncompleteList) throws IOException {
+        ArrayList<Segment> segments = new ArrayList<>();
+        ArrayList<Uri> mediaPlaylistUris = new ArrayList<>();
+        if (playlist instanceof HlsMasterPlaylist) {
+            HlsMasterPlaylist masterPlaylist = (HlsMasterPlaylist) playlist;
+            segments.add(new Segment(0, buildDataSpec(mManifestUri, 0, C.LENGTH_UNSET)));
+            addResolvedUris(masterPlaylist.baseUri, masterPlaylist.variants, mediaPlaylistUris);
+            addResolvedUris(masterPlaylist.baseUri, masterPlaylist.audios, mediaPlaylistUris);
+            addResolvedUris(masterPlaylist.baseUri, masterPlaylist.subtitles, mediaPlaylistUris);
+        } else {
+            mediaPlaylistUris.add(Uri.parse(playlist.baseUri));
+        }
+
+        HashSet<Uri> seenEncryptionKeyUris = new HashSet<>();
+        for (Uri mediaPlaylistUri : mediaPlaylistUris) {
+            HlsMediaPlaylist mediaPlaylist;
+            try {
+                mediaPlaylist = (HlsMediaPlaylist) loadPlaylist(dataSource, mediaPlaylistUri);
+                segments.add(new Segment(mediaPlaylist.startTimeUs,
+                        buildDataSpec(mediaPlaylistUri, 0, C.LENGTH_UNSET)));
+            } catch (IOException e) {
+                if (!allowIncompleteList) {
+                    throw e;
+                }
+                //the playlist itself is still removed along with what we know of it
+                segments.add(new Segment(0, buildDataSpec(mediaPlaylistUri, 0, C.LENGTH_UNSET)));
+                continue;
+            }
+
+            HlsMediaPlaylist.Segment lastInitSegment = null;
+            for (HlsMediaPlaylist.Segment hlsSegment : mediaPlaylist.segments) {
+                HlsMediaPlaylist.Segment initSegment = hlsSegment.initializationSegment;
+                if (initSegment != null && initSegment != lastInitSegment) {
+                    lastInitSegment = initSegment;
+                    addSegment(segments, mediaPlaylist, initSegment, seenEncryptionKeyUris);
+                }
+                addSegment(segments, mediaPlaylist, hlsSegment, seenEncryptionKeyUris);
+            }
+        }
+        return segments;
+    }
+
+    private void addSegment(ArrayList<Segment> segments,
+                            HlsMediaPlaylist mediaPlaylist,
+                            HlsMediaPlaylist.Segment hlsSegment,
+                            HashSet<Uri> seenEncryptionKeyUris) {
+        long lngStartTimeUs = mediaPlaylist.startTimeUs + hlsSegment.relativeStartTimeUs;
+        if (hlsSegment.fullSegmentEncryptionKeyUri != null) {
+            Uri keyUri = UriUtil.resolveToUri(mediaPlaylist.baseUri,
+                    hlsSegment.fullSegmentEncryptionKeyUri);
+            if (seenEncryptionKeyUris.add(keyUri)) {
+                segments.add(new Segment(lngStartTimeUs, buildDataSpec(keyUri, 0, C.LENGTH_UNSET)));
+            }
+        }
+        Uri segmentUri = UriUtil.resolveToUri(mediaPlaylist.baseUri, hlsSegment.url);
+        segments.add(new Segment(lngStartTimeUs,
+                buildDataSpec(segmentUri, hlsSegment.byterangeOffset, hlsSegment.byterangeLength)));
+    }
+
+    private DataSpec buildDataSpec(Uri uri, long lngPosition, long lngLength) {
+        return new DataSpec(uri, lngPosition, lngLength, mNormalizer.getCacheKey(uri));
+    }
+
+    private static HlsPlaylist loadPlaylist(DataSource dataSource, Uri uri) throws IOException {
+        ParsingLoadable<HlsPlaylist> loadable = new ParsingLoadable<>(dataSource,
+                uri,
+                C.DATA_TYPE_MANIFEST,
+                new HlsPlaylistParser());
+        loadable.load();
+        return loadable.getResult();
+    }
+
+    private static void addResolvedUris(String baseUri,
+                                        List<HlsMasterPlaylist.HlsUrl> urls,
+                                        List<Uri> out) {
+        for (HlsMasterPlaylist.HlsUrl url : urls) {
+            out.add(UriUtil.resolveToUri(baseUri, url.url));
+        }
+    }
+
+    /**
+     * A playlist, key or media segment to download, ordered by its start time.
+     */
+    private static final class Segment implements Comparable<Segment> {
+        private final long startTimeUs;
+        private final DataSpec dataSpec;
+
+        private Segment(long startTimeUs, DataSpec dataSpec) {
+            this.startTimeUs = startTimeUs;
+            this.dataSpec = dataSpec;
+        }
+
+        @Override
+        public int compareTo(Segment other) {
+            return startTimeUs < other.startTimeUs ? -1 : (startTimeUs == other.startTimeUs ? 0 : 1);
+        }
+    }
+}
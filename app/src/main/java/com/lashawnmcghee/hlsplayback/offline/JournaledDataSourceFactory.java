@@ -0,0 +1,211 @@
+/*
+ * Copyright (C) 2018 LLM HLS Playback Demo
+ */
+package com.lashawnmcghee.hlsplayback.offline;
+
+import android.net.Uri;
+import android.support.annotation.Nullable;
+
+import com.google.android.exoplayer2.C;
+import com.google.android.exoplayer2.upstream.DataSource;
+import com.google.android.exoplayer2.upstream.DataSpec;
+import com.google.android.exoplayer2.upstream.TransferListener;
+import com.google.android.exoplayer2.util.Util;
+import com.lashawnmcghee.hlsplayback.util.LogTrace;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A {@link DataSource.Factory} for download requests which records fetched segment bytes in a
+ * {@link DownloadJournal}.
+ *
+ * The cache only keeps the bytes of a segment once its cache file is committed, so a download
+ * interrupted by the process dying loses the segment fetched so far. Requests made through this
+ * factory first serve whatever the journal holds for their position and only fetch the rest.
+ * Segments no longer than one journal batch are not journaled, since a crash could lose that much
+ * of them anyway and fetching them again is cheaper than writing them twice.
+ */
+public class JournaledDataSourceFactory implements DataSource.Factory {
+    private static final String TAG = JournaledDataSourceFactory.class.getSimpleName();
+
+    private final DataSource.Factory mUpstreamFactory;
+    private final DownloadJournal mJournal;
+
+    /**
+     * Constructor for this factory.
+     * @param upstreamFactory Factory of the data sources doing the actual requests.
+     * @param journal Loaded journal shared by every download.
+     */
+    public JournaledDataSourceFactory(DataSource.Factory upstreamFactory, DownloadJournal journal) {
+        mUpstreamFactory = upstreamFactory;
+        mJournal = journal;
+    }
+
+    @Override
+    public DataSource createDataSource() {
+        return new JournaledDataSource(mUpstreamFactory.createDataSource());
+    }
+
+    /**
+     * Data source reading journaled bytes first and journaling what it fetches after them.
+     */
+    private final class JournaledDataSource implements DataSource {
+        private final DataSource mUpstream;
+
+        private DownloadJournal.Entry mEntry;
+        private InputStream mPartInput;
+        private boolean mUpstreamOpened;
+        private boolean mUpstreamEnded;
+        private Uri mUri;
+        private long mPartBytesRemaining;
+        private long mBytesToRead;
+        private long mBytesRead;
+
+        public JournaledDataSource(DataSource upstream) {
+            mUpstream = upstream;
+        }
+
+        @Override
+        public void addTransferListener(TransferListener transferListener) {
+            mUpstream.addTransferListener(transferListener);
+        }
+
+        @Override
+        public long open(DataSpec dataSpec) throws IOException {
+            mUri = dataSpec.uri;
+            mBytesRead = 0;
+            mPartBytesRemaining = 0;
+            mUpstreamEnded = false;
+            //playlists are small and change, only segments are journaled
+            if (dataSpec.key == null
+                    || dataSpec.postBody != null
+                    || Util.inferContentType(dataSpec.uri) == C.TYPE_HLS) {
+                mEntry = null;
+                return openUpstream(dataSpec);
+            }
+
+            long lngPosition = dataSpec.absoluteStreamPosition;
+            DownloadJournal.Entry entry = mJournal.get(dataSpec.key);
+            if (entry != null && entry.start <= lngPosition && lngPosition < entry.getEndPosition()) {
+                mPartBytesRemaining = entry.getEndPosition() - lngPosition;
+                if (dataSpec.length != C.LENGTH_UNSET) {
+                    mPartBytesRemaining = Math.min(mPartBytesRemaining, dataSpec.length);
+                }
+                mPartInput = mJournal.openPart(entry, lngPosition);
+                LogTrace.d(TAG, "Resuming %s at %d from %d journaled bytes",
+                        dataSpec.key, lngPosition, mPartBytesRemaining);
+            } else if (entry != null && lngPosition != entry.getEndPosition()) {
+                //recorded bytes which do not lead up to this request are replaced below
+                entry = null;
+            }
+            mEntry = entry;
+
+            if (dataSpec.length != C.LENGTH_UNSET && mPartBytesRemaining == dataSpec.length) {
+                //the journal holds the whole request
+                mBytesToRead = dataSpec.length;
+                return mBytesToRead;
+            }
+            long lngUpstreamLength = openUpstream(new DataSpec(dataSpec.uri,
+                    null,
+                    dataSpec.absoluteStreamPosition + mPartBytesRemaining,
+                    dataSpec.position + mPartBytesRemaining,
+                    dataSpec.length == C.LENGTH_UNSET
+                            ? C.LENGTH_UNSET : dataSpec.length - mPartBytesRemaining,
+                    dataSpec.key,
+                    dataSpec.flags));
+            mBytesToRead = lngUpstreamLength == C.LENGTH_UNSET
+                    ? C.LENGTH_UNSET : lngUpstreamLength + mPartBytesRemaining;
+            if (mEntry == null && (lngUpstreamLength == C.LENGTH_UNSET
+                    || lngUpstreamLength > DownloadJournal.SYNC_BATCH_BYTES)) {
+                mEntry = mJournal.begin(dataSpec.key, lngPosition);
+            }
+            return mBytesToRead;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int readLength) throws IOException {
+            if (readLength == 0) {
+                return 0;
+            }
+            if (mPartBytesRemaining > 0) {
+                int bytesRead = mPartInput.read(buffer,
+                        offset,
+                        (int) Math.min(readLength, mPartBytesRemaining));
+                if (bytesRead == -1) {
+                    throw new IOException("Journaled bytes ended early");
+                }
+                mPartBytesRemaining -= bytesRead;
+                mBytesRead += bytesRead;
+                if (mPartBytesRemaining == 0) {
+                    closePart();
+                }
+                return bytesRead;
+            }
+            if (!mUpstreamOpened) {
+                return C.RESULT_END_OF_INPUT;
+            }
+
+            int bytesRead = mUpstream.read(buffer, offset, readLength);
+            if (bytesRead == C.RESULT_END_OF_INPUT) {
+                mUpstreamEnded = true;
+                return bytesRead;
+            }
+            mBytesRead += bytesRead;
+            if (mEntry != null && bytesRead > 0) {
+                mJournal.append(mEntry, buffer, offset, bytesRead);
+            }
+            return bytesRead;
+        }
+
+        @Nullable
+        @Override
+        public Uri getUri() {
+            return mUri;
+        }
+
+        @Override
+        public Map<String, List<String>> getResponseHeaders() {
+            return mUpstreamOpened ? mUpstream.getResponseHeaders()
+                    : Collections.<String, List<String>>emptyMap();
+        }
+
+        @Override
+        public void close() throws IOException {
+            mUri = null;
+            try {
+                closePart();
+                if (mUpstreamOpened) {
+                    mUpstreamOpened = false;
+                    mUpstream.close();
+                }
+            } finally {
+                //an unfinished request keeps its journaled bytes for the next attempt
+                DownloadJournal.Entry entry = mEntry;
+                mEntry = null;
+                if (entry != null) {
+                    if (mUpstreamEnded || mBytesRead == mBytesToRead) {
+                        mJournal.complete(entry);
+                    } else {
+                        mJournal.checkpoint(entry);
+                    }
+                }
+            }
+        }
+
+        private long openUpstream(DataSpec dataSpec) throws IOException {
+            mUpstreamOpened = true;
+            return mUpstream.open(dataSpec);
+        }
+
+        private void closePart() throws IOException {
+            if (mPartInput != null) {
+                mPartInput.close();
+                mPartInput = null;
+            }
+        }
+    }
+}
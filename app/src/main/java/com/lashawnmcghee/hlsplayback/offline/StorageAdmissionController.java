@@ -0,0 +1,159 @@
+/*
+ * Copyright (C) 2018 LLM HLS Playback Demo
+ */
+package com.lashawnmcghee.hlsplayback.offline;
+
+import com.lashawnmcghee.hlsplayback.cache.PinnedLruCacheEvictor;
+
+import java.io.File;
+import java.util.HashMap;
+
+/**
+ * Decides whether a download fits before it is queued, from its estimated size.
+ *
+ * A download is admitted when its estimate fits both in the free space of the cache directory,
+ * less a reserve kept for the rest of the device, and in the cache budget, less the bytes already
+ * held by downloads which are never evicted. Admitted downloads reserve what they still need to
+ * download until they finish, so a batch of titles cannot share the same free bytes.
+ */
+public class StorageAdmissionController {
+    public static final int REASON_ADMITTED = 0;
+    public static final int REASON_FREE_SPACE = 1;
+    public static final int REASON_BUDGET = 2;
+
+    private final File mDirectory;
+    private final PinnedLruCacheEvictor mEvictor;
+    private final long mReserveBytes;
+    private final HashMap<String, Reservation> mReservations = new HashMap<>();
+
+    /**
+     * Constructor for this controller.
+     * @param directory Directory the downloads are stored in.
+     * @param evictor Evictor of the download cache, which holds the budget and pinned bytes.
+     * @param reserveBytes Free space always left to the rest of the device.
+     */
+    public StorageAdmissionController(File directory,
+                                      PinnedLruCacheEvictor evictor,
+                                      long reserveBytes) {
+        mDirectory = directory;
+        mEvictor = evictor;
+        mReserveBytes = reserveBytes;
+    }
+
+    /**
+     * Admit or reject a download, reserving its estimated size when admitted.
+     * Admitting a key again replaces its reservation.
+     * @param key Key of the download, such as its URL.
+     * @param estimate Estimated size of the download.
+     * @return
+     */
+    public synchronized Decision admit(String key, DownloadSizeEstimator.Estimate estimate) {
+        mReservations.remove(key);
+        long lngReservedBytes = getReservedBytes();
+        long lngFreeBytes = Math.max(0, getUsableSpace() - mReserveBytes - lngReservedBytes);
+        long lngBudgetBytes = Math.max(0,
+                getBudgetBytes() - getCommittedBytes() - lngReservedBytes);
+
+        int iReason = REASON_ADMITTED;
+        if (estimate.bytes > lngFreeBytes) {
+            iReason = REASON_FREE_SPACE;
+        } else if (estimate.bytes > lngBudgetBytes) {
+            iReason = REASON_BUDGET;
+        } else {
+            mReservations.put(key, new Reservation(estimate.bytes));
+        }
+        return new Decision(key, iReason, estimate, Math.min(lngFreeBytes, lngBudgetBytes));
+    }
+
+    /**
+     * Report the bytes an admitted download has written so far, shrinking its reservation.
+     * @param key
+     * @param downloadedBytes
+     */
+    public synchronized void onProgress(String key, long downloadedBytes) {
+        Reservation reservation = mReservations.get(key);
+        if (reservation != null) {
+            reservation.downloadedBytes = Math.max(reservation.downloadedBytes, downloadedBytes);
+        }
+    }
+
+    /**
+     * Release the reservation of a download which finished, failed or was never queued.
+     * @param key
+     */
+    public synchronized void release(String key) {
+        mReservations.remove(key);
+    }
+
+    /**
+     * Get the bytes admitted downloads still need.
+     * @return
+     */
+    public synchronized long getReservedBytes() {
+        long lngReservedBytes = 0;
+        for (Reservation reservation : mReservations.values()) {
+            lngReservedBytes += Math.max(0, reservation.bytes - reservation.downloadedBytes);
+        }
+        return lngReservedBytes;
+    }
+
+    /**
+     * Get the free space of the download directory.
+     * @return
+     */
+    protected long getUsableSpace() {
+        return mDirectory.getUsableSpace();
+    }
+
+    /**
+     * Get the budget of the download cache.
+     * @return
+     */
+    protected long getBudgetBytes() {
+        return mEvictor.getMaxBytes();
+    }
+
+    /**
+     * Get the bytes held by downloads, which count against the budget until removed.
+     * @return
+     */
+    protected long getCommittedBytes() {
+        return mEvictor.getPinnedBytes();
+    }
+
+    private static final class Reservation {
+        final long bytes;
+        long downloadedBytes;
+
+        Reservation(long bytes) {
+            this.bytes = bytes;
+        }
+    }
+
+    /**
+     * The outcome of one admission, reported back to whoever asked for the download.
+     */
+    public static final class Decision {
+        public final String key;
+        //one of the REASON values
+        public final int reason;
+        public final DownloadSizeEstimator.Estimate estimate;
+        //bytes which were left for this download
+        public final long availableBytes;
+
+        Decision(String key, int reason, DownloadSizeEstimator.Estimate estimate, long availableBytes) {
+            this.key = key;
+            this.reason = reason;
+            this.estimate = estimate;
+            this.availableBytes = availableBytes;
+        }
+
+        /**
+         * Whether the download may be queued.
+         * @return
+         */
+        public boolean isAdmitted() {
+            return reason == REASON_ADMITTED;
+        }
+    }
+}
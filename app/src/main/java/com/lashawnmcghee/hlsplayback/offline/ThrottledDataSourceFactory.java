@@ -0,0 +1,141 @@
+/*
+ * Copyright (C) 2018 LLM HLS Playback Demo
+ */
+package com.lashawnmcghee.hlsplayback.offline;
+
+import android.net.Uri;
+import android.support.annotation.Nullable;
+
+import com.google.android.exoplayer2.C;
+import com.google.android.exoplayer2.upstream.DataSource;
+import com.google.android.exoplayer2.upstream.DataSpec;
+import com.google.android.exoplayer2.upstream.TransferListener;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A {@link DataSource.Factory} for download requests which waits for its turn from a
+ * {@link BandwidthArbiter} before opening and before every read, and reports what it read.
+ *
+ * It sits on top of the download chain. A download found paused before a read closes its request,
+ * which gives back its concurrency permit, its connection permit and the connection itself to the
+ * player, and opens the rest of its request again once it may continue.
+ */
+public class ThrottledDataSourceFactory implements DataSource.Factory {
+
+    private final DataSource.Factory mUpstreamFactory;
+    private final BandwidthArbiter mArbiter;
+
+    /**
+     * Constructor for this factory.
+     * @param upstreamFactory Factory of the data sources doing the actual requests.
+     * @param arbiter Arbiter sharing the link between playback and downloads.
+     */
+    public ThrottledDataSourceFactory(DataSource.Factory upstreamFactory,
+                                      BandwidthArbiter arbiter) {
+        mUpstreamFactory = upstreamFactory;
+        mArbiter = arbiter;
+    }
+
+    @Override
+    public DataSource createDataSource() {
+        return new ThrottledDataSource(mUpstreamFactory.createDataSource());
+    }
+
+    /**
+     * Data source reading only when the arbiter lets downloads through.
+     */
+    private final class ThrottledDataSource implements DataSource {
+        private final DataSource mUpstream;
+
+        private DataSpec mDataSpec;
+        private long mLength;
+        private long mBytesRead;
+        private boolean mUpstreamOpened;
+
+        public ThrottledDataSource(DataSource upstream) {
+            mUpstream = upstream;
+        }
+
+        @Override
+        public void addTransferListener(TransferListener transferListener) {
+            mUpstream.addTransferListener(transferListener);
+        }
+
+        @Override
+        public long open(DataSpec dataSpec) throws IOException {
+            //a paused download does not even send its request
+            mArbiter.awaitDownloadTurn();
+            mDataSpec = dataSpec;
+            mBytesRead = 0;
+            mLength = mUpstream.open(dataSpec);
+            mUpstreamOpened = true;
+            return mLength;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int readLength) throws IOException {
+            if (mArbiter.isDownloadPaused() && !suspend()) {
+                return C.RESULT_END_OF_INPUT;
+            }
+            //throttled waits are short, the request stays open through them
+            mArbiter.awaitDownloadTurn();
+            int bytesRead = mUpstream.read(buffer, offset, readLength);
+            if (bytesRead > 0) {
+                mBytesRead += bytesRead;
+                mArbiter.onDownloadBytes(bytesRead);
+            }
+            return bytesRead;
+        }
+
+        @Nullable
+        @Override
+        public Uri getUri() {
+            return mUpstream.getUri();
+        }
+
+        @Override
+        public Map<String, List<String>> getResponseHeaders() {
+            return mUpstream.getResponseHeaders();
+        }
+
+        @Override
+        public void close() throws IOException {
+            mDataSpec = null;
+            mUpstreamOpened = false;
+            mUpstream.close();
+        }
+
+        /**
+         * Close the request while downloads are paused and open what is left of it once they may
+         * continue.
+         * @return Returns false if nothing was left to read.
+         */
+        private boolean suspend() throws IOException {
+            if (mUpstreamOpened) {
+                mUpstreamOpened = false;
+                mUpstream.close();
+            }
+            mArbiter.awaitDownloadTurn();
+
+            long lngLength = C.LENGTH_UNSET;
+            if (mLength != C.LENGTH_UNSET) {
+                lngLength = mLength - mBytesRead;
+                if (lngLength <= 0) {
+                    return false;
+                }
+            }
+            mUpstream.open(new DataSpec(mDataSpec.uri,
+                    null,
+                    mDataSpec.absoluteStreamPosition + mBytesRead,
+                    mDataSpec.position + mBytesRead,
+                    lngLength,
+                    mDataSpec.key,
+                    mDataSpec.flags));
+            mUpstreamOpened = true;
+            return true;
+        }
+    }
+}
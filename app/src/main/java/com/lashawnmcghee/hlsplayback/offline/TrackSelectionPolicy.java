@@ -0,0 +1,278 @@
+/*
+ * Copyright (C) 2018 LLM HLS Playback Demo
+ */
+package com.lashawnmcghee.hlsplayback.offline;
+
+import com.google.android.exoplayer2.C;
+import com.google.android.exoplayer2.Format;
+import com.google.android.exoplayer2.offline.DownloadHelper;
+import com.google.android.exoplayer2.offline.TrackKey;
+import com.google.android.exoplayer2.source.TrackGroup;
+import com.google.android.exoplayer2.source.TrackGroupArray;
+import com.google.android.exoplayer2.source.hls.playlist.HlsMasterPlaylist;
+import com.google.android.exoplayer2.util.MimeTypes;
+import com.lashawnmcghee.hlsplayback.interfaces.IDownloadTrackPolicy;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * A track selection policy for downloads which needs no end user.
+ *
+ * One variant is chosen, the one with the highest bitrate within the maximum bitrate and video
+ * size. When a byte budget is set, lower variants are tried until the estimated size of the title
+ * fits, and a title which does not fit at all is skipped. Audio and subtitle renditions are chosen
+ * by language, falling back to the default audio rendition when none matches.
+ */
+public class TrackSelectionPolicy implements IDownloadTrackPolicy {
+    private static final int KIND_VARIANT = HlsMasterPlaylist.GROUP_INDEX_VARIANT;
+    private static final int KIND_AUDIO = HlsMasterPlaylist.GROUP_INDEX_AUDIO;
+    private static final int KIND_SUBTITLE = HlsMasterPlaylist.GROUP_INDEX_SUBTITLE;
+
+    private int mMaxVideoBitrate = Integer.MAX_VALUE;
+    private int mMaxVideoWidth = Integer.MAX_VALUE;
+    private int mMaxVideoHeight = Integer.MAX_VALUE;
+    private String[] mAudioLanguages;
+    private String[] mSubtitleLanguages;
+    private long mByteBudget = C.LENGTH_UNSET;
+
+    /**
+     * Limit the bitrate of the chosen variant.
+     * @param maxVideoBitrate Maximum bitrate in bits per second.
+     * @return
+     */
+    public TrackSelectionPolicy setMaxVideoBitrate(int maxVideoBitrate) {
+        mMaxVideoBitrate = maxVideoBitrate;
+        return this;
+    }
+
+    /**
+     * Limit the video size of the chosen variant, for example to the size of the screen.
+     * @param maxVideoWidth
+     * @param maxVideoHeight
+     * @return
+     */
+    public TrackSelectionPolicy setMaxVideoSize(int maxVideoWidth, int maxVideoHeight) {
+        mMaxVideoWidth = maxVideoWidth;
+        mMaxVideoHeight = maxVideoHeight;
+        return this;
+    }
+
+    /**
+     * Choose audio renditions by language. Every audio rendition is chosen when this is not set.
+     * @param languages Languages such as "en" which also matches "en-US".
+     * @return
+     */
+    public TrackSelectionPolicy setAudioLanguages(String... languages) {
+        mAudioLanguages = languages;
+        return this;
+    }
+
+    /**
+     * Choose subtitle renditions by language. Every subtitle is chosen when this is not set.
+     * @param languages Languages such as "en" which also matches "en-US".
+     * @return
+     */
+    public TrackSelectionPolicy setSubtitleLanguages(String... languages) {
+        mSubtitleLanguages = languages;
+        return this;
+    }
+
+    /**
+     * Limit the estimated size of every title downloaded with this policy.
+     * Estimating needs the title duration, which may load a media playlist.
+     * @param byteBudget Maximum bytes, or {@link C#LENGTH_UNSET} for no limit.
+     * @return
+     */
+    public TrackSelectionPolicy setByteBudget(long byteBudget) {
+        mByteBudget = byteBudget;
+        return this;
+    }
+
+    @Override
+    public List<TrackKey> selectTracks(DownloadHelper helper) {
+        ArrayList<Candidate> candidates = new ArrayList<>();
+        for (int iPeriod = 0; iPeriod < helper.getPeriodCount(); iPeriod++) {
+            TrackGroupArray trackGroups = helper.getTrackGroups(iPeriod);
+            for (int iGroup = 0; iGroup < trackGroups.length; iGroup++) {
+                TrackGroup trackGroup = trackGroups.get(iGroup);
+                int iKind = helper instanceof CachingHlsDownloadHelper
+                        ? ((CachingHlsDownloadHelper) helper).getRenditionGroup(iGroup)
+                        : guessKind(trackGroup.getFormat(0));
+                for (int iTrack = 0; iTrack < trackGroup.length; iTrack++) {
+                    Format format = trackGroup.getFormat(iTrack);
+                    candidates.add(new Candidate(new TrackKey(iPeriod, iGroup, iTrack),
+                            iKind,
+                            format.bitrate,
+                            format.width,
+                            format.height,
+                            format.language,
+                            (format.selectionFlags & C.SELECTION_FLAG_DEFAULT) != 0));
+                }
+            }
+        }
+
+        long lngDurationUs = C.TIME_UNSET;
+        if (mByteBudget != C.LENGTH_UNSET && helper instanceof CachingHlsDownloadHelper) {
+            lngDurationUs = ((CachingHlsDownloadHelper) helper).getDurationUs();
+        }
+        return select(candidates, lngDurationUs);
+    }
+
+    /**
+     * Choose among the tracks of a title.
+     * @param candidates Every track of the title.
+     * @param durationUs Duration of the title, or {@link C#TIME_UNSET} if unknown.
+     * @return Returns the chosen track keys, an empty list for single stream content, or null if
+     * the title does not fit the byte budget.
+     */
+    List<TrackKey> select(List<Candidate> candidates, long durationUs) {
+        if (candidates.isEmpty()) {
+            return Collections.emptyList();
+        }
+        ArrayList<TrackKey> trackKeys = new ArrayList<>();
+        long lngAudioBitrate = 0;
+        for (Candidate candidate : chooseByLanguage(candidates, KIND_AUDIO, mAudioLanguages)) {
+            trackKeys.add(candidate.trackKey);
+            lngAudioBitrate += Math.max(0, candidate.bitrate);
+        }
+        for (Candidate candidate : chooseByLanguage(candidates, KIND_SUBTITLE, mSubtitleLanguages)) {
+            trackKeys.add(candidate.trackKey);
+        }
+
+        ArrayList<Candidate> variants = new ArrayList<>();
+        for (Candidate candidate : candidates) {
+            if (candidate.kind == KIND_VARIANT) {
+                variants.add(candidate);
+            }
+        }
+        if (variants.isEmpty()) {
+            return trackKeys;
+        }
+        //highest bitrate first
+        Collections.sort(variants, (a, b) -> Integer.compare(b.bitrate, a.bitrate));
+
+        ArrayList<Candidate> eligible = new ArrayList<>();
+        for (Candidate variant : variants) {
+            if (variant.bitrate <= mMaxVideoBitrate
+                    && variant.width <= mMaxVideoWidth
+                    && variant.height <= mMaxVideoHeight) {
+                eligible.add(variant);
+            }
+        }
+        if (eligible.isEmpty()) {
+            //nothing is small enough, the lowest variant is the closest
+            eligible.add(variants.get(variants.size() - 1));
+        }
+
+        Candidate chosen = null;
+        for (Candidate variant : eligible) {
+            if (fitsBudget(variant.bitrate + lngAudioBitrate, durationUs)) {
+                chosen = variant;
+                break;
+            }
+        }
+        if (chosen == null) {
+            return null;
+        }
+        trackKeys.add(0, chosen.trackKey);
+        return trackKeys;
+    }
+
+    private boolean fitsBudget(long lngBitrate, long durationUs) {
+        if (mByteBudget == C.LENGTH_UNSET || durationUs == C.TIME_UNSET || lngBitrate <= 0) {
+            return true;
+        }
+        long lngBytes = lngBitrate * (durationUs / 1000) / 8000;
+        return lngBytes <= mByteBudget;
+    }
+
+    private static List<Candidate> chooseByLanguage(List<Candidate> candidates,
+                                                    int iKind,
+                                                    String[] languages) {
+        ArrayList<Candidate> ofKind = new ArrayList<>();
+        for (Candidate candidate : candidates) {
+            if (candidate.kind == iKind) {
+                ofKind.add(candidate);
+            }
+        }
+        if (languages == null || ofKind.isEmpty()) {
+            return ofKind;
+        }
+
+        ArrayList<Candidate> chosen = new ArrayList<>();
+        for (Candidate candidate : ofKind) {
+            if (matchesLanguage(candidate.language, languages)) {
+                chosen.add(candidate);
+            }
+        }
+        if (chosen.isEmpty() && iKind == KIND_AUDIO) {
+            //a title without the wanted language still needs its sound
+            Candidate fallback = ofKind.get(0);
+            for (Candidate candidate : ofKind) {
+                if (candidate.isDefault) {
+                    fallback = candidate;
+                    break;
+                }
+            }
+            chosen.add(fallback);
+        }
+        return chosen;
+    }
+
+    private static boolean matchesLanguage(String sLanguage, String[] languages) {
+        if (sLanguage == null) {
+            return false;
+        }
+        String sNormalized = sLanguage.toLowerCase(Locale.US);
+        for (String sWanted : languages) {
+            String sWantedNormalized = sWanted.toLowerCase(Locale.US);
+            if (sNormalized.equals(sWantedNormalized)
+                    || sNormalized.startsWith(sWantedNormalized + "-")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static int guessKind(Format format) {
+        if (MimeTypes.isText(format.sampleMimeType)) {
+            return KIND_SUBTITLE;
+        }
+        if (MimeTypes.isAudio(format.sampleMimeType) || format.channelCount != Format.NO_VALUE) {
+            return KIND_AUDIO;
+        }
+        return KIND_VARIANT;
+    }
+
+    /**
+     * The properties of one track which the policy chooses by.
+     */
+    static final class Candidate {
+        final TrackKey trackKey;
+        final int kind;
+        final int bitrate;
+        final int width;
+        final int height;
+        final String language;
+        final boolean isDefault;
+
+        Candidate(TrackKey trackKey,
+                  int kind,
+                  int bitrate,
+                  int width,
+                  int height,
+                  String language,
+                  boolean isDefault) {
+            this.trackKey = trackKey;
+            this.kind = kind;
+            this.bitrate = bitrate;
+            this.width = width;
+            this.height = height;
+            this.language = language;
+            this.isDefault = isDefault;
+        }
+    }
+}
@@ -0,0 +1,295 @@
+/*
+ * Copyright (C) 2018 LLM HLS Playback Demo
+ */
+package com.lashawnmcghee.hlsplayback.offline;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+
+/**
+ * An append-only journal of the download actions tracked for each title.
+ *
+ * Tracking or forgetting a title appends one small checksummed record instead of rewriting every
+ * tracked action, so the cost of a change does not grow with the size of the offline library.
+ * Once most records are superseded the journal is compacted into a temporary file which then
+ * replaces it, so a crash leaves either the old or the new journal behind. Loading replays the
+ * records in a single buffered pass and drops a damaged or truncated tail left by a crash.
+ *
+ * Actions are kept as opaque serialized bytes keyed by title, so this class knows nothing of the
+ * action format.
+ */
+public class TrackedActionJournal {
+    private static final int MAGIC = 0x484C5441;
+    private static final int VERSION = 1;
+
+    private static final byte OP_PUT = 1;
+    private static final byte OP_REMOVE = 2;
+
+    private static final int HEADER_BYTES = 8;
+    //op, key length, payload length and checksum
+    private static final int RECORD_OVERHEAD_BYTES = 11;
+    //anything larger is taken for a damaged length rather than an action
+    private static final int MAX_PAYLOAD_BYTES = 1024 * 1024;
+    private static final int COMPACT_MIN_RECORDS = 256;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final File mJournalFile;
+    private final LinkedHashMap<String, byte[]> mEntries = new LinkedHashMap<>();
+
+    private FileOutputStream mJournalOutput;
+    private int mRecordCount;
+
+    /**
+     * Constructor for this journal.
+     * @param journalFile File holding the journal records.
+     */
+    public TrackedActionJournal(File journalFile) {
+        mJournalFile = journalFile;
+    }
+
+    /**
+     * Determines if a journal has been written before.
+     * @return
+     */
+    public boolean exists() {
+        return mJournalFile.exists();
+    }
+
+    /**
+     * Replay the journal and keep it open for appending.
+     * A damaged tail is cut off, and the journal is compacted if most of its records are stale.
+     * @return Returns the serialized action of every tracked title, in the order first tracked.
+     * @throws IOException If the journal could not be read or repaired.
+     */
+    public synchronized Map<String, byte[]> load() throws IOException {
+        close();
+        mEntries.clear();
+        mRecordCount = 0;
+        long lngValidBytes = 0;
+        if (mJournalFile.exists()) {
+            try (FileInputStream input = new FileInputStream(mJournalFile)) {
+                lngValidBytes = replay(input);
+            }
+        }
+
+        if (lngValidBytes < HEADER_BYTES || isCompactionDue()) {
+            rewrite();
+        } else {
+            if (mJournalFile.length() > lngValidBytes) {
+                //a damaged tail, keep everything before it
+                try (RandomAccessFile file = new RandomAccessFile(mJournalFile, "rw")) {
+                    file.setLength(lngValidBytes);
+                    file.getFD().sync();
+                }
+            }
+            mJournalOutput = new FileOutputStream(mJournalFile, true);
+        }
+        return new LinkedHashMap<>(mEntries);
+    }
+
+    /**
+     * Get the number of tracked titles.
+     * @return
+     */
+    public synchronized int getEntryCount() {
+        return mEntries.size();
+    }
+
+    /**
+     * Get the number of records in the journal, stale ones included.
+     * @return
+     */
+    public synchronized int getRecordCount() {
+        return mRecordCount;
+    }
+
+    /**
+     * Record the action of a title, replacing whatever was recorded for it.
+     * Nothing is written if the same action is already recorded.
+     * @param key Key of the title, such as its URI.
+     * @param payload The serialized action.
+     */
+    public synchronized void put(String key, byte[] payload) throws IOException {
+        if (payload.length > MAX_PAYLOAD_BYTES) {
+            throw new IOException("Action of " + key + " is too large to journal");
+        }
+        if (Arrays.equals(mEntries.get(key), payload)) {
+            return;
+        }
+        appendRecord(OP_PUT, key, payload);
+        mEntries.put(key, payload);
+        compactIfDue();
+    }
+
+    /**
+     * Forget the action of a title.
+     * Nothing is written if no action is recorded for it.
+     * @param key
+     */
+    public synchronized void remove(String key) throws IOException {
+        if (!mEntries.containsKey(key)) {
+            return;
+        }
+        appendRecord(OP_REMOVE, key, null);
+        mEntries.remove(key);
+        compactIfDue();
+    }
+
+    /**
+     * Replace every recorded action at once, such as when moving from another format.
+     * @param entries
+     */
+    public synchronized void replaceAll(Map<String, byte[]> entries) throws IOException {
+        mEntries.clear();
+        mEntries.putAll(entries);
+        rewrite();
+    }
+
+    /**
+     * Close the journal. It must be loaded again before it is written to.
+     */
+    public synchronized void close() throws IOException {
+        if (mJournalOutput != null) {
+            mJournalOutput.close();
+            mJournalOutput = null;
+        }
+    }
+
+    /**
+     * Apply every whole record of the journal.
+     * @param input
+     * @return Returns the length of the journal up to the end of its last whole record.
+     */
+    private long replay(FileInputStream input) throws IOException {
+        CheckedInputStream checked =
+                new CheckedInputStream(new BufferedInputStream(input), new CRC32());
+        DataInputStream data = new DataInputStream(checked);
+        long lngValidBytes = 0;
+        try {
+            if (data.readInt() != MAGIC || data.readInt() != VERSION) {
+                return 0;
+            }
+            lngValidBytes = HEADER_BYTES;
+            while (true) {
+                checked.getChecksum().reset();
+                byte op = data.readByte();
+                int keyLength = data.readUnsignedShort();
+                byte[] keyBytes = new byte[keyLength];
+                data.readFully(keyBytes);
+                int payloadLength = data.readInt();
+                if (payloadLength < 0 || payloadLength > MAX_PAYLOAD_BYTES) {
+                    return lngValidBytes;
+                }
+                byte[] payload = new byte[payloadLength];
+                data.readFully(payload);
+                int expected = (int) checked.getChecksum().getValue();
+                if (data.readInt() != expected) {
+                    return lngValidBytes;
+                }
+
+                String key = new String(keyBytes, UTF_8);
+                switch (op) {
+                    case OP_PUT:
+                        mEntries.put(key, payload);
+                        break;
+                    case OP_REMOVE:
+                        mEntries.remove(key);
+                        break;
+                    default:
+                        return lngValidBytes;
+                }
+                mRecordCount++;
+                lngValidBytes += RECORD_OVERHEAD_BYTES + keyLength + payloadLength;
+            }
+        } catch (EOFException e) {
+            //a truncated tail from an interrupted write, keep everything before it
+            return lngValidBytes;
+        }
+    }
+
+    private boolean isCompactionDue() {
+        return mRecordCount > COMPACT_MIN_RECORDS && mRecordCount > 2 * mEntries.size();
+    }
+
+    private void compactIfDue() throws IOException {
+        if (isCompactionDue()) {
+            rewrite();
+        }
+    }
+
+    /**
+     * Replace the journal with one record per tracked title and keep it open for appending.
+     */
+    private void rewrite() throws IOException {
+        close();
+        File tempFile = new File(mJournalFile.getPath() + ".tmp");
+        try (FileOutputStream output = new FileOutputStream(tempFile)) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream data = new DataOutputStream(bytes);
+            data.writeInt(MAGIC);
+            data.writeInt(VERSION);
+            for (Map.Entry<String, byte[]> entry : mEntries.entrySet()) {
+                writeRecord(data, OP_PUT, entry.getKey(), entry.getValue());
+            }
+            output.write(bytes.toByteArray());
+            output.getFD().sync();
+        }
+        if (!tempFile.renameTo(mJournalFile)) {
+            throw new IOException("Failed to replace " + mJournalFile);
+        }
+        mRecordCount = mEntries.size();
+        mJournalOutput = new FileOutputStream(mJournalFile, true);
+    }
+
+    private void appendRecord(byte op, String key, byte[] payload) throws IOException {
+        if (mJournalOutput == null) {
+            throw new IOException("Tracked action journal is not loaded");
+        }
+        //one write per record so a dying process leaves whole records behind
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        writeRecord(new DataOutputStream(bytes), op, key, payload);
+        mJournalOutput.write(bytes.toByteArray());
+        //titles are tracked seldom, so every change is made durable straight away
+        mJournalOutput.getFD().sync();
+        mRecordCount++;
+    }
+
+    private static void writeRecord(DataOutputStream output, byte op, String key, byte[] payload)
+            throws IOException {
+        byte[] keyBytes = key.getBytes(UTF_8);
+        if (keyBytes.length > 0xFFFF) {
+            throw new IOException("Key is too long to journal: " + key);
+        }
+        int payloadLength = payload == null ? 0 : payload.length;
+        ByteArrayOutputStream recordBytes =
+                new ByteArrayOutputStream(keyBytes.length + payloadLength + 7);
+        DataOutputStream record = new DataOutputStream(recordBytes);
+        record.writeByte(op);
+        record.writeShort(keyBytes.length);
+        record.write(keyBytes);
+        record.writeInt(payloadLength);
+        if (payload != null) {
+            record.write(payload);
+        }
+        byte[] encoded = recordBytes.toByteArray();
+        CRC32 crc = new CRC32();
+        crc.update(encoded);
+        output.write(encoded);
+        output.writeInt((int) crc.getValue());
+    }
+}
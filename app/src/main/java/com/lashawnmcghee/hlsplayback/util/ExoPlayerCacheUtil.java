@@ -3,25 +3,74 @@
  */
 package com.lashawnmcghee.hlsplayback.util;
 
+import android.content.ComponentCallbacks2;
 import android.content.Context;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
 
+import com.google.android.exoplayer2.offline.DownloadAction;
 import com.google.android.exoplayer2.offline.DownloadManager;
 import com.google.android.exoplayer2.offline.DownloaderConstructorHelper;
+import com.google.android.exoplayer2.offline.StreamKey;
 import com.google.android.exoplayer2.upstream.DataSource;
 import com.google.android.exoplayer2.upstream.DefaultDataSourceFactory;
-import com.google.android.exoplayer2.upstream.DefaultHttpDataSourceFactory;
 import com.google.android.exoplayer2.upstream.FileDataSourceFactory;
 import com.google.android.exoplayer2.upstream.HttpDataSource;
 import com.google.android.exoplayer2.upstream.cache.Cache;
 import com.google.android.exoplayer2.upstream.cache.CacheDataSource;
 import com.google.android.exoplayer2.upstream.cache.CacheDataSourceFactory;
-import com.google.android.exoplayer2.upstream.cache.NoOpCacheEvictor;
 import com.google.android.exoplayer2.upstream.cache.SimpleCache;
 import com.lashawnmcghee.hlsplayback.BuildConfig;
 import com.lashawnmcghee.hlsplayback.HLSPlaybackApp;
+import com.lashawnmcghee.hlsplayback.cache.ByteArrayPool;
+import com.lashawnmcghee.hlsplayback.cache.CacheIndexSnapshot;
+import com.lashawnmcghee.hlsplayback.cache.CacheKeyDataSourceFactory;
+import com.lashawnmcghee.hlsplayback.cache.CachingHlsPlaylistParserFactory;
+import com.lashawnmcghee.hlsplayback.cache.CatalogPrewarmer;
+import com.lashawnmcghee.hlsplayback.cache.CoalescingDataSourceFactory;
+import com.lashawnmcghee.hlsplayback.cache.DataSourceMetrics;
+import com.lashawnmcghee.hlsplayback.cache.DefaultStreamCachePolicy;
+import com.lashawnmcghee.hlsplayback.cache.HlsPlaylistCache;
+import com.lashawnmcghee.hlsplayback.cache.InFlightRequestRegistry;
+import com.lashawnmcghee.hlsplayback.cache.MemorySegmentCache;
+import com.lashawnmcghee.hlsplayback.cache.MemoryTierDataSourceFactory;
+import com.lashawnmcghee.hlsplayback.cache.MetricsDataSourceFactory;
+import com.lashawnmcghee.hlsplayback.cache.ParallelRangeDataSourceFactory;
+import com.lashawnmcghee.hlsplayback.cache.PinnedLruCacheEvictor;
+import com.lashawnmcghee.hlsplayback.cache.PinningDataSinkFactory;
+import com.lashawnmcghee.hlsplayback.cache.PlaylistRevalidatingHttpDataSourceFactory;
+import com.lashawnmcghee.hlsplayback.cache.PooledHttpDataSourceFactory;
+import com.lashawnmcghee.hlsplayback.cache.PrefetchingDataSourceFactory;
+import com.lashawnmcghee.hlsplayback.cache.RuleBasedCacheKeyNormalizer;
+import com.lashawnmcghee.hlsplayback.cache.SegmentPrefetcher;
+import com.lashawnmcghee.hlsplayback.cache.WriteThroughDataSinkFactory;
+import com.lashawnmcghee.hlsplayback.interfaces.ICacheKeyNormalizer;
+import com.lashawnmcghee.hlsplayback.interfaces.ICacheReadyListener;
+import com.lashawnmcghee.hlsplayback.interfaces.IStreamCachePolicy;
 import com.lashawnmcghee.hlsplayback.listeners.MediaDownloadTracker;
+import com.lashawnmcghee.hlsplayback.offline.AdaptiveConcurrencyController;
+import com.lashawnmcghee.hlsplayback.offline.BandwidthArbiter;
+import com.lashawnmcghee.hlsplayback.offline.ConcurrencyLimitedDataSourceFactory;
+import com.lashawnmcghee.hlsplayback.offline.DownloadIntegrityVerifier;
+import com.lashawnmcghee.hlsplayback.offline.DownloadJournal;
+import com.lashawnmcghee.hlsplayback.offline.HashingDataSinkFactory;
+import com.lashawnmcghee.hlsplayback.offline.HlsCacheDownloadAction;
+import com.lashawnmcghee.hlsplayback.offline.JournaledDataSourceFactory;
+import com.lashawnmcghee.hlsplayback.offline.StorageAdmissionController;
+import com.lashawnmcghee.hlsplayback.offline.ThrottledDataSourceFactory;
 
 import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * The ExoPlayer Cache Utility is a singleton which may be used application/service wide.
@@ -37,31 +86,105 @@ import java.io.File;
 public class ExoPlayerCacheUtil {
     private static final String TAG = ExoPlayerCacheUtil.class.getSimpleName();
 
+    public static final int CACHE_STATE_UNKNOWN = 0;
+    public static final int CACHE_STATE_NOT_DOWNLOADED = 1;
+    public static final int CACHE_STATE_DOWNLOADED = 2;
+
+    private static final int INIT_STATE_PENDING = 0;
+    private static final int INIT_STATE_READY = 1;
+    private static final int INIT_STATE_FAILED = 2;
+
     private static ExoPlayerCacheUtil instance = null;
     private Context mContext;
 
     private static final String DOWNLOAD_ACTION_FILE = "actions";
     private static final String DOWNLOAD_TRACKER_ACTION_FILE = "tracked_actions";
+    private static final String DOWNLOAD_TRACKER_JOURNAL_FILE = "tracked_actions.journal";
+    private static final String DOWNLOAD_JOURNAL_FILE = "download_journal";
+    private static final String DOWNLOAD_JOURNAL_PART_DIRECTORY = "download_parts";
     private static final String DOWNLOAD_CONTENT_DIRECTORY = "downloads";
-    private static final int MAX_SIMULTANEOUS_DOWNLOADS = 2;
+    private static final String CACHE_INDEX_SNAPSHOT_FILE = "cache_index.snap";
+    //the download manager runs this many tasks, the controller decides how many transfer
+    private static final int MAX_SIMULTANEOUS_DOWNLOADS = 6;
+    private static final int MIN_DOWNLOAD_CONCURRENCY = 1;
+    private static final int INITIAL_DOWNLOAD_CONCURRENCY = 2;
+    private static final long DEFAULT_CACHE_BUDGET_BYTES = 2L * 1024 * 1024 * 1024;
+    //free space never taken by downloads so the rest of the device keeps working
+    private static final long DOWNLOAD_FREE_SPACE_RESERVE_BYTES = 256 * 1024 * 1024;
+    private static final int INTEGRITY_VERIFY_THREADS = 2;
+    private static final long MEMORY_TIER_BYTES = 16 * 1024 * 1024;
+    private static final long MEMORY_TIER_MAX_ENTRY_BYTES = 8 * 1024 * 1024;
+    private static final int MEMORY_TIER_CHUNK_SIZE = 64 * 1024;
+    private static final long PLAYLIST_CACHE_BYTES = 4 * 1024 * 1024;
+    private static final long PREWARM_BUDGET_BYTES = 8 * 1024 * 1024;
+    private static final long PREWARM_TITLE_BUDGET_BYTES = 1024 * 1024;
+    private static final int RANGE_FETCH_BYTES = 1024 * 1024;
+    //playback fetches on its own threads and buffers so it never queues behind downloads
+    private static final int PLAYBACK_RANGE_FETCH_THREADS = 3;
+    private static final int PLAYBACK_RANGE_FETCH_BUFFERS = 6;
+    private static final int RANGE_FETCH_THREADS = 4;
+    private static final int RANGE_FETCH_BUFFERS = 8;
+    private static final long NO_RANGE_HOST_RETRY_MS = 5 * 60 * 1000;
+    private static final int IN_FLIGHT_CHUNK_SIZE = 64 * 1024;
+    private static final long IN_FLIGHT_MAX_TRANSFER_BYTES = 8 * 1024 * 1024;
+    //DefaultLoadControl keeps 15 to 30 seconds buffered once playback is healthy
+    private static final long PLAYBACK_LOW_WATERMARK_MS = 8000;
+    private static final long PLAYBACK_HIGH_WATERMARK_MS = 15000;
 
     private File mDownloadDirectory;
     private Cache mDownloadCache;
+    private PinnedLruCacheEvictor mCacheEvictor;
+    private CacheIndexSnapshot mIndexSnapshot;
+    private long mCacheBudgetBytes = DEFAULT_CACHE_BUDGET_BYTES;
+    private MemorySegmentCache mMemoryCache;
+    private HlsPlaylistCache mPlaylistCache;
+    private SegmentPrefetcher mSegmentPrefetcher;
+    //built up front, its getter runs on the main thread while the cache is still being built
+    private final CatalogPrewarmer mCatalogPrewarmer;
+    //built up front, its getter runs on the main thread while the cache is still being built
+    private final PooledHttpDataSourceFactory mHttpDataSourceFactory;
+    private ExecutorService mPlaybackRangeFetchExecutor;
+    private ByteArrayPool mPlaybackRangeBufferPool;
+    private ExecutorService mRangeFetchExecutor;
+    private ByteArrayPool mRangeBufferPool;
+    private final AtomicBoolean mParallelRangeFetching = new AtomicBoolean(true);
+    private final DataSourceMetrics mDataSourceMetrics = new DataSourceMetrics();
+    private final InFlightRequestRegistry mInFlightRegistry =
+            new InFlightRequestRegistry(IN_FLIGHT_CHUNK_SIZE, IN_FLIGHT_MAX_TRANSFER_BYTES);
+    private final AdaptiveConcurrencyController mDownloadConcurrency =
+            new AdaptiveConcurrencyController(MIN_DOWNLOAD_CONCURRENCY,
+                    MAX_SIMULTANEOUS_DOWNLOADS,
+                    INITIAL_DOWNLOAD_CONCURRENCY);
+    private final BandwidthArbiter mBandwidthArbiter =
+            new BandwidthArbiter(PLAYBACK_LOW_WATERMARK_MS, PLAYBACK_HIGH_WATERMARK_MS);
+
+    //every keyed component goes through the delegating normalizer so a new one applies everywhere
+    private volatile ICacheKeyNormalizer mCacheKeyNormalizer = new RuleBasedCacheKeyNormalizer();
+    private final ICacheKeyNormalizer mDelegatingKeyNormalizer =
+            uri -> mCacheKeyNormalizer.getCacheKey(uri);
+
+    private ExecutorService mInitExecutor;
+    private FutureTask<Void> mReadyFuture;
+    //set once the background initialization ended, before any ready listener is called
+    private volatile int mInitState = INIT_STATE_PENDING;
+    private Handler mMainHandler;
+    private final CopyOnWriteArraySet<ICacheReadyListener> mReadyListeners = new CopyOnWriteArraySet<>();
     private DownloadManager mDownloadManager;
+    private DownloadJournal mDownloadJournal;
+    private StorageAdmissionController mAdmissionController;
+    private DownloadIntegrityVerifier mIntegrityVerifier;
     private MediaDownloadTracker mDownloadTracker;
 
-    /**
-     * Hidden class constructor.
-     */
-    private ExoPlayerCacheUtil() {
-        //Do nothing...
-    }
-
     /**
      * Hidden class constructor.
      */
     private ExoPlayerCacheUtil(Context context) {
         mContext = context;
+        mHttpDataSourceFactory = new PooledHttpDataSourceFactory(HLSPlaybackApp.getUserAgent());
+        mCatalogPrewarmer = new CatalogPrewarmer(this,
+                PREWARM_BUDGET_BYTES,
+                PREWARM_TITLE_BUDGET_BYTES,
+                new DefaultStreamCachePolicy());
         init();
     }
 
@@ -83,26 +206,202 @@ public class ExoPlayerCacheUtil {
 
     /**
      * Initialization of class workers.
+     * The download cache, download manager and tracker are built on a background thread since the
+     * cache scans its whole directory and loads its index when it is created. Our own compact index
+     * snapshot is mapped first so provisional answers are available while the cache is scanned.
      */
     private void init() {
-        //Do nothing for now.
+        mMainHandler = new Handler(Looper.getMainLooper());
+        mIndexSnapshot = new CacheIndexSnapshot(
+                new File(getDownloadDirectory(), CACHE_INDEX_SNAPSHOT_FILE));
+        mReadyFuture = new FutureTask<Void>(() -> {
+            mIndexSnapshot.load();
+            initDownloadManager();
+            return null;
+        }) {
+            @Override
+            protected void done() {
+                try {
+                    get();
+                    mInitState = INIT_STATE_READY;
+                    mMainHandler.post(ExoPlayerCacheUtil.this::dispatchCacheReady);
+                } catch (ExecutionException e) {
+                    LogTrace.e(TAG, "Failed to build the download cache", e.getCause());
+                    mInitState = INIT_STATE_FAILED;
+                } catch (InterruptedException | CancellationException e) {
+                    //stopped before it finished
+                    mInitState = INIT_STATE_FAILED;
+                }
+                if (mInitState == INIT_STATE_FAILED) {
+                    mMainHandler.post(ExoPlayerCacheUtil.this::dispatchCacheReady);
+                }
+            }
+        };
+        mInitExecutor = Executors.newSingleThreadExecutor();
+        mInitExecutor.execute(mReadyFuture);
+    }
+
+    /**
+     * Determines if the download cache, manager and tracker have been built.
+     * Calls to {@link #getDownloadTracker()}, {@link #getDownloadManager()} and the data source
+     * factory builders block until this is true.
+     * @return
+     */
+    public boolean isReady() {
+        return mInitState == INIT_STATE_READY;
+    }
+
+    /**
+     * Determines if building the download cache, manager and tracker failed. The failure is
+     * logged, ready listeners are told through {@link ICacheReadyListener#onCacheFailed()} and
+     * the cached state of titles stays provisional.
+     * @return
+     */
+    public boolean isFailed() {
+        return mInitState == INIT_STATE_FAILED;
+    }
+
+    /**
+     * Get a future which completes once the download cache, manager and tracker have been built.
+     * @return
+     */
+    public Future<Void> getReadyFuture() {
+        return mReadyFuture;
+    }
+
+    /**
+     * Add a one time listener called on the main thread once the cache utility is ready or failed.
+     * If it is already either the listener is called shortly after on the main thread.
+     * @param listener A class which implements the ICacheReadyListener interface.
+     */
+    public void addReadyListener(ICacheReadyListener listener) {
+        mReadyListeners.add(listener);
+        if (mInitState != INIT_STATE_PENDING) {
+            mMainHandler.post(this::dispatchCacheReady);
+        }
+    }
+
+    /**
+     * Remove a listener which has not been called yet.
+     * @param listener A class which implements the ICacheReadyListener interface.
+     */
+    public void removeReadyListener(ICacheReadyListener listener) {
+        mReadyListeners.remove(listener);
+    }
+
+    /**
+     * Get the download state of a URI without blocking.
+     * @param uri URI of the media.
+     * @return Returns CACHE_STATE_DOWNLOADED or CACHE_STATE_NOT_DOWNLOADED. While the tracker is
+     * still being built in the background, downloads recorded in the index snapshot are reported
+     * as CACHE_STATE_DOWNLOADED and anything else as CACHE_STATE_UNKNOWN. The snapshot is checked
+     * under the normalized key and under the raw key of downloads made before normalization.
+     */
+    public int getCachedState(Uri uri) {
+        if (!isReady()) {
+            if (mIndexSnapshot.isLoaded()
+                    && (mIndexSnapshot.isPinned(mDelegatingKeyNormalizer.getCacheKey(uri))
+                    || mIndexSnapshot.isPinned(uri.toString()))) {
+                return CACHE_STATE_DOWNLOADED;
+            }
+            return CACHE_STATE_UNKNOWN;
+        }
+        return getDownloadTracker().isDownloaded(uri)
+                ? CACHE_STATE_DOWNLOADED : CACHE_STATE_NOT_DOWNLOADED;
+    }
+
+    /**
+     * Call every pending ready listener once.
+     */
+    private void dispatchCacheReady() {
+        boolean bFailed = isFailed();
+        for (ICacheReadyListener listener : mReadyListeners) {
+            if (mReadyListeners.remove(listener)) {
+                if (bFailed) {
+                    listener.onCacheFailed();
+                } else {
+                    listener.onCacheReady();
+                }
+            }
+        }
     }
 
     /**
      * Release this instance of the utility.
+     * Holds the class lock so {@link #getInstance(Context)} never hands out an instance which is
+     * being released.
      */
     public void release() {
-        mDownloadManager.release();
+        synchronized (ExoPlayerCacheUtil.class) {
+            releaseComponents();
+            if (instance == this) {
+                instance = null;
+            }
+        }
+    }
+
+    /**
+     * Release every component built by this instance.
+     */
+    private void releaseComponents() {
+        mInitExecutor.shutdown();
+        mReadyListeners.clear();
+        if (mDownloadTracker != null) {
+            mDownloadTracker.release();
+        }
+        if (mDownloadManager != null) {
+            mDownloadManager.release();
+        }
         mDownloadManager = null;
         mDownloadTracker = null;
+        mAdmissionController = null;
+        if (mIntegrityVerifier != null) {
+            mIntegrityVerifier.release();
+            mIntegrityVerifier = null;
+        }
+        if (mDownloadJournal != null) {
+            try {
+                mDownloadJournal.close();
+            } catch (IOException e) {
+                LogTrace.e(TAG, "Failed to close download journal", e);
+            }
+            mDownloadJournal = null;
+        }
 
         //Should we release the cache here? The background service works even when the app is not.
         //mDownloadCache.release();
         mDownloadCache = null;
+        mCacheEvictor = null;
+        mIndexSnapshot.release();
+        if (mMemoryCache != null) {
+            mMemoryCache.clear();
+            mMemoryCache = null;
+        }
+        mCatalogPrewarmer.release();
+        if (mSegmentPrefetcher != null) {
+            mSegmentPrefetcher.release();
+            mSegmentPrefetcher = null;
+        }
+        if (mPlaylistCache != null) {
+            mPlaylistCache.clear();
+            mPlaylistCache = null;
+        }
+        if (mPlaybackRangeFetchExecutor != null) {
+            mPlaybackRangeFetchExecutor.shutdownNow();
+            mPlaybackRangeFetchExecutor = null;
+            mPlaybackRangeBufferPool.clear();
+            mPlaybackRangeBufferPool = null;
+        }
+        if (mRangeFetchExecutor != null) {
+            mRangeFetchExecutor.shutdownNow();
+            mRangeFetchExecutor = null;
+            mRangeBufferPool.clear();
+            mRangeBufferPool = null;
+        }
+        mHttpDataSourceFactory.release();
         mDownloadDirectory = null;
 
         mContext = null;
-        instance = null;
     }
 
     /**
@@ -110,19 +409,220 @@ public class ExoPlayerCacheUtil {
      * Use of this data source will keep the app in sync with the created cache.
      */
     public DataSource.Factory buildDataSourceFactory() {
-        HttpDataSource.Factory httpDSF = buildHttpDataSourceFactory();
-        DefaultDataSourceFactory upstreamFactory = new DefaultDataSourceFactory(mContext, httpDSF);
+        DataSource.Factory networkDSF = buildNetworkDataSourceFactory(true);
+        DefaultDataSourceFactory upstreamFactory =
+                new DefaultDataSourceFactory(mContext, networkDSF);
         Cache cache = getDownloadCache();
-        CacheDataSourceFactory cacheDSF = buildReadOnlyCacheDataSource(upstreamFactory, cache);
-        return cacheDSF;
+        CacheDataSourceFactory cacheDSF = buildReadOnlyCacheDataSource(upstreamFactory,
+                cache,
+                mDataSourceMetrics);
+        MemoryTierDataSourceFactory memoryDSF =
+                new MemoryTierDataSourceFactory(cacheDSF, getMemoryCache());
+        CacheKeyDataSourceFactory keyDSF =
+                new CacheKeyDataSourceFactory(memoryDSF, cache, mDelegatingKeyNormalizer);
+        return new MetricsDataSourceFactory(keyDSF, mDataSourceMetrics);
+    }
+
+    /**
+     * Returns a write-through {@link DataSource.Factory}.
+     * Streamed playlists and segments are written into the cache while they play so repeated
+     * playback is served from cache. The provided policy decides what is kept for this stream.
+     * The next segments of the rendition being played are prefetched into the cache as well.
+     * Network transfers are reported to the {@link BandwidthArbiter} as playback traffic.
+     * @param policy Per stream policy deciding which playlists and segments are kept.
+     */
+    public DataSource.Factory buildDataSourceFactory(IStreamCachePolicy policy) {
+        DataSource.Factory networkDSF = buildNetworkDataSourceFactory(true);
+        DefaultDataSourceFactory upstreamFactory = new DefaultDataSourceFactory(mContext,
+                mBandwidthArbiter.getPlaybackTransferListener(),
+                networkDSF);
+        Cache cache = getDownloadCache();
+        CacheDataSourceFactory cacheDSF = buildWriteThroughCacheDataSource(upstreamFactory,
+                cache,
+                policy,
+                mDataSourceMetrics);
+        MemoryTierDataSourceFactory memoryDSF =
+                new MemoryTierDataSourceFactory(cacheDSF, getMemoryCache());
+        CacheKeyDataSourceFactory keyDSF =
+                new CacheKeyDataSourceFactory(memoryDSF, cache, mDelegatingKeyNormalizer);
+        MetricsDataSourceFactory metricsDSF = new MetricsDataSourceFactory(keyDSF, mDataSourceMetrics);
+        return new PrefetchingDataSourceFactory(metricsDSF, getSegmentPrefetcher(), policy);
+    }
+
+    /**
+     * Get the traffic metrics of every data source built by this utility.
+     * Use {@link DataSourceMetrics#snapshot()} to read them.
+     * @return
+     */
+    public DataSourceMetrics getDataSourceMetrics() {
+        return mDataSourceMetrics;
+    }
+
+    /**
+     * Get the controller deciding how many downloads transfer at the same time.
+     * Use {@link AdaptiveConcurrencyController#snapshot()} to read its decisions.
+     * @return
+     */
+    public AdaptiveConcurrencyController getDownloadConcurrencyController() {
+        return mDownloadConcurrency;
+    }
+
+    /**
+     * Set the bounds within which the number of concurrent downloads adapts.
+     * @param minConcurrency Lowest number of concurrent downloads.
+     * @param maxConcurrency Highest number of concurrent downloads, at most
+     *                       {@link #MAX_SIMULTANEOUS_DOWNLOADS} since the download manager runs
+     *                       that many tasks.
+     */
+    public void setDownloadConcurrencyBounds(int minConcurrency, int maxConcurrency) {
+        mDownloadConcurrency.setBounds(Math.min(minConcurrency, MAX_SIMULTANEOUS_DOWNLOADS),
+                Math.min(maxConcurrency, MAX_SIMULTANEOUS_DOWNLOADS));
+    }
+
+    /**
+     * Get the arbiter which throttles or pauses downloads while the player's buffer is low.
+     * The player reports its buffer level to it, use {@link BandwidthArbiter#snapshot()} to read
+     * its token bucket.
+     * @return
+     */
+    public BandwidthArbiter getBandwidthArbiter() {
+        return mBandwidthArbiter;
+    }
+
+    /**
+     * Get the prefetcher which fetches the next segments of the rendition being played.
+     * Cancel it whenever the player seeks or changes its track selection.
+     * @return
+     */
+    public synchronized SegmentPrefetcher getSegmentPrefetcher() {
+        if (mSegmentPrefetcher == null) {
+            DataSource.Factory networkDSF = buildNetworkDataSourceFactory(false);
+            mSegmentPrefetcher = new SegmentPrefetcher(getDownloadCache(),
+                    new DefaultDataSourceFactory(mContext, networkDSF),
+                    getPlaylistCache(),
+                    mDelegatingKeyNormalizer);
+        }
+        return mSegmentPrefetcher;
+    }
+
+    /**
+     * Get the prewarmer which fetches the start of catalog entries shown on screen.
+     * It never blocks, so it may be called while binding rows. By default it writes to the
+     * download cache what a {@link DefaultStreamCachePolicy} would, use
+     * {@link CatalogPrewarmer#setCachePolicy(IStreamCachePolicy)} to match another player policy.
+     * @return
+     */
+    public CatalogPrewarmer getCatalogPrewarmer() {
+        return mCatalogPrewarmer;
     }
 
     /**
      * Returns a {@link HttpDataSource.Factory}.
      * Use of this data source will keep the app in sync with the created cache.
+     * Every caller shares the same pooled factory so playback, prefetching and downloads reuse
+     * the same keep-alive connections.
      */
     public HttpDataSource.Factory buildHttpDataSourceFactory() {
-        return new DefaultHttpDataSourceFactory(HLSPlaybackApp.getUserAgent());
+        return getPooledHttpDataSourceFactory();
+    }
+
+    /**
+     * Get the pooled HTTP factory owning the connections of this application.
+     * It never blocks, so connections may be warmed up from the main thread.
+     * @return
+     */
+    public PooledHttpDataSourceFactory getPooledHttpDataSourceFactory() {
+        return mHttpDataSourceFactory;
+    }
+
+    /**
+     * Returns a playlist parser factory which shares parsed playlists through our playlist cache.
+     * @param streamKeys Stream keys used to filter master playlists, or an empty list.
+     */
+    public CachingHlsPlaylistParserFactory buildPlaylistParserFactory(List<StreamKey> streamKeys) {
+        return new CachingHlsPlaylistParserFactory(getPlaylistCache(), streamKeys);
+    }
+
+    /**
+     * Get the parsed playlist cache shared by the player and the download helpers.
+     * @return
+     */
+    public synchronized HlsPlaylistCache getPlaylistCache() {
+        if (mPlaylistCache == null) {
+            mPlaylistCache = new HlsPlaylistCache(PLAYLIST_CACHE_BYTES);
+        }
+        return mPlaylistCache;
+    }
+
+    /**
+     * Replace the normalizer choosing the cache keys of playback, prefetching and downloads.
+     * The default one is a {@link RuleBasedCacheKeyNormalizer} without rules, which keys content by
+     * its URI. Content cached under an older key stays readable during playback.
+     * @param normalizer New cache key normalizer.
+     */
+    public void setCacheKeyNormalizer(ICacheKeyNormalizer normalizer) {
+        mCacheKeyNormalizer = normalizer;
+    }
+
+    /**
+     * Get the normalizer choosing cache keys. It always delegates to the latest one set.
+     * @return
+     */
+    public ICacheKeyNormalizer getCacheKeyNormalizer() {
+        return mDelegatingKeyNormalizer;
+    }
+
+    /**
+     * Set the byte budget of the download cache.
+     * Streamed content is evicted in least recently used order once the budget is exceeded while
+     * content downloaded through the tracker is always kept. New downloads are only admitted
+     * while they fit in what downloads have left of the budget.
+     * @param budgetBytes Cache budget in bytes.
+     */
+    public synchronized void setCacheBudget(long budgetBytes) {
+        mCacheBudgetBytes = budgetBytes;
+        if (mCacheEvictor != null) {
+            mCacheEvictor.setMaxBytes(budgetBytes);
+        }
+    }
+
+    /**
+     * Grab the evictor of our download cache so its budget and eviction counters may be inspected.
+     * The cache will be initialized if not already done.
+     * @return
+     */
+    public PinnedLruCacheEvictor getCacheEvictor() {
+        getDownloadCache();
+        return mCacheEvictor;
+    }
+
+    /**
+     * Release memory held by our in-memory segment tier based on how hard the system is pressed.
+     * @param level The trim level provided by {@link ComponentCallbacks2#onTrimMemory(int)}.
+     */
+    public void onTrimMemory(int level) {
+        mInFlightRegistry.trim();
+        MemorySegmentCache memoryCache = mMemoryCache;
+        if (memoryCache == null) {
+            return;
+        }
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE
+                || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+            memoryCache.clear();
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            memoryCache.trimToSize(memoryCache.getCurrentBytes() / 2);
+        }
+    }
+
+    /**
+     * Drop our in-memory segment tier entirely.
+     */
+    public void onLowMemory() {
+        mInFlightRegistry.trim();
+        MemorySegmentCache memoryCache = mMemoryCache;
+        if (memoryCache != null) {
+            memoryCache.clear();
+        }
     }
 
     /**
@@ -134,7 +634,8 @@ public class ExoPlayerCacheUtil {
 
     /**
      * Grab the download manager associated with this application.
-     * The DownloadManager will be initialized if not already done.
+     * The DownloadManager will be initialized if not already done, blocking until the background
+     * initialization is complete.
      * @return
      */
     public DownloadManager getDownloadManager() {
@@ -144,7 +645,8 @@ public class ExoPlayerCacheUtil {
 
     /**
      * Grab the download tracker associated with this application.
-     * The DownloadManager will be initialized if not already done.
+     * The DownloadManager will be initialized if not already done, blocking until the background
+     * initialization is complete. Use {@link #getCachedState(Uri)} from the UI instead.
      * @return
      */
     public MediaDownloadTracker getDownloadTracker() {
@@ -159,38 +661,210 @@ public class ExoPlayerCacheUtil {
         if (mDownloadManager == null) {
             //first initialize the download manager
             Cache cache = getDownloadCache();
-            HttpDataSource.Factory httpDSF = buildHttpDataSourceFactory();
+            //downloads give way to playback before they take a concurrency permit, and give back
+            //their permits and connection while paused
+            DataSource.Factory downloadDSF = new ThrottledDataSourceFactory(
+                    new ConcurrencyLimitedDataSourceFactory(
+                            buildDownloadNetworkDataSourceFactory(),
+                            mDownloadConcurrency),
+                    mBandwidthArbiter);
+
+            //segments interrupted by the process dying resume from the journaled bytes
+            mDownloadJournal = new DownloadJournal(
+                    new File(getDownloadDirectory(), DOWNLOAD_JOURNAL_FILE),
+                    new File(getDownloadDirectory(), DOWNLOAD_JOURNAL_PART_DIRECTORY));
+            try {
+                mDownloadJournal.load();
+                downloadDSF = new JournaledDataSourceFactory(downloadDSF, mDownloadJournal);
+            } catch (IOException e) {
+                LogTrace.e(TAG, "Failed to load download journal", e);
+                mDownloadJournal = null;
+            }
+            PinningDataSinkFactory pinningDSF = new PinningDataSinkFactory(cache,
+                    mCacheEvictor,
+                    CacheDataSource.DEFAULT_MAX_CACHE_FILE_SIZE);
+            //segments are hashed as they are written, the verifier checks them against it
+            HashingDataSinkFactory hashingDSF = new HashingDataSinkFactory(pinningDSF,
+                    HashingDataSinkFactory.DEFAULT_MAX_HASHES);
             DownloaderConstructorHelper downloaderConstructorHelper =
-                    new DownloaderConstructorHelper(cache, httpDSF);
+                    new DownloaderConstructorHelper(cache,
+                            downloadDSF,
+                            new FileDataSourceFactory(),
+                            hashingDSF,
+                            null);
             File actionFile = new File(getDownloadDirectory(), DOWNLOAD_ACTION_FILE);
+            DownloadAction.Deserializer[] deserializers = buildDownloadActionDeserializers();
             mDownloadManager = new DownloadManager(downloaderConstructorHelper,
                     MAX_SIMULTANEOUS_DOWNLOADS,
                     DownloadManager.DEFAULT_MIN_RETRY_COUNT,
-                    actionFile);
+                    actionFile,
+                    deserializers);
+
+            //downloads are admitted only when their estimated size fits in storage
+            mAdmissionController = new StorageAdmissionController(getDownloadDirectory(),
+                    mCacheEvictor,
+                    DOWNLOAD_FREE_SPACE_RESERVE_BYTES);
+
+            //completed downloads are checked segment by segment against the cache
+            mIntegrityVerifier = new DownloadIntegrityVerifier(downloaderConstructorHelper,
+                    INTEGRITY_VERIFY_THREADS,
+                    hashingDSF);
 
             //second initialize the download tracker
             DataSource.Factory dsf = buildDataSourceFactory();
+            File trackerJournalFile = new File(getDownloadDirectory(), DOWNLOAD_TRACKER_JOURNAL_FILE);
             File trackerActionFile = new File(getDownloadDirectory(), DOWNLOAD_TRACKER_ACTION_FILE);
-            mDownloadTracker = new MediaDownloadTracker(mContext, dsf,trackerActionFile);
+            mDownloadTracker = new MediaDownloadTracker(mContext,
+                    dsf,
+                    getPlaylistCache(),
+                    mDelegatingKeyNormalizer,
+                    mAdmissionController,
+                    mIntegrityVerifier,
+                    trackerJournalFile,
+                    trackerActionFile,
+                    deserializers);
 
             //allow our tracker to listen to the download manager
             mDownloadManager.addListener(mDownloadTracker);
         }
     }
 
+    /**
+     * Grab the controller admitting downloads by their estimated size.
+     * The download manager and tracker will be initialized if not already done.
+     * @return
+     */
+    public StorageAdmissionController getAdmissionController() {
+        initDownloadManager();
+        return mAdmissionController;
+    }
+
+    /**
+     * Build the deserializers of stored download actions.
+     * Our normalized key actions come first, followed by ExoPlayer's defaults for downloads
+     * stored before key normalization existed. Our actions pin every key of their downloads
+     * through the cache evictor, so the cache must be built first.
+     * @return
+     */
+    private DownloadAction.Deserializer[] buildDownloadActionDeserializers() {
+        DownloadAction.Deserializer[] defaultDeserializers = DownloadAction.getDefaultDeserializers();
+        DownloadAction.Deserializer[] deserializers =
+                new DownloadAction.Deserializer[defaultDeserializers.length + 1];
+        deserializers[0] = HlsCacheDownloadAction.createDeserializer(mDelegatingKeyNormalizer,
+                mCacheEvictor);
+        System.arraycopy(defaultDeserializers, 0, deserializers, 1, defaultDeserializers.length);
+        return deserializers;
+    }
+
+    /**
+     * Build the HTTP data source factory used below our caches.
+     * Playlists are revalidated against the parsed playlist cache.
+     * @param playback True if the player reads from it, it may then use the connections each host
+     *                 keeps for playback.
+     * @return
+     */
+    private HttpDataSource.Factory buildUpstreamHttpDataSourceFactory(boolean playback) {
+        HttpDataSource.Factory httpDSF = playback
+                ? mHttpDataSourceFactory.getPlaybackFactory() : buildHttpDataSourceFactory();
+        return new PlaylistRevalidatingHttpDataSourceFactory(httpDSF, getPlaylistCache());
+    }
+
+    /**
+     * Build the data source factory used below the download chain.
+     * Identical requests in flight share one transfer, but the player never reads along with a
+     * throttled download and fetches on its own instead. Segments are not split into byte ranges,
+     * ranges fetched ahead would read past the bandwidth arbiter throttling downloads, and the
+     * download manager already fetches several segments at once.
+     * @return
+     */
+    private DataSource.Factory buildDownloadNetworkDataSourceFactory() {
+        return new CoalescingDataSourceFactory(buildUpstreamHttpDataSourceFactory(false),
+                mInFlightRegistry,
+                true);
+    }
+
+    /**
+     * Build the data source factory used below our caches.
+     * Identical requests in flight share one transfer, and large segments are split into
+     * concurrent byte ranges when parallel range fetching is on.
+     * @param playback True if the player reads from it, its ranges are then fetched on threads and
+     *                 buffers of their own instead of queuing behind prefetches and downloads.
+     * @return
+     */
+    private synchronized DataSource.Factory buildNetworkDataSourceFactory(boolean playback) {
+        ExecutorService rangeExecutor;
+        ByteArrayPool rangeBufferPool;
+        if (playback) {
+            if (mPlaybackRangeFetchExecutor == null) {
+                mPlaybackRangeFetchExecutor =
+                        Executors.newFixedThreadPool(PLAYBACK_RANGE_FETCH_THREADS);
+                mPlaybackRangeBufferPool = new ByteArrayPool(RANGE_FETCH_BYTES,
+                        PLAYBACK_RANGE_FETCH_BUFFERS,
+                        PLAYBACK_RANGE_FETCH_BUFFERS);
+            }
+            rangeExecutor = mPlaybackRangeFetchExecutor;
+            rangeBufferPool = mPlaybackRangeBufferPool;
+        } else {
+            if (mRangeFetchExecutor == null) {
+                mRangeFetchExecutor = Executors.newFixedThreadPool(RANGE_FETCH_THREADS);
+                mRangeBufferPool = new ByteArrayPool(RANGE_FETCH_BYTES,
+                        RANGE_FETCH_BUFFERS,
+                        RANGE_FETCH_BUFFERS);
+            }
+            rangeExecutor = mRangeFetchExecutor;
+            rangeBufferPool = mRangeBufferPool;
+        }
+        ParallelRangeDataSourceFactory rangeDSF = new ParallelRangeDataSourceFactory(
+                buildUpstreamHttpDataSourceFactory(playback),
+                rangeExecutor,
+                rangeBufferPool,
+                mParallelRangeFetching,
+                NO_RANGE_HOST_RETRY_MS);
+        return new CoalescingDataSourceFactory(rangeDSF, mInFlightRegistry);
+    }
+
+    /**
+     * Turn the fetching of large segments as concurrent byte ranges on or off.
+     * It is on by default and applies to playback and prefetching from their next request.
+     * Downloads are never split.
+     * @param enabled True to split large segments into concurrent ranges.
+     */
+    public void setParallelRangeFetching(boolean enabled) {
+        mParallelRangeFetching.set(enabled);
+    }
+
     /**
      * Get the download cache to be used with this application.
+     * Blocks until the background initialization has built it.
      * @return
      */
-    private synchronized Cache getDownloadCache() {
+    public synchronized Cache getDownloadCache() {
         if (mDownloadCache == null) {
             File rootDirectory = getDownloadDirectory();
             File downloadContentDirectory = new File(rootDirectory, DOWNLOAD_CONTENT_DIRECTORY);
-            mDownloadCache = new SimpleCache(downloadContentDirectory, new NoOpCacheEvictor());
+            mCacheEvictor = new PinnedLruCacheEvictor(mCacheBudgetBytes);
+            mCacheEvictor.setIndexSnapshot(mIndexSnapshot);
+            mDownloadCache = new SimpleCache(downloadContentDirectory, mCacheEvictor);
+
+            //lazily reconcile our snapshot with what the cache found on disk
+            mIndexSnapshot.verifyAsync(mDownloadCache, mCacheEvictor);
         }
         return mDownloadCache;
     }
 
+    /**
+     * Get the in-memory segment tier layered over our download cache.
+     * @return
+     */
+    private synchronized MemorySegmentCache getMemoryCache() {
+        if (mMemoryCache == null) {
+            mMemoryCache = new MemorySegmentCache(MEMORY_TIER_BYTES,
+                    MEMORY_TIER_MAX_ENTRY_BYTES,
+                    MEMORY_TIER_CHUNK_SIZE);
+        }
+        return mMemoryCache;
+    }
+
     /**
      * Get the download directory to be used with this application
      * @return
@@ -209,10 +883,13 @@ public class ExoPlayerCacheUtil {
      * Build the cache data source factory that will be used to play offline media.
      * @param upstreamFactory
      * @param cache
+     * @param eventListener
      * @return
      */
     private static CacheDataSourceFactory buildReadOnlyCacheDataSource(
-            DefaultDataSourceFactory upstreamFactory, Cache cache) {
+            DefaultDataSourceFactory upstreamFactory,
+            Cache cache,
+            CacheDataSource.EventListener eventListener) {
 
         FileDataSourceFactory fileDSF = new FileDataSourceFactory();
         CacheDataSourceFactory cacheDSF = new CacheDataSourceFactory(
@@ -221,7 +898,36 @@ public class ExoPlayerCacheUtil {
                 fileDSF,
                 null,
                 CacheDataSource.FLAG_IGNORE_CACHE_ON_ERROR,
-                null);
+                eventListener);
+
+        return cacheDSF;
+    }
+
+    /**
+     * Build the cache data source factory that will be used to stream media through our cache.
+     * @param upstreamFactory
+     * @param cache
+     * @param policy
+     * @param eventListener
+     * @return
+     */
+    private static CacheDataSourceFactory buildWriteThroughCacheDataSource(
+            DefaultDataSourceFactory upstreamFactory,
+            Cache cache,
+            IStreamCachePolicy policy,
+            CacheDataSource.EventListener eventListener) {
+
+        FileDataSourceFactory fileDSF = new FileDataSourceFactory();
+        WriteThroughDataSinkFactory sinkDSF = new WriteThroughDataSinkFactory(cache,
+                policy,
+                CacheDataSource.DEFAULT_MAX_CACHE_FILE_SIZE);
+        CacheDataSourceFactory cacheDSF = new CacheDataSourceFactory(
+                cache,
+                upstreamFactory,
+                fileDSF,
+                sinkDSF,
+                CacheDataSource.FLAG_IGNORE_CACHE_ON_ERROR,
+                eventListener);
 
         return cacheDSF;
     }
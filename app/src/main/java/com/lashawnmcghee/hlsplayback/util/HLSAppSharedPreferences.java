@@ -68,4 +68,49 @@ public class HLSAppSharedPreferences {
     public long getLastViewedPosition() {
         return mPreference.getLong("LastViewedPosition", 0);
     }
+
+    /**
+     * Set the bandwidth estimate measured for a network type and host.
+     *
+     * @param key Network type and host the estimate was measured for.
+     * @param bitrate Estimated bitrate in bits per second.
+     * @param latencyUs Estimated time from a request to its first response in microseconds.
+     * @param transferUs Estimated time to transfer a response body in microseconds.
+     */
+    public void setBandwidthEstimate(String key, long bitrate, long latencyUs, long transferUs) {
+        mEditor.putLong("EstimatedBitrate_" + key, bitrate);
+        mEditor.putLong("EstimatedLatencyUs_" + key, latencyUs);
+        mEditor.putLong("EstimatedTransferUs_" + key, transferUs);
+        mEditor.commit();
+    }
+
+    /**
+     * Get the bitrate estimate of a network type and host.
+     *
+     * @param key Network type and host the estimate was measured for.
+     * @return Returns the bitrate in bits per second, or 0 if nothing was measured.
+     */
+    public long getEstimatedBitrate(String key) {
+        return mPreference.getLong("EstimatedBitrate_" + key, 0);
+    }
+
+    /**
+     * Get the request latency estimate of a network type and host.
+     *
+     * @param key Network type and host the estimate was measured for.
+     * @return Returns the latency in microseconds, or 0 if nothing was measured.
+     */
+    public long getEstimatedLatencyUs(String key) {
+        return mPreference.getLong("EstimatedLatencyUs_" + key, 0);
+    }
+
+    /**
+     * Get the body transfer time estimate of a network type and host.
+     *
+     * @param key Network type and host the estimate was measured for.
+     * @return Returns the transfer time in microseconds, or 0 if nothing was measured.
+     */
+    public long getEstimatedTransferUs(String key) {
+        return mPreference.getLong("EstimatedTransferUs_" + key, 0);
+    }
 }
@@ -0,0 +1,188 @@
+/*
+ * Copyright (C) 2018 LLM HLS Playback Demo
+ */
+package com.lashawnmcghee.hlsplayback.util;
+
+import android.content.Context;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.support.annotation.Nullable;
+
+import com.google.android.exoplayer2.upstream.BandwidthMeter;
+import com.google.android.exoplayer2.upstream.DataSource;
+import com.google.android.exoplayer2.upstream.DataSpec;
+import com.google.android.exoplayer2.upstream.DefaultBandwidthMeter;
+import com.google.android.exoplayer2.upstream.TransferListener;
+
+import java.util.IdentityHashMap;
+
+/**
+ * A {@link BandwidthMeter} whose estimate survives the player.
+ *
+ * Estimates are kept in {@link HLSAppSharedPreferences} per network type and content host. A new
+ * meter starts from the last estimate measured under the same conditions, discounted by the request
+ * latency we measured there, so the first variant chosen matches what the network delivered last
+ * time. Transfers keep refining the estimate through an inner {@link DefaultBandwidthMeter}.
+ */
+public class PersistentBandwidthMeter implements BandwidthMeter, TransferListener {
+    private static final String TAG = PersistentBandwidthMeter.class.getSimpleName();
+
+    //weight of a new latency or transfer time sample
+    private static final double SAMPLE_WEIGHT = 0.25;
+
+    private final HLSAppSharedPreferences mPrefs;
+    private final String mKey;
+    private final DefaultBandwidthMeter mMeter;
+    private final IdentityHashMap<DataSource, Long> mTransferTimesMs = new IdentityHashMap<>();
+
+    private long mLatencyUs;
+    private long mTransferUs;
+    private boolean mMeasured;
+
+    /**
+     * Constructor for this meter.
+     * @param context Context used to read the current network type.
+     * @param prefs Preferences holding the estimates.
+     * @param mediaUri URI of the content about to be played.
+     */
+    public PersistentBandwidthMeter(Context context, HLSAppSharedPreferences prefs, Uri mediaUri) {
+        mPrefs = prefs;
+        mKey = getNetworkType(context) + "@" + mediaUri.getHost();
+        mLatencyUs = prefs.getEstimatedLatencyUs(mKey);
+        mTransferUs = prefs.getEstimatedTransferUs(mKey);
+
+        long lngInitialBitrate = prefs.getEstimatedBitrate(mKey);
+        if (lngInitialBitrate > 0 && mLatencyUs > 0 && mTransferUs > 0) {
+            //the inner meter only times bodies, a request also waits for its first byte
+            lngInitialBitrate = lngInitialBitrate * mTransferUs / (mTransferUs + mLatencyUs);
+        } else if (lngInitialBitrate <= 0) {
+            lngInitialBitrate = DefaultBandwidthMeter.DEFAULT_INITIAL_BITRATE_ESTIMATE;
+        }
+        LogTrace.d(TAG, "Initial bitrate for %s: %d", mKey, lngInitialBitrate);
+        mMeter = new DefaultBandwidthMeter.Builder()
+                .setInitialBitrateEstimate(lngInitialBitrate)
+                .build();
+    }
+
+    @Override
+    public long getBitrateEstimate() {
+        return mMeter.getBitrateEstimate();
+    }
+
+    /**
+     * Get the estimated time from a request to its first response.
+     * @return Returns the latency in microseconds, or 0 if it was never measured.
+     */
+    public synchronized long getLatencyEstimateUs() {
+        return mLatencyUs;
+    }
+
+    @Nullable
+    @Override
+    public TransferListener getTransferListener() {
+        return this;
+    }
+
+    @Override
+    public void addEventListener(Handler eventHandler, EventListener eventListener) {
+        mMeter.addEventListener(eventHandler, eventListener);
+    }
+
+    @Override
+    public void removeEventListener(EventListener eventListener) {
+        mMeter.removeEventListener(eventListener);
+    }
+
+    @Override
+    public void onTransferInitializing(DataSource source, DataSpec dataSpec, boolean isNetwork) {
+        mMeter.onTransferInitializing(source, dataSpec, isNetwork);
+        if (isNetwork) {
+            synchronized (this) {
+                mTransferTimesMs.put(source, SystemClock.elapsedRealtime());
+            }
+        }
+    }
+
+    @Override
+    public void onTransferStart(DataSource source, DataSpec dataSpec, boolean isNetwork) {
+        mMeter.onTransferStart(source, dataSpec, isNetwork);
+        if (isNetwork) {
+            long lngNowMs = SystemClock.elapsedRealtime();
+            synchronized (this) {
+                Long initTimeMs = mTransferTimesMs.put(source, lngNowMs);
+                if (initTimeMs != null) {
+                    mLatencyUs = addSample(mLatencyUs, (lngNowMs - initTimeMs) * 1000);
+                }
+            }
+        }
+    }
+
+    @Override
+    public void onBytesTransferred(DataSource source,
+                                   DataSpec dataSpec,
+                                   boolean isNetwork,
+                                   int bytesTransferred) {
+        mMeter.onBytesTransferred(source, dataSpec, isNetwork, bytesTransferred);
+    }
+
+    @Override
+    public void onTransferEnd(DataSource source, DataSpec dataSpec, boolean isNetwork) {
+        mMeter.onTransferEnd(source, dataSpec, isNetwork);
+        if (isNetwork) {
+            long lngNowMs = SystemClock.elapsedRealtime();
+            synchronized (this) {
+                Long startTimeMs = mTransferTimesMs.remove(source);
+                if (startTimeMs != null) {
+                    mTransferUs = addSample(mTransferUs, (lngNowMs - startTimeMs) * 1000);
+                    mMeasured = true;
+                }
+            }
+        }
+    }
+
+    /**
+     * Store the current estimates for the next session on this network type and host.
+     * Nothing is stored if no network transfer completed.
+     */
+    public void save() {
+        long lngLatencyUs;
+        long lngTransferUs;
+        synchronized (this) {
+            if (!mMeasured) {
+                return;
+            }
+            lngLatencyUs = mLatencyUs;
+            lngTransferUs = mTransferUs;
+        }
+        mPrefs.setBandwidthEstimate(mKey, mMeter.getBitrateEstimate(), lngLatencyUs, lngTransferUs);
+    }
+
+    private static long addSample(long lngAverage, long lngSample) {
+        if (lngAverage <= 0) {
+            return lngSample;
+        }
+        return (long) (lngAverage + SAMPLE_WEIGHT * (lngSample - lngAverage));
+    }
+
+    /**
+     * Name the network the device currently uses, such as "WIFI" or "MOBILE-LTE".
+     * @param context
+     * @return
+     */
+    private static String getNetworkType(Context context) {
+        ConnectivityManager connectivityManager =
+                (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+        NetworkInfo networkInfo =
+                connectivityManager != null ? connectivityManager.getActiveNetworkInfo() : null;
+        if (networkInfo == null || !networkInfo.isConnected()) {
+            return "NONE";
+        }
+        if (networkInfo.getType() == ConnectivityManager.TYPE_MOBILE) {
+            return networkInfo.getTypeName() + "-" + networkInfo.getSubtypeName();
+        }
+        return networkInfo.getTypeName();
+    }
+}
@@ -0,0 +1,202 @@
+package com.lashawnmcghee.hlsplayback.cache;
+
+import android.net.Uri;
+
+import com.google.android.exoplayer2.C;
+import com.google.android.exoplayer2.upstream.DataSource;
+import com.google.android.exoplayer2.upstream.DataSpec;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import okio.Buffer;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests of the coalescing of identical requests against a local stand-in server.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class CoalescingDataSourceFactoryTest {
+    private static final byte[] BODY = new byte[200 * 1024];
+
+    static {
+        for (int i = 0; i < BODY.length; i++) {
+            BODY[i] = (byte) (i % 251);
+        }
+    }
+
+    private final CountDownLatch mRespond = new CountDownLatch(1);
+    private MockWebServer mServer;
+    private PooledHttpDataSourceFactory mHttpFactory;
+    private InFlightRequestRegistry mRegistry;
+    private CoalescingDataSourceFactory mFactory;
+    private CoalescingDataSourceFactory mDownloadFactory;
+
+    @Before
+    public void setUp() throws Exception {
+        mServer = new MockWebServer();
+        mServer.setDispatcher(new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) throws InterruptedException {
+                //hold the response back until the test lets it go
+                mRespond.await(5, TimeUnit.SECONDS);
+                return new MockResponse().setBody(new Buffer().write(BODY));
+            }
+        });
+        mServer.start();
+        mHttpFactory = new PooledHttpDataSourceFactory("test");
+        mRegistry = new InFlightRequestRegistry(16 * 1024, 1024 * 1024);
+        mFactory = new CoalescingDataSourceFactory(mHttpFactory, mRegistry);
+        mDownloadFactory = new CoalescingDataSourceFactory(mHttpFactory, mRegistry, true);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mRespond.countDown();
+        mHttpFactory.release();
+        mServer.shutdown();
+    }
+
+    @Test
+    public void concurrentReaders_shareOneRequest() throws Exception {
+        Uri uri = segmentUri();
+        Reader player = new Reader(mFactory, new DataSpec(uri));
+        player.start();
+        //the player's request reached the server and waits for its response
+        assertNotNull(mServer.takeRequest(5, TimeUnit.SECONDS));
+
+        //the download manager asks for the same bytes with its own flags
+        Reader download = new Reader(mDownloadFactory, new DataSpec(uri,
+                0,
+                C.LENGTH_UNSET,
+                null,
+                DataSpec.FLAG_ALLOW_CACHING_UNKNOWN_LENGTH));
+        download.start();
+        download.awaitWaiting();
+        mRespond.countDown();
+
+        assertArrayEquals(BODY, player.getResult());
+        assertArrayEquals(BODY, download.getResult());
+        assertEquals(1, mServer.getRequestCount());
+        assertEquals(0, mRegistry.getTransferCount());
+    }
+
+    @Test
+    public void player_doesNotReadAlongWithADownload() throws Exception {
+        Uri uri = segmentUri();
+        Reader download = new Reader(mDownloadFactory, new DataSpec(uri));
+        download.start();
+        assertNotNull(mServer.takeRequest(5, TimeUnit.SECONDS));
+
+        //the download's reads are throttled, the player fetches at its own pace
+        Reader player = new Reader(mFactory, new DataSpec(uri));
+        player.start();
+        assertNotNull(mServer.takeRequest(5, TimeUnit.SECONDS));
+        mRespond.countDown();
+
+        assertArrayEquals(BODY, player.getResult());
+        assertArrayEquals(BODY, download.getResult());
+        assertEquals(2, mServer.getRequestCount());
+        assertEquals(0, mRegistry.getTransferCount());
+    }
+
+    @Test
+    public void readerArrivingLate_fetchesOnItsOwn() throws Exception {
+        mRespond.countDown();
+        Uri uri = segmentUri();
+        DataSource first = mFactory.createDataSource();
+        first.open(new DataSpec(uri));
+        byte[] buffer = new byte[1024];
+        assertTrue(first.read(buffer, 0, buffer.length) > 0);
+        //nobody joined before the first bytes, so nothing is buffered or shared
+        assertEquals(0, mRegistry.getTransferCount());
+
+        assertArrayEquals(BODY, read(mFactory.createDataSource(), new DataSpec(uri)));
+        first.close();
+        assertEquals(2, mServer.getRequestCount());
+    }
+
+    @Test
+    public void differentRanges_areNotShared() throws Exception {
+        mRespond.countDown();
+        Uri uri = segmentUri();
+        read(mFactory.createDataSource(), new DataSpec(uri));
+        read(mFactory.createDataSource(), new DataSpec(uri, 1024, C.LENGTH_UNSET, null));
+        assertEquals(2, mServer.getRequestCount());
+    }
+
+    private Uri segmentUri() {
+        return Uri.parse(mServer.url("/seg.ts").toString());
+    }
+
+    private static byte[] read(DataSource source, DataSpec dataSpec) throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        try {
+            source.open(dataSpec);
+            byte[] buffer = new byte[8 * 1024];
+            int bytesRead;
+            while ((bytesRead = source.read(buffer, 0, buffer.length)) != C.RESULT_END_OF_INPUT) {
+                output.write(buffer, 0, bytesRead);
+            }
+        } finally {
+            source.close();
+        }
+        return output.toByteArray();
+    }
+
+    /**
+     * Reads a request through the factory on its own thread.
+     */
+    private final class Reader extends Thread {
+        private final DataSource.Factory mReaderFactory;
+        private final DataSpec mDataSpec;
+        private volatile byte[] mResult;
+        private volatile IOException mError;
+
+        Reader(DataSource.Factory readerFactory, DataSpec dataSpec) {
+            mReaderFactory = readerFactory;
+            mDataSpec = dataSpec;
+        }
+
+        @Override
+        public void run() {
+            try {
+                mResult = read(mReaderFactory.createDataSource(), mDataSpec);
+            } catch (IOException e) {
+                mError = e;
+            }
+        }
+
+        /**
+         * Wait until the reader is parked waiting for the transfer it joined.
+         */
+        void awaitWaiting() throws InterruptedException {
+            long lngDeadline = System.currentTimeMillis() + 5000;
+            while (getState() != State.WAITING && System.currentTimeMillis() < lngDeadline) {
+                Thread.sleep(10);
+            }
+            assertEquals(State.WAITING, getState());
+        }
+
+        byte[] getResult() throws Exception {
+            join(5000);
+            if (mError != null) {
+                throw mError;
+            }
+            return mResult;
+        }
+    }
+}
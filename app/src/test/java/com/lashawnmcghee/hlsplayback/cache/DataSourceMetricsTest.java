@@ -0,0 +1,105 @@
+package com.lashawnmcghee.hlsplayback.cache;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests of the lock-free data source metrics.
+ */
+public class DataSourceMetricsTest {
+    @Test
+    public void requests_areClassifiedBySource() {
+        DataSourceMetrics metrics = new DataSourceMetrics();
+        metrics.onRequestCompleted(100, 0, 0, 10, 20);
+        metrics.onRequestCompleted(0, 300, 0, 10, 20);
+        metrics.onRequestCompleted(0, 200, 400, 10, 20);
+        metrics.onRequestFailed();
+
+        DataSourceMetrics.Snapshot snapshot = metrics.snapshot();
+        assertEquals(4, snapshot.requestCount);
+        assertEquals(1, snapshot.failedCount);
+        assertEquals(1, snapshot.memoryHitCount);
+        assertEquals(1, snapshot.cacheHitCount);
+        assertEquals(1, snapshot.networkCount);
+        assertEquals(2.0 / 3.0, snapshot.getHitRatio(), 1e-9);
+        assertEquals(600.0 / 1000.0, snapshot.getByteHitRatio(), 1e-9);
+    }
+
+    @Test
+    public void networkBitrate_usesNetworkRequestsOnly() {
+        DataSourceMetrics metrics = new DataSourceMetrics();
+        metrics.onRequestCompleted(0, 0, 125000, 1000, 1000000);
+        metrics.onRequestCompleted(0, 500000, 0, 1000, 10);
+
+        assertEquals(1000000, metrics.snapshot().getNetworkBitrate());
+    }
+
+    @Test
+    public void percentiles_returnBucketUpperBounds() {
+        DataSourceMetrics metrics = new DataSourceMetrics();
+        for (int i = 0; i < 90; i++) {
+            metrics.onRequestCompleted(0, 1, 0, 100, 1000);
+        }
+        for (int i = 0; i < 10; i++) {
+            metrics.onRequestCompleted(0, 1, 0, -1, 100000);
+        }
+
+        DataSourceMetrics.Snapshot snapshot = metrics.snapshot();
+        assertEquals(1024, snapshot.getLatencyPercentileUs(50));
+        assertEquals(1024, snapshot.getLatencyPercentileUs(90));
+        assertEquals(131072, snapshot.getLatencyPercentileUs(99));
+        //requests without a first byte are left out of the time to first byte histogram
+        assertEquals(128, snapshot.getTimeToFirstBytePercentileUs(99));
+    }
+
+    @Test
+    public void snapshot_isNotChangedByLaterRequests() {
+        DataSourceMetrics metrics = new DataSourceMetrics();
+        metrics.onRequestCompleted(0, 10, 0, 1, 1);
+        DataSourceMetrics.Snapshot snapshot = metrics.snapshot();
+        metrics.onRequestCompleted(0, 10, 0, 1, 1);
+        metrics.reset();
+
+        assertEquals(1, snapshot.requestCount);
+        assertEquals(0, metrics.snapshot().requestCount);
+    }
+
+    @Test
+    public void reset_keepsTheLastCacheSize() {
+        DataSourceMetrics metrics = new DataSourceMetrics();
+        metrics.onCachedBytesRead(4096, 100);
+        metrics.onCacheIgnored(0);
+        metrics.reset();
+
+        DataSourceMetrics.Snapshot snapshot = metrics.snapshot();
+        assertEquals(0, snapshot.cacheIgnoredCount);
+        assertEquals(4096, snapshot.cacheSizeBytes);
+    }
+
+    @Test
+    public void concurrentRequests_areAllCounted() throws InterruptedException {
+        DataSourceMetrics metrics = new DataSourceMetrics();
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 8; t++) {
+            Thread thread = new Thread(() -> {
+                for (int i = 0; i < 10000; i++) {
+                    metrics.onRequestCompleted(0, 1, 1, 5, 50);
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        DataSourceMetrics.Snapshot snapshot = metrics.snapshot();
+        assertEquals(80000, snapshot.requestCount);
+        assertEquals(80000, snapshot.networkBytes);
+        assertEquals(80000, snapshot.cacheBytes);
+    }
+}
@@ -0,0 +1,70 @@
+package com.lashawnmcghee.hlsplayback.cache;
+
+import android.net.Uri;
+
+import com.google.android.exoplayer2.source.hls.playlist.HlsPlaylist;
+import com.google.android.exoplayer2.source.hls.playlist.HlsPlaylistParser;
+import com.google.android.exoplayer2.util.Util;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.ByteArrayInputStream;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests of the segment index of the shared playlist cache.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class HlsPlaylistCacheTest {
+    private static final String BASE_URL = "https://media.example.com/";
+
+    @Test
+    public void segments_areFoundThroughTheirPlaylist() throws Exception {
+        HlsPlaylistCache cache = new HlsPlaylistCache(1024 * 1024);
+        put(cache, "low.m3u8", 0, 3);
+
+        assertEquals(Uri.parse(BASE_URL + "low.m3u8"),
+                cache.findMediaPlaylist(Uri.parse(BASE_URL + "low1.ts"), 0));
+        assertNull(cache.findMediaPlaylist(Uri.parse(BASE_URL + "low1.ts"), 100));
+        assertNull(cache.findMediaPlaylist(Uri.parse(BASE_URL + "high1.ts"), 0));
+
+        //a live playlist moving on drops the segments it no longer lists
+        put(cache, "low.m3u8", 2, 3);
+        assertNull(cache.findMediaPlaylist(Uri.parse(BASE_URL + "low1.ts"), 0));
+        assertEquals(Uri.parse(BASE_URL + "low.m3u8"),
+                cache.findMediaPlaylist(Uri.parse(BASE_URL + "low4.ts"), 0));
+    }
+
+    @Test
+    public void evictedPlaylist_leavesTheIndex() throws Exception {
+        HlsPlaylistCache cache = new HlsPlaylistCache(200);
+        put(cache, "low.m3u8", 0, 3);
+        put(cache, "high.m3u8", 0, 3);
+
+        assertNull(cache.findMediaPlaylist(Uri.parse(BASE_URL + "low0.ts"), 0));
+        assertEquals(Uri.parse(BASE_URL + "high.m3u8"),
+                cache.findMediaPlaylist(Uri.parse(BASE_URL + "high0.ts"), 0));
+
+        cache.clear();
+        assertNull(cache.findMediaPlaylist(Uri.parse(BASE_URL + "high0.ts"), 0));
+    }
+
+    private static void put(HlsPlaylistCache cache, String sName, int iFirst, int iCount)
+            throws Exception {
+        String sPrefix = sName.substring(0, sName.indexOf('.'));
+        StringBuilder text = new StringBuilder()
+                .append("#EXTM3U\n")
+                .append("#EXT-X-TARGETDURATION:4\n")
+                .append("#EXT-X-MEDIA-SEQUENCE:").append(iFirst).append('\n');
+        for (int i = iFirst; i < iFirst + iCount; i++) {
+            text.append("#EXTINF:4.0,\n").append(sPrefix).append(i).append(".ts\n");
+        }
+        byte[] data = Util.getUtf8Bytes(text.toString());
+        Uri uri = Uri.parse(BASE_URL + sName);
+        HlsPlaylist playlist = new HlsPlaylistParser().parse(uri, new ByteArrayInputStream(data));
+        cache.put(uri, HlsPlaylistCache.digest(data), data, playlist);
+    }
+}
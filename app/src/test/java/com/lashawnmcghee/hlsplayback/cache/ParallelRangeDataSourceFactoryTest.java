@@ -0,0 +1,173 @@
+package com.lashawnmcghee.hlsplayback.cache;
+
+import android.net.Uri;
+
+import com.google.android.exoplayer2.C;
+import com.google.android.exoplayer2.upstream.DataSource;
+import com.google.android.exoplayer2.upstream.DataSpec;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import okio.Buffer;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests of the parallel range fetching against a local stand-in server.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class ParallelRangeDataSourceFactoryTest {
+    private static final int RANGE_BYTES = 1024 * 1024;
+    private static final byte[] BODY = new byte[3 * RANGE_BYTES + RANGE_BYTES / 2];
+
+    static {
+        for (int i = 0; i < BODY.length; i++) {
+            BODY[i] = (byte) (i % 251);
+        }
+    }
+
+    private MockWebServer mServer;
+    private PooledHttpDataSourceFactory mHttpFactory;
+    private ExecutorService mExecutor;
+    private final List<String> mRanges = Collections.synchronizedList(new ArrayList<String>());
+
+    @Before
+    public void setUp() throws Exception {
+        mServer = new MockWebServer();
+        mServer.start();
+        mHttpFactory = new PooledHttpDataSourceFactory("test");
+        mExecutor = Executors.newFixedThreadPool(3);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mExecutor.shutdownNow();
+        mHttpFactory.release();
+        mServer.shutdown();
+    }
+
+    @Test
+    public void knownLargeLength_isFetchedAsConcurrentRanges() throws Exception {
+        serve(true);
+        ByteArrayPool pool = new ByteArrayPool(RANGE_BYTES, 8, 8);
+        DataSource source = buildFactory(pool, 0).createDataSource();
+
+        assertArrayEquals(BODY, readAll(source, new DataSpec(segmentUri(), 0, BODY.length, null)));
+        assertEquals(4, mServer.getRequestCount());
+        assertTrue(mRanges.contains("bytes=0-" + (RANGE_BYTES - 1)));
+        assertTrue(mRanges.contains("bytes=" + 3 * RANGE_BYTES + "-" + (BODY.length - 1)));
+        assertEquals(0, pool.getOutstandingChunks());
+    }
+
+    @Test
+    public void unknownLength_isReadThroughOneRequest() throws Exception {
+        serve(true);
+        ByteArrayPool pool = new ByteArrayPool(RANGE_BYTES, 8, 8);
+        DataSource source = buildFactory(pool, 0).createDataSource();
+
+        assertArrayEquals(BODY, readAll(source, new DataSpec(segmentUri())));
+        assertEquals(1, mServer.getRequestCount());
+        assertEquals(Collections.singletonList(null), mRanges);
+    }
+
+    @Test
+    public void exhaustedPool_readsTheRestThroughOneRequest() throws Exception {
+        serve(true);
+        ByteArrayPool pool = new ByteArrayPool(RANGE_BYTES, 1, 1);
+        //another reader holds the only buffer
+        byte[] held = pool.acquire();
+        DataSource source = buildFactory(pool, 0).createDataSource();
+
+        assertArrayEquals(BODY, readAll(source, new DataSpec(segmentUri(), 0, BODY.length, null)));
+        assertEquals(2, mServer.getRequestCount());
+        assertTrue(mRanges.contains("bytes=" + RANGE_BYTES + "-" + (BODY.length - 1)));
+        assertEquals(1, pool.getOutstandingChunks());
+        pool.release(held);
+        assertEquals(0, pool.getOutstandingChunks());
+    }
+
+    @Test
+    public void hostIgnoringRanges_isTriedAgainAfterTheRetryPeriod() throws Exception {
+        serve(false);
+        ByteArrayPool pool = new ByteArrayPool(RANGE_BYTES, 8, 8);
+        DataSpec dataSpec = new DataSpec(segmentUri(), 0, BODY.length, null);
+
+        //within the retry period the host is read through single requests
+        DataSource.Factory factory = buildFactory(pool, 60000);
+        assertArrayEquals(BODY, readAll(factory.createDataSource(), dataSpec));
+        assertEquals(2, mServer.getRequestCount());
+        assertArrayEquals(BODY, readAll(factory.createDataSource(), dataSpec));
+        assertEquals(3, mServer.getRequestCount());
+
+        //once it is over ranges are tried again
+        factory = buildFactory(pool, 0);
+        assertArrayEquals(BODY, readAll(factory.createDataSource(), dataSpec));
+        assertArrayEquals(BODY, readAll(factory.createDataSource(), dataSpec));
+        assertEquals(7, mServer.getRequestCount());
+        assertEquals(0, pool.getOutstandingChunks());
+    }
+
+    private ParallelRangeDataSourceFactory buildFactory(ByteArrayPool pool, long noRangeRetryMs) {
+        return new ParallelRangeDataSourceFactory(mHttpFactory,
+                mExecutor,
+                pool,
+                new AtomicBoolean(true),
+                noRangeRetryMs);
+    }
+
+    private Uri segmentUri() {
+        return Uri.parse(mServer.url("/seg.ts").toString());
+    }
+
+    private void serve(final boolean bRanges) {
+        mServer.setDispatcher(new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) {
+                String sRange = request.getHeader("Range");
+                mRanges.add(sRange);
+                if (!bRanges || sRange == null) {
+                    return new MockResponse().setBody(new Buffer().write(BODY));
+                }
+                String[] bounds = sRange.substring("bytes=".length()).split("-");
+                int iStart = Integer.parseInt(bounds[0]);
+                int iEnd = bounds.length > 1 ? Integer.parseInt(bounds[1]) : BODY.length - 1;
+                iEnd = Math.min(iEnd, BODY.length - 1);
+                return new MockResponse().setResponseCode(206)
+                        .setHeader("Content-Range", "bytes " + iStart + "-" + iEnd + "/" + BODY.length)
+                        .setBody(new Buffer().write(BODY, iStart, iEnd - iStart + 1));
+            }
+        });
+    }
+
+    private static byte[] readAll(DataSource source, DataSpec dataSpec) throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        try {
+            source.open(dataSpec);
+            byte[] buffer = new byte[64 * 1024];
+            int bytesRead;
+            while ((bytesRead = source.read(buffer, 0, buffer.length)) != C.RESULT_END_OF_INPUT) {
+                output.write(buffer, 0, bytesRead);
+            }
+        } finally {
+            source.close();
+        }
+        return output.toByteArray();
+    }
+}
@@ -0,0 +1,88 @@
+package com.lashawnmcghee.hlsplayback.cache;
+
+import android.net.Uri;
+
+import com.google.android.exoplayer2.upstream.ByteArrayDataSource;
+import com.google.android.exoplayer2.upstream.DataSpec;
+import com.google.android.exoplayer2.upstream.cache.CacheUtil;
+import com.google.android.exoplayer2.upstream.cache.SimpleCache;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests of the pinned byte count of the cache evictor.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class PinnedLruCacheEvictorTest {
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private PinnedLruCacheEvictor mEvictor;
+    private SimpleCache mCache;
+
+    @Before
+    public void setUp() throws Exception {
+        mEvictor = new PinnedLruCacheEvictor(1024 * 1024);
+        mCache = new SimpleCache(mFolder.newFolder(), mEvictor);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mCache.release();
+    }
+
+    @Test
+    public void pinnedBytes_followPinsAndSpans() throws Exception {
+        cache("a", 1000);
+        cache("b", 2000);
+        assertEquals(0, mEvictor.getPinnedBytes());
+
+        //pinning counts what the key already holds
+        mEvictor.pin(mCache, "a");
+        assertEquals(1000, mEvictor.getPinnedBytes());
+        mEvictor.pin(mCache, "a");
+        assertEquals(1000, mEvictor.getPinnedBytes());
+
+        //spans written after the pin are counted as they are added
+        mEvictor.pin(mCache, "c");
+        cache("c", 500);
+        assertEquals(1500, mEvictor.getPinnedBytes());
+        assertEquals(3500, mEvictor.getCurrentSize());
+
+        CacheUtil.remove(mCache, "a");
+        assertEquals(500, mEvictor.getPinnedBytes());
+        assertEquals(2500, mEvictor.getCurrentSize());
+    }
+
+    @Test
+    public void pinnedBytes_surviveEviction() throws Exception {
+        mEvictor.setMaxBytes(3000);
+        mEvictor.pin(mCache, "a");
+        cache("a", 2000);
+        cache("b", 1000);
+        cache("c", 1000);
+
+        //the unpinned key is evicted, the pinned one stays counted
+        assertEquals(2000, mEvictor.getPinnedBytes());
+        assertTrue(mCache.getCachedSpans("b").isEmpty());
+        assertEquals(3000, mEvictor.getCurrentSize());
+    }
+
+    private void cache(String sKey, int iLength) throws Exception {
+        byte[] data = new byte[iLength];
+        DataSpec dataSpec = new DataSpec(Uri.parse("https://media.example.com/" + sKey),
+                0,
+                iLength,
+                sKey);
+        CacheUtil.cache(dataSpec, mCache, new ByteArrayDataSource(data), null, null);
+    }
+}
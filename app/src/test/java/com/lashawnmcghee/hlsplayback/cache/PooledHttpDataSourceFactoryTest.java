@@ -0,0 +1,277 @@
+package com.lashawnmcghee.hlsplayback.cache;
+
+import android.net.Uri;
+
+import com.google.android.exoplayer2.upstream.DataSpec;
+import com.google.android.exoplayer2.upstream.HttpDataSource;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import okhttp3.Dns;
+import okhttp3.HttpUrl;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests of the pooled HTTP factory against a local stand-in server.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class PooledHttpDataSourceFactoryTest {
+    private MockWebServer mServer;
+    private PooledHttpDataSourceFactory mFactory;
+
+    @Before
+    public void setUp() throws Exception {
+        mServer = new MockWebServer();
+        mServer.start();
+        mFactory = new PooledHttpDataSourceFactory("test");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mFactory.release();
+        mServer.shutdown();
+    }
+
+    @Test
+    public void sequentialRequests_reuseOneConnection() throws Exception {
+        for (int i = 0; i < 3; i++) {
+            mServer.enqueue(new MockResponse().setBody("segment" + i));
+        }
+        OkHttpClient client = mFactory.getClient();
+        for (int i = 0; i < 3; i++) {
+            HttpUrl url = mServer.url("/seg" + i + ".ts");
+            try (Response response = client.newCall(new Request.Builder().url(url).build()).execute()) {
+                assertEquals("segment" + i, response.body().string());
+            }
+        }
+
+        assertEquals(0, mServer.takeRequest().getSequenceNumber());
+        assertEquals(1, mServer.takeRequest().getSequenceNumber());
+        assertEquals(2, mServer.takeRequest().getSequenceNumber());
+        assertEquals(1, client.connectionPool().connectionCount());
+    }
+
+    @Test
+    public void warmUp_leavesConnectionForNextRequest() throws Exception {
+        mServer.enqueue(new MockResponse());
+        mServer.enqueue(new MockResponse().setBody("playlist"));
+        HttpUrl url = mServer.url("/master.m3u8");
+
+        mFactory.warmUp(url.toString());
+        RecordedRequest warmUp = mServer.takeRequest(5, TimeUnit.SECONDS);
+        assertNotNull(warmUp);
+        assertEquals("HEAD", warmUp.getMethod());
+        OkHttpClient client = mFactory.getClient();
+        long lngDeadline = System.currentTimeMillis() + 5000;
+        while (client.connectionPool().idleConnectionCount() == 0
+                && System.currentTimeMillis() < lngDeadline) {
+            Thread.sleep(10);
+        }
+
+        try (Response response = client.newCall(new Request.Builder().url(url).build()).execute()) {
+            assertEquals("playlist", response.body().string());
+        }
+        assertEquals(1, mServer.takeRequest().getSequenceNumber());
+        //the warm-up permit is given back once its response is closed
+        assertEquals(PooledHttpDataSourceFactory.DEFAULT_MAX_CONNECTIONS_PER_HOST,
+                mFactory.getConnectionLimiter().getAvailableConnections(url.host()));
+    }
+
+    @Test
+    public void warmUp_ignoresInvalidUrls() {
+        mFactory.warmUp("");
+        mFactory.warmUp("file:///sdcard/media.m3u8");
+
+        assertEquals(0, mServer.getRequestCount());
+    }
+
+    @Test
+    public void dataSources_holdHostPermitFromOpenToClose() throws Exception {
+        mServer.enqueue(new MockResponse().setBody("segment0"));
+        mServer.enqueue(new MockResponse().setBody("segment1"));
+        mServer.enqueue(new MockResponse().setResponseCode(404));
+        HttpUrl url = mServer.url("/seg.ts");
+        HostConnectionLimiter limiter = mFactory.getConnectionLimiter();
+        int iMax = PooledHttpDataSourceFactory.DEFAULT_MAX_CONNECTIONS_PER_HOST;
+
+        HttpDataSource first = mFactory.createDataSource();
+        HttpDataSource second = mFactory.createDataSource();
+        first.open(new DataSpec(Uri.parse(url.toString())));
+        second.open(new DataSpec(Uri.parse(url.toString())));
+        assertEquals(iMax - 2, limiter.getAvailableConnections(url.host()));
+        first.close();
+        assertEquals(iMax - 1, limiter.getAvailableConnections(url.host()));
+        second.close();
+        assertEquals(iMax, limiter.getAvailableConnections(url.host()));
+
+        //a failed open gives its permit back without a close
+        HttpDataSource failed = mFactory.createDataSource();
+        try {
+            failed.open(new DataSpec(Uri.parse(url.toString())));
+            fail();
+        } catch (HttpDataSource.InvalidResponseCodeException e) {
+            assertEquals(404, e.responseCode);
+        }
+        assertEquals(iMax, limiter.getAvailableConnections(url.host()));
+    }
+
+    @Test
+    public void dataSources_waitForAPermitOfTheirHost() throws Exception {
+        PooledHttpDataSourceFactory factory = new PooledHttpDataSourceFactory("test",
+                PooledHttpDataSourceFactory.DEFAULT_MAX_IDLE_CONNECTIONS,
+                PooledHttpDataSourceFactory.DEFAULT_KEEP_ALIVE_MS,
+                1,
+                PooledHttpDataSourceFactory.DEFAULT_DNS_TTL_MS,
+                Dns.SYSTEM);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            mServer.enqueue(new MockResponse().setBody("segment0"));
+            mServer.enqueue(new MockResponse().setBody("segment1"));
+            DataSpec dataSpec = new DataSpec(Uri.parse(mServer.url("/seg.ts").toString()));
+            HttpDataSource first = factory.createDataSource();
+            first.open(dataSpec);
+
+            HttpDataSource second = factory.createDataSource();
+            Future<Long> secondOpen = executor.submit(() -> second.open(dataSpec));
+            try {
+                secondOpen.get(200, TimeUnit.MILLISECONDS);
+                fail("The second request must wait for the permit of the first");
+            } catch (TimeoutException e) {
+                //expected
+            }
+            assertEquals(1, mServer.getRequestCount());
+
+            first.close();
+            secondOpen.get(5, TimeUnit.SECONDS);
+            assertEquals(2, mServer.getRequestCount());
+            second.close();
+            assertEquals(1, factory.getConnectionLimiter()
+                    .getAvailableConnections(dataSpec.uri.getHost()));
+        } finally {
+            executor.shutdownNow();
+            factory.release();
+        }
+    }
+
+    @Test
+    public void cachingDns_keepsLookupsUntilTtl() throws Exception {
+        CountingDns counting = new CountingDns();
+        CachingDns dns = new CachingDns(counting, 60 * 1000);
+        dns.lookup("media.example.com");
+        dns.lookup("media.example.com");
+        dns.lookup("cdn.example.com");
+        assertEquals(2, counting.mLookups.get());
+
+        dns.clear();
+        dns.lookup("media.example.com");
+        assertEquals(3, counting.mLookups.get());
+
+        CachingDns expiring = new CachingDns(counting, 0);
+        expiring.lookup("media.example.com");
+        expiring.lookup("media.example.com");
+        assertEquals(5, counting.mLookups.get());
+    }
+
+    @Test
+    public void cachingDns_doesNotKeepFailures() throws Exception {
+        CountingDns counting = new CountingDns();
+        counting.mFail = true;
+        CachingDns dns = new CachingDns(counting, 60 * 1000);
+        for (int i = 0; i < 2; i++) {
+            try {
+                dns.lookup("media.example.com");
+                fail();
+            } catch (UnknownHostException e) {
+                //expected
+            }
+        }
+
+        counting.mFail = false;
+        assertFalse(dns.lookup("media.example.com").isEmpty());
+        assertEquals(3, counting.mLookups.get());
+    }
+
+    @Test
+    public void connectionLimiter_boundsEachHostSeparately() throws Exception {
+        HostConnectionLimiter limiter = new HostConnectionLimiter(2);
+        limiter.acquire("a");
+        limiter.acquire("a");
+        assertFalse(limiter.tryAcquire("a", 10));
+        assertTrue(limiter.tryAcquire("b", 10));
+
+        CountDownLatch acquired = new CountDownLatch(1);
+        Thread waiter = new Thread(() -> {
+            try {
+                limiter.acquire("a");
+                acquired.countDown();
+            } catch (InterruptedException e) {
+                //test failed
+            }
+        });
+        waiter.start();
+        assertFalse(acquired.await(50, TimeUnit.MILLISECONDS));
+        limiter.release("a");
+        assertTrue(acquired.await(5, TimeUnit.SECONDS));
+        waiter.join();
+        assertEquals(0, limiter.getAvailableConnections("a"));
+        assertEquals(1, limiter.getAvailableConnections("b"));
+    }
+
+    @Test
+    public void connectionLimiter_keepsReservedPermitsForPlayback() throws Exception {
+        HostConnectionLimiter limiter = new HostConnectionLimiter(3, 1);
+        limiter.acquire("a");
+        limiter.acquire("a");
+        //downloads and prefetches cannot take the last connection
+        assertFalse(limiter.tryAcquire("a", 10));
+        assertTrue(limiter.tryAcquire("a", 10, true));
+        assertFalse(limiter.tryAcquire("a", 10, true));
+        assertEquals(0, limiter.getAvailableConnections("a"));
+
+        limiter.release("a");
+        assertFalse(limiter.tryAcquire("a", 10));
+        assertTrue(limiter.tryAcquire("a", 10, true));
+
+        //a single connection is never reserved away from background requests
+        HostConnectionLimiter single = new HostConnectionLimiter(1, 1);
+        assertTrue(single.tryAcquire("a", 10));
+    }
+
+    private static final class CountingDns implements Dns {
+        private final AtomicInteger mLookups = new AtomicInteger();
+        private volatile boolean mFail;
+
+        @Override
+        public List<InetAddress> lookup(String hostname) throws UnknownHostException {
+            mLookups.incrementAndGet();
+            if (mFail) {
+                throw new UnknownHostException(hostname);
+            }
+            return Collections.singletonList(InetAddress.getByAddress(hostname,
+                    new byte[] {10, 0, 0, 1}));
+        }
+    }
+}
@@ -0,0 +1,162 @@
+package com.lashawnmcghee.hlsplayback.cache;
+
+import android.net.Uri;
+
+import com.google.android.exoplayer2.source.hls.playlist.HlsMasterPlaylist;
+import com.google.android.exoplayer2.source.hls.playlist.HlsMediaPlaylist;
+import com.google.android.exoplayer2.source.hls.playlist.HlsPlaylist;
+import com.google.android.exoplayer2.source.hls.playlist.HlsPlaylistParser;
+import com.google.android.exoplayer2.upstream.DataSourceInputStream;
+import com.google.android.exoplayer2.upstream.DataSpec;
+import com.google.android.exoplayer2.upstream.FileDataSourceFactory;
+import com.google.android.exoplayer2.upstream.cache.CacheDataSource;
+import com.google.android.exoplayer2.upstream.cache.CacheDataSourceFactory;
+import com.google.android.exoplayer2.upstream.cache.NoOpCacheEvictor;
+import com.google.android.exoplayer2.upstream.cache.SimpleCache;
+import com.google.android.exoplayer2.util.UriUtil;
+import com.google.android.exoplayer2.util.Util;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.ByteArrayInputStream;
+
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import okio.Buffer;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests of the write-through cache of streamed titles against a local stand-in server.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class WriteThroughDataSinkFactoryTest {
+    private static final int SEGMENT_COUNT = 3;
+    private static final int SEGMENT_BYTES = 8 * 1024;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private MockWebServer mServer;
+    private PooledHttpDataSourceFactory mHttpFactory;
+    private SimpleCache mCache;
+    private CacheDataSourceFactory mFactory;
+
+    @Before
+    public void setUp() throws Exception {
+        mServer = new MockWebServer();
+        mServer.setDispatcher(new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) {
+                return serve(request.getPath());
+            }
+        });
+        mServer.start();
+        mHttpFactory = new PooledHttpDataSourceFactory("test");
+        mCache = new SimpleCache(mFolder.newFolder(), new NoOpCacheEvictor());
+        //the same chain the player streams through, with the default policy
+        mFactory = new CacheDataSourceFactory(mCache,
+                mHttpFactory,
+                new FileDataSourceFactory(),
+                new WriteThroughDataSinkFactory(mCache,
+                        new DefaultStreamCachePolicy(),
+                        CacheDataSource.DEFAULT_MAX_CACHE_FILE_SIZE),
+                CacheDataSource.FLAG_IGNORE_CACHE_ON_ERROR,
+                null);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mCache.release();
+        mHttpFactory.release();
+        mServer.shutdown();
+    }
+
+    @Test
+    public void vodTitle_playedTwice_touchesTheNetworkOnce() throws Exception {
+        play("/master.m3u8");
+        int iRequests = mServer.getRequestCount();
+        assertEquals(2 + SEGMENT_COUNT, iRequests);
+
+        //the second loop is served from cache alone
+        play("/master.m3u8");
+        assertEquals(iRequests, mServer.getRequestCount());
+    }
+
+    @Test
+    public void livePlaylist_isFetchedAgain() throws Exception {
+        play("/live.m3u8");
+        int iRequests = mServer.getRequestCount();
+
+        //its segments are kept, the playlist itself may have changed
+        play("/live.m3u8");
+        assertEquals(iRequests + 1, mServer.getRequestCount());
+    }
+
+    /**
+     * Read a title the way the player does: its playlists, then every segment of one rendition.
+     * @param sPath
+     */
+    private void play(String sPath) throws Exception {
+        Uri uri = Uri.parse(mServer.url(sPath).toString());
+        HlsPlaylist playlist = new HlsPlaylistParser()
+                .parse(uri, new ByteArrayInputStream(read(uri)));
+        if (playlist instanceof HlsMasterPlaylist) {
+            HlsMasterPlaylist masterPlaylist = (HlsMasterPlaylist) playlist;
+            uri = UriUtil.resolveToUri(masterPlaylist.baseUri, masterPlaylist.variants.get(0).url);
+            playlist = new HlsPlaylistParser(masterPlaylist)
+                    .parse(uri, new ByteArrayInputStream(read(uri)));
+        }
+        HlsMediaPlaylist mediaPlaylist = (HlsMediaPlaylist) playlist;
+        assertEquals(SEGMENT_COUNT, mediaPlaylist.segments.size());
+        for (HlsMediaPlaylist.Segment segment : mediaPlaylist.segments) {
+            byte[] data = read(UriUtil.resolveToUri(mediaPlaylist.baseUri, segment.url));
+            assertEquals(SEGMENT_BYTES, data.length);
+        }
+    }
+
+    private byte[] read(Uri uri) throws Exception {
+        DataSourceInputStream input =
+                new DataSourceInputStream(mFactory.createDataSource(), new DataSpec(uri));
+        try {
+            return Util.toByteArray(input);
+        } finally {
+            input.close();
+        }
+    }
+
+    private static MockResponse serve(String sPath) {
+        if (sPath.equals("/master.m3u8")) {
+            return new MockResponse().setBody("#EXTM3U\n"
+                    + "#EXT-X-STREAM-INF:BANDWIDTH=800000\n"
+                    + "media.m3u8\n");
+        }
+        if (sPath.endsWith(".m3u8")) {
+            StringBuilder playlist = new StringBuilder()
+                    .append("#EXTM3U\n")
+                    .append("#EXT-X-VERSION:3\n")
+                    .append("#EXT-X-TARGETDURATION:4\n")
+                    .append("#EXT-X-MEDIA-SEQUENCE:0\n");
+            for (int i = 0; i < SEGMENT_COUNT; i++) {
+                playlist.append("#EXTINF:4.0,\nseg").append(i).append(".ts\n");
+            }
+            if (!sPath.startsWith("/live")) {
+                playlist.append("#EXT-X-ENDLIST\n");
+            }
+            return new MockResponse().setBody(playlist.toString());
+        }
+        byte[] body = new byte[SEGMENT_BYTES];
+        for (int i = 0; i < body.length; i++) {
+            body[i] = (byte) (i + sPath.hashCode());
+        }
+        return new MockResponse().setBody(new Buffer().write(body));
+    }
+}
@@ -0,0 +1,203 @@
+package com.lashawnmcghee.hlsplayback.listeners;
+
+import android.content.Intent;
+import android.net.Uri;
+
+import com.google.android.exoplayer2.offline.ActionFile;
+import com.google.android.exoplayer2.offline.DownloaderConstructorHelper;
+import com.google.android.exoplayer2.offline.ProgressiveDownloadAction;
+import com.google.android.exoplayer2.upstream.cache.NoOpCacheEvictor;
+import com.google.android.exoplayer2.upstream.cache.SimpleCache;
+import com.lashawnmcghee.hlsplayback.cache.HlsPlaylistCache;
+import com.lashawnmcghee.hlsplayback.cache.PooledHttpDataSourceFactory;
+import com.lashawnmcghee.hlsplayback.offline.DownloadIntegrityVerifier;
+import com.lashawnmcghee.hlsplayback.offline.StorageAdmissionController;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.shadows.ShadowApplication;
+import org.robolectric.shadows.ShadowLooper;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests of the batch download path and the tracked action journal of the download
+ * tracker.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class MediaDownloadTrackerTest {
+    private static final long MB = 1024 * 1024;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private MockWebServer mServer;
+    private PooledHttpDataSourceFactory mHttpFactory;
+    private SimpleCache mCache;
+    private DownloadIntegrityVerifier mVerifier;
+    private StorageAdmissionController mAdmissionController;
+    private MediaDownloadTracker mTracker;
+    private final CountDownLatch mServeLatch = new CountDownLatch(1);
+    private final AtomicInteger mStatusChanges = new AtomicInteger();
+
+    @Before
+    public void setUp() throws Exception {
+        mServer = new MockWebServer();
+        mServer.setDispatcher(new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) throws InterruptedException {
+                mServeLatch.await();
+                return new MockResponse().setBody("#EXTM3U\n"
+                        + "#EXT-X-TARGETDURATION:6\n"
+                        + "#EXT-X-BYTERANGE:1000@0\n"
+                        + "#EXTINF:6.0,\n"
+                        + "seg0.ts\n"
+                        + "#EXT-X-ENDLIST\n");
+            }
+        });
+        mServer.start();
+        mHttpFactory = new PooledHttpDataSourceFactory("test");
+        mCache = new SimpleCache(mFolder.newFolder("cache"), new NoOpCacheEvictor());
+        mVerifier = new DownloadIntegrityVerifier(
+                new DownloaderConstructorHelper(mCache, mHttpFactory), 1);
+        mAdmissionController = new StorageAdmissionController(mFolder.getRoot(), null, 0) {
+            @Override
+            protected long getUsableSpace() {
+                return 100 * MB;
+            }
+
+            @Override
+            protected long getBudgetBytes() {
+                return 100 * MB;
+            }
+
+            @Override
+            protected long getCommittedBytes() {
+                return 0;
+            }
+        };
+        mTracker = buildTracker();
+        mTracker.addListener(mStatusChanges::incrementAndGet);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mServeLatch.countDown();
+        mTracker.release();
+        mVerifier.release();
+        mCache.release();
+        mHttpFactory.release();
+        mServer.shutdown();
+    }
+
+    @Test
+    public void batch_tracksEveryTitleInOneStateChange() throws Exception {
+        List<Uri> uris = buildUris(3);
+        mServeLatch.countDown();
+        mTracker.downloadMediaToCache(uris, MediaDownloadTracker.ALL_TRACKS_POLICY);
+
+        long lngDeadline = System.currentTimeMillis() + 5000;
+        while (mStatusChanges.get() == 0 && System.currentTimeMillis() < lngDeadline) {
+            ShadowLooper.runUiThreadTasks();
+            Thread.sleep(10);
+        }
+        assertEquals(1, mStatusChanges.get());
+        for (Uri uri : uris) {
+            assertTrue(mTracker.isDownloaded(uri));
+        }
+        assertEquals(3, getStartedServices().size());
+        assertEquals(3000, mAdmissionController.getReservedBytes());
+    }
+
+    @Test
+    public void batchFinishingAfterRelease_isDropped() throws Exception {
+        List<Uri> uris = buildUris(3);
+        mTracker.downloadMediaToCache(uris, MediaDownloadTracker.ALL_TRACKS_POLICY);
+
+        //the playlists arrive after the tracker and its journal were released
+        mTracker.release();
+        mServeLatch.countDown();
+        long lngDeadline = System.currentTimeMillis() + 1000;
+        while (System.currentTimeMillis() < lngDeadline) {
+            ShadowLooper.runUiThreadTasks();
+            Thread.sleep(10);
+        }
+
+        assertEquals(0, mStatusChanges.get());
+        for (Uri uri : uris) {
+            assertFalse(mTracker.isDownloaded(uri));
+        }
+        assertTrue(getStartedServices().isEmpty());
+        assertEquals(0, mAdmissionController.getReservedBytes());
+
+        //later batches are not even prepared
+        int iRequests = mServer.getRequestCount();
+        mTracker.downloadMediaToCache(buildUris(1), MediaDownloadTracker.ALL_TRACKS_POLICY);
+        Thread.sleep(200);
+        assertEquals(iRequests, mServer.getRequestCount());
+    }
+
+    @Test
+    public void legacyActions_areMovedAgainAfterACrash() throws Exception {
+        //a crash used to leave an empty journal behind, next to the legacy action file
+        mTracker.release();
+        File legacyActionFile = new File(mFolder.getRoot(), "tracked_actions");
+        Uri uri = Uri.parse("https://media.example.com/movie.mp4");
+        new ActionFile(legacyActionFile)
+                .store(ProgressiveDownloadAction.createDownloadAction(uri, null, null));
+
+        mTracker = buildTracker();
+        assertTrue(mTracker.isDownloaded(uri));
+        assertFalse(legacyActionFile.exists());
+
+        //once the legacy file is gone the journal alone holds the title
+        mTracker.release();
+        mTracker = buildTracker();
+        assertTrue(mTracker.isDownloaded(uri));
+    }
+
+    private MediaDownloadTracker buildTracker() {
+        return new MediaDownloadTracker(RuntimeEnvironment.application,
+                mHttpFactory,
+                new HlsPlaylistCache(MB),
+                Uri::toString,
+                mAdmissionController,
+                mVerifier,
+                new File(mFolder.getRoot(), "tracked_actions_journal"),
+                new File(mFolder.getRoot(), "tracked_actions"));
+    }
+
+    private List<Uri> buildUris(int iCount) {
+        ArrayList<Uri> uris = new ArrayList<>();
+        for (int i = 0; i < iCount; i++) {
+            uris.add(Uri.parse(mServer.url("/title" + i + ".m3u8").toString()));
+        }
+        return uris;
+    }
+
+    private static List<Intent> getStartedServices() {
+        ArrayList<Intent> intents = new ArrayList<>();
+        Intent intent;
+        while ((intent = ShadowApplication.getInstance().getNextStartedService()) != null) {
+            intents.add(intent);
+        }
+        return intents;
+    }
+}
@@ -0,0 +1,129 @@
+package com.lashawnmcghee.hlsplayback.offline;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests of the AIMD download concurrency controller.
+ */
+public class AdaptiveConcurrencyControllerTest {
+    private static final long REQUEST_INTERVAL_MS = 700;
+
+    @Test
+    public void risingThroughput_increasesUpToMax() {
+        AdaptiveConcurrencyController controller = new AdaptiveConcurrencyController(1, 4, 2);
+        long lngNowMs = feedWindow(controller, 0, 1000000, 100);
+        assertEquals(3, controller.getLimit());
+        lngNowMs = feedWindow(controller, lngNowMs, 2000000, 100);
+        assertEquals(4, controller.getLimit());
+        feedWindow(controller, lngNowMs, 4000000, 100);
+
+        AdaptiveConcurrencyController.Snapshot snapshot = controller.snapshot();
+        assertEquals(4, snapshot.limit);
+        assertEquals(3, snapshot.increaseCount);
+        assertEquals(0, snapshot.decreaseCount);
+        assertEquals(AdaptiveConcurrencyController.DECISION_INCREASE, snapshot.lastDecision);
+        assertEquals(100, snapshot.baseLatencyMs);
+    }
+
+    @Test
+    public void flatThroughputAfterIncrease_holdsThenProbesAgain() {
+        AdaptiveConcurrencyController controller = new AdaptiveConcurrencyController(1, 6, 2);
+        long lngNowMs = feedWindow(controller, 0, 1000000, 100);
+        assertEquals(3, controller.getLimit());
+        lngNowMs = feedWindow(controller, lngNowMs, 750000, 100);
+        assertEquals(3, controller.getLimit());
+        assertEquals(AdaptiveConcurrencyController.DECISION_HOLD, controller.snapshot().lastDecision);
+
+        feedWindow(controller, lngNowMs, 750000, 100);
+        assertEquals(4, controller.getLimit());
+        assertEquals(1, controller.snapshot().holdCount);
+    }
+
+    @Test
+    public void inflatedLatency_halvesWithinBounds() {
+        AdaptiveConcurrencyController controller = new AdaptiveConcurrencyController(2, 8, 6);
+        long lngNowMs = feedWindow(controller, 0, 1000000, 100);
+        assertEquals(7, controller.getLimit());
+        lngNowMs = feedWindow(controller, lngNowMs, 2000000, 300);
+        assertEquals(3, controller.getLimit());
+        feedWindow(controller, lngNowMs, 2000000, 900);
+
+        AdaptiveConcurrencyController.Snapshot snapshot = controller.snapshot();
+        assertEquals(2, snapshot.limit);
+        assertEquals(2, snapshot.decreaseCount);
+        assertEquals(AdaptiveConcurrencyController.DECISION_DECREASE, snapshot.lastDecision);
+    }
+
+    @Test
+    public void failure_halvesLimit() {
+        AdaptiveConcurrencyController controller = new AdaptiveConcurrencyController(1, 6, 4);
+        controller.onRequestCompleted(1000000, 100, 0);
+        controller.onRequestCompleted(1000000, 100, 700);
+        controller.onRequestCompleted(1000000, 100, 1400);
+        controller.onRequestFailed(2100);
+
+        assertEquals(2, controller.getLimit());
+        assertEquals(1, controller.snapshot().decreaseCount);
+    }
+
+    @Test
+    public void shortWindow_isNotJudged() {
+        AdaptiveConcurrencyController controller = new AdaptiveConcurrencyController(1, 6, 2);
+        for (int i = 0; i < 10; i++) {
+            controller.onRequestCompleted(1000000, 100, i * 100);
+        }
+
+        AdaptiveConcurrencyController.Snapshot snapshot = controller.snapshot();
+        assertEquals(2, snapshot.limit);
+        assertEquals(AdaptiveConcurrencyController.DECISION_NONE, snapshot.lastDecision);
+    }
+
+    @Test
+    public void acquire_waitsForLimit() throws Exception {
+        AdaptiveConcurrencyController controller = new AdaptiveConcurrencyController(1, 3, 1);
+        controller.acquire();
+
+        CountDownLatch acquired = new CountDownLatch(1);
+        Thread waiter = new Thread(() -> {
+            try {
+                controller.acquire();
+                acquired.countDown();
+            } catch (Exception e) {
+                //test failed
+            }
+        });
+        waiter.start();
+        assertFalse(acquired.await(50, TimeUnit.MILLISECONDS));
+
+        //raising the lower bound lets the waiting download through
+        controller.setBounds(2, 3);
+        assertTrue(acquired.await(5, TimeUnit.SECONDS));
+        waiter.join();
+        assertEquals(2, controller.snapshot().active);
+
+        controller.release();
+        controller.release();
+        assertEquals(0, controller.snapshot().active);
+    }
+
+    /**
+     * Complete one window of four requests spaced so the window is long enough to be judged.
+     * @return Returns the time of the last request.
+     */
+    private static long feedWindow(AdaptiveConcurrencyController controller,
+                                   long lngFromMs,
+                                   long bytes,
+                                   long latencyMs) {
+        long lngNowMs = lngFromMs;
+        for (int i = 0; i < 4; i++) {
+            lngNowMs += REQUEST_INTERVAL_MS;
+            controller.onRequestCompleted(bytes, latencyMs, lngNowMs);
+        }
+        return lngNowMs;
+    }
+}
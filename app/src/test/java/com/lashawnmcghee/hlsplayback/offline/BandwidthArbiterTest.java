@@ -0,0 +1,102 @@
+package com.lashawnmcghee.hlsplayback.offline;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests of the playback first bandwidth arbiter.
+ */
+public class BandwidthArbiterTest {
+    private static final long LOW_WATERMARK_MS = 8000;
+    private static final long HIGH_WATERMARK_MS = 15000;
+
+    @Test
+    public void noPlayback_releasesDownloads() {
+        BandwidthArbiter arbiter = new BandwidthArbiter(LOW_WATERMARK_MS, HIGH_WATERMARK_MS);
+        assertEquals(BandwidthArbiter.STATE_IDLE, arbiter.getState());
+        assertEquals(0, arbiter.getDownloadWaitMs(0));
+    }
+
+    @Test
+    public void lowBuffer_pausesUntilHealthy() {
+        BandwidthArbiter arbiter = new BandwidthArbiter(LOW_WATERMARK_MS, HIGH_WATERMARK_MS);
+        arbiter.onPlaybackBufferChanged(3000, 8000000, 0);
+        assertEquals(BandwidthArbiter.STATE_PAUSED, arbiter.getState());
+        assertTrue(arbiter.getDownloadWaitMs(0) > 0);
+
+        //between the watermarks a paused download stays paused
+        arbiter.onPlaybackBufferChanged(12000, 8000000, 500);
+        assertEquals(BandwidthArbiter.STATE_PAUSED, arbiter.getState());
+
+        arbiter.onPlaybackBufferChanged(16000, 8000000, 1000);
+        assertEquals(BandwidthArbiter.STATE_RELEASED, arbiter.getState());
+        assertEquals(0, arbiter.getDownloadWaitMs(1000));
+        assertEquals(1, arbiter.snapshot().pauseCount);
+    }
+
+    @Test
+    public void bufferBetweenWatermarks_throttlesWithTokenBucket() {
+        BandwidthArbiter arbiter = new BandwidthArbiter(LOW_WATERMARK_MS, HIGH_WATERMARK_MS);
+        arbiter.onPlaybackBufferChanged(20000, 8000000, 0);
+        assertEquals(BandwidthArbiter.STATE_RELEASED, arbiter.getState());
+
+        //a quarter of 8Mbps is 250000 bytes per second with half a second of burst
+        arbiter.onPlaybackBufferChanged(12000, 8000000, 0);
+        BandwidthArbiter.Snapshot snapshot = arbiter.snapshot();
+        assertEquals(BandwidthArbiter.STATE_THROTTLED, snapshot.state);
+        assertEquals(250000, snapshot.rateBytesPerSecond);
+        assertEquals(125000, snapshot.bucketCapacity);
+        assertEquals(125000, snapshot.tokens);
+        assertEquals(0, arbiter.getDownloadWaitMs(0));
+
+        //spending the burst and 25000 bytes more costs a tenth of a second
+        arbiter.onDownloadBytes(150000, 0);
+        assertEquals(-25000, arbiter.snapshot().tokens);
+        assertEquals(100, arbiter.getDownloadWaitMs(0), 1);
+        assertEquals(0, arbiter.getDownloadWaitMs(101));
+        assertEquals(150000, arbiter.snapshot().downloadBytes);
+    }
+
+    @Test
+    public void stalePlayback_releasesDownloads() {
+        BandwidthArbiter arbiter = new BandwidthArbiter(LOW_WATERMARK_MS, HIGH_WATERMARK_MS);
+        arbiter.onPlaybackBufferChanged(1000, 0, 0);
+        assertTrue(arbiter.getDownloadWaitMs(4000) > 0);
+        assertEquals(0, arbiter.getDownloadWaitMs(6000));
+        assertEquals(BandwidthArbiter.STATE_IDLE, arbiter.getState());
+    }
+
+    @Test
+    public void playbackTransfers_areCounted() {
+        BandwidthArbiter arbiter = new BandwidthArbiter(LOW_WATERMARK_MS, HIGH_WATERMARK_MS);
+        arbiter.getPlaybackTransferListener().onBytesTransferred(null, null, true, 4096);
+        arbiter.getPlaybackTransferListener().onBytesTransferred(null, null, false, 1024);
+        assertEquals(4096, arbiter.snapshot().playbackBytes);
+    }
+
+    @Test
+    public void awaitDownloadTurn_waitsWhilePaused() throws Exception {
+        BandwidthArbiter arbiter = new BandwidthArbiter(LOW_WATERMARK_MS, HIGH_WATERMARK_MS);
+        arbiter.onPlaybackBufferChanged(1000, 0);
+
+        CountDownLatch released = new CountDownLatch(1);
+        Thread download = new Thread(() -> {
+            try {
+                arbiter.awaitDownloadTurn();
+                released.countDown();
+            } catch (Exception e) {
+                //test failed
+            }
+        });
+        download.start();
+        assertFalse(released.await(200, TimeUnit.MILLISECONDS));
+
+        arbiter.onPlaybackStopped();
+        assertTrue(released.await(5, TimeUnit.SECONDS));
+        download.join();
+    }
+}
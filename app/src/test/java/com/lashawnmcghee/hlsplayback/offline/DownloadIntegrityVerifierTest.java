@@ -0,0 +1,211 @@
+package com.lashawnmcghee.hlsplayback.offline;
+
+import android.net.Uri;
+
+import com.google.android.exoplayer2.C;
+import com.google.android.exoplayer2.offline.DownloaderConstructorHelper;
+import com.google.android.exoplayer2.upstream.ByteArrayDataSource;
+import com.google.android.exoplayer2.upstream.DataSpec;
+import com.google.android.exoplayer2.upstream.DummyDataSource;
+import com.google.android.exoplayer2.upstream.FileDataSource;
+import com.google.android.exoplayer2.upstream.cache.CacheDataSinkFactory;
+import com.google.android.exoplayer2.upstream.cache.CacheDataSource;
+import com.google.android.exoplayer2.upstream.cache.CacheSpan;
+import com.google.android.exoplayer2.upstream.cache.CacheUtil;
+import com.google.android.exoplayer2.upstream.cache.NoOpCacheEvictor;
+import com.google.android.exoplayer2.upstream.cache.SimpleCache;
+import com.google.android.exoplayer2.util.Util;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.RandomAccessFile;
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests of the download integrity verifier against a cache filled through cache data
+ * sources.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class DownloadIntegrityVerifierTest {
+    private static final String BASE_URL = "https://media.example.com/";
+    private static final int SEGMENT_COUNT = 3;
+    private static final int SEGMENT_BYTES = 4096;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private SimpleCache mCache;
+    private HashingDataSinkFactory mHashingSinkFactory;
+    private DownloadIntegrityVerifier mVerifier;
+    private HlsCacheDownloadAction mAction;
+
+    @Before
+    public void setUp() throws Exception {
+        mCache = new SimpleCache(mFolder.newFolder(), new NoOpCacheEvictor());
+        mHashingSinkFactory = new HashingDataSinkFactory(
+                new CacheDataSinkFactory(mCache, CacheDataSource.DEFAULT_MAX_CACHE_FILE_SIZE),
+                HashingDataSinkFactory.DEFAULT_MAX_HASHES);
+        mVerifier = buildVerifier(mHashingSinkFactory);
+        mAction = HlsCacheDownloadAction.createDownloadAction(Uri.parse(BASE_URL + "media.m3u8"),
+                null,
+                Collections.emptyList(),
+                Uri::toString);
+
+        write("media.m3u8", Util.getUtf8Bytes(playlist()));
+        for (int i = 0; i < SEGMENT_COUNT; i++) {
+            write("seg" + i + ".ts", segment(i, 0));
+        }
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mVerifier.release();
+        mCache.release();
+    }
+
+    @Test
+    public void completeDownload_isComplete() throws Exception {
+        DownloadIntegrityVerifier.Result result = mVerifier.verify(mAction, true);
+
+        assertEquals(DownloadIntegrityVerifier.STATE_COMPLETE, result.state);
+        assertEquals(SEGMENT_COUNT + 1, result.segmentCount);
+        assertEquals(playlist().length() + SEGMENT_COUNT * SEGMENT_BYTES, result.verifiedBytes);
+        assertFalse(result.needsDownload());
+
+        //the hashes taken on write were recorded and match on the next read too
+        assertNull(mHashingSinkFactory.take(BASE_URL + "seg0.ts", 0, SEGMENT_BYTES));
+        assertEquals(DownloadIntegrityVerifier.STATE_COMPLETE, verifyState());
+    }
+
+    @Test
+    public void missingSegment_isPartial() throws Exception {
+        CacheUtil.remove(mCache, BASE_URL + "seg1.ts");
+
+        DownloadIntegrityVerifier.Result result = mVerifier.verify(mAction, false);
+
+        assertEquals(DownloadIntegrityVerifier.STATE_PARTIAL, result.state);
+        assertEquals(1, result.missingSegmentCount);
+        assertEquals(0, result.corruptSegmentCount);
+        assertTrue(result.needsDownload());
+    }
+
+    @Test
+    public void truncatedSpan_isCorruptAndRemoved() throws Exception {
+        CacheSpan span = mCache.getCachedSpans(BASE_URL + "seg2.ts").first();
+        try (RandomAccessFile file = new RandomAccessFile(span.file, "rw")) {
+            file.setLength(SEGMENT_BYTES / 2);
+        }
+
+        DownloadIntegrityVerifier.Result result = mVerifier.verify(mAction, false);
+
+        assertEquals(DownloadIntegrityVerifier.STATE_CORRUPT, result.state);
+        assertEquals(1, result.corruptSegmentCount);
+        assertTrue(mCache.getCachedSpans(BASE_URL + "seg2.ts").isEmpty());
+
+        //the next verification sees the segment as missing, so only it is fetched again
+        result = mVerifier.verify(mAction, false);
+        assertEquals(DownloadIntegrityVerifier.STATE_PARTIAL, result.state);
+        assertEquals(1, result.missingSegmentCount);
+    }
+
+    @Test
+    public void corruptionBeforeTheFirstVerification_isDetected() throws Exception {
+        //the span keeps its length, only its bytes differ from what was written
+        corrupt(BASE_URL + "seg0.ts");
+
+        DownloadIntegrityVerifier.Result result = mVerifier.verify(mAction, true);
+
+        assertEquals(DownloadIntegrityVerifier.STATE_CORRUPT, result.state);
+        assertEquals(1, result.corruptSegmentCount);
+        assertTrue(mCache.getCachedSpans(BASE_URL + "seg0.ts").isEmpty());
+    }
+
+    @Test
+    public void corruptSegment_hasItsHashCleared() throws Exception {
+        //without hashes taken on write, the first read becomes the reference
+        mVerifier.release();
+        mVerifier = buildVerifier(null);
+        assertEquals(DownloadIntegrityVerifier.STATE_COMPLETE, verifyState());
+        corrupt(BASE_URL + "seg1.ts");
+        assertEquals(DownloadIntegrityVerifier.STATE_CORRUPT, verifyState());
+
+        //a segment fetched again with other bytes is not held to the hash of the corrupt one
+        DataSpec dataSpec = new DataSpec(Uri.parse(BASE_URL + "seg1.ts"),
+                0,
+                C.LENGTH_UNSET,
+                BASE_URL + "seg1.ts");
+        CacheUtil.cache(dataSpec, mCache, new ByteArrayDataSource(segment(1, 7)), null, null);
+        assertEquals(DownloadIntegrityVerifier.STATE_COMPLETE, verifyState());
+    }
+
+    private int verifyState() throws InterruptedException {
+        return mVerifier.verify(mAction, true).state;
+    }
+
+    private DownloadIntegrityVerifier buildVerifier(HashingDataSinkFactory hashingSinkFactory) {
+        //everything is read from the cache, nothing from the network
+        return new DownloadIntegrityVerifier(
+                new DownloaderConstructorHelper(mCache, () -> DummyDataSource.INSTANCE),
+                2,
+                hashingSinkFactory);
+    }
+
+    private void write(String sPath, byte[] data) throws Exception {
+        CacheDataSource dataSource = new CacheDataSource(mCache,
+                new ByteArrayDataSource(data),
+                new FileDataSource(),
+                mHashingSinkFactory.createDataSink(),
+                0,
+                null);
+        DataSpec dataSpec = new DataSpec(Uri.parse(BASE_URL + sPath),
+                0,
+                C.LENGTH_UNSET,
+                BASE_URL + sPath);
+        byte[] buffer = new byte[1024];
+        try {
+            dataSource.open(dataSpec);
+            while (dataSource.read(buffer, 0, buffer.length) != C.RESULT_END_OF_INPUT) {
+                //reading through is what writes to the cache
+            }
+        } finally {
+            dataSource.close();
+        }
+    }
+
+    private void corrupt(String sKey) throws Exception {
+        CacheSpan span = mCache.getCachedSpans(sKey).first();
+        try (RandomAccessFile file = new RandomAccessFile(span.file, "rw")) {
+            int iByte = file.read();
+            file.seek(0);
+            file.write(iByte ^ 0xFF);
+        }
+    }
+
+    private static byte[] segment(int iIndex, int iSeed) {
+        byte[] data = new byte[SEGMENT_BYTES];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) (i * 31 + iIndex + iSeed);
+        }
+        return data;
+    }
+
+    private static String playlist() {
+        StringBuilder playlist = new StringBuilder()
+                .append("#EXTM3U\n")
+                .append("#EXT-X-VERSION:3\n")
+                .append("#EXT-X-TARGETDURATION:4\n")
+                .append("#EXT-X-MEDIA-SEQUENCE:0\n");
+        for (int i = 0; i < SEGMENT_COUNT; i++) {
+            playlist.append("#EXTINF:4.0,\nseg").append(i).append(".ts\n");
+        }
+        return playlist.append("#EXT-X-ENDLIST\n").toString();
+    }
+}
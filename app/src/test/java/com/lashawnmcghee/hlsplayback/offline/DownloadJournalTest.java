@@ -0,0 +1,342 @@
+package com.lashawnmcghee.hlsplayback.offline;
+
+import android.net.Uri;
+import android.support.annotation.Nullable;
+
+import com.google.android.exoplayer2.C;
+import com.google.android.exoplayer2.upstream.DataSource;
+import com.google.android.exoplayer2.upstream.DataSpec;
+import com.google.android.exoplayer2.upstream.DummyDataSource;
+import com.google.android.exoplayer2.upstream.FileDataSource;
+import com.google.android.exoplayer2.upstream.TransferListener;
+import com.google.android.exoplayer2.upstream.cache.CacheDataSink;
+import com.google.android.exoplayer2.upstream.cache.CacheDataSource;
+import com.google.android.exoplayer2.upstream.cache.CacheUtil;
+import com.google.android.exoplayer2.upstream.cache.NoOpCacheEvictor;
+import com.google.android.exoplayer2.upstream.cache.SimpleCache;
+import com.lashawnmcghee.hlsplayback.cache.PooledHttpDataSourceFactory;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import okio.Buffer;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests of the download journal, crashing journaled downloads into a cache against a
+ * local stand-in server.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class DownloadJournalTest {
+    private static final String KEY = "title/segment0.ts";
+    private static final String SMALL_KEY = "title/small.ts";
+    private static final int SEGMENT_SIZE = 3 * 1024 * 1024 + 123;
+    private static final int SMALL_SEGMENT_SIZE = 64 * 1024;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private MockWebServer mServer;
+    private PooledHttpDataSourceFactory mHttpFactory;
+    private File mJournalFile;
+    private File mPartDirectory;
+    private byte[] mSegment;
+    private final List<SimpleCache> mCaches = new ArrayList<>();
+    private final List<Long> mRangeStarts = Collections.synchronizedList(new ArrayList<Long>());
+
+    @Before
+    public void setUp() throws Exception {
+        mSegment = new byte[SEGMENT_SIZE];
+        new Random(7).nextBytes(mSegment);
+        mServer = new MockWebServer();
+        mServer.setDispatcher(new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) {
+                return serveRange(request.getPath(), request.getHeader("Range"));
+            }
+        });
+        mServer.start();
+        mHttpFactory = new PooledHttpDataSourceFactory("test");
+        mJournalFile = new File(mFolder.getRoot(), "download_journal");
+        mPartDirectory = new File(mFolder.getRoot(), "download_parts");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        for (SimpleCache cache : mCaches) {
+            cache.release();
+        }
+        mHttpFactory.release();
+        mServer.shutdown();
+    }
+
+    @Test
+    public void crashedProcess_resumesFromItsLastBatch() throws Exception {
+        //the process dies part way through the segment, nothing is closed or synced
+        DownloadJournal journal = new DownloadJournal(mJournalFile, mPartDirectory);
+        journal.load();
+        long lngReceivedBeforeCrash =
+                download(journal, newCache(), "/segment0.ts", KEY, 1234567, true);
+
+        //a new process replays the journal, its cache lost the segment file it had not committed
+        DownloadJournal restarted = new DownloadJournal(mJournalFile, mPartDirectory);
+        restarted.load();
+        DownloadJournal.Entry entry = restarted.get(KEY);
+        assertNotNull(entry);
+        long lngRecorded = entry.getRecordedBytes();
+        assertTrue(lngRecorded >= DownloadJournal.SYNC_BATCH_BYTES);
+        assertTrue(lngReceivedBeforeCrash - lngRecorded < 2 * DownloadJournal.SYNC_BATCH_BYTES);
+
+        SimpleCache cache = newCache();
+        long lngReceivedAfterCrash = download(restarted, cache, "/segment0.ts", KEY, -1, false);
+
+        //only the batch which was never recorded is fetched again
+        assertEquals(SEGMENT_SIZE - lngRecorded, lngReceivedAfterCrash);
+        assertEquals(2, mRangeStarts.size());
+        assertEquals(0L, (long) mRangeStarts.get(0));
+        assertEquals(lngRecorded, (long) mRangeStarts.get(1));
+        assertArrayEquals(mSegment, readCache(cache, "/segment0.ts", KEY));
+        assertEquals(0, restarted.getEntryCount());
+        assertEquals(0, mPartDirectory.listFiles().length);
+        restarted.close();
+    }
+
+    @Test
+    public void interruptedRequest_resumesWithoutFetchingBytesTwice() throws Exception {
+        //the request fails and is closed, then the process dies
+        DownloadJournal journal = new DownloadJournal(mJournalFile, mPartDirectory);
+        journal.load();
+        long lngReceivedBefore = download(journal, newCache(), "/segment0.ts", KEY, 1234567, false);
+
+        DownloadJournal restarted = new DownloadJournal(mJournalFile, mPartDirectory);
+        restarted.load();
+        assertEquals(lngReceivedBefore, restarted.get(KEY).getRecordedBytes());
+        SimpleCache cache = newCache();
+        long lngReceivedAfter = download(restarted, cache, "/segment0.ts", KEY, -1, false);
+
+        assertEquals(SEGMENT_SIZE, lngReceivedBefore + lngReceivedAfter);
+        assertEquals(lngReceivedBefore, (long) mRangeStarts.get(1));
+        assertArrayEquals(mSegment, readCache(cache, "/segment0.ts", KEY));
+        restarted.close();
+    }
+
+    @Test
+    public void damagedTail_keepsEarlierRecords() throws Exception {
+        DownloadJournal journal = new DownloadJournal(mJournalFile, mPartDirectory);
+        journal.load();
+        long lngReceived = download(journal, newCache(), "/segment0.ts", KEY, 100000, false);
+        journal.close();
+
+        //half a record written by a dying process
+        try (FileOutputStream output = new FileOutputStream(mJournalFile, true)) {
+            output.write(new byte[] {2, 0, 40, 't', 'i'});
+        }
+
+        DownloadJournal restarted = new DownloadJournal(mJournalFile, mPartDirectory);
+        restarted.load();
+        assertEquals(lngReceived, restarted.get(KEY).getRecordedBytes());
+        restarted.close();
+    }
+
+    @Test
+    public void partShorterThanRecord_resumesAtPartLength() throws Exception {
+        DownloadJournal journal = new DownloadJournal(mJournalFile, mPartDirectory);
+        journal.load();
+        download(journal, newCache(), "/segment0.ts", KEY, 200000, false);
+        journal.close();
+
+        //a power loss kept the record but not the tail of the part file
+        File[] parts = mPartDirectory.listFiles();
+        assertEquals(1, parts.length);
+        try (RandomAccessFile part = new RandomAccessFile(parts[0], "rw")) {
+            part.setLength(50000);
+        }
+
+        DownloadJournal restarted = new DownloadJournal(mJournalFile, mPartDirectory);
+        restarted.load();
+        assertEquals(50000, restarted.get(KEY).getRecordedBytes());
+        SimpleCache cache = newCache();
+        long lngReceived = download(restarted, cache, "/segment0.ts", KEY, -1, false);
+        assertEquals(SEGMENT_SIZE - 50000, lngReceived);
+        assertArrayEquals(mSegment, readCache(cache, "/segment0.ts", KEY));
+        restarted.close();
+    }
+
+    @Test
+    public void smallSegment_isNotJournaled() throws Exception {
+        DownloadJournal journal = new DownloadJournal(mJournalFile, mPartDirectory);
+        journal.load();
+        long lngReceived = download(journal, newCache(), "/small.ts", SMALL_KEY, 30000, false);
+        assertTrue(lngReceived >= 30000);
+
+        assertNull(journal.get(SMALL_KEY));
+        assertEquals(0, mPartDirectory.listFiles().length);
+        journal.close();
+    }
+
+    private SimpleCache newCache() throws IOException {
+        SimpleCache cache = new SimpleCache(mFolder.newFolder(), new NoOpCacheEvictor());
+        mCaches.add(cache);
+        return cache;
+    }
+
+    /**
+     * Download a segment into a cache through the journal, the way downloads do.
+     * @param lngStopAfter Bytes to receive before the request fails, or -1 to let it complete.
+     * @param bCrash True to let the process die instead, leaving everything open.
+     * @return Returns the number of bytes received from the server.
+     */
+    private long download(DownloadJournal journal,
+                          SimpleCache cache,
+                          String sPath,
+                          String sKey,
+                          long lngStopAfter,
+                          boolean bCrash) throws Exception {
+        FailingDataSource network = new FailingDataSource(mHttpFactory.createDataSource(),
+                bCrash ? -1 : lngStopAfter);
+        DataSource journaled = new JournaledDataSourceFactory(() -> network, journal)
+                .createDataSource();
+        CacheDataSource dataSource = new CacheDataSource(cache,
+                journaled,
+                new FileDataSource(),
+                new CacheDataSink(cache, CacheDataSource.DEFAULT_MAX_CACHE_FILE_SIZE),
+                CacheDataSource.FLAG_BLOCK_ON_CACHE,
+                null);
+        byte[] buffer = new byte[CacheUtil.DEFAULT_BUFFER_SIZE_BYTES];
+        if (bCrash) {
+            dataSource.open(buildDataSpec(sPath, sKey));
+            while (network.mBytesRead < lngStopAfter) {
+                assertNotEquals(C.RESULT_END_OF_INPUT, dataSource.read(buffer, 0, buffer.length));
+            }
+            //the process dies here, nothing is closed
+            return network.mBytesRead;
+        }
+        try {
+            CacheUtil.cache(buildDataSpec(sPath, sKey),
+                    cache,
+                    dataSource,
+                    buffer,
+                    null,
+                    C.PRIORITY_DOWNLOAD,
+                    null,
+                    null,
+                    false);
+            assertEquals(-1, lngStopAfter);
+        } catch (IOException e) {
+            assertTrue(lngStopAfter >= 0);
+        }
+        return network.mBytesRead;
+    }
+
+    private byte[] readCache(SimpleCache cache, String sPath, String sKey) throws IOException {
+        CacheDataSource dataSource = new CacheDataSource(cache, DummyDataSource.INSTANCE);
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        try {
+            dataSource.open(buildDataSpec(sPath, sKey));
+            byte[] buffer = new byte[16 * 1024];
+            int bytesRead;
+            while ((bytesRead = dataSource.read(buffer, 0, buffer.length))
+                    != C.RESULT_END_OF_INPUT) {
+                output.write(buffer, 0, bytesRead);
+            }
+        } finally {
+            dataSource.close();
+        }
+        return output.toByteArray();
+    }
+
+    private DataSpec buildDataSpec(String sPath, String sKey) {
+        return new DataSpec(Uri.parse(mServer.url(sPath).toString()), 0, C.LENGTH_UNSET, sKey);
+    }
+
+    private MockResponse serveRange(String sPath, String sRange) {
+        int iSize = sPath.startsWith("/small") ? SMALL_SEGMENT_SIZE : SEGMENT_SIZE;
+        long lngStart = 0;
+        if (sRange != null && sRange.startsWith("bytes=")) {
+            lngStart = Long.parseLong(sRange.substring(6, sRange.indexOf('-')));
+        }
+        if (iSize == SEGMENT_SIZE) {
+            mRangeStarts.add(lngStart);
+        }
+        Buffer body = new Buffer().write(mSegment, (int) lngStart, iSize - (int) lngStart);
+        return new MockResponse()
+                .setResponseCode(206)
+                .setHeader("Content-Range",
+                        "bytes " + lngStart + "-" + (iSize - 1) + "/" + iSize)
+                .setBody(body);
+    }
+
+    /**
+     * Data source counting the bytes received and failing after a number of them.
+     */
+    private static final class FailingDataSource implements DataSource {
+        private final DataSource mUpstream;
+        private final long mFailAfter;
+
+        private long mBytesRead;
+
+        FailingDataSource(DataSource upstream, long failAfter) {
+            mUpstream = upstream;
+            mFailAfter = failAfter;
+        }
+
+        @Override
+        public void addTransferListener(TransferListener transferListener) {
+            mUpstream.addTransferListener(transferListener);
+        }
+
+        @Override
+        public long open(DataSpec dataSpec) throws IOException {
+            return mUpstream.open(dataSpec);
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int readLength) throws IOException {
+            if (mFailAfter >= 0 && mBytesRead >= mFailAfter) {
+                throw new IOException("Injected failure");
+            }
+            int bytesRead = mUpstream.read(buffer, offset, readLength);
+            if (bytesRead > 0) {
+                mBytesRead += bytesRead;
+            }
+            return bytesRead;
+        }
+
+        @Nullable
+        @Override
+        public Uri getUri() {
+            return mUpstream.getUri();
+        }
+
+        @Override
+        public Map<String, List<String>> getResponseHeaders() {
+            return mUpstream.getResponseHeaders();
+        }
+
+        @Override
+        public void close() throws IOException {
+            mUpstream.close();
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package com.lashawnmcghee.hlsplayback.offline;
+
+import com.google.android.exoplayer2.C;
+
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests of the download progress coalescer.
+ */
+public class DownloadProgressCoalescerTest {
+    private static final String URL_A = "https://example.com/a/master.m3u8";
+    private static final String URL_B = "https://example.com/b/master.m3u8";
+
+    @Test
+    public void manyReports_drainToLatestPerTitle() {
+        DownloadProgressCoalescer coalescer = new DownloadProgressCoalescer();
+        coalescer.onProgress(URL_A, DownloadProgressEvent.STATE_QUEUED, 0, C.PERCENTAGE_UNSET, 0);
+        coalescer.onProgress(URL_B, DownloadProgressEvent.STATE_QUEUED, 0, C.PERCENTAGE_UNSET, 0);
+        for (int i = 1; i <= 10; i++) {
+            coalescer.onProgress(URL_A, DownloadProgressEvent.STATE_DOWNLOADING, i * 1000, i, i * 10);
+        }
+
+        List<DownloadProgressEvent> events = coalescer.drain();
+        assertEquals(2, events.size());
+        assertEquals(URL_A, events.get(0).url);
+        assertEquals(DownloadProgressEvent.STATE_DOWNLOADING, events.get(0).state);
+        assertEquals(10000, events.get(0).downloadedBytes);
+        assertEquals(10f, events.get(0).percentage, 0f);
+        assertEquals(URL_B, events.get(1).url);
+        assertFalse(events.get(1).hasPercentage());
+
+        //nothing changed since
+        assertTrue(coalescer.drain().isEmpty());
+        assertTrue(coalescer.hasActive());
+    }
+
+    @Test
+    public void throughput_measuredOverSampleWindow() {
+        DownloadProgressCoalescer coalescer = new DownloadProgressCoalescer();
+        coalescer.onProgress(URL_A, DownloadProgressEvent.STATE_DOWNLOADING, 0, 0, 0);
+        //too close to the first sample to measure
+        coalescer.onProgress(URL_A, DownloadProgressEvent.STATE_DOWNLOADING, 10000, 1, 100);
+        assertEquals(0, coalescer.drain().get(0).bytesPerSecond);
+
+        coalescer.onProgress(URL_A, DownloadProgressEvent.STATE_DOWNLOADING, 500000, 50, 1000);
+        assertEquals(500000, coalescer.drain().get(0).bytesPerSecond);
+
+        //a stalled download reports its throughput falling to zero
+        coalescer.onProgress(URL_A, DownloadProgressEvent.STATE_DOWNLOADING, 500000, 50, 2000);
+        List<DownloadProgressEvent> events = coalescer.drain();
+        assertEquals(1, events.size());
+        assertEquals(0, events.get(0).bytesPerSecond);
+    }
+
+    @Test
+    public void finishedTitle_forgottenAfterDrain() {
+        DownloadProgressCoalescer coalescer = new DownloadProgressCoalescer();
+        coalescer.onProgress(URL_A, DownloadProgressEvent.STATE_DOWNLOADING, 1000, 10, 0);
+        coalescer.onProgress(URL_A, DownloadProgressEvent.STATE_COMPLETED, 10000, 100, 1000);
+        assertTrue(coalescer.hasActive());
+
+        List<DownloadProgressEvent> events = coalescer.drain();
+        assertEquals(1, events.size());
+        assertTrue(events.get(0).isFinished());
+        assertTrue(events.get(0).isTracked());
+        assertEquals(0, events.get(0).bytesPerSecond);
+        assertFalse(coalescer.hasActive());
+        assertTrue(coalescer.drain().isEmpty());
+    }
+
+    @Test
+    public void removedTitle_isNotTracked() {
+        DownloadProgressCoalescer coalescer = new DownloadProgressCoalescer();
+        coalescer.onProgress(URL_A, DownloadProgressEvent.STATE_REMOVING, 0, C.PERCENTAGE_UNSET, 0);
+        assertFalse(coalescer.drain().get(0).isTracked());
+        coalescer.onProgress(URL_A, DownloadProgressEvent.STATE_REMOVED, 0, C.PERCENTAGE_UNSET, 10);
+        DownloadProgressEvent event = coalescer.drain().get(0);
+        assertTrue(event.isFinished());
+        assertFalse(event.isTracked());
+    }
+}
@@ -0,0 +1,158 @@
+package com.lashawnmcghee.hlsplayback.offline;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests of the lock free download state store.
+ */
+public class DownloadStateStoreTest {
+    private static final int WRITERS = 8;
+    private static final int READERS = 4;
+    private static final int KEYS_PER_WRITER = 500;
+
+    @Test
+    public void writes_publishNewVersions() {
+        DownloadStateStore<String, String> store = new DownloadStateStore<>();
+        assertEquals(0, store.getVersion());
+        assertNull(store.put("a", "1"));
+        assertEquals(1, store.getVersion());
+
+        //the same state again changes nothing
+        String sState = store.get("a");
+        assertEquals("1", store.put("a", sState));
+        assertEquals(1, store.getVersion());
+        //and neither does an equal one
+        assertEquals("1", store.put("a", new String("1")));
+        assertEquals(1, store.getVersion());
+
+        assertFalse(store.putIfAbsent("a", "2"));
+        assertTrue(store.putIfAbsent("b", "2"));
+        assertEquals(2, store.getVersion());
+
+        assertNull(store.remove("c"));
+        assertEquals(2, store.getVersion());
+        assertEquals("1", store.remove("a"));
+        assertEquals(3, store.getVersion());
+
+        HashMap<String, String> states = new HashMap<>();
+        states.put("c", "3");
+        states.put("d", "4");
+        store.putAll(states);
+        assertEquals(4, store.getVersion());
+        assertEquals(3, store.getSnapshot().size());
+    }
+
+    @Test
+    public void snapshot_isNotChangedByLaterWrites() {
+        DownloadStateStore<String, String> store = new DownloadStateStore<>();
+        store.put("a", "1");
+        DownloadStateStore.Snapshot<String, String> snapshot = store.getSnapshot();
+        store.put("a", "2");
+        store.put("b", "3");
+
+        assertEquals("1", snapshot.get("a"));
+        assertFalse(snapshot.containsKey("b"));
+        assertEquals(1, snapshot.version);
+        try {
+            snapshot.asMap().put("c", "4");
+            fail("Snapshots must be read only");
+        } catch (UnsupportedOperationException e) {
+            //expected
+        }
+    }
+
+    @Test
+    public void manyThreads_loseNoWritesAndSeeConsistentSnapshots() throws Exception {
+        DownloadStateStore<String, Integer> store = new DownloadStateStore<>();
+        ExecutorService executor = Executors.newFixedThreadPool(WRITERS + READERS);
+        CountDownLatch start = new CountDownLatch(1);
+        AtomicBoolean writing = new AtomicBoolean(true);
+        try {
+            Future<?>[] writers = new Future<?>[WRITERS];
+            for (int w = 0; w < WRITERS; w++) {
+                final int iWriter = w;
+                writers[w] = executor.submit(() -> {
+                    start.await();
+                    //every writer owns its keys: put them all, update them, remove the odd ones
+                    for (int k = 0; k < KEYS_PER_WRITER; k++) {
+                        store.put(key(iWriter, k), 0);
+                    }
+                    for (int k = 0; k < KEYS_PER_WRITER; k++) {
+                        store.put(key(iWriter, k), k);
+                    }
+                    for (int k = 1; k < KEYS_PER_WRITER; k += 2) {
+                        assertEquals(Integer.valueOf(k), store.remove(key(iWriter, k)));
+                    }
+                    return null;
+                });
+            }
+
+            Future<?>[] readers = new Future<?>[READERS];
+            for (int r = 0; r < READERS; r++) {
+                readers[r] = executor.submit(() -> {
+                    start.await();
+                    long lngLastVersion = -1;
+                    while (writing.get()) {
+                        DownloadStateStore.Snapshot<String, Integer> snapshot = store.getSnapshot();
+                        //versions only move forward
+                        assertTrue(snapshot.version >= lngLastVersion);
+                        lngLastVersion = snapshot.version;
+                        //a snapshot never changes while it is read
+                        int iSize = snapshot.size();
+                        int iCount = 0;
+                        for (Map.Entry<String, Integer> entry : snapshot.asMap().entrySet()) {
+                            assertNotNull(entry.getValue());
+                            iCount++;
+                        }
+                        assertEquals(iSize, iCount);
+                        assertEquals(iSize, snapshot.size());
+                    }
+                    return null;
+                });
+            }
+
+            start.countDown();
+            for (Future<?> writer : writers) {
+                writer.get(30, TimeUnit.SECONDS);
+            }
+            writing.set(false);
+            for (Future<?> reader : readers) {
+                reader.get(30, TimeUnit.SECONDS);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        DownloadStateStore.Snapshot<String, Integer> snapshot = store.getSnapshot();
+        assertEquals(WRITERS * KEYS_PER_WRITER / 2, snapshot.size());
+        for (int w = 0; w < WRITERS; w++) {
+            for (int k = 0; k < KEYS_PER_WRITER; k++) {
+                Integer state = snapshot.get(key(w, k));
+                if (k % 2 == 0) {
+                    assertEquals(Integer.valueOf(k), state);
+                } else {
+                    assertNull(state);
+                }
+            }
+        }
+        //every change published exactly one version, the first update of key 0 changed nothing
+        long lngChanges = (long) WRITERS * (KEYS_PER_WRITER + (KEYS_PER_WRITER - 1)
+                + KEYS_PER_WRITER / 2);
+        assertEquals(lngChanges, snapshot.version);
+    }
+
+    private static String key(int iWriter, int iKey) {
+        return iWriter + "/" + iKey;
+    }
+}
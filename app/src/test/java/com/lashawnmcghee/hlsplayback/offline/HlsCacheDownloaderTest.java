@@ -0,0 +1,229 @@
+package com.lashawnmcghee.hlsplayback.offline;
+
+import android.net.Uri;
+
+import com.google.android.exoplayer2.offline.DownloaderConstructorHelper;
+import com.google.android.exoplayer2.upstream.DataSpec;
+import com.google.android.exoplayer2.upstream.cache.CacheUtil;
+import com.google.android.exoplayer2.upstream.cache.NoOpCacheEvictor;
+import com.google.android.exoplayer2.upstream.cache.SimpleCache;
+import com.lashawnmcghee.hlsplayback.cache.PooledHttpDataSourceFactory;
+import com.lashawnmcghee.hlsplayback.interfaces.ICacheKeyNormalizer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import okio.Buffer;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests of the parallel HLS downloader against a local stand-in server and cache.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class HlsCacheDownloaderTest {
+    private static final int SEGMENT_COUNT = 8;
+    private static final int SEGMENT_BYTES = 16 * 1024;
+    private static final ICacheKeyNormalizer RAW_KEYS = Uri::toString;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private MockWebServer mServer;
+    private PooledHttpDataSourceFactory mHttpFactory;
+    private SimpleCache mCache;
+    private DownloaderConstructorHelper mHelper;
+
+    private final List<String> mRequests = Collections.synchronizedList(new ArrayList<String>());
+    private final ConcurrentHashMap<String, AtomicInteger> mFailures = new ConcurrentHashMap<>();
+    private final AtomicInteger mInFlight = new AtomicInteger();
+    private final AtomicInteger mMaxInFlight = new AtomicInteger();
+
+    @Before
+    public void setUp() throws Exception {
+        mServer = new MockWebServer();
+        mServer.setDispatcher(new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) throws InterruptedException {
+                return serve(request);
+            }
+        });
+        mServer.start();
+        mHttpFactory = new PooledHttpDataSourceFactory("test");
+        mCache = new SimpleCache(mFolder.newFolder("cache"), new NoOpCacheEvictor());
+        mHelper = new DownloaderConstructorHelper(mCache, mHttpFactory);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mCache.release();
+        mHttpFactory.release();
+        mServer.shutdown();
+    }
+
+    @Test
+    public void download_fetchesEverySegmentOnceOnSeveralWorkers() throws Exception {
+        HlsCacheDownloader downloader = buildDownloader("/media.m3u8", 3);
+        downloader.download();
+
+        assertEquals(SEGMENT_COUNT + 1, downloader.getTotalSegmentCount());
+        assertEquals(SEGMENT_COUNT + 1, downloader.getContiguousSegmentCount());
+        assertEquals(100f, downloader.getDownloadPercentage(), 0.01f);
+        for (int i = 0; i < SEGMENT_COUNT; i++) {
+            assertEquals(1, Collections.frequency(mRequests, "/seg" + i + ".ts"));
+            assertCached("/seg" + i + ".ts", SEGMENT_BYTES);
+        }
+        assertTrue(mMaxInFlight.get() > 1);
+        assertTrue(mMaxInFlight.get() <= 3);
+    }
+
+    @Test
+    public void allCached_completesWithoutFetchingAnything() throws Exception {
+        buildDownloader("/media.m3u8", 3).download();
+        int iRequests = mRequests.size();
+
+        //a download of a title which is cached already has no lane to run
+        HlsCacheDownloader downloader = buildDownloader("/media.m3u8", 3);
+        downloader.download();
+
+        assertEquals(iRequests, mRequests.size());
+        assertEquals(100f, downloader.getDownloadPercentage(), 0.01f);
+        assertEquals(SEGMENT_COUNT * SEGMENT_BYTES + playlist("/media.m3u8").length(),
+                downloader.getDownloadedBytes());
+    }
+
+    @Test
+    public void failedSegment_isRetried() throws Exception {
+        mFailures.put("/seg3.ts", new AtomicInteger(1));
+        HlsCacheDownloader downloader = buildDownloader("/media.m3u8", 3);
+        downloader.download();
+
+        assertEquals(2, Collections.frequency(mRequests, "/seg3.ts"));
+        assertCached("/seg3.ts", SEGMENT_BYTES);
+        assertEquals(SEGMENT_COUNT + 1, downloader.getContiguousSegmentCount());
+    }
+
+    @Test
+    public void failingSegment_failsTheDownloadAfterItsAttempts() throws Exception {
+        mFailures.put("/seg5.ts", new AtomicInteger(Integer.MAX_VALUE));
+        HlsCacheDownloader downloader = buildDownloader("/media.m3u8", 3);
+        try {
+            downloader.download();
+            fail();
+        } catch (java.io.IOException e) {
+            //expected
+        }
+        assertEquals(3, Collections.frequency(mRequests, "/seg5.ts"));
+        assertTrue(downloader.getContiguousSegmentCount() <= 6);
+    }
+
+    @Test
+    public void byteRangesOfOneFile_areFetchedInOrderOnOneWorker() throws Exception {
+        HlsCacheDownloader downloader = buildDownloader("/ranges.m3u8", 3);
+        downloader.download();
+
+        ArrayList<String> fileRequests = new ArrayList<>();
+        synchronized (mRequests) {
+            for (String sRequest : mRequests) {
+                if (sRequest.startsWith("/all.ts")) {
+                    fileRequests.add(sRequest);
+                }
+            }
+        }
+        ArrayList<String> expected = new ArrayList<>();
+        for (int i = 0; i < SEGMENT_COUNT; i++) {
+            expected.add("/all.ts bytes=" + i * SEGMENT_BYTES + "-" + ((i + 1) * SEGMENT_BYTES - 1));
+        }
+        assertEquals(expected, fileRequests);
+        assertCached("/all.ts", SEGMENT_COUNT * SEGMENT_BYTES);
+    }
+
+    private HlsCacheDownloader buildDownloader(String sPath, int iParallel) {
+        return new HlsCacheDownloader(Uri.parse(mServer.url(sPath).toString()),
+                Collections.emptyList(),
+                mHelper,
+                RAW_KEYS,
+                null,
+                iParallel);
+    }
+
+    private void assertCached(String sPath, long lngBytes) {
+        CacheUtil.CachingCounters counters = new CacheUtil.CachingCounters();
+        Uri uri = Uri.parse(mServer.url(sPath).toString());
+        CacheUtil.getCached(new DataSpec(uri, 0, lngBytes, uri.toString()), mCache, counters);
+        assertEquals(lngBytes, counters.alreadyCachedBytes);
+    }
+
+    private MockResponse serve(RecordedRequest request) throws InterruptedException {
+        String sPath = request.getPath();
+        String sRange = request.getHeader("Range");
+        mRequests.add(sRange != null && sPath.startsWith("/all.ts") ? sPath + " " + sRange : sPath);
+        if (sPath.endsWith(".m3u8")) {
+            return new MockResponse().setBody(playlist(sPath));
+        }
+
+        AtomicInteger failures = mFailures.get(sPath);
+        if (failures != null && failures.getAndDecrement() > 0) {
+            return new MockResponse().setResponseCode(500);
+        }
+        int iInFlight = mInFlight.incrementAndGet();
+        mMaxInFlight.accumulateAndGet(iInFlight, Math::max);
+        try {
+            //long enough for the workers to overlap
+            Thread.sleep(50);
+        } finally {
+            mInFlight.decrementAndGet();
+        }
+
+        byte[] body = new byte[sPath.startsWith("/all.ts") ? SEGMENT_COUNT * SEGMENT_BYTES
+                : SEGMENT_BYTES];
+        for (int i = 0; i < body.length; i++) {
+            body[i] = (byte) (i + sPath.hashCode());
+        }
+        if (sRange == null) {
+            return new MockResponse().setBody(new Buffer().write(body));
+        }
+        String[] bounds = sRange.substring("bytes=".length()).split("-");
+        int iStart = Integer.parseInt(bounds[0]);
+        int iEnd = bounds.length > 1 ? Integer.parseInt(bounds[1]) : body.length - 1;
+        return new MockResponse().setResponseCode(206)
+                .setHeader("Content-Range", "bytes " + iStart + "-" + iEnd + "/" + body.length)
+                .setBody(new Buffer().write(body, iStart, iEnd - iStart + 1));
+    }
+
+    private static String playlist(String sPath) {
+        StringBuilder playlist = new StringBuilder()
+                .append("#EXTM3U\n")
+                .append("#EXT-X-VERSION:4\n")
+                .append("#EXT-X-TARGETDURATION:4\n")
+                .append("#EXT-X-MEDIA-SEQUENCE:0\n");
+        for (int i = 0; i < SEGMENT_COUNT; i++) {
+            playlist.append("#EXTINF:4.0,\n");
+            if (sPath.startsWith("/ranges")) {
+                playlist.append("#EXT-X-BYTERANGE:")
+                        .append(SEGMENT_BYTES)
+                        .append('@')
+                        .append(i * SEGMENT_BYTES)
+                        .append("\nall.ts\n");
+            } else {
+                playlist.append("seg").append(i).append(".ts\n");
+            }
+        }
+        return playlist.append("#EXT-X-ENDLIST\n").toString();
+    }
+}
@@ -0,0 +1,118 @@
+package com.lashawnmcghee.hlsplayback.offline;
+
+import com.google.android.exoplayer2.C;
+import com.google.android.exoplayer2.Format;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests of the download size estimate and storage admission controller.
+ */
+public class StorageAdmissionControllerTest {
+    private static final long MB = 1024 * 1024;
+    private static final long SEGMENT_US = 6 * 1000 * 1000;
+
+    @Test
+    public void estimate_usesByteRangesThenBitrates() {
+        DownloadSizeEstimator.Accumulator accumulator = new DownloadSizeEstimator.Accumulator();
+        //6 seconds at 4Mbps is 3MB
+        accumulator.addSegment(SEGMENT_US, C.LENGTH_UNSET, 4000000);
+        accumulator.addSegment(SEGMENT_US, 1000, 4000000);
+        DownloadSizeEstimator.Estimate estimate = accumulator.build();
+        assertEquals(3000000, estimate.estimatedBytes);
+        assertEquals(1000, estimate.measuredBytes);
+        assertEquals(3001000, estimate.bytes);
+        assertTrue(estimate.isComplete());
+
+        //without a bitrate or a byte range the estimate is only a lower bound
+        accumulator.addSegment(SEGMENT_US, C.LENGTH_UNSET, Format.NO_VALUE);
+        accumulator.addDuration(C.TIME_UNSET, 4000000);
+        estimate = accumulator.build();
+        assertEquals(3001000, estimate.bytes);
+        assertEquals(4, estimate.segmentCount);
+        assertEquals(2, estimate.unknownSegmentCount);
+        assertFalse(estimate.isComplete());
+    }
+
+    @Test
+    public void admit_checksFreeSpaceAndBudget() {
+        FakeController controller = new FakeController(1000 * MB, 100 * MB);
+        controller.budgetBytes = 500 * MB;
+        controller.committedBytes = 300 * MB;
+
+        StorageAdmissionController.Decision decision = controller.admit("a", estimate(150 * MB));
+        assertTrue(decision.isAdmitted());
+        assertEquals(200 * MB, decision.availableBytes);
+
+        //the reservation of the first title counts against the second
+        decision = controller.admit("b", estimate(100 * MB));
+        assertFalse(decision.isAdmitted());
+        assertEquals(StorageAdmissionController.REASON_BUDGET, decision.reason);
+        assertEquals(50 * MB, decision.availableBytes);
+
+        controller.usableSpace = 200 * MB;
+        decision = controller.admit("c", estimate(10 * MB));
+        assertFalse(decision.isAdmitted());
+        assertEquals(StorageAdmissionController.REASON_FREE_SPACE, decision.reason);
+        assertEquals(0, decision.availableBytes);
+    }
+
+    @Test
+    public void reservation_shrinksWithProgressAndIsReleased() {
+        FakeController controller = new FakeController(1000 * MB, 0);
+        assertTrue(controller.admit("a", estimate(100 * MB)).isAdmitted());
+        assertEquals(100 * MB, controller.getReservedBytes());
+
+        controller.onProgress("a", 40 * MB);
+        assertEquals(60 * MB, controller.getReservedBytes());
+        //progress never goes backwards
+        controller.onProgress("a", 10 * MB);
+        assertEquals(60 * MB, controller.getReservedBytes());
+
+        //admitting again replaces the reservation
+        assertTrue(controller.admit("a", estimate(20 * MB)).isAdmitted());
+        assertEquals(20 * MB, controller.getReservedBytes());
+
+        controller.release("a");
+        assertEquals(0, controller.getReservedBytes());
+        controller.onProgress("a", 10 * MB);
+        assertEquals(0, controller.getReservedBytes());
+    }
+
+    private static DownloadSizeEstimator.Estimate estimate(long bytes) {
+        DownloadSizeEstimator.Accumulator accumulator = new DownloadSizeEstimator.Accumulator();
+        accumulator.addSegment(SEGMENT_US, bytes, Format.NO_VALUE);
+        return accumulator.build();
+    }
+
+    /**
+     * A controller with storage numbers set by the test instead of read from a device.
+     */
+    private static final class FakeController extends StorageAdmissionController {
+        long usableSpace;
+        long budgetBytes = Long.MAX_VALUE;
+        long committedBytes;
+
+        FakeController(long usableSpace, long reserveBytes) {
+            super(null, null, reserveBytes);
+            this.usableSpace = usableSpace;
+        }
+
+        @Override
+        protected long getUsableSpace() {
+            return usableSpace;
+        }
+
+        @Override
+        protected long getBudgetBytes() {
+            return budgetBytes;
+        }
+
+        @Override
+        protected long getCommittedBytes() {
+            return committedBytes;
+        }
+    }
+}
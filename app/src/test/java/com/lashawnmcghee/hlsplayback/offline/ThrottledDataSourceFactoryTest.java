@@ -0,0 +1,151 @@
+package com.lashawnmcghee.hlsplayback.offline;
+
+import android.net.Uri;
+import android.support.annotation.Nullable;
+
+import com.google.android.exoplayer2.C;
+import com.google.android.exoplayer2.upstream.ByteArrayDataSource;
+import com.google.android.exoplayer2.upstream.DataSource;
+import com.google.android.exoplayer2.upstream.DataSpec;
+import com.google.android.exoplayer2.upstream.TransferListener;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests of the download data sources giving way to playback.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class ThrottledDataSourceFactoryTest {
+    private static final byte[] BODY = new byte[4096];
+    private static final DataSpec SEGMENT =
+            new DataSpec(Uri.parse("https://media.example.com/title/seg0.ts"));
+
+    static {
+        for (int i = 0; i < BODY.length; i++) {
+            BODY[i] = (byte) i;
+        }
+    }
+
+    @Test
+    public void pausedDownload_closesItsRequestUntilItMayContinue() throws Exception {
+        BandwidthArbiter arbiter = new BandwidthArbiter(1000, 2000);
+        CountingDataSource upstream = new CountingDataSource();
+        DataSource source = new ThrottledDataSourceFactory(() -> upstream, arbiter).createDataSource();
+        assertEquals(BODY.length, source.open(SEGMENT));
+        byte[] buffer = new byte[100];
+        assertEquals(100, source.read(buffer, 0, buffer.length));
+
+        //the player's buffer runs low
+        arbiter.onPlaybackBufferChanged(0, 0);
+        ByteArrayOutputStream rest = new ByteArrayOutputStream();
+        IOException[] error = new IOException[1];
+        Thread reader = new Thread(() -> {
+            try {
+                byte[] readBuffer = new byte[1024];
+                int bytesRead;
+                while ((bytesRead = source.read(readBuffer, 0, readBuffer.length))
+                        != C.RESULT_END_OF_INPUT) {
+                    rest.write(readBuffer, 0, bytesRead);
+                }
+            } catch (IOException e) {
+                error[0] = e;
+            }
+        });
+        reader.start();
+
+        //the paused download holds no request while it waits
+        long lngDeadline = System.currentTimeMillis() + 5000;
+        while (upstream.mCloseCount.get() == 0 && System.currentTimeMillis() < lngDeadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(1, upstream.mCloseCount.get());
+        Thread.sleep(200);
+        assertEquals(1, upstream.mOpenCount.get());
+        assertTrue(reader.isAlive());
+
+        //the buffer is healthy again, the rest is requested from where the download stopped
+        arbiter.onPlaybackBufferChanged(5000, 0);
+        reader.join(5000);
+        assertNull(error[0]);
+        source.close();
+        assertEquals(Arrays.asList(0L, 100L), upstream.mOpenPositions);
+        assertArrayEquals(Arrays.copyOfRange(BODY, 100, BODY.length), rest.toByteArray());
+    }
+
+    @Test
+    public void releasedDownload_keepsItsRequestOpen() throws Exception {
+        BandwidthArbiter arbiter = new BandwidthArbiter(1000, 2000);
+        arbiter.onPlaybackBufferChanged(5000, 0);
+        CountingDataSource upstream = new CountingDataSource();
+        DataSource source = new ThrottledDataSourceFactory(() -> upstream, arbiter).createDataSource();
+        source.open(SEGMENT);
+        byte[] buffer = new byte[1024];
+        int iTotal = 0;
+        int bytesRead;
+        while ((bytesRead = source.read(buffer, 0, buffer.length)) != C.RESULT_END_OF_INPUT) {
+            iTotal += bytesRead;
+        }
+        source.close();
+
+        assertEquals(BODY.length, iTotal);
+        assertEquals(1, upstream.mOpenCount.get());
+        assertEquals(BODY.length, arbiter.snapshot().downloadBytes);
+    }
+
+    /**
+     * Data source serving {@link #BODY} and counting its requests.
+     */
+    private static final class CountingDataSource implements DataSource {
+        private final ByteArrayDataSource mSource = new ByteArrayDataSource(BODY);
+        private final AtomicInteger mOpenCount = new AtomicInteger();
+        private final AtomicInteger mCloseCount = new AtomicInteger();
+        private final List<Long> mOpenPositions = Collections.synchronizedList(new ArrayList<>());
+
+        @Override
+        public void addTransferListener(TransferListener transferListener) {
+            mSource.addTransferListener(transferListener);
+        }
+
+        @Override
+        public long open(DataSpec dataSpec) throws IOException {
+            mOpenCount.incrementAndGet();
+            mOpenPositions.add(dataSpec.position);
+            return mSource.open(dataSpec);
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int readLength) throws IOException {
+            return mSource.read(buffer, offset, readLength);
+        }
+
+        @Nullable
+        @Override
+        public Uri getUri() {
+            return mSource.getUri();
+        }
+
+        @Override
+        public Map<String, List<String>> getResponseHeaders() {
+            return Collections.emptyMap();
+        }
+
+        @Override
+        public void close() throws IOException {
+            mCloseCount.incrementAndGet();
+            mSource.close();
+        }
+    }
+}
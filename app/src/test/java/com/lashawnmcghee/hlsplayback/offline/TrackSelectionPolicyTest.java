@@ -0,0 +1,114 @@
+package com.lashawnmcghee.hlsplayback.offline;
+
+import com.google.android.exoplayer2.C;
+import com.google.android.exoplayer2.Format;
+import com.google.android.exoplayer2.offline.TrackKey;
+import com.google.android.exoplayer2.source.hls.playlist.HlsMasterPlaylist;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests of the headless download track selection policy.
+ */
+public class TrackSelectionPolicyTest {
+    private static final long ONE_HOUR_US = 3600L * 1000 * 1000;
+
+    @Test
+    public void noLimits_choosesHighestVariantAndEveryRendition() {
+        List<TrackKey> trackKeys = new TrackSelectionPolicy().select(buildTitle(), C.TIME_UNSET);
+        assertEquals(Arrays.asList("0:2", "1:0", "1:1", "2:0"), describe(trackKeys));
+    }
+
+    @Test
+    public void maxSizeAndBitrate_limitVariant() {
+        TrackSelectionPolicy policy = new TrackSelectionPolicy().setMaxVideoSize(1280, 720);
+        assertEquals("0:1", describe(policy.select(buildTitle(), C.TIME_UNSET)).get(0));
+
+        policy.setMaxVideoBitrate(1000000);
+        assertEquals("0:0", describe(policy.select(buildTitle(), C.TIME_UNSET)).get(0));
+
+        //nothing fits, the lowest variant is the closest
+        policy.setMaxVideoBitrate(1000);
+        assertEquals("0:0", describe(policy.select(buildTitle(), C.TIME_UNSET)).get(0));
+    }
+
+    @Test
+    public void languages_chooseRenditions() {
+        TrackSelectionPolicy policy = new TrackSelectionPolicy()
+                .setAudioLanguages("es")
+                .setSubtitleLanguages("fr");
+        assertEquals(Arrays.asList("0:2", "1:1"),
+                describe(policy.select(buildTitle(), C.TIME_UNSET)));
+
+        //without a matching audio language the default rendition is kept
+        policy.setAudioLanguages("de").setSubtitleLanguages("EN");
+        assertEquals(Arrays.asList("0:2", "1:0", "2:0"),
+                describe(policy.select(buildTitle(), C.TIME_UNSET)));
+    }
+
+    @Test
+    public void byteBudget_stepsDownOrSkips() {
+        //an hour at 5Mbps plus 128kbps of audio is about 2.3GB, at 2.5Mbps about 1.2GB
+        TrackSelectionPolicy policy = new TrackSelectionPolicy()
+                .setAudioLanguages("en")
+                .setByteBudget(2000L * 1000 * 1000);
+        assertEquals("0:1", describe(policy.select(buildTitle(), ONE_HOUR_US)).get(0));
+
+        policy.setByteBudget(100L * 1000 * 1000);
+        assertNull(policy.select(buildTitle(), ONE_HOUR_US));
+
+        //an unknown duration cannot be estimated
+        assertEquals("0:2", describe(policy.select(buildTitle(), C.TIME_UNSET)).get(0));
+    }
+
+    @Test
+    public void singleStream_downloadsEverything() {
+        assertTrue(new TrackSelectionPolicy().select(new ArrayList<>(), C.TIME_UNSET).isEmpty());
+    }
+
+    private static List<TrackSelectionPolicy.Candidate> buildTitle() {
+        List<TrackSelectionPolicy.Candidate> candidates = new ArrayList<>();
+        candidates.add(variant(0, 800000, 640, 360));
+        candidates.add(variant(1, 2500000, 1280, 720));
+        candidates.add(variant(2, 5000000, 1920, 1080));
+        candidates.add(new TrackSelectionPolicy.Candidate(key(1, 0),
+                HlsMasterPlaylist.GROUP_INDEX_AUDIO, 128000, Format.NO_VALUE, Format.NO_VALUE,
+                "en-US", true));
+        candidates.add(new TrackSelectionPolicy.Candidate(key(1, 1),
+                HlsMasterPlaylist.GROUP_INDEX_AUDIO, 128000, Format.NO_VALUE, Format.NO_VALUE,
+                "es", false));
+        candidates.add(new TrackSelectionPolicy.Candidate(key(2, 0),
+                HlsMasterPlaylist.GROUP_INDEX_SUBTITLE, Format.NO_VALUE, Format.NO_VALUE,
+                Format.NO_VALUE, "en", false));
+        return candidates;
+    }
+
+    private static TrackSelectionPolicy.Candidate variant(int iTrack,
+                                                          int bitrate,
+                                                          int width,
+                                                          int height) {
+        return new TrackSelectionPolicy.Candidate(key(0, iTrack),
+                HlsMasterPlaylist.GROUP_INDEX_VARIANT, bitrate, width, height, null, false);
+    }
+
+    /**
+     * Describe track keys as group:track so they can be compared.
+     */
+    private static List<String> describe(List<TrackKey> trackKeys) {
+        List<String> descriptions = new ArrayList<>();
+        for (TrackKey trackKey : trackKeys) {
+            descriptions.add(trackKey.groupIndex + ":" + trackKey.trackIndex);
+        }
+        return descriptions;
+    }
+
+    private static TrackKey key(int iGroup, int iTrack) {
+        return new TrackKey(0, iGroup, iTrack);
+    }
+}
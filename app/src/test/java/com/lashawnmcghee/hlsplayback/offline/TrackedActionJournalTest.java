@@ -0,0 +1,150 @@
+package com.lashawnmcghee.hlsplayback.offline;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests of the append-only journal of tracked download actions.
+ */
+public class TrackedActionJournalTest {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    @Test
+    public void changes_areReplayedInOrder() throws Exception {
+        File journalFile = new File(mFolder.getRoot(), "tracked_actions.journal");
+        TrackedActionJournal journal = new TrackedActionJournal(journalFile);
+        assertFalse(journal.exists());
+        assertTrue(journal.load().isEmpty());
+        assertTrue(journal.exists());
+
+        journal.put("a", bytes("action a"));
+        journal.put("b", bytes("action b"));
+        journal.put("c", bytes("action c"));
+        journal.remove("b");
+        journal.put("a", bytes("action a2"));
+        //unchanged actions and unknown titles write nothing
+        journal.put("c", bytes("action c"));
+        journal.remove("d");
+        assertEquals(5, journal.getRecordCount());
+        journal.close();
+
+        Map<String, byte[]> entries = new TrackedActionJournal(journalFile).load();
+        assertEquals(2, entries.size());
+        assertEquals("action a2", string(entries.get("a")));
+        assertEquals("action c", string(entries.get("c")));
+        assertFalse(entries.containsKey("b"));
+    }
+
+    @Test
+    public void changes_appendWithoutRewritingTheLibrary() throws Exception {
+        File journalFile = new File(mFolder.getRoot(), "tracked_actions.journal");
+        TrackedActionJournal journal = new TrackedActionJournal(journalFile);
+        journal.load();
+        LinkedHashMap<String, byte[]> library = new LinkedHashMap<>();
+        for (int i = 0; i < 1000; i++) {
+            library.put("title" + i, bytes("action of title " + i));
+        }
+        journal.replaceAll(library);
+
+        //a change costs the same few bytes however many titles are tracked
+        long lngBefore = journalFile.length();
+        journal.put("new", bytes("action of new"));
+        long lngPut = journalFile.length() - lngBefore;
+        assertTrue(lngPut < 64);
+        lngBefore = journalFile.length();
+        journal.remove("title5");
+        assertTrue(journalFile.length() - lngBefore < lngPut);
+        journal.close();
+
+        Map<String, byte[]> entries = new TrackedActionJournal(journalFile).load();
+        assertEquals(1000, entries.size());
+        assertFalse(entries.containsKey("title5"));
+        assertEquals("action of new", string(entries.get("new")));
+    }
+
+    @Test
+    public void staleRecords_areCompactedAway() throws Exception {
+        File journalFile = new File(mFolder.getRoot(), "tracked_actions.journal");
+        TrackedActionJournal journal = new TrackedActionJournal(journalFile);
+        journal.load();
+        journal.put("kept", bytes("kept"));
+        for (int i = 0; i < 1000; i++) {
+            journal.put("churn", bytes("version " + i));
+        }
+        journal.remove("churn");
+
+        //at most one record per title plus the changes since the last compaction
+        assertTrue(journal.getRecordCount() < 300);
+        assertTrue(journalFile.length() < 300 * 32);
+        assertFalse(new File(journalFile.getPath() + ".tmp").exists());
+        journal.close();
+
+        Map<String, byte[]> entries = new TrackedActionJournal(journalFile).load();
+        assertEquals(1, entries.size());
+        assertEquals("kept", string(entries.get("kept")));
+    }
+
+    @Test
+    public void damagedTail_isDroppedAndLaterChangesSurvive() throws Exception {
+        File journalFile = new File(mFolder.getRoot(), "tracked_actions.journal");
+        TrackedActionJournal journal = new TrackedActionJournal(journalFile);
+        journal.load();
+        journal.put("a", bytes("action a"));
+        journal.put("b", bytes("action b"));
+        journal.close();
+
+        //a crash in the middle of the last record
+        long lngLength = journalFile.length();
+        try (RandomAccessFile file = new RandomAccessFile(journalFile, "rw")) {
+            file.setLength(lngLength - 3);
+        }
+        journal = new TrackedActionJournal(journalFile);
+        Map<String, byte[]> entries = journal.load();
+        assertEquals(1, entries.size());
+        assertEquals("action a", string(entries.get("a")));
+
+        //appends after the cut are readable, and garbage written after them is ignored
+        journal.put("c", bytes("action c"));
+        journal.close();
+        try (FileOutputStream output = new FileOutputStream(journalFile, true)) {
+            output.write(new byte[] {1, 0, 1, 'x', 0, 0, 0, 1, 'y', 0, 0, 0, 0});
+        }
+        entries = new TrackedActionJournal(journalFile).load();
+        assertEquals(2, entries.size());
+        assertEquals("action c", string(entries.get("c")));
+    }
+
+    @Test
+    public void unknownFile_startsEmpty() throws Exception {
+        File journalFile = new File(mFolder.getRoot(), "tracked_actions.journal");
+        try (FileOutputStream output = new FileOutputStream(journalFile)) {
+            output.write(bytes("not a journal at all"));
+        }
+        TrackedActionJournal journal = new TrackedActionJournal(journalFile);
+        assertTrue(journal.load().isEmpty());
+        journal.put("a", bytes("action a"));
+        journal.close();
+        assertEquals(1, new TrackedActionJournal(journalFile).load().size());
+    }
+
+    private static byte[] bytes(String value) {
+        return value.getBytes(UTF_8);
+    }
+
+    private static String string(byte[] value) {
+        return new String(value, UTF_8);
+    }
+}
@@ -0,0 +1,113 @@
+package com.lashawnmcghee.hlsplayback.util;
+
+import android.content.Context;
+import android.net.Uri;
+import android.os.SystemClock;
+
+import com.google.android.exoplayer2.upstream.ByteArrayDataSource;
+import com.google.android.exoplayer2.upstream.DataSource;
+import com.google.android.exoplayer2.upstream.DataSpec;
+import com.google.android.exoplayer2.upstream.DefaultBandwidthMeter;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests of the bandwidth meter persisting its estimate between players.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class PersistentBandwidthMeterTest {
+    private static final Uri MEDIA_URI = Uri.parse("https://media.example.com/title/master.m3u8");
+    private static final DataSpec SEGMENT = new DataSpec(
+            Uri.parse("https://media.example.com/title/seg0.ts"));
+
+    private Context mContext;
+    private HLSAppSharedPreferences mPrefs;
+
+    @Before
+    public void setUp() {
+        mContext = RuntimeEnvironment.application;
+        mPrefs = new HLSAppSharedPreferences(mContext, "bandwidth_test");
+    }
+
+    @Test
+    public void unknownConditions_startFromTheDefaultEstimate() {
+        PersistentBandwidthMeter meter = new PersistentBandwidthMeter(mContext, mPrefs, MEDIA_URI);
+        assertEquals(DefaultBandwidthMeter.DEFAULT_INITIAL_BITRATE_ESTIMATE,
+                meter.getBitrateEstimate());
+        assertEquals(0, meter.getLatencyEstimateUs());
+    }
+
+    @Test
+    public void savedEstimate_isDiscountedByTheRequestLatency() {
+        PersistentBandwidthMeter meter = new PersistentBandwidthMeter(mContext, mPrefs, MEDIA_URI);
+        //100ms to the first byte, then 1MB in 400ms is 20Mbps for the body alone
+        transfer(meter, new ByteArrayDataSource(new byte[1]), true, 100, 400, 1000000);
+        assertEquals(100000, meter.getLatencyEstimateUs());
+        assertEquals(20000000, meter.getBitrateEstimate());
+        meter.save();
+
+        PersistentBandwidthMeter nextMeter =
+                new PersistentBandwidthMeter(mContext, mPrefs, MEDIA_URI);
+        assertEquals(100000, nextMeter.getLatencyEstimateUs());
+        //a whole request took 500ms, so only four fifths of the body rate is delivered
+        assertEquals(16000000, nextMeter.getBitrateEstimate());
+    }
+
+    @Test
+    public void otherHosts_doNotShareEstimates() {
+        PersistentBandwidthMeter meter = new PersistentBandwidthMeter(mContext, mPrefs, MEDIA_URI);
+        transfer(meter, new ByteArrayDataSource(new byte[1]), true, 100, 400, 1000000);
+        meter.save();
+
+        PersistentBandwidthMeter otherMeter = new PersistentBandwidthMeter(mContext,
+                mPrefs,
+                Uri.parse("https://other.example.com/master.m3u8"));
+        assertEquals(DefaultBandwidthMeter.DEFAULT_INITIAL_BITRATE_ESTIMATE,
+                otherMeter.getBitrateEstimate());
+    }
+
+    @Test
+    public void localTransfers_areNeitherTimedNorSaved() {
+        PersistentBandwidthMeter meter = new PersistentBandwidthMeter(mContext, mPrefs, MEDIA_URI);
+        transfer(meter, new ByteArrayDataSource(new byte[1]), false, 100, 400, 1000000);
+        assertEquals(0, meter.getLatencyEstimateUs());
+        meter.save();
+
+        PersistentBandwidthMeter nextMeter =
+                new PersistentBandwidthMeter(mContext, mPrefs, MEDIA_URI);
+        assertEquals(DefaultBandwidthMeter.DEFAULT_INITIAL_BITRATE_ESTIMATE,
+                nextMeter.getBitrateEstimate());
+    }
+
+    @Test
+    public void latencySamples_areAveraged() {
+        PersistentBandwidthMeter meter = new PersistentBandwidthMeter(mContext, mPrefs, MEDIA_URI);
+        transfer(meter, new ByteArrayDataSource(new byte[1]), true, 100, 400, 1000000);
+        transfer(meter, new ByteArrayDataSource(new byte[1]), true, 500, 400, 1000000);
+        //a new sample weighs a quarter
+        assertEquals(200000, meter.getLatencyEstimateUs());
+    }
+
+    /**
+     * Report one transfer to the meter, moving the clock as it goes.
+     */
+    private static void transfer(PersistentBandwidthMeter meter,
+                                 DataSource source,
+                                 boolean bNetwork,
+                                 long lngLatencyMs,
+                                 long lngTransferMs,
+                                 int iBytes) {
+        meter.onTransferInitializing(source, SEGMENT, bNetwork);
+        SystemClock.sleep(lngLatencyMs);
+        meter.onTransferStart(source, SEGMENT, bNetwork);
+        SystemClock.sleep(lngTransferMs);
+        meter.onBytesTransferred(source, SEGMENT, bNetwork, iBytes);
+        meter.onTransferEnd(source, SEGMENT, bNetwork);
+    }
+}